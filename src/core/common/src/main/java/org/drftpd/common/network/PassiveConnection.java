@@ -27,9 +27,11 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Arrays;
 
 /**
@@ -39,6 +41,34 @@ import java.util.Arrays;
 public class PassiveConnection extends Connection {
     private static final Logger logger = LogManager.getLogger(PassiveConnection.class);
 
+    /**
+     * Plain (non SSL/TLS) server sockets are created from a {@link ServerSocketChannel} so that
+     * accepted sockets expose {@link Socket#getChannel()}, which allows zero-copy transfers.
+     */
+    private static final ServerSocketFactory CHANNEL_SERVER_SOCKET_FACTORY = new ServerSocketFactory() {
+        @Override
+        public ServerSocket createServerSocket() throws IOException {
+            return ServerSocketChannel.open().socket();
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            return createServerSocket(port, 50, null);
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+            return createServerSocket(port, backlog, null);
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog, InetAddress ifAddress) throws IOException {
+            ServerSocket ss = createServerSocket();
+            ss.bind(new InetSocketAddress(ifAddress, port), backlog);
+            return ss;
+        }
+    };
+
     private ServerSocket _serverSocket;
 
     // Default is to initiate the handshake
@@ -59,7 +89,7 @@ public class PassiveConnection extends Connection {
         if (ctx != null) {
             _serverSocket = portRange.getPort(ctx.getServerSocketFactory(), bindIP);
         } else {
-            _serverSocket = portRange.getPort(ServerSocketFactory.getDefault(), bindIP);
+            _serverSocket = portRange.getPort(CHANNEL_SERVER_SOCKET_FACTORY, bindIP);
         }
         _serverSocket.setSoTimeout(TIMEOUT);
     }
@@ -105,7 +135,7 @@ public class PassiveConnection extends Connection {
             logger.debug("[{}] Enabled protocols for this new connection are as follows: '{}'",
                     sslSock.getRemoteSocketAddress(), Arrays.toString(sslSock.getEnabledProtocols()));
             sslSock.setUseClientMode(_useSSLClientMode);
-            sslSock.startHandshake();
+            SSLService.getSSLService().startHandshake(sslSock);
         }
 
         return sock;
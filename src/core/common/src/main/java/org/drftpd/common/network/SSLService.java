@@ -16,6 +16,7 @@ import java.net.Socket;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -38,6 +39,9 @@ public class SSLService {
 
     private boolean _diagnoseTrustExceptions = false;
 
+    private final LongAdder _resumedSessions = new LongAdder();
+    private final LongAdder _newSessions = new LongAdder();
+
     private static final Map<String, String> ORDERED_PROTOCOL_ALGORITHM_MAP;
     static {
         LinkedHashMap<String, String> protocolAlgorithmMap = new LinkedHashMap<>();
@@ -76,6 +80,62 @@ public class SSLService {
         _sslContexts.put(conf, createSslContext(conf));
     }
 
+    /**
+     * Sets the size and timeout of the TLS session caches of the given context.
+     * Cached sessions let clients resume a session on a new connection (for example a data connection
+     * following the control connection) with an abbreviated handshake instead of a full one.
+     *
+     * @param size    maximum number of cached sessions, 0 for no limit
+     * @param timeout seconds a cached session can be resumed, 0 for no limit
+     */
+    public void configureSessionCache(SSLContext context, int size, int timeout) {
+        Objects.requireNonNull(context, "SSLContext cannot be null");
+        for (SSLSessionContext sessionContext : new SSLSessionContext[]{context.getServerSessionContext(), context.getClientSessionContext()}) {
+            if (sessionContext != null) {
+                sessionContext.setSessionCacheSize(size);
+                sessionContext.setSessionTimeout(timeout);
+            }
+        }
+        logger.info("TLS session cache configured with size {} and timeout {}s", size, timeout);
+    }
+
+    /**
+     * Starts the handshake on the socket and keeps track of whether an earlier session was resumed
+     */
+    public void startHandshake(SSLSocket socket) throws IOException {
+        long started = System.currentTimeMillis();
+        socket.startHandshake();
+        // a resumed session keeps the creation time of the handshake that established it
+        if (socket.getSession().getCreationTime() < started) {
+            _resumedSessions.increment();
+        } else {
+            _newSessions.increment();
+        }
+        logger.debug("[{}] TLS handshake done in {}ms, {}", socket.getRemoteSocketAddress(),
+                System.currentTimeMillis() - started, getSessionCacheStatus());
+    }
+
+    /**
+     * @return the number of handshakes started through {@link #startHandshake(SSLSocket)} that resumed a cached session
+     */
+    public long getResumedSessions() {
+        return _resumedSessions.sum();
+    }
+
+    /**
+     * @return the number of handshakes started through {@link #startHandshake(SSLSocket)} that needed a full handshake
+     */
+    public long getNewSessions() {
+        return _newSessions.sum();
+    }
+
+    public String getSessionCacheStatus() {
+        long resumed = getResumedSessions();
+        long total = resumed + getNewSessions();
+        return "TLS sessions [resumed=" + resumed + "][full=" + (total - resumed) + "][hitRatio="
+                + (total == 0 ? "0.00" : String.format("%.2f", resumed / (double) total)) + "]";
+    }
+
     /**
      * Create a new {@link SSLSocketFactory} based on the provided configuration.
      * The socket factory will also properly configure the ciphers and protocols on each socket that is created
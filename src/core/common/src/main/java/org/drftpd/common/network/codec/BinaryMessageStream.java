@@ -0,0 +1,151 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.common.network.codec;
+
+import java.io.*;
+
+/**
+ * Sends messages as length prefixed frames:
+ * <pre>
+ * int   length of the body
+ * int   type id of the codec, or {@link MessageCodecs#JAVA_TYPE}
+ * byte[] body written by the codec, or the Java serialized message
+ * </pre>
+ * A frame is read completely before it is decoded, so a codec that reads too little or too much
+ * can not get the stream out of sync.
+ *
+ * @version $Id$
+ */
+public class BinaryMessageStream implements MessageStream {
+
+    public static final String FORMAT = "binary/1";
+
+    private static final int MAX_FRAME_LENGTH = 512 * 1024 * 1024;
+
+    // frames bigger than this, like the remerge of a huge directory, do not keep their buffer
+    private static final int KEEP_BUFFER_LENGTH = 1024 * 1024;
+
+    private final DataInputStream _in;
+
+    private final DataOutputStream _out;
+
+    private final MessageCodecs _codecs;
+
+    private final DeflateCompression _compression;
+
+    private FrameBuffer _frame = new FrameBuffer();
+
+    private DataOutputStream _body = new DataOutputStream(_frame);
+
+    public BinaryMessageStream(InputStream in, OutputStream out, MessageCodecs codecs) {
+        this(in, out, codecs, null);
+    }
+
+    /**
+     * @param compression the compression <code>in</code> and <code>out</code> were wrapped with, or null
+     */
+    public BinaryMessageStream(InputStream in, OutputStream out, MessageCodecs codecs,
+                               DeflateCompression compression) {
+        _in = new DataInputStream(in);
+        _out = new DataOutputStream(out);
+        _codecs = codecs;
+        _compression = compression;
+    }
+
+    public MessageCodecs getCodecs() {
+        return _codecs;
+    }
+
+    /**
+     * @return the compression of the connection, or null if it is not compressed
+     */
+    public DeflateCompression getCompression() {
+        return _compression;
+    }
+
+    public String getFormat() {
+        return FORMAT;
+    }
+
+    public synchronized void writeMessage(Object message) throws IOException {
+        MessageCodecs.Registration registration = _codecs.getRegistration(message.getClass());
+        _frame.reset();
+        try {
+            int typeId;
+            if (registration == null) {
+                typeId = MessageCodecs.JAVA_TYPE;
+                try (ObjectOutputStream oos = new ObjectOutputStream(_frame)) {
+                    oos.writeObject(message);
+                }
+            } else {
+                typeId = registration._typeId;
+                registration._codec.write(message, _body);
+                _body.flush();
+            }
+            _out.writeInt(_frame.size());
+            _out.writeInt(typeId);
+            _out.write(_frame.getBuffer(), 0, _frame.size());
+            _out.flush();
+        } finally {
+            if (_frame.getBuffer().length > KEEP_BUFFER_LENGTH) {
+                _frame = new FrameBuffer();
+                _body = new DataOutputStream(_frame);
+            }
+        }
+    }
+
+    public Object readMessage() throws IOException, ClassNotFoundException {
+        int length = _in.readInt();
+        int typeId = _in.readInt();
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new StreamCorruptedException("Invalid frame length " + length);
+        }
+        byte[] body = new byte[length];
+        _in.readFully(body);
+        if (typeId == MessageCodecs.JAVA_TYPE) {
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(body))) {
+                return ois.readObject();
+            }
+        }
+        MessageCodecs.Registration registration = _codecs.getRegistration(typeId);
+        if (registration == null) {
+            throw new StreamCorruptedException("Unknown message type " + Integer.toHexString(typeId));
+        }
+        return registration._codec.read(new DataInputStream(new ByteArrayInputStream(body)));
+    }
+
+    public void close() throws IOException {
+        try {
+            _in.close();
+        } finally {
+            synchronized (this) {
+                _out.close();
+            }
+        }
+    }
+
+    private static class FrameBuffer extends ByteArrayOutputStream {
+        FrameBuffer() {
+            super(8192);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.common.network.codec;
+
+import org.drftpd.common.network.AsyncCommandArgument;
+import org.drftpd.common.network.AsyncResponse;
+
+import java.util.List;
+
+import static org.drftpd.common.network.codec.WireFormat.*;
+
+/**
+ * Codecs for the commands sent by the master and the plain responses of the slave.
+ *
+ * @version $Id$
+ */
+public class CommonMessageCodecs implements MessageCodecProvider {
+
+    public List<MessageCodec<?>> getCodecs() {
+        return List.of(
+                MessageCodec.of(AsyncCommandArgument.class,
+                        (ac, out) -> {
+                            writeString(out, ac.getIndex());
+                            writeString(out, ac.getName());
+                            writeStrings(out, ac.getArgsArray());
+                        },
+                        in -> new AsyncCommandArgument(readString(in), readString(in), readStrings(in))),
+                MessageCodec.of(AsyncResponse.class,
+                        (ar, out) -> writeString(out, ar.getIndex()),
+                        in -> new AsyncResponse(readString(in))));
+    }
+}
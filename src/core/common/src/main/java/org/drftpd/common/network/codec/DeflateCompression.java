@@ -0,0 +1,94 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.common.network.codec;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflate compression of both directions of a connection. Every flush of the output ends with a
+ * sync flush, so a message is never held back in the compressor waiting for more data, while the
+ * dictionary is kept between messages and repeated paths and names compress well.
+ * <p>
+ * The byte counters can be read while the connection is in use.
+ *
+ * @version $Id$
+ */
+public class DeflateCompression {
+
+    public static final String NAME = "deflate";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Deflater _deflater;
+
+    private final Inflater _inflater = new Inflater();
+
+    public DeflateCompression(int level) {
+        _deflater = new Deflater(level);
+    }
+
+    public DeflateCompression() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public InputStream wrap(InputStream in) {
+        return new InflaterInputStream(in, _inflater, BUFFER_SIZE);
+    }
+
+    public OutputStream wrap(OutputStream out) {
+        return new DeflaterOutputStream(out, _deflater, BUFFER_SIZE, true);
+    }
+
+    /**
+     * @return bytes given to the compressor
+     */
+    public long getBytesSent() {
+        return _deflater.getBytesRead();
+    }
+
+    /**
+     * @return bytes written to the connection after compression
+     */
+    public long getCompressedBytesSent() {
+        return _deflater.getBytesWritten();
+    }
+
+    /**
+     * @return bytes read from the connection before decompression
+     */
+    public long getCompressedBytesReceived() {
+        return _inflater.getBytesRead();
+    }
+
+    /**
+     * @return bytes returned by the decompressor
+     */
+    public long getBytesReceived() {
+        return _inflater.getBytesWritten();
+    }
+
+    public String toString() {
+        return NAME + "[sent=" + getBytesSent() + "/" + getCompressedBytesSent()
+                + ",received=" + getBytesReceived() + "/" + getCompressedBytesReceived() + "]";
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.common.network.codec;
+
+import java.io.*;
+
+/**
+ * Sends messages with Java serialization. Every connection between master and slave starts with this
+ * format, the handshake may then switch it to a {@link BinaryMessageStream} on the same socket.
+ *
+ * @version $Id$
+ */
+public class JavaMessageStream implements MessageStream {
+
+    public static final String FORMAT = "java";
+
+    private final BufferedInputStream _bufferedIn;
+
+    private final BufferedOutputStream _bufferedOut;
+
+    private final ObjectInputStream _in;
+
+    private final ObjectOutputStream _out;
+
+    public JavaMessageStream(InputStream in, OutputStream out) throws IOException {
+        _bufferedOut = new BufferedOutputStream(out);
+        _out = new ObjectOutputStream(_bufferedOut);
+        _out.flush();
+        _bufferedIn = new BufferedInputStream(in);
+        _in = new ObjectInputStream(_bufferedIn);
+    }
+
+    public ObjectInputStream getObjectInputStream() {
+        return _in;
+    }
+
+    public ObjectOutputStream getObjectOutputStream() {
+        return _out;
+    }
+
+    public String getFormat() {
+        return FORMAT;
+    }
+
+    public void writeMessage(Object message) throws IOException {
+        synchronized (_out) {
+            // reset before writing, a reset after the last message would leave a marker in front of the first binary frame
+            _out.reset();
+            _out.writeObject(message);
+            _out.flush();
+        }
+    }
+
+    public Object readMessage() throws IOException, ClassNotFoundException {
+        return _in.readObject();
+    }
+
+    /**
+     * Continues the connection in the binary format. Object streams do not read ahead of the
+     * last object, so no data is lost as long as nothing else is read from this stream afterwards.
+     */
+    public BinaryMessageStream toBinary(MessageCodecs codecs) {
+        return new BinaryMessageStream(_bufferedIn, _bufferedOut, codecs);
+    }
+
+    /**
+     * Continues the connection in the binary format, compressed in both directions.
+     *
+     * @see #toBinary(MessageCodecs)
+     */
+    public BinaryMessageStream toBinary(MessageCodecs codecs, DeflateCompression compression) {
+        return new BinaryMessageStream(compression.wrap(_bufferedIn), compression.wrap(_bufferedOut), codecs,
+                compression);
+    }
+
+    public void close() throws IOException {
+        try {
+            _in.close();
+        } finally {
+            synchronized (_out) {
+                _out.close();
+            }
+        }
+    }
+}
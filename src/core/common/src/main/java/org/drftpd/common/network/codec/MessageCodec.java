@@ -0,0 +1,74 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.common.network.codec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes and reads one message type in the binary wire format used between master and slave.
+ * <p>
+ * A codec is identified on the wire by the class name of its type and its version, so changing
+ * the format of a codec requires a new version. Master and slave only use the codecs they both know,
+ * everything else falls back to Java serialization.
+ *
+ * @version $Id$
+ * @see MessageCodecProvider
+ */
+public interface MessageCodec<T> {
+
+    /**
+     * @return the exact class of the messages handled by this codec, subclasses are not handled
+     */
+    Class<T> getType();
+
+    default int getVersion() {
+        return 1;
+    }
+
+    void write(T message, DataOutputStream out) throws IOException;
+
+    T read(DataInputStream in) throws IOException;
+
+    static <T> MessageCodec<T> of(Class<T> type, Encoder<T> encoder, Decoder<T> decoder) {
+        return new MessageCodec<>() {
+            public Class<T> getType() {
+                return type;
+            }
+
+            public void write(T message, DataOutputStream out) throws IOException {
+                encoder.write(message, out);
+            }
+
+            public T read(DataInputStream in) throws IOException {
+                return decoder.read(in);
+            }
+        };
+    }
+
+    @FunctionalInterface
+    interface Encoder<T> {
+        void write(T message, DataOutputStream out) throws IOException;
+    }
+
+    @FunctionalInterface
+    interface Decoder<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+}
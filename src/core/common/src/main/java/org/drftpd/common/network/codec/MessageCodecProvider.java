@@ -15,30 +15,19 @@
  * along with DrFTPD; if not, write to the Free Software
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
  */
-package org.drftpd.slave.vfs;
+package org.drftpd.common.network.codec;
 
-import java.io.File;
-import java.util.TreeMap;
+import java.util.List;
 
 /**
- * @author djb61
+ * Supplies the {@link MessageCodec}s of a module or plugin.
+ * <p>
+ * Implementations need a public no-argument constructor, they are found by master and slave
+ * when their protocol extensions are loaded.
+ *
  * @version $Id$
  */
-public class RootPathContents {
-
-    private final long _lastModified;
-    private final TreeMap<String, File> _inodes;
-
-    public RootPathContents(long lastModified, TreeMap<String, File> inodes) {
-        _lastModified = lastModified;
-        _inodes = inodes;
-    }
-
-    public long getLastModified() {
-        return _lastModified;
-    }
+public interface MessageCodecProvider {
 
-    public TreeMap<String, File> getInodes() {
-        return _inodes;
-    }
+    List<MessageCodec<?>> getCodecs();
 }
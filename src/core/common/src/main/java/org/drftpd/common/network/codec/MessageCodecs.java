@@ -0,0 +1,122 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.common.network.codec;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The registered {@link MessageCodec}s, looked up by message class when writing and by type id when reading.
+ * <p>
+ * The type id of a codec is derived from its identifier, <code>class name:version</code>, so both ends
+ * agree on it without exchanging a table. Colliding ids are rejected when the codec is registered.
+ *
+ * @version $Id$
+ */
+public class MessageCodecs {
+
+    /**
+     * Type id of frames that hold a Java serialized object
+     */
+    public static final int JAVA_TYPE = 0;
+
+    private final Map<Class<?>, Registration> _byType = new ConcurrentHashMap<>();
+
+    private final Map<Integer, Registration> _byId = new ConcurrentHashMap<>();
+
+    public static String getIdentifier(MessageCodec<?> codec) {
+        return codec.getType().getName() + ":" + codec.getVersion();
+    }
+
+    public synchronized void register(MessageCodec<?> codec) {
+        String identifier = getIdentifier(codec);
+        int typeId = identifier.hashCode();
+        if (typeId == JAVA_TYPE) {
+            throw new IllegalArgumentException("Codec " + identifier + " has a reserved type id");
+        }
+        if (_byType.containsKey(codec.getType())) {
+            throw new IllegalArgumentException("A codec for " + codec.getType().getName() + " is already registered");
+        }
+        Registration other = _byId.get(typeId);
+        if (other != null) {
+            throw new IllegalArgumentException("Codec " + identifier + " has the same type id as " + other._identifier);
+        }
+        Registration registration = new Registration(codec, identifier, typeId);
+        _byType.put(codec.getType(), registration);
+        _byId.put(typeId, registration);
+    }
+
+    public void register(MessageCodecProvider provider) {
+        for (MessageCodec<?> codec : provider.getCodecs()) {
+            register(codec);
+        }
+    }
+
+    /**
+     * @return the identifiers of all registered codecs
+     */
+    public List<String> getIdentifiers() {
+        List<String> identifiers = new ArrayList<>();
+        for (Registration registration : _byType.values()) {
+            identifiers.add(registration._identifier);
+        }
+        Collections.sort(identifiers);
+        return identifiers;
+    }
+
+    /**
+     * @return a registry with only the codecs whose identifier is in <code>identifiers</code>
+     */
+    public MessageCodecs select(Collection<String> identifiers) {
+        Set<String> selected = new HashSet<>(identifiers);
+        MessageCodecs codecs = new MessageCodecs();
+        for (Registration registration : _byType.values()) {
+            if (selected.contains(registration._identifier)) {
+                codecs.register(registration._codec);
+            }
+        }
+        return codecs;
+    }
+
+    public int size() {
+        return _byType.size();
+    }
+
+    Registration getRegistration(Class<?> type) {
+        return _byType.get(type);
+    }
+
+    Registration getRegistration(int typeId) {
+        return _byId.get(typeId);
+    }
+
+    static class Registration {
+        final MessageCodec<Object> _codec;
+
+        final String _identifier;
+
+        final int _typeId;
+
+        @SuppressWarnings("unchecked")
+        Registration(MessageCodec<?> codec, String identifier, int typeId) {
+            _codec = (MessageCodec<Object>) codec;
+            _identifier = identifier;
+            _typeId = typeId;
+        }
+    }
+}
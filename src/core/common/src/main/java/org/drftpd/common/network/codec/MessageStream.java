@@ -0,0 +1,43 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.common.network.codec;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A connection between master and slave that messages are written to and read from.
+ * <p>
+ * Writing is thread safe, reading is done by a single thread.
+ *
+ * @version $Id$
+ */
+public interface MessageStream extends Closeable {
+
+    /**
+     * Writes and flushes one message
+     */
+    void writeMessage(Object message) throws IOException;
+
+    Object readMessage() throws IOException, ClassNotFoundException;
+
+    /**
+     * @return the name of the wire format used by this stream
+     */
+    String getFormat();
+}
@@ -0,0 +1,93 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.common.protocol;
+
+import org.drftpd.common.network.codec.DeflateCompression;
+import org.drftpd.common.network.codec.JavaMessageStream;
+
+import java.io.Serializable;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * CodecNegotiation is sent by the slave inside the {@link HandshakeWrapper} to offer a wire format
+ * and the message codecs it knows, and is answered by the master with the format and codecs to use.
+ * <p>
+ * Only masters that answer it may be offered one, older masters cannot read the {@link HandshakeWrapper}
+ * with an offer and do not send an answer. Masters advertise it by sending their protocol list as a
+ * {@link LinkedList}, older masters send an {@link java.util.ArrayList}. Slaves of any version read it as a list.
+ *
+ * @version $Id$
+ */
+public class CodecNegotiation implements Serializable {
+    private static final long serialVersionUID = -3154120394532163721L;
+
+    private final String _format;
+    private final List<String> _codecs;
+    private final String _compression;
+
+    /**
+     * @return the protocol list to send to the slave, marked as coming from a master that answers codec offers.
+     */
+    public static List<String> advertise(List<String> protocols) {
+        return new LinkedList<>(protocols);
+    }
+
+    /**
+     * @return true if the protocol list read from the master was sent by {@link #advertise(List)}.
+     */
+    public static boolean isAdvertised(Object protocols) {
+        return protocols instanceof LinkedList;
+    }
+
+    public CodecNegotiation(String format, List<String> codecs) {
+        this(format, codecs, null);
+    }
+
+    public CodecNegotiation(String format, List<String> codecs, String compression) {
+        _format = format;
+        _codecs = codecs;
+        _compression = compression;
+    }
+
+    /**
+     * @return the wire format, {@link JavaMessageStream#FORMAT} if the connection stays as it is.
+     */
+    public String getFormat() {
+        return _format;
+    }
+
+    /**
+     * @return identifiers of the message codecs.
+     */
+    public List<String> getCodecs() {
+        return _codecs;
+    }
+
+    /**
+     * @return the compression of the binary format, {@link DeflateCompression#NAME} or null for none.
+     */
+    public String getCompression() {
+        return _compression;
+    }
+
+    public String toString() {
+        return getClass().getName() + "[format=" + getFormat() + ",codecs=" + getCodecs().size()
+                + ",compression=" + getCompression() + "]";
+    }
+}
@@ -26,10 +26,13 @@ import java.io.Serializable;
  * @author fr0w
  * @version $Id$
  */
-@SuppressWarnings("serial")
 public class HandshakeWrapper implements Serializable {
+    // the value computed for the class before codecs were added, so masters and slaves of both versions connect
+    private static final long serialVersionUID = 1132945343705718899L;
+
     private boolean _status;
     private Exception _exception;
+    private CodecNegotiation _codecs;
 
     /**
      * @return true if *all* plugins were found on the slave-side
@@ -72,6 +75,24 @@ public class HandshakeWrapper implements Serializable {
         _status = status;
     }
 
+    /**
+     * @return the wire format offered by the slave, null if the slave keeps using Java serialization.
+     */
+    public CodecNegotiation getCodecs() {
+        return _codecs;
+    }
+
+    /**
+     * Offers the master to switch the connection to another wire format after the handshake.
+     * Only set if the master advertised codec support, see {@link CodecNegotiation#isAdvertised(Object)}.
+     *
+     * @param codecs
+     * @see #getCodecs()
+     */
+    public void setCodecs(CodecNegotiation codecs) {
+        _codecs = codecs;
+    }
+
     public String toString() {
         return getClass().getName() + "[pluginStatus=" + pluginStatus() + "]";
     }
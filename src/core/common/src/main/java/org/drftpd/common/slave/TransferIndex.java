@@ -40,6 +40,10 @@ public final class TransferIndex implements Serializable {
         }
     }
 
+    public int getIndex() {
+        return _index;
+    }
+
     public boolean equals(Object obj) {
         if (!(obj instanceof TransferIndex)) {
             return false;
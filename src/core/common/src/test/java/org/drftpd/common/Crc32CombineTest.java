@@ -0,0 +1,61 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.common;
+
+import org.drftpd.common.util.Crc32Combine;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+/**
+ * @version $Id$
+ */
+public class Crc32CombineTest {
+
+    private static long crc(byte[] data, int off, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(data, off, len);
+        return crc.getValue();
+    }
+
+    @Test
+    public void testCombine() {
+        byte[] data = new byte[100000];
+        new Random(42).nextBytes(data);
+        long whole = crc(data, 0, data.length);
+
+        for (int split : new int[]{1, 7, 4096, 65536, 99999}) {
+            long first = crc(data, 0, split);
+            long second = crc(data, split, data.length - split);
+            assertEquals(whole, Crc32Combine.combine(first, second, data.length - split));
+        }
+    }
+
+    @Test
+    public void testEmptyParts() {
+        byte[] data = "drftpd".getBytes();
+        long whole = crc(data, 0, data.length);
+
+        assertEquals(whole, Crc32Combine.combine(whole, 0, 0));
+        assertEquals(whole, Crc32Combine.combine(0, whole, data.length));
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.common;
+
+import org.drftpd.common.network.AsyncCommandArgument;
+import org.drftpd.common.network.AsyncResponse;
+import org.drftpd.common.network.codec.*;
+import org.drftpd.common.protocol.CodecNegotiation;
+import org.drftpd.common.protocol.HandshakeWrapper;
+import org.drftpd.common.slave.DiskStatus;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * @version $Id$
+ */
+public class MessageCodecsTest {
+
+    private static MessageCodecs codecs() {
+        MessageCodecs codecs = new MessageCodecs();
+        codecs.register(new CommonMessageCodecs());
+        return codecs;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryMessageStream out = new BinaryMessageStream(new ByteArrayInputStream(new byte[0]), bytes, codecs());
+        out.writeMessage(new AsyncCommandArgument("0a", "receive", new String[]{"/a/b", "ß€", null, ""}));
+        out.writeMessage(new AsyncResponse("0b"));
+        // no codec, sent as Java serialized frame
+        out.writeMessage(new DiskStatus(1, 2));
+
+        BinaryMessageStream in = new BinaryMessageStream(new ByteArrayInputStream(bytes.toByteArray()),
+                new ByteArrayOutputStream(), codecs());
+        AsyncCommandArgument ac = (AsyncCommandArgument) in.readMessage();
+        assertEquals("0a", ac.getIndex());
+        assertEquals("receive", ac.getName());
+        assertArrayEquals(new String[]{"/a/b", "ß€", null, ""}, ac.getArgsArray());
+        assertEquals("0b", ((AsyncResponse) in.readMessage()).getIndex());
+        assertEquals(2, ((DiskStatus) in.readMessage()).getBytesCapacity());
+    }
+
+    private static byte[] streamHeader() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ObjectOutputStream(bytes).flush();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testSwitchFromJava() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JavaMessageStream out = new JavaMessageStream(new ByteArrayInputStream(streamHeader()), bytes);
+        out.writeMessage("slave");
+        out.toBinary(codecs()).writeMessage(new AsyncResponse("ff"));
+
+        JavaMessageStream in = new JavaMessageStream(new ByteArrayInputStream(bytes.toByteArray()),
+                new ByteArrayOutputStream());
+        assertEquals("slave", in.readMessage());
+        assertEquals("ff", ((AsyncResponse) in.toBinary(codecs()).readMessage()).getIndex());
+    }
+
+    @Test
+    public void testCompressedSwitch() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JavaMessageStream out = new JavaMessageStream(new ByteArrayInputStream(streamHeader()), bytes);
+        out.writeMessage("slave");
+        DeflateCompression compression = new DeflateCompression();
+        BinaryMessageStream binary = out.toBinary(codecs(), compression);
+        for (int i = 0; i < 100; i++) {
+            binary.writeMessage(new AsyncCommandArgument(Integer.toHexString(i), "checksum",
+                    new String[]{"/some/long/release/directory/file" + i + ".rar"}));
+        }
+        // nothing is closed, every message has to be readable after its own sync flush
+        assertTrue(compression.getCompressedBytesSent() < compression.getBytesSent() / 2);
+
+        JavaMessageStream in = new JavaMessageStream(new ByteArrayInputStream(bytes.toByteArray()),
+                new ByteArrayOutputStream());
+        assertEquals("slave", in.readMessage());
+        BinaryMessageStream received = in.toBinary(codecs(), new DeflateCompression());
+        for (int i = 0; i < 100; i++) {
+            AsyncCommandArgument command = (AsyncCommandArgument) received.readMessage();
+            assertEquals(Integer.toHexString(i), command.getIndex());
+            assertEquals("/some/long/release/directory/file" + i + ".rar", command.getArgsArray()[0]);
+        }
+        assertEquals(compression.getBytesSent(), received.getCompression().getBytesReceived());
+    }
+
+    @Test
+    public void testHandshakeCompatibility() throws Exception {
+        // must stay the value older masters and slaves computed for the class
+        assertEquals(1132945343705718899L, ObjectStreamClass.lookup(HandshakeWrapper.class).getSerialVersionUID());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(new ArrayList<>(List.of("basic")));
+            out.writeObject(CodecNegotiation.advertise(List.of("basic")));
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            Object older = in.readObject();
+            Object newer = in.readObject();
+            assertFalse(CodecNegotiation.isAdvertised(older));
+            assertTrue(CodecNegotiation.isAdvertised(newer));
+            assertEquals(older, newer);
+        }
+    }
+
+    @Test
+    public void testSelect() {
+        MessageCodecs codecs = codecs();
+        List<String> identifiers = codecs.getIdentifiers();
+        assertEquals(2, identifiers.size());
+        assertEquals(1, codecs.select(List.of(identifiers.get(0), "unknown:1")).size());
+    }
+
+    @Test
+    public void testDuplicateType() {
+        MessageCodecs codecs = codecs();
+        assertThrows(IllegalArgumentException.class, () -> codecs.register(MessageCodec.of(AsyncResponse.class,
+                (ar, out) -> {
+                }, in -> null)));
+    }
+
+    @Test
+    public void testVarInt() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1};
+        for (int value : values) {
+            WireFormat.writeVarInt(out, value);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (int value : values) {
+            assertEquals(value, WireFormat.readVarInt(in));
+        }
+    }
+}
@@ -26,6 +26,7 @@ import org.drftpd.common.extensibility.CommandHook;
 import org.drftpd.common.extensibility.PluginDependencies;
 import org.drftpd.common.extensibility.PluginInterface;
 import org.drftpd.common.network.SSLGetContext;
+import org.drftpd.common.network.SSLService;
 import org.drftpd.common.util.PortRange;
 import org.drftpd.common.util.PropertyHelper;
 import org.drftpd.master.commands.CommandManagerInterface;
@@ -408,6 +409,10 @@ public class GlobalContext {
 
         try {
             _sslContext = SSLGetContext.getSSLContext();
+            Properties p = getConfig().getMainProperties();
+            SSLService.getSSLService().configureSessionCache(_sslContext,
+                    Integer.parseInt(p.getProperty("ssl.session.cache.size", "20480")),
+                    Integer.parseInt(p.getProperty("ssl.session.timeout", "86400")));
         } catch (IOException e) {
             logger.warn("Couldn't load SSLContext, SSL/TLS disabled - {}", e.getMessage());
         } catch (Exception e) {
@@ -458,6 +463,7 @@ public class GlobalContext {
                 } catch (InterruptedException ignored) {
                 }
             }
+            VirtualFileSystem.getVirtualFileSystem().close();
             logger.info("Shutdown complete, exiting");
             System.exit(0);
         }
@@ -149,6 +149,11 @@ public class StandardCommandManager implements CommandManagerInterface {
          */
         genericResponses.put("RESPONSE_550_REQUESTED_ACTION_NOT_TAKEN", new CommandResponse(550, "Requested action not taken. File unavailable (e.g., file not found, no access)"));
 
+        /*
+         * 552 Requested file action aborted. Exceeded storage allocation.
+         */
+        genericResponses.put("RESPONSE_552_EXCEEDED_STORAGE_ALLOCATION", new CommandResponse(552, "Requested file action aborted. Exceeded storage allocation."));
+
         /*
          * 553 Requested action not taken. File name not allowed.
          */
@@ -23,6 +23,7 @@ import org.drftpd.common.dynamicdata.Key;
 import org.drftpd.common.exceptions.*;
 import org.drftpd.common.io.PermissionDeniedException;
 import org.drftpd.common.network.PassiveConnection;
+import org.drftpd.common.network.SSLService;
 import org.drftpd.common.slave.ConnectInfo;
 import org.drftpd.common.slave.TransferStatus;
 import org.drftpd.common.util.Bytes;
@@ -35,6 +36,7 @@ import org.drftpd.master.commands.StandardCommandManager;
 import org.drftpd.master.commands.dataconnection.event.SlowTransferEvent;
 import org.drftpd.master.exceptions.NoAvailableSlaveException;
 import org.drftpd.master.exceptions.SlaveUnavailableException;
+import org.drftpd.master.network.BandwidthShaping;
 import org.drftpd.master.network.BaseFtpConnection;
 import org.drftpd.master.network.Checksum;
 import org.drftpd.master.network.FtpReply;
@@ -115,7 +117,7 @@ public class DataConnectionHandler extends CommandInterface {
                     sslSock.getRemoteSocketAddress(), Arrays.toString(sslSock.getEnabledCipherSuites()));
             logger.debug("[{}] Enabled protocols for this new connection are as follows: '{}'",
                     sslSock.getRemoteSocketAddress(), Arrays.toString(sslSock.getEnabledProtocols()));
-            sslSock.startHandshake();
+            SSLService.getSSLService().startHandshake(sslSock);
             conn.securityExchangeCompleted();
         } catch (IOException e) {
             logger.warn("", e);
@@ -586,6 +588,60 @@ public class DataConnectionHandler extends CommandInterface {
         return StandardCommandManager.genericResponse("RESPONSE_350_PENDING_FURTHER_INFORMATION");
     }
 
+    /**
+     * {@code ALLO <SP> <decimal-integer> [<SP> R <SP> <decimal-integer>] <CRLF>}<br>
+     * <p>
+     * Announces the size of the file that is about to be uploaded, the slave can use
+     * it to reserve the space for the file. The optional record size is ignored.
+     */
+    public CommandResponse doALLO(CommandRequest request) {
+        BaseFtpConnection conn = (BaseFtpConnection) request.getSession();
+
+        // argument check
+        if (!request.hasArgument()) {
+            return StandardCommandManager.genericResponse("RESPONSE_501_SYNTAX_ERROR");
+        }
+
+        long allocateSize;
+        try {
+            allocateSize = Long.parseLong(request.getArgument().split(" ")[0]);
+        } catch (NumberFormatException ex) {
+            return StandardCommandManager.genericResponse("RESPONSE_501_SYNTAX_ERROR");
+        }
+
+        if (allocateSize < 0) {
+            return StandardCommandManager.genericResponse("RESPONSE_501_SYNTAX_ERROR");
+        }
+        // the slave reserves this much space, do not let clients fill the disks with it
+        Properties cfg = conn.getGlobalContext().getConfig().getMainProperties();
+        long maxAllocateSize = Bytes.parseBytes(cfg.getProperty("upload.allocate.max", "100GiB").trim());
+        if ((maxAllocateSize > 0 && allocateSize > maxAllocateSize) || allocateSize > getLargestFreeSpace(conn)) {
+            return StandardCommandManager.genericResponse("RESPONSE_552_EXCEEDED_STORAGE_ALLOCATION");
+        }
+        conn.getTransferState().setAllocateSize(allocateSize);
+
+        return StandardCommandManager.genericResponse("RESPONSE_200_COMMAND_OK");
+    }
+
+    /**
+     * @return the most free disk space any available slave has, 0 if no slave is available
+     */
+    private static long getLargestFreeSpace(BaseFtpConnection conn) {
+        long largest = 0;
+        try {
+            for (RemoteSlave rslave : conn.getGlobalContext().getSlaveManager().getAvailableSlaves()) {
+                try {
+                    largest = Math.max(largest, rslave.getSlaveStatusAvailable().getDiskSpaceAvailable());
+                } catch (SlaveUnavailableException e) {
+                    // went offline, ignore it
+                }
+            }
+        } catch (NoAvailableSlaveException e) {
+            // nothing to upload to
+        }
+        return largest;
+    }
+
     /**
      * {@code STRU <SP> <structure-code> <CRLF>}<br>
      * <p>
@@ -770,6 +826,7 @@ public class DataConnectionHandler extends CommandInterface {
         boolean isRetr = cmd.equalsIgnoreCase("RETR");
         boolean isAppe = cmd.equalsIgnoreCase("APPE");
         boolean isStou = cmd.equalsIgnoreCase("STOU");
+        boolean sharesChanged = false;
 
         try {
             if (isAppe || isStou) {
@@ -965,7 +1022,11 @@ public class DataConnectionHandler extends CommandInterface {
                     ts.sendFile(ts.getTransferFile().getPath(), ts.getType(),
                             ts.getResumePosition(), address,
                             request.getObjectLong(MIN_XFER_SPEED),
-                            request.getObjectLong(MAX_XFER_SPEED));
+                            request.getObjectLong(MAX_XFER_SPEED),
+                            BandwidthShaping.getTransferLimits(conn.getUserNull(), ts.getTransferFile(),
+                                    Transfer.TRANSFER_SENDING_DOWNLOAD, ts.getTransferSlave()));
+                    sharesChanged = true;
+                    BandwidthShaping.updateShares();
 
                     while (true) {
                         synchronized (ts) {
@@ -984,7 +1045,11 @@ public class DataConnectionHandler extends CommandInterface {
                     ts.receiveFile(ts.getTransferFile().getPath(), ts.getType(),
                             ts.getResumePosition(), address,
                             request.getObjectLong(MIN_XFER_SPEED),
-                            request.getObjectLong(MAX_XFER_SPEED));
+                            request.getObjectLong(MAX_XFER_SPEED),
+                            BandwidthShaping.getTransferLimits(conn.getUserNull(), ts.getTransferFile(),
+                                    Transfer.TRANSFER_RECEIVING_UPLOAD, ts.getTransferSlave()));
+                    sharesChanged = true;
+                    BandwidthShaping.updateShares();
 
                     while (true) {
                         synchronized (ts) {
@@ -1115,6 +1180,10 @@ public class DataConnectionHandler extends CommandInterface {
                 // File already gone which is fine
             }
             reset(conn);
+            if (sharesChanged) {
+                // the other slaves get a bigger share now
+                BandwidthShaping.updateShares();
+            }
         }
     }
 
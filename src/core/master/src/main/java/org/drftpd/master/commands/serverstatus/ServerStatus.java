@@ -18,12 +18,17 @@
 package org.drftpd.master.commands.serverstatus;
 
 import org.drftpd.common.dynamicdata.Key;
+import org.drftpd.common.network.SSLService;
 import org.drftpd.common.util.Bytes;
 import org.drftpd.master.GlobalContext;
 import org.drftpd.master.commands.*;
 import org.drftpd.master.network.Session;
 import org.drftpd.master.slavemanagement.RemoteSlave;
 import org.drftpd.master.util.Time;
+import org.drftpd.master.vfs.CommitManager;
+import org.drftpd.master.vfs.InodeCache;
+import org.drftpd.master.vfs.InodePathCache;
+import org.drftpd.master.vfs.VirtualFileSystem;
 import org.drftpd.slave.exceptions.ObjectNotFoundException;
 
 import java.lang.management.*;
@@ -192,6 +197,50 @@ public class ServerStatus extends CommandInterface {
                 response.addComment(session.jprintf(_bundle, env, "status.gcinfo"));
             }
 
+            if (arg.equals("commits") || isAll) {
+                CommitManager cm = CommitManager.getCommitManager();
+                env.put("commit.queue", cm.getQueueSize());
+                env.put("commit.oldest", Time.formatTime(cm.getOldestAge()));
+                env.put("commit.rate", String.format("%.1f", cm.getWriteRate()));
+                env.put("commit.written", cm.getWritten());
+                env.put("commit.failures", cm.getFailures());
+                response.addComment(session.jprintf(_bundle, env, "status.commits"));
+            }
+
+            if (arg.equals("cache") || isAll) {
+                InodeCache cache = VirtualFileSystem.getVirtualFileSystem().getInodeCache();
+                long hits = cache.getHits();
+                long misses = cache.getMisses();
+                env.put("cache.entries", cache.getEntries());
+                env.put("cache.maxentries", cache.getMaxEntries() == 0 ? "unlimited" : String.valueOf(cache.getMaxEntries()));
+                env.put("cache.memory", Bytes.formatBytes(cache.getBytes()));
+                env.put("cache.maxmemory", cache.getMaxBytes() == 0 ? "unlimited" : Bytes.formatBytes(cache.getMaxBytes()));
+                env.put("cache.hits", hits);
+                env.put("cache.misses", misses);
+                env.put("cache.hitratio", String.format("%.1f", hits + misses == 0 ? 0 : hits * 100.0 / (hits + misses)));
+                env.put("cache.evictions", cache.getEvictions());
+                response.addComment(session.jprintf(_bundle, env, "status.cache"));
+
+                InodePathCache paths = VirtualFileSystem.getVirtualFileSystem().getPathCache();
+                hits = paths.getHits();
+                misses = paths.getMisses();
+                env.put("paths.entries", paths.getSize());
+                env.put("paths.hits", hits);
+                env.put("paths.misses", misses);
+                env.put("paths.hitratio", String.format("%.1f", hits + misses == 0 ? 0 : hits * 100.0 / (hits + misses)));
+                response.addComment(session.jprintf(_bundle, env, "status.cache.paths"));
+            }
+
+            if (arg.equals("tls") || isAll) {
+                SSLService ssl = SSLService.getSSLService();
+                long resumed = ssl.getResumedSessions();
+                long full = ssl.getNewSessions();
+                env.put("tls.resumed", resumed);
+                env.put("tls.full", full);
+                env.put("tls.hitratio", String.format("%.1f", resumed + full == 0 ? 0 : resumed * 100.0 / (resumed + full)));
+                response.addComment(session.jprintf(_bundle, env, "status.tls"));
+            }
+
             if (isAll) {
                 // no need to output repeated
                 break;
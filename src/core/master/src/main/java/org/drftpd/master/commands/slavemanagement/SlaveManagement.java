@@ -22,6 +22,9 @@ import org.apache.logging.log4j.Logger;
 import org.drftpd.common.dynamicdata.KeyNotFoundException;
 import org.drftpd.common.exceptions.DuplicateElementException;
 import org.drftpd.common.exceptions.RemoteIOException;
+import org.drftpd.common.network.codec.BinaryMessageStream;
+import org.drftpd.common.network.codec.DeflateCompression;
+import org.drftpd.common.network.codec.MessageStream;
 import org.drftpd.common.util.Bytes;
 import org.drftpd.master.GlobalContext;
 import org.drftpd.master.commands.*;
@@ -29,6 +32,8 @@ import org.drftpd.master.event.SlaveEvent;
 import org.drftpd.master.exceptions.NoAvailableSlaveException;
 import org.drftpd.master.exceptions.SlaveUnavailableException;
 import org.drftpd.master.network.Session;
+import org.drftpd.master.slavemanagement.CommandStats;
+import org.drftpd.master.slavemanagement.CommandWindow;
 import org.drftpd.master.slavemanagement.RemergeMessage;
 import org.drftpd.master.slavemanagement.RemoteSlave;
 import org.drftpd.master.slavemanagement.SlaveManager;
@@ -40,6 +45,9 @@ import org.drftpd.master.vfs.CommitManager;
 import org.drftpd.master.vfs.FileHandle;
 import org.drftpd.master.vfs.VirtualFileSystem;
 import org.drftpd.slave.exceptions.ObjectNotFoundException;
+import org.drftpd.slave.network.AsyncResponseBufferPools;
+import org.drftpd.slave.network.AsyncResponseLanes;
+import org.drftpd.slave.network.AsyncResponseSessionCache;
 import org.drftpd.slave.network.Transfer;
 
 import java.io.IOException;
@@ -233,6 +241,8 @@ public class SlaveManagement extends CommandInterface {
                 env.put("slavename", slaveName);
                 env.put("renamesize", rslave.getRenameQueue().size());
                 env.put("remergesize", rslave.getRemergeQueue().size());
+                env.put("remergeapplying", rslave.getRemergeApplier().getOutstanding());
+                env.put("remergerate", String.format("%.1f", rslave.getRemergeApplier().getRate()));
                 env.put("remergecrcsize", rslave.getCRCQueue().size());
                 response.addComment(request.getSession().jprintf(_bundle,
                         "slave.queues", env, request.getUser()));
@@ -478,10 +488,90 @@ public class SlaveManagement extends CommandInterface {
         } else if (command.equalsIgnoreCase("queues")) {
             env.put("renamesize", rslave.getRenameQueue().size());
             env.put("remergesize", rslave.getRemergeQueue().size());
+            env.put("remergeapplying", rslave.getRemergeApplier().getOutstanding());
+            env.put("remergerate", String.format("%.1f", rslave.getRemergeApplier().getRate()));
             env.put("remergecrcsize", rslave.getCRCQueue().size());
             response.addComment(session.jprintf(_bundle,
                     "slave.queues", env, request.getUser()));
             return response;
+        } else if (command.equalsIgnoreCase("lanes")) {
+            List<AsyncResponseLanes.LaneStatus> lanes;
+            try {
+                lanes = rslave.fetchLanesFromIndex(SlaveManager.getBasicIssuer().issueLanesToSlave(rslave));
+            } catch (SlaveUnavailableException e) {
+                response.addComment(session.jprintf(_bundle,
+                        "slave.offline", env, request.getUser()));
+                return response;
+            } catch (RemoteIOException e) {
+                response.addComment(session.jprintf(_bundle,
+                        "slave.lanes.unsupported", env, request.getUser()));
+                return response;
+            }
+            response.addComment(session.jprintf(_bundle,
+                    "slave.lanes.header", env, request.getUser()));
+            for (AsyncResponseLanes.LaneStatus lane : lanes) {
+                env.put("lane", lane.getName());
+                env.put("queued", lane.getQueueDepth());
+                env.put("active", lane.getActiveCount());
+                env.put("threads", lane.getMaxThreads() == Integer.MAX_VALUE ? "unbounded" : lane.getMaxThreads());
+                env.put("completed", lane.getCompletedCount());
+                env.put("avgqueue", String.format("%.1f", lane.getAverageQueueMillis()));
+                env.put("maxqueue", String.format("%.1f", lane.getMaxQueueMillis()));
+                env.put("avgrun", String.format("%.1f", lane.getAverageRunMillis()));
+                response.addComment(session.jprintf(_bundle,
+                        "slave.lane", env, request.getUser()));
+            }
+            return response;
+        } else if (command.equalsIgnoreCase("buffers")) {
+            List<AsyncResponseBufferPools.BufferPoolStatus> pools;
+            try {
+                pools = rslave.fetchBufferPoolsFromIndex(SlaveManager.getBasicIssuer().issueBufferPoolsToSlave(rslave));
+            } catch (SlaveUnavailableException e) {
+                response.addComment(session.jprintf(_bundle,
+                        "slave.offline", env, request.getUser()));
+                return response;
+            } catch (RemoteIOException e) {
+                response.addComment(session.jprintf(_bundle,
+                        "slave.buffers.unsupported", env, request.getUser()));
+                return response;
+            }
+            response.addComment(session.jprintf(_bundle,
+                    "slave.buffers.header", env, request.getUser()));
+            for (AsyncResponseBufferPools.BufferPoolStatus pool : pools) {
+                env.put("pool", pool.getName());
+                env.put("buffersize", Bytes.formatBytes(pool.getBufferSize()));
+                env.put("inuse", pool.getInUse());
+                env.put("peakinuse", pool.getPeakInUse());
+                env.put("free", pool.getFree());
+                env.put("allocated", pool.getAllocated());
+                env.put("maxbuffers", pool.getMaxBuffers());
+                env.put("acquired", pool.getAcquireCount());
+                env.put("overflows", pool.getOverflowCount());
+                response.addComment(session.jprintf(_bundle,
+                        "slave.buffers", env, request.getUser()));
+            }
+            return response;
+        } else if (command.equalsIgnoreCase("tls")) {
+            AsyncResponseSessionCache sessions;
+            try {
+                sessions = rslave.fetchSessionCacheFromIndex(SlaveManager.getBasicIssuer().issueSessionCacheToSlave(rslave));
+            } catch (SlaveUnavailableException e) {
+                response.addComment(session.jprintf(_bundle,
+                        "slave.offline", env, request.getUser()));
+                return response;
+            } catch (RemoteIOException e) {
+                response.addComment(session.jprintf(_bundle,
+                        "slave.tls.unsupported", env, request.getUser()));
+                return response;
+            }
+            long resumed = sessions.getResumedSessions();
+            long full = sessions.getNewSessions();
+            env.put("resumed", resumed);
+            env.put("full", full);
+            env.put("hitratio", String.format("%.1f", resumed + full == 0 ? 0 : resumed * 100.0 / (resumed + full)));
+            response.addComment(session.jprintf(_bundle,
+                    "slave.tls", env, request.getUser()));
+            return response;
         }
         throw new ImproperUsageException();
     }
@@ -604,7 +694,7 @@ public class SlaveManagement extends CommandInterface {
             }
 
             int renameSize = rslave.getRenameQueue().size();
-            int remergeSize = rslave.getRemergeQueue().size();
+            int remergeSize = rslave.getRemergeQueue().size() + rslave.getRemergeApplier().getOutstanding();
             int remergeCRCSize = rslave.getCRCQueue().size();
             if (!rslave.isOnline()) {
                 arr.add(rslave.getName() + " is offline");
@@ -615,6 +705,8 @@ public class SlaveManagement extends CommandInterface {
                 env.put("slavename", rslave.getName());
                 env.put("renamesize", rslave.getRenameQueue().size());
                 env.put("remergesize", rslave.getRemergeQueue().size());
+                env.put("remergeapplying", rslave.getRemergeApplier().getOutstanding());
+                env.put("remergerate", String.format("%.1f", rslave.getRemergeApplier().getRate()));
                 env.put("remergecrcsize", rslave.getCRCQueue().size());
                 arr.add((request.getSession().jprintf(_bundle,
                         "slave.queues", env, request.getUser())));
@@ -632,5 +724,59 @@ public class SlaveManagement extends CommandInterface {
         return response;
     }
 
+    /**
+     * Shows the command window, pending commands and round trip times of slaves
+     * USAGE: SITE SLAVECOMMANDS [slavename]
+     */
+    public CommandResponse doSITE_SLAVECOMMANDS(CommandRequest request) {
+        String slave = request.hasArgument() ? request.getArgument().toLowerCase() : "all";
+        CommandResponse response = StandardCommandManager.genericResponse("RESPONSE_200_COMMAND_OK");
+        long now = System.currentTimeMillis();
+
+        for (RemoteSlave rslave : GlobalContext.getGlobalContext().getSlaveManager().getSlaves()) {
+            String name = rslave.getName().toLowerCase();
+
+            if ((!name.startsWith(slave)) && (!slave.equals("all"))) {
+                continue;
+            }
+
+            CommandWindow window = rslave.getCommandWindow();
+            if (!rslave.isOnline() || window == null) {
+                response.addComment(rslave.getName() + " is offline");
+                continue;
+            }
+            response.addComment(rslave.getName() + ": " + window.getInFlight() + "/" + window.getSize()
+                    + " in flight, background " + window.getBackgroundInFlight() + "/" + window.getBackgroundLimit()
+                    + ", waiting " + window.getWaiting(CommandWindow.Priority.INTERACTIVE) + " interactive "
+                    + window.getWaiting(CommandWindow.Priority.BACKGROUND) + " background");
+
+            MessageStream stream = rslave.getMessageStream();
+            if (stream instanceof BinaryMessageStream && ((BinaryMessageStream) stream).getCompression() != null) {
+                DeflateCompression compression = ((BinaryMessageStream) stream).getCompression();
+                response.addComment("  " + stream.getFormat() + " " + DeflateCompression.NAME
+                        + ": sent " + Bytes.formatBytes(compression.getBytesSent())
+                        + " as " + Bytes.formatBytes(compression.getCompressedBytesSent())
+                        + ", received " + Bytes.formatBytes(compression.getBytesReceived())
+                        + " as " + Bytes.formatBytes(compression.getCompressedBytesReceived()));
+            } else if (stream != null) {
+                response.addComment("  " + stream.getFormat() + " uncompressed");
+            }
+
+            for (Entry<String, long[]> entry : rslave.getPendingCommands().entrySet()) {
+                response.addComment("  pending " + entry.getKey() + ": " + entry.getValue()[0]
+                        + " (oldest " + (now - entry.getValue()[1]) + "ms)");
+            }
+            for (Entry<String, CommandStats.Histogram> entry : rslave.getCommandStats().getHistograms().entrySet()) {
+                CommandStats.Histogram rtt = entry.getValue();
+                response.addComment("  rtt " + entry.getKey() + ": count=" + rtt.getCount()
+                        + " avg=" + rtt.getAverage() + "ms p50=" + rtt.getPercentile(50)
+                        + "ms p90=" + rtt.getPercentile(90) + "ms p99=" + rtt.getPercentile(99)
+                        + "ms max=" + rtt.getMax() + "ms");
+            }
+        }
+
+        return response;
+    }
+
 }
 
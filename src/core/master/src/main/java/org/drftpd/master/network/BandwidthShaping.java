@@ -0,0 +1,216 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.master.network;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.drftpd.common.util.Bytes;
+import org.drftpd.master.GlobalContext;
+import org.drftpd.master.exceptions.SlaveUnavailableException;
+import org.drftpd.master.sections.SectionInterface;
+import org.drftpd.master.slavemanagement.RemoteSlave;
+import org.drftpd.master.slavemanagement.SlaveManager;
+import org.drftpd.master.usermanager.Group;
+import org.drftpd.master.usermanager.User;
+import org.drftpd.master.vfs.FileHandle;
+import org.drftpd.slave.network.BandwidthScheduler;
+import org.drftpd.slave.network.Transfer;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Builds the bandwidth limits sent to the slaves from master.conf.
+ * <p>
+ * The limits are sent along with every transfer as a spec of named token buckets,
+ * see {@link BandwidthScheduler#setLimits(String)}. A slave only knows about its own transfers,
+ * so the site wide user/group/section limits are split evenly over the slaves that currently
+ * have transfers for the user/group/section in the same direction.
+ * The split is redone and sent to all of these slaves whenever a transfer starts or ends.
+ *
+ * @version $Id$
+ */
+public class BandwidthShaping {
+    private static final Logger logger = LogManager.getLogger(BandwidthShaping.class);
+
+    /**
+     * @return the limits the slave should charge the transfer of <code>file</code> against
+     */
+    public static String getTransferLimits(User user, FileHandle file, char direction, RemoteSlave rslave) {
+        Map<String, Long> limits = new LinkedHashMap<>();
+        addTransferLimits(limits, user, file, direction, rslave);
+        return toSpec(limits);
+    }
+
+    /**
+     * Sends the current shares of the site wide limits to every slave with transfers, so slaves that
+     * were already transferring do not keep the share they got when there were fewer slaves involved.
+     */
+    public static void updateShares() {
+        Map<RemoteSlave, Map<String, Long>> shares = new HashMap<>();
+        for (BaseFtpConnection conn : GlobalContext.getConnectionManager().getConnections()) {
+            TransferState ts = conn.getTransferState();
+            char direction = ts.getDirection();
+            RemoteSlave rslave = ts.getTransferSlave();
+            FileHandle file = ts.getTransferFile();
+            if (direction == Transfer.TRANSFER_UNKNOWN || rslave == null || file == null) {
+                continue;
+            }
+            addTransferLimits(shares.computeIfAbsent(rslave, s -> new LinkedHashMap<>()), conn.getUserNull(),
+                    file, direction, rslave);
+        }
+        for (Map.Entry<RemoteSlave, Map<String, Long>> entry : shares.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                continue;
+            }
+            RemoteSlave rslave = entry.getKey();
+            try {
+                String index = SlaveManager.getBasicIssuer().issueBandwidthToSlave(rslave, toSpec(entry.getValue()));
+                rslave.fetchResponseAsync(index).whenComplete((ar, t) -> {
+                    if (t != null) {
+                        logger.debug("Unable to update bandwidth shares of slave {}", rslave.getName(), t);
+                    }
+                });
+            } catch (SlaveUnavailableException e) {
+                logger.debug("Unable to update bandwidth shares of slave {}", rslave.getName(), e);
+            }
+        }
+    }
+
+    private static void addTransferLimits(Map<String, Long> limits, User user, FileHandle file, char direction,
+                                          RemoteSlave rslave) {
+        Properties p = GlobalContext.getConfig().getMainProperties();
+        String dir = direction == Transfer.TRANSFER_RECEIVING_UPLOAD ? "upload" : "download";
+
+        long userLimit = getLimit(p, "bandwidth.user." + dir);
+        if (user != null && userLimit > 0) {
+            String userName = user.getName();
+            limits.put("user." + dir + "." + userName,
+                    share(userLimit, countSlaves(rslave, direction, conn -> userName.equals(conn.getUsername()))));
+        }
+
+        Group group = user == null ? null : user.getGroup();
+        if (group != null) {
+            String groupName = group.getName();
+            long groupLimit = getLimit(p, "bandwidth.group." + groupName + "." + dir);
+            if (groupLimit > 0) {
+                limits.put("group." + dir + "." + groupName,
+                        share(groupLimit, countSlaves(rslave, direction, conn -> {
+                            User u = conn.getUserNull();
+                            return u != null && u.getGroup() != null && groupName.equals(u.getGroup().getName());
+                        })));
+            }
+        }
+
+        String sectionName = getSectionName(file);
+        long sectionLimit = getLimit(p, "bandwidth.section." + sectionName + "." + dir);
+        if (sectionLimit > 0) {
+            limits.put("section." + dir + "." + sectionName,
+                    share(sectionLimit, countSlaves(rslave, direction, conn -> {
+                        FileHandle transferFile = conn.getTransferState().getTransferFile();
+                        return transferFile != null && sectionName.equals(getSectionName(transferFile));
+                    })));
+        }
+    }
+
+    private static String toSpec(Map<String, Long> limits) {
+        StringBuilder spec = new StringBuilder();
+        for (Map.Entry<String, Long> limit : limits.entrySet()) {
+            appendLimit(spec, limit.getKey(), limit.getValue());
+        }
+        return spec.toString();
+    }
+
+    /**
+     * @return the limits of the slave itself as set with 'site slave set', unset limits fall back to slave.conf
+     */
+    public static String getSlaveLimits(RemoteSlave rslave) {
+        StringBuilder limits = new StringBuilder();
+        appendSlaveLimit(limits, rslave, "upload", BandwidthScheduler.SLAVE_UPLOAD);
+        appendSlaveLimit(limits, rslave, "download", BandwidthScheduler.SLAVE_DOWNLOAD);
+        return limits.toString();
+    }
+
+    private static void appendSlaveLimit(StringBuilder limits, RemoteSlave rslave, String dir, String bucket) {
+        String value = rslave.getProperty("bandwidth." + dir, null);
+        if (value == null) {
+            // let the slave fall back to its slave.conf
+            appendLimit(limits, bucket, -1);
+            return;
+        }
+        try {
+            appendLimit(limits, bucket, Bytes.parseBytes(value));
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid bandwidth.{} '{}' for slave {}", dir, value, rslave.getName());
+        }
+    }
+
+    private static String getSectionName(FileHandle file) {
+        SectionInterface section = GlobalContext.getGlobalContext().getSectionManager().lookup(file.getParent());
+        return section.getName();
+    }
+
+    /**
+     * @return the number of slaves transferring for connections matching <code>filter</code>, including <code>rslave</code>
+     */
+    private static int countSlaves(RemoteSlave rslave, char direction, Predicate<BaseFtpConnection> filter) {
+        Set<RemoteSlave> slaves = new HashSet<>();
+        slaves.add(rslave);
+        for (BaseFtpConnection conn : GlobalContext.getConnectionManager().getConnections()) {
+            TransferState ts = conn.getTransferState();
+            if (ts.getDirection() != direction) {
+                continue;
+            }
+            RemoteSlave transferSlave = ts.getTransferSlave();
+            if (transferSlave != null && !slaves.contains(transferSlave) && filter.test(conn)) {
+                slaves.add(transferSlave);
+            }
+        }
+        return slaves.size();
+    }
+
+    private static long getLimit(Properties p, String key) {
+        String value = p.getProperty(key);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Bytes.parseBytes(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid bandwidth limit {}={}", key, value);
+            return 0;
+        }
+    }
+
+    private static long share(long limit, int slaves) {
+        // never round a limit down to 0, that would mean unlimited
+        return Math.max(1, limit / slaves);
+    }
+
+    private static void appendLimit(StringBuilder limits, String bucket, long bytesPerSecond) {
+        if (limits.length() > 0) {
+            limits.append(';');
+        }
+        limits.append(bucket).append('=').append(bytesPerSecond);
+    }
+}
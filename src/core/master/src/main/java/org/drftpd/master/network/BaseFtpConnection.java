@@ -28,6 +28,7 @@ import org.drftpd.master.commands.CommandManagerInterface;
 import org.drftpd.master.commands.CommandRequestInterface;
 import org.drftpd.master.commands.CommandResponseInterface;
 import org.drftpd.master.event.ConnectionEvent;
+import org.drftpd.master.slavemanagement.CommandWindow;
 import org.drftpd.master.usermanager.NoSuchUserException;
 import org.drftpd.master.usermanager.User;
 import org.drftpd.master.usermanager.UserFileException;
@@ -543,7 +544,11 @@ public class BaseFtpConnection extends Session implements Runnable {
         }
 
         public Thread newThread(Runnable r) {
-            Thread ret = Executors.defaultThreadFactory().newThread(r);
+            Thread ret = Executors.defaultThreadFactory().newThread(() -> {
+                // slave commands of users go before those of background jobs
+                CommandWindow.setPriority(CommandWindow.Priority.INTERACTIVE);
+                r.run();
+            });
             ret.setName(_parentName + " - " + ret.getName());
             return ret;
         }
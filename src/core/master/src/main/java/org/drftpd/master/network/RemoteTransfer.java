@@ -156,10 +156,25 @@ public class RemoteTransfer {
 
     public void receiveFile(String path, char type, long position, String inetAddress, long minSpeed, long maxSpeed)
             throws IOException, SlaveUnavailableException {
+        receiveFile(path, type, position, inetAddress, minSpeed, maxSpeed, "");
+    }
+
+    public void receiveFile(String path, char type, long position, String inetAddress, long minSpeed, long maxSpeed,
+                         String bandwidthLimits) throws IOException, SlaveUnavailableException {
+        receiveFile(path, type, position, inetAddress, minSpeed, maxSpeed, bandwidthLimits, 0L);
+    }
+
+    /**
+     * @param bandwidthLimits token buckets the slave charges this transfer against, see {@link BandwidthShaping}
+     * @param allocateSize    size of the file announced by the client with ALLO, 0 if unknown
+     */
+    public void receiveFile(String path, char type, long position, String inetAddress, long minSpeed, long maxSpeed,
+                         String bandwidthLimits, long allocateSize) throws IOException, SlaveUnavailableException {
         _path = path;
 
         String index = SlaveManager.getBasicIssuer().issueReceiveToSlave(
-                _rslave, path, type, position, inetAddress, getTransferIndex(), minSpeed, maxSpeed);
+                _rslave, path, type, position, inetAddress, getTransferIndex(), minSpeed, maxSpeed, bandwidthLimits,
+                allocateSize);
 
         _transferDirection = Transfer.TRANSFER_RECEIVING_UPLOAD;
         try {
@@ -172,9 +187,17 @@ public class RemoteTransfer {
 
     public void sendFile(String path, char type, long position, String inetAddress, long minSpeed, long maxSpeed)
             throws IOException, SlaveUnavailableException {
+        sendFile(path, type, position, inetAddress, minSpeed, maxSpeed, "");
+    }
+
+    /**
+     * @param bandwidthLimits token buckets the slave charges this transfer against, see {@link BandwidthShaping}
+     */
+    public void sendFile(String path, char type, long position, String inetAddress, long minSpeed, long maxSpeed,
+                         String bandwidthLimits) throws IOException, SlaveUnavailableException {
         _path = path;
         String index = SlaveManager.getBasicIssuer().issueSendToSlave(
-                _rslave, path, type, position, inetAddress, getTransferIndex(), minSpeed, maxSpeed);
+                _rslave, path, type, position, inetAddress, getTransferIndex(), minSpeed, maxSpeed, bandwidthLimits);
         _transferDirection = Transfer.TRANSFER_SENDING_DOWNLOAD;
         try {
             _rslave.fetchResponse(index);
@@ -85,6 +85,11 @@ public class TransferState {
      */
     private long _resumePosition = 0;
 
+    /**
+     * Size of the next upload as announced with ALLO, 0 if unknown
+     */
+    private long _allocateSize = 0;
+
     /**
      * What slave should we use?
      * This will only be set after the SlaveSelection process
@@ -155,6 +160,7 @@ public class TransferState {
             _localPassiveConnection = null;
         }
         _resumePosition = 0;
+        _allocateSize = 0;
         _transferFileCreated = false;
     }
 
@@ -327,6 +333,14 @@ public class TransferState {
         _resumePosition = resumePosition;
     }
 
+    public long getAllocateSize() {
+        return _allocateSize;
+    }
+
+    public void setAllocateSize(long allocateSize) {
+        _allocateSize = allocateSize;
+    }
+
     /**
      * Returns true if the transfer was aborted
      *
@@ -364,11 +378,21 @@ public class TransferState {
         getTransfer().sendFile(path, type, resumePosition, address, minSpeed, maxSpeed);
     }
 
+    public synchronized void sendFile(String path, char type, long resumePosition, String address, long minSpeed, long maxSpeed,
+                                      String bandwidthLimits) throws IOException, SlaveUnavailableException {
+        getTransfer().sendFile(path, type, resumePosition, address, minSpeed, maxSpeed, bandwidthLimits);
+    }
+
     public synchronized void receiveFile(String path, char type, long resumePosition, String address, long minSpeed, long maxSpeed)
             throws IOException, SlaveUnavailableException {
         getTransfer().receiveFile(path, type, resumePosition, address, minSpeed, maxSpeed);
     }
 
+    public synchronized void receiveFile(String path, char type, long resumePosition, String address, long minSpeed, long maxSpeed,
+                                      String bandwidthLimits) throws IOException, SlaveUnavailableException {
+        getTransfer().receiveFile(path, type, resumePosition, address, minSpeed, maxSpeed, bandwidthLimits, _allocateSize);
+    }
+
     public synchronized long getElapsed() {
         return getTransfer().getElapsed();
     }
@@ -34,6 +34,8 @@ import org.drftpd.master.slavemanagement.RemoteSlave;
 public abstract class AbstractBasicIssuer extends AbstractIssuer {
     public abstract String issueChecksumToSlave(RemoteSlave rslave, String path) throws SlaveUnavailableException;
 
+    public abstract String issueChecksumsToSlave(RemoteSlave rslave, String[] paths) throws SlaveUnavailableException;
+
     public abstract String issueConnectToSlave(RemoteSlave rslave, String ip, int port,
                                                boolean encryptedDataChannel, boolean useSSLClientHandshake) throws SlaveUnavailableException, SSLUnavailableException;
 
@@ -44,10 +46,13 @@ public abstract class AbstractBasicIssuer extends AbstractIssuer {
 
     public abstract String issueMaxPathToSlave(RemoteSlave rslave) throws SlaveUnavailableException;
 
+    public abstract String issueBandwidthToSlave(RemoteSlave rslave, String bandwidthLimits) throws SlaveUnavailableException;
+
     public abstract String issuePingToSlave(RemoteSlave rslave) throws SlaveUnavailableException;
 
     public abstract String issueReceiveToSlave(RemoteSlave rslave, String name, char c, long position,
-                                               String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed) throws SlaveUnavailableException;
+                                               String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed, String bandwidthLimits,
+                                               long allocateSize) throws SlaveUnavailableException;
 
     public abstract String issueRenameToSlave(RemoteSlave rslave, String from, String toDirPath,
                                               String toName) throws SlaveUnavailableException;
@@ -59,14 +64,25 @@ public abstract class AbstractBasicIssuer extends AbstractIssuer {
 
 
     public abstract String issueSendToSlave(RemoteSlave rslave, String name, char c, long position,
-                                            String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed) throws SlaveUnavailableException;
+                                            String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed, String bandwidthLimits) throws SlaveUnavailableException;
 
     public abstract String issueRemergeToSlave(RemoteSlave rslave, String path, boolean partialRemerge,
                                                long skipAgeCutoff, long masterTime, boolean instantOnline) throws SlaveUnavailableException;
 
+    public abstract String issueRemergeDigestToSlave(RemoteSlave rslave, String path, long knownListDigest)
+            throws SlaveUnavailableException;
+
+    public abstract String issueWatchToSlave(RemoteSlave rslave) throws SlaveUnavailableException;
+
     public abstract void issueRemergePauseToSlave(RemoteSlave rslave) throws SlaveUnavailableException;
 
     public abstract void issueRemergeResumeToSlave(RemoteSlave rslave) throws SlaveUnavailableException;
 
     public abstract String issueCheckSSL(RemoteSlave rslave) throws SlaveUnavailableException;
+
+    public abstract String issueLanesToSlave(RemoteSlave rslave) throws SlaveUnavailableException;
+
+    public abstract String issueBufferPoolsToSlave(RemoteSlave rslave) throws SlaveUnavailableException;
+
+    public abstract String issueSessionCacheToSlave(RemoteSlave rslave) throws SlaveUnavailableException;
 }
@@ -45,6 +45,13 @@ public class BasicIssuer extends AbstractBasicIssuer {
         return index;
     }
 
+    public String issueChecksumsToSlave(RemoteSlave rslave, String[] paths) throws SlaveUnavailableException {
+        String index = rslave.fetchIndex();
+        rslave.sendCommand(new AsyncCommandArgument(index, "checksums", paths));
+
+        return index;
+    }
+
     public String issueConnectToSlave(RemoteSlave rslave, String ip, int port,
                                       boolean encryptedDataChannel, boolean useSSLClientHandshake) throws SlaveUnavailableException, SSLUnavailableException {
 
@@ -94,6 +101,13 @@ public class BasicIssuer extends AbstractBasicIssuer {
         return index;
     }
 
+    public String issueBandwidthToSlave(RemoteSlave rslave, String bandwidthLimits) throws SlaveUnavailableException {
+        String index = rslave.fetchIndex();
+        rslave.sendCommand(new AsyncCommandArgument(index, "bandwidth", bandwidthLimits));
+
+        return index;
+    }
+
     public String issuePingToSlave(RemoteSlave rslave) throws SlaveUnavailableException {
         String index = rslave.fetchIndex();
         rslave.sendCommand(new AsyncCommand(index, "ping"));
@@ -102,11 +116,13 @@ public class BasicIssuer extends AbstractBasicIssuer {
     }
 
     public String issueReceiveToSlave(RemoteSlave rslave, String name, char c, long position,
-                                      String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed) throws SlaveUnavailableException {
+                                      String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed, String bandwidthLimits,
+                                      long allocateSize) throws SlaveUnavailableException {
         String index = rslave.fetchIndex();
         rslave.sendCommand(new AsyncCommandArgument(index, "receive",
                 new String[]{String.valueOf(c), String.valueOf(position),
-                        tindex.toString(), inetAddress, name, String.valueOf(minSpeed), String.valueOf(maxSpeed)}));
+                        tindex.toString(), inetAddress, name, String.valueOf(minSpeed), String.valueOf(maxSpeed), bandwidthLimits,
+                        String.valueOf(allocateSize)}));
 
         return index;
     }
@@ -142,11 +158,11 @@ public class BasicIssuer extends AbstractBasicIssuer {
 
 
     public String issueSendToSlave(RemoteSlave rslave, String name, char c, long position,
-                                   String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed) throws SlaveUnavailableException {
+                                   String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed, String bandwidthLimits) throws SlaveUnavailableException {
         String index = rslave.fetchIndex();
         rslave.sendCommand(new AsyncCommandArgument(index, "send",
                 new String[]{String.valueOf(c), String.valueOf(position), tindex.toString(),
-                        inetAddress, name, String.valueOf(minSpeed), String.valueOf(maxSpeed)}));
+                        inetAddress, name, String.valueOf(minSpeed), String.valueOf(maxSpeed), bandwidthLimits}));
 
         return index;
     }
@@ -159,6 +175,20 @@ public class BasicIssuer extends AbstractBasicIssuer {
         return index;
     }
 
+    public String issueRemergeDigestToSlave(RemoteSlave rslave, String path, long knownListDigest)
+            throws SlaveUnavailableException {
+        String index = rslave.fetchIndex();
+        rslave.sendCommand(new AsyncCommandArgument(index, "remergeDigest", new String[]{path,
+                Long.toString(knownListDigest)}));
+        return index;
+    }
+
+    public String issueWatchToSlave(RemoteSlave rslave) throws SlaveUnavailableException {
+        String index = rslave.fetchIndex();
+        rslave.sendCommand(new AsyncCommand(index, "watch"));
+        return index;
+    }
+
     public void issueRemergePauseToSlave(RemoteSlave rslave) throws SlaveUnavailableException {
         rslave.sendCommand(new AsyncCommand("remergePause", "remergePause"));
 
@@ -176,4 +206,28 @@ public class BasicIssuer extends AbstractBasicIssuer {
 
         return index;
     }
+
+    @Override
+    public String issueLanesToSlave(RemoteSlave rslave) throws SlaveUnavailableException {
+        String index = rslave.fetchIndex();
+        rslave.sendCommand(new AsyncCommand(index, "lanes"));
+
+        return index;
+    }
+
+    @Override
+    public String issueBufferPoolsToSlave(RemoteSlave rslave) throws SlaveUnavailableException {
+        String index = rslave.fetchIndex();
+        rslave.sendCommand(new AsyncCommand(index, "bufferPools"));
+
+        return index;
+    }
+
+    @Override
+    public String issueSessionCacheToSlave(RemoteSlave rslave) throws SlaveUnavailableException {
+        String index = rslave.fetchIndex();
+        rslave.sendCommand(new AsyncCommand(index, "sessionCache"));
+
+        return index;
+    }
 }
@@ -19,12 +19,20 @@ package org.drftpd.master.protocol;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.drftpd.common.network.codec.BinaryMessageStream;
+import org.drftpd.common.network.codec.DeflateCompression;
+import org.drftpd.common.network.codec.JavaMessageStream;
+import org.drftpd.common.network.codec.MessageCodecProvider;
+import org.drftpd.common.network.codec.MessageCodecs;
 import org.drftpd.common.protocol.AbstractIssuer;
+import org.drftpd.common.protocol.CodecNegotiation;
 import org.drftpd.common.protocol.HandshakeWrapper;
 import org.drftpd.common.protocol.ProtocolException;
+import org.drftpd.master.GlobalContext;
 import org.drftpd.master.slavemanagement.RemoteSlave;
 import org.reflections.Reflections;
 
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.lang.reflect.Modifier;
@@ -45,6 +53,7 @@ public class MasterProtocolCentral {
 
     private Map<Class<?>, AbstractIssuer> _issuersMap;
     private List<String> _protocols;
+    private MessageCodecs _codecs;
 
     /**
      * Unique constructor for MasterProtocolCentral object.
@@ -52,6 +61,7 @@ public class MasterProtocolCentral {
      */
     public MasterProtocolCentral() {
         loadProtocolExtensions();
+        loadCodecs();
     }
 
     /**
@@ -101,6 +111,29 @@ public class MasterProtocolCentral {
         }
     }
 
+    /**
+     * Loads the codecs of all connected {@link MessageCodecProvider}s for the binary wire format.
+     */
+    private void loadCodecs() {
+        MessageCodecs codecs = new MessageCodecs();
+
+        Set<Class<? extends MessageCodecProvider>> providers = new Reflections("org.drftpd")
+                .getSubTypesOf(MessageCodecProvider.class);
+        for (Class<? extends MessageCodecProvider> providerClass : providers) {
+            if (Modifier.isAbstract(providerClass.getModifiers())) {
+                continue;
+            }
+            try {
+                codecs.register(providerClass.getConstructor().newInstance());
+            } catch (Exception e) {
+                logger.error("Failed to load message codecs from {}", providerClass.getName(), e);
+            }
+        }
+
+        _codecs = codecs;
+        logger.debug("Loaded {} message codecs", codecs.size());
+    }
+
     /**
      * Retrieves the Issuer instance for the given Class.
      *
@@ -126,7 +159,7 @@ public class MasterProtocolCentral {
             ObjectInputStream in = rslave.getInputStream();
 
             logger.debug("Writing protocol extensions to the socket.");
-            out.writeObject(_protocols);
+            out.writeObject(CodecNegotiation.advertise(_protocols));
             out.flush();
             out.reset();
 
@@ -138,8 +171,44 @@ public class MasterProtocolCentral {
                 throw hw.getException();
             }
             logger.debug("Handshake successful");
+
+            if (hw.getCodecs() != null) {
+                selectCodecs(rslave, hw.getCodecs());
+            }
         } catch (Exception e) {
             throw new ProtocolException(e);
         }
     }
+
+    /**
+     * Answers the wire format offered by the slave during the handshake. The binary format is used with the
+     * codecs known to both sides, unless it is disabled by <code>slavemanager.codec</code>. Compression is
+     * requested by the slave and used unless it is disabled by <code>slavemanager.compression</code>.
+     */
+    private void selectCodecs(RemoteSlave rslave, CodecNegotiation offer) throws IOException {
+        Properties p = GlobalContext.getConfig().getMainProperties();
+        boolean binary = BinaryMessageStream.FORMAT.equals(offer.getFormat())
+                && p.getProperty("slavemanager.codec", "binary").equalsIgnoreCase("binary");
+        boolean compress = binary && DeflateCompression.NAME.equals(offer.getCompression())
+                && p.getProperty("slavemanager.compression", "true").equalsIgnoreCase("true");
+        List<String> codecs = new ArrayList<>();
+        if (binary) {
+            codecs.addAll(_codecs.getIdentifiers());
+            codecs.retainAll(offer.getCodecs());
+        }
+        CodecNegotiation selected = new CodecNegotiation(
+                binary ? BinaryMessageStream.FORMAT : JavaMessageStream.FORMAT, codecs,
+                compress ? DeflateCompression.NAME : null);
+
+        JavaMessageStream stream = (JavaMessageStream) rslave.getMessageStream();
+        stream.writeMessage(selected);
+
+        if (compress) {
+            rslave.setMessageStream(stream.toBinary(_codecs.select(codecs), new DeflateCompression()));
+        } else if (binary) {
+            rslave.setMessageStream(stream.toBinary(_codecs.select(codecs)));
+        }
+        logger.info("Slave {} uses wire format {} with {} message codecs and compression {}", rslave.getName(),
+                selected.getFormat(), codecs.size(), compress ? DeflateCompression.NAME : "none");
+    }
 }
@@ -0,0 +1,135 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.master.slavemanagement;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Round trip times of the commands sent to a slave, per command name.
+ * <p>
+ * Times are kept in a histogram with power of two millisecond buckets, so recording is cheap and
+ * percentiles are accurate to a factor of two.
+ *
+ * @version $Id$
+ */
+public class CommandStats {
+
+    // bucket i holds times below 2^i ms, the last one everything above
+    static final int BUCKETS = 18;
+
+    private final Map<String, Histogram> _histograms = new ConcurrentHashMap<>();
+
+    public void record(String command, long millis) {
+        if (command == null) {
+            return;
+        }
+        _histograms.computeIfAbsent(command, c -> new Histogram()).record(millis);
+    }
+
+    /**
+     * @return a copy of the histograms sorted by command name
+     */
+    public Map<String, Histogram> getHistograms() {
+        Map<String, Histogram> histograms = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : _histograms.entrySet()) {
+            histograms.put(entry.getKey(), entry.getValue().copy());
+        }
+        return histograms;
+    }
+
+    public void clear() {
+        _histograms.clear();
+    }
+
+    public static class Histogram {
+        private final AtomicLongArray _buckets;
+
+        private final AtomicLongArray _totals = new AtomicLongArray(3);
+
+        private static final int COUNT = 0;
+
+        private static final int SUM = 1;
+
+        private static final int MAX = 2;
+
+        Histogram() {
+            _buckets = new AtomicLongArray(BUCKETS);
+        }
+
+        private Histogram(AtomicLongArray buckets) {
+            _buckets = buckets;
+        }
+
+        void record(long millis) {
+            millis = Math.max(0, millis);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+            _buckets.incrementAndGet(bucket);
+            _totals.incrementAndGet(COUNT);
+            _totals.addAndGet(SUM, millis);
+            _totals.accumulateAndGet(MAX, millis, Math::max);
+        }
+
+        Histogram copy() {
+            long[] buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = _buckets.get(i);
+            }
+            Histogram copy = new Histogram(new AtomicLongArray(buckets));
+            for (int i = 0; i < 3; i++) {
+                copy._totals.set(i, _totals.get(i));
+            }
+            return copy;
+        }
+
+        public long getCount() {
+            return _totals.get(COUNT);
+        }
+
+        public long getAverage() {
+            long count = getCount();
+            return count == 0 ? 0 : _totals.get(SUM) / count;
+        }
+
+        public long getMax() {
+            return _totals.get(MAX);
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the upper bound in milliseconds of the bucket the percentile falls in
+         */
+        public long getPercentile(double percentile) {
+            long count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += _buckets.get(i);
+                if (seen >= rank) {
+                    return i == BUCKETS - 1 ? getMax() : Math.min(getMax(), (1L << i) - 1);
+                }
+            }
+            return getMax();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.master.slavemanagement;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of commands a slave has in flight and hands out their indexes.
+ * <p>
+ * Commands of users have priority over background work like jobs and archiving, which may only use part
+ * of the window. While both are waiting, one background command is let through after every
+ * {@link #INTERACTIVE_BURST} interactive ones so neither side starves.
+ * <p>
+ * The priority is taken from the calling thread, see {@link #setPriority(Priority)}.
+ *
+ * @version $Id$
+ */
+public class CommandWindow {
+
+    public enum Priority {
+        INTERACTIVE, BACKGROUND
+    }
+
+    static final int INTERACTIVE_BURST = 4;
+
+    private static final ThreadLocal<Priority> PRIORITY = ThreadLocal.withInitial(() -> Priority.BACKGROUND);
+
+    private final ReentrantLock _lock = new ReentrantLock();
+
+    private final Condition _interactiveAvailable = _lock.newCondition();
+
+    private final Condition _backgroundAvailable = _lock.newCondition();
+
+    private final ArrayDeque<String> _free;
+
+    private final Map<String, Priority> _inFlight = new HashMap<>();
+
+    private final int _size;
+
+    private final int _backgroundLimit;
+
+    private int _backgroundInFlight;
+
+    private int _interactiveWaiting;
+
+    private int _backgroundWaiting;
+
+    private int _interactiveBurst;
+
+    /**
+     * @param size            number of commands that can be in flight
+     * @param backgroundLimit number of those that can be used by background commands
+     */
+    public CommandWindow(int size, int backgroundLimit) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Command window must be positive");
+        }
+        _size = size;
+        _backgroundLimit = Math.max(1, Math.min(size, backgroundLimit));
+        _free = new ArrayDeque<>(size);
+        for (int i = 0; i < size; i++) {
+            String key = Integer.toHexString(i);
+
+            if (key.length() < 2) {
+                key = "0" + key;
+            }
+
+            _free.push(key);
+        }
+    }
+
+    /**
+     * Sets the priority of the commands sent by the current thread, threads start as {@link Priority#BACKGROUND}
+     */
+    public static void setPriority(Priority priority) {
+        PRIORITY.set(priority);
+    }
+
+    public static Priority getPriority() {
+        return PRIORITY.get();
+    }
+
+    /**
+     * @return a free index for a command of the current thread's priority, or null if none became free in time
+     */
+    public String acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        Priority priority = getPriority();
+        long nanos = unit.toNanos(timeout);
+        _lock.lock();
+        try {
+            while (!canGrant(priority)) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                if (priority == Priority.INTERACTIVE) {
+                    _interactiveWaiting++;
+                    try {
+                        nanos = _interactiveAvailable.awaitNanos(nanos);
+                    } finally {
+                        _interactiveWaiting--;
+                    }
+                } else {
+                    _backgroundWaiting++;
+                    try {
+                        nanos = _backgroundAvailable.awaitNanos(nanos);
+                    } finally {
+                        _backgroundWaiting--;
+                    }
+                }
+            }
+            String index = _free.pop();
+            _inFlight.put(index, priority);
+            if (priority == Priority.INTERACTIVE) {
+                _interactiveBurst++;
+            } else {
+                _backgroundInFlight++;
+                _interactiveBurst = 0;
+            }
+            return index;
+        } finally {
+            // the other side may be able to go now that this thread is not waiting anymore
+            signal();
+            _lock.unlock();
+        }
+    }
+
+    private boolean canGrant(Priority priority) {
+        if (_free.isEmpty()) {
+            return false;
+        }
+        boolean backgroundAllowed = _backgroundInFlight < _backgroundLimit;
+        if (priority == Priority.INTERACTIVE) {
+            return _backgroundWaiting == 0 || !backgroundAllowed || _interactiveBurst < INTERACTIVE_BURST;
+        }
+        return backgroundAllowed && (_interactiveWaiting == 0 || _interactiveBurst >= INTERACTIVE_BURST);
+    }
+
+    private void signal() {
+        if (_free.isEmpty()) {
+            return;
+        }
+        if (_interactiveWaiting > 0) {
+            _interactiveAvailable.signal();
+        }
+        if (_backgroundWaiting > 0) {
+            _backgroundAvailable.signal();
+        }
+    }
+
+    /**
+     * Gives back an index obtained from {@link #acquire(long, TimeUnit)}
+     */
+    public void release(String index) {
+        _lock.lock();
+        try {
+            Priority priority = _inFlight.remove(index);
+            if (priority == null) {
+                return;
+            }
+            if (priority == Priority.BACKGROUND) {
+                _backgroundInFlight--;
+            }
+            _free.push(index);
+            signal();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public int getSize() {
+        return _size;
+    }
+
+    public int getBackgroundLimit() {
+        return _backgroundLimit;
+    }
+
+    public int getInFlight() {
+        _lock.lock();
+        try {
+            return _inFlight.size();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public int getBackgroundInFlight() {
+        _lock.lock();
+        try {
+            return _backgroundInFlight;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public int getWaiting(Priority priority) {
+        _lock.lock();
+        try {
+            return priority == Priority.INTERACTIVE ? _interactiveWaiting : _backgroundWaiting;
+        } finally {
+            _lock.unlock();
+        }
+    }
+}
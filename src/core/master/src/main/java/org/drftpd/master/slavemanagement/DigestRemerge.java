@@ -0,0 +1,130 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.master.slavemanagement;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.drftpd.common.exceptions.RemoteIOException;
+import org.drftpd.master.exceptions.SlaveUnavailableException;
+import org.drftpd.master.vfs.DirectoryHandle;
+import org.drftpd.master.vfs.VirtualFileSystem;
+import org.drftpd.slave.network.AsyncResponseDirectoryDigest;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remerges a slave by comparing directory digests top-down instead of listing every directory.
+ * <p>
+ * The slave answers with the digest of a directory and of each of its subdirectories. Subtrees whose tree
+ * digest matches the one stored in the VFS for this slave are skipped, the others are descended into. A
+ * directory is only listed when its own list digest changed. Like a normal remerge the subdirectories are
+ * merged before their parent, and the digest of a directory is stored once its whole subtree is merged.
+ *
+ * @version $Id$
+ */
+public class DigestRemerge {
+    private static final Logger logger = LogManager.getLogger(DigestRemerge.class);
+
+    // requests for sibling directories sent ahead of the one being merged
+    private static final int LOOKAHEAD = 8;
+
+    private final RemoteSlave _rslave;
+
+    private int _checked;
+
+    private int _listed;
+
+    public DigestRemerge(RemoteSlave rslave) {
+        _rslave = rslave;
+    }
+
+    /**
+     * @throws RemoteIOException if the slave does not support digest remerges
+     */
+    public void remerge() throws IOException, SlaveUnavailableException, RemoteIOException {
+        long start = System.currentTimeMillis();
+        DirectoryHandle root = new DirectoryHandle(VirtualFileSystem.separator);
+        remerge(root, fetch(issue(root)));
+        logger.info("Digest remerge of {} checked {} directories and listed {} in {}ms", _rslave.getName(),
+                _checked, _listed, System.currentTimeMillis() - start);
+    }
+
+    public int getChecked() {
+        return _checked;
+    }
+
+    public int getListed() {
+        return _listed;
+    }
+
+    private void remerge(DirectoryHandle dir, AsyncResponseDirectoryDigest digest)
+            throws IOException, SlaveUnavailableException, RemoteIOException {
+        _checked++;
+        long[] known = getSlaveDigest(dir);
+        if (known != null && known[1] == digest.getTreeDigest()) {
+            return;
+        }
+
+        List<DirectoryHandle> changed = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : digest.getDirectories().entrySet()) {
+            DirectoryHandle child = dir.getNonExistentDirectoryHandle(entry.getKey());
+            long[] childKnown = getSlaveDigest(child);
+            if (childKnown == null || childKnown[1] != entry.getValue()) {
+                changed.add(child);
+            }
+        }
+
+        ArrayDeque<String> issued = new ArrayDeque<>();
+        int next = 0;
+        for (DirectoryHandle child : changed) {
+            while (next < changed.size() && issued.size() < LOOKAHEAD) {
+                issued.add(issue(changed.get(next++)));
+            }
+            remerge(child, fetch(issued.remove()));
+        }
+
+        if (digest.getFiles() != null) {
+            _listed++;
+            dir.remerge(digest.getFiles(), _rslave, digest.getLastModified());
+        }
+        dir.setSlaveDigest(_rslave, digest.getListDigest(), digest.getTreeDigest());
+    }
+
+    private long[] getSlaveDigest(DirectoryHandle dir) {
+        try {
+            return dir.getSlaveDigest(_rslave);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    private String issue(DirectoryHandle dir) throws SlaveUnavailableException {
+        long[] known = getSlaveDigest(dir);
+        return SlaveManager.getBasicIssuer().issueRemergeDigestToSlave(_rslave, dir.getPath(),
+                known == null ? 0L : known[0]);
+    }
+
+    private AsyncResponseDirectoryDigest fetch(String index) throws SlaveUnavailableException, RemoteIOException {
+        return (AsyncResponseDirectoryDigest) _rslave.fetchResponse(index);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.master.slavemanagement;
+
+import org.drftpd.common.network.AsyncResponse;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A command sent to a slave that is waiting for its response.
+ * <p>
+ * The index of the command is held by the thread reading responses until the response arrived, and by
+ * the caller until it is done with the response. Only when both released it, the index goes back to the
+ * window it was taken from, so a late response can never complete a command that reused the index.
+ *
+ * @version $Id$
+ */
+class PendingCommand {
+
+    private final String _index;
+
+    private final CommandWindow _window;
+
+    private final Map<String, PendingCommand> _pending;
+
+    private final CompletableFuture<AsyncResponse> _future = new CompletableFuture<>();
+
+    private final AtomicInteger _holds = new AtomicInteger(2);
+
+    private final AtomicBoolean _claimed = new AtomicBoolean();
+
+    private volatile String _name;
+
+    private volatile long _sent;
+
+    PendingCommand(String index, CommandWindow window, Map<String, PendingCommand> pending) {
+        _index = index;
+        _window = window;
+        _pending = pending;
+    }
+
+    String getIndex() {
+        return _index;
+    }
+
+    String getName() {
+        return _name;
+    }
+
+    long getSent() {
+        return _sent;
+    }
+
+    CompletableFuture<AsyncResponse> getFuture() {
+        return _future;
+    }
+
+    void sent(String name) {
+        _name = name;
+        _sent = System.currentTimeMillis();
+    }
+
+    /**
+     * @return false if the response was already claimed by another caller
+     */
+    boolean claim() {
+        return _claimed.compareAndSet(false, true);
+    }
+
+    /**
+     * Called once by the thread reading responses and once by the caller that claimed the response
+     */
+    void release() {
+        if (_holds.decrementAndGet() == 0) {
+            _pending.remove(_index, this);
+            _window.release(_index);
+        }
+    }
+}
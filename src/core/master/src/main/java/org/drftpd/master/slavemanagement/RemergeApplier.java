@@ -0,0 +1,260 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.master.slavemanagement;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.drftpd.master.GlobalContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Applies the remerge listings of a slave on several threads.
+ * <p>
+ * Listings of directories in different subtrees are applied in parallel. The slave sends the listings
+ * of subdirectories before the listing of their parent, which expects them to exist, so a listing is
+ * only applied once all listings received earlier for the same directory or a directory below it are done.
+ * <p>
+ * The threads are shared by all slaves, every slave has at most <code>maxOutstanding</code> listings
+ * handed to the applier so slaves remerging at the same time take turns.
+ *
+ * @version $Id$
+ */
+public class RemergeApplier {
+    private static final Logger logger = LogManager.getLogger(RemergeApplier.class);
+
+    private static final long REPORT_INTERVAL = 10000L;
+
+    private static ThreadPoolExecutor _sharedExecutor;
+
+    private final String _name;
+
+    private final Executor _executor;
+
+    private final int _maxOutstanding;
+
+    private final Action _action;
+
+    // number of unfinished listings per directory, counted for the directory and all its parents
+    private final Map<String, Integer> _unfinished = new HashMap<>();
+
+    private final Map<String, List<Task>> _waiting = new HashMap<>();
+
+    private long _sequence;
+
+    private int _outstanding;
+
+    private int _generation;
+
+    private long _applied;
+
+    private long _started;
+
+    private long _lastReport;
+
+    private long _lastReportApplied;
+
+    private double _rate;
+
+    public interface Action {
+        void apply(RemergeMessage message) throws IOException;
+    }
+
+    /**
+     * @param maxOutstanding number of listings waiting or being applied after which
+     *                       {@link #submit(RemergeMessage)} blocks
+     */
+    public RemergeApplier(String name, Executor executor, int maxOutstanding, Action action) {
+        _name = name;
+        _executor = executor;
+        _maxOutstanding = Math.max(1, maxOutstanding);
+        _action = action;
+    }
+
+    /**
+     * @return the threads shared by the remerges of all slaves, <code>remerge.threads</code> in master.conf
+     */
+    public static synchronized ThreadPoolExecutor getSharedExecutor() {
+        if (_sharedExecutor == null) {
+            int threads = Integer.parseInt(GlobalContext.getConfig().getMainProperties().getProperty("remerge.threads",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())).trim());
+            AtomicInteger count = new AtomicInteger();
+            _sharedExecutor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "RemergeApplier-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            _sharedExecutor.allowCoreThreadTimeOut(true);
+        }
+        return _sharedExecutor;
+    }
+
+    /**
+     * Hands a listing to the applier, waits while the slave has <code>maxOutstanding</code> listings outstanding
+     */
+    public synchronized void submit(RemergeMessage message) throws InterruptedException {
+        while (_outstanding >= _maxOutstanding) {
+            wait();
+        }
+        if (_outstanding == 0 && _applied == 0) {
+            _started = System.currentTimeMillis();
+            _lastReport = _started;
+            _lastReportApplied = 0;
+        }
+        String path = message.getDirectory();
+        Task task = new Task(message, _sequence++, _generation, _unfinished.getOrDefault(path, 0));
+        for (String dir = path; dir != null; dir = getParent(dir)) {
+            _unfinished.merge(dir, 1, Integer::sum);
+        }
+        _outstanding++;
+        if (task._blockers == 0) {
+            dispatch(task);
+        } else {
+            _waiting.computeIfAbsent(path, k -> new ArrayList<>()).add(task);
+        }
+    }
+
+    /**
+     * Waits until all listings handed to the applier are applied, or the applier was cleared
+     */
+    public synchronized void await() throws InterruptedException {
+        int generation = _generation;
+        while (_outstanding > 0 && generation == _generation) {
+            wait();
+        }
+        if (_applied > 0) {
+            long elapsed = Math.max(1, System.currentTimeMillis() - _started);
+            logger.info("REMERGE: applied {} directories from {} in {}ms ({}/s)", _applied, _name, elapsed,
+                    String.format("%.1f", _applied * 1000.0 / elapsed));
+        }
+        _applied = 0;
+    }
+
+    /**
+     * Drops all waiting listings, listings that are being applied finish without effect on the applier
+     */
+    public synchronized void clear() {
+        _generation++;
+        _unfinished.clear();
+        _waiting.clear();
+        _outstanding = 0;
+        _applied = 0;
+        _rate = 0;
+        notifyAll();
+    }
+
+    private void dispatch(Task task) {
+        _executor.execute(() -> {
+            try {
+                _action.apply(task._message);
+            } catch (IOException e) {
+                logger.error("IOException during remerge", e);
+                task._message.getRslave().setOffline("IOException during remerge");
+            } catch (RuntimeException e) {
+                logger.error("Unexpected exception remerging {} from {}", task._message.getDirectory(), _name, e);
+            } finally {
+                finish(task);
+            }
+        });
+    }
+
+    private synchronized void finish(Task finished) {
+        if (finished._generation != _generation) {
+            return;
+        }
+        for (String dir = finished._message.getDirectory(); dir != null; dir = getParent(dir)) {
+            _unfinished.computeIfPresent(dir, (k, count) -> count == 1 ? null : count - 1);
+            List<Task> waiting = _waiting.get(dir);
+            if (waiting == null) {
+                continue;
+            }
+            for (Iterator<Task> iter = waiting.iterator(); iter.hasNext(); ) {
+                Task task = iter.next();
+                if (task._sequence > finished._sequence && --task._blockers == 0) {
+                    iter.remove();
+                    dispatch(task);
+                }
+            }
+            if (waiting.isEmpty()) {
+                _waiting.remove(dir);
+            }
+        }
+        _outstanding--;
+        _applied++;
+        long now = System.currentTimeMillis();
+        if (now - _lastReport >= REPORT_INTERVAL) {
+            _rate = (_applied - _lastReportApplied) * 1000.0 / (now - _lastReport);
+            logger.info("REMERGE: {} applying {} directories/s, {} outstanding", _name,
+                    String.format("%.1f", _rate), _outstanding);
+            _lastReport = now;
+            _lastReportApplied = _applied;
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return number of listings waiting for other listings or being applied
+     */
+    public synchronized int getOutstanding() {
+        return _outstanding;
+    }
+
+    /**
+     * @return directories applied per second over the last {@link #REPORT_INTERVAL} milliseconds,
+     * 0 while nothing is outstanding
+     */
+    public synchronized double getRate() {
+        return _outstanding == 0 ? 0 : _rate;
+    }
+
+    private static String getParent(String path) {
+        if (path.equals("/")) {
+            return null;
+        }
+        int index = path.lastIndexOf('/');
+        return index <= 0 ? "/" : path.substring(0, index);
+    }
+
+    private static class Task {
+        private final RemergeMessage _message;
+
+        private final long _sequence;
+
+        private final int _generation;
+
+        private int _blockers;
+
+        private Task(RemergeMessage message, long sequence, int generation, int blockers) {
+            _message = message;
+            _sequence = sequence;
+            _generation = generation;
+            _blockers = blockers;
+        }
+    }
+}
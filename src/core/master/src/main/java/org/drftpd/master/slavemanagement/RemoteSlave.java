@@ -30,6 +30,8 @@ import org.drftpd.common.exceptions.RemoteIOException;
 import org.drftpd.common.network.AsyncCommand;
 import org.drftpd.common.network.AsyncCommandArgument;
 import org.drftpd.common.network.AsyncResponse;
+import org.drftpd.common.network.codec.JavaMessageStream;
+import org.drftpd.common.network.codec.MessageStream;
 import org.drftpd.common.protocol.ProtocolException;
 import org.drftpd.common.slave.ConnectInfo;
 import org.drftpd.common.slave.DiskStatus;
@@ -41,6 +43,7 @@ import org.drftpd.master.event.SlaveEvent;
 import org.drftpd.master.exceptions.FatalException;
 import org.drftpd.master.exceptions.SlaveUnavailableException;
 import org.drftpd.master.io.SafeFileOutputStream;
+import org.drftpd.master.network.BandwidthShaping;
 import org.drftpd.master.network.RemoteTransfer;
 import org.drftpd.master.stats.ExtendedTimedStats;
 import org.drftpd.master.usermanager.Entity;
@@ -69,6 +72,8 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 
     public static final Key<Boolean> SSL = new Key<>(RemoteSlave.class, "ssl");
     private static final Logger logger = LogManager.getLogger(RemoteSlave.class);
+    // remerge listings of one slave handed to the remerge threads at a time, the rest waits in the remerge queue
+    private static final int REMERGE_OUTSTANDING = 64;
     public transient AtomicBoolean _remergePaused;
     protected transient int _errors;
     protected transient long _lastNetworkError;
@@ -86,18 +91,22 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
     private Properties _keysAndValues;
     private final transient KeyedMap<Key<?>, Object> _transientKeyedMap;
     private ConcurrentLinkedDeque<QueuedOperation> _renameQueue;
-    private transient LinkedBlockingDeque<String> _indexPool;
-    private transient ConcurrentHashMap<String, AsyncResponse> _indexWithCommands;
+    private transient volatile CommandWindow _commandWindow;
+    private final transient CommandStats _commandStats;
+    private transient volatile ConcurrentHashMap<String, PendingCommand> _pendingCommands;
     private transient ObjectInputStream _sin;
     private transient Socket _socket;
     private transient ObjectOutputStream _sout;
+    private transient volatile MessageStream _stream;
     private transient ConcurrentHashMap<TransferIndex, RemoteTransfer> _transfers;
     private transient boolean _initRemergeCompleted;
-    private final transient Object _commandMonitor;
     private final transient LinkedBlockingQueue<RemergeMessage> _remergeQueue;
     private final transient LinkedBlockingQueue<FileHandle> _crcQueue;
     private transient RemergeThread _remergeThread;
+    private final transient RemergeApplier _remergeApplier;
     private transient CrcThread _crcThread;
+    // files put on the crc queue whose checksum was not stored yet, guarded by _crcQueue
+    private transient int _crcOutstanding;
 
     public RemoteSlave(String name) {
         _name = name;
@@ -108,7 +117,10 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
         _remergePaused = new AtomicBoolean();
         _remergeQueue = new LinkedBlockingQueue<>();
         _crcQueue = new LinkedBlockingQueue<>();
-        _commandMonitor = new Object();
+        _remergeApplier = new RemergeApplier(name, task -> RemergeApplier.getSharedExecutor().execute(task),
+                REMERGE_OUTSTANDING, message -> new DirectoryHandle(message.getDirectory())
+                .remerge(message.getFiles(), message.getRslave(), message.getLastModified()));
+        _commandStats = new CommandStats();
     }
 
     public static Hashtable<String, RemoteSlave> rslavesToHashtable(Collection<RemoteSlave> rslaves) {
@@ -185,6 +197,9 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
     public void setProperty(String name, String value) {
         _keysAndValues.setProperty(name, value);
         commit();
+        if (name.startsWith("bandwidth.")) {
+            updateBandwidthLimits();
+        }
     }
 
     public String getProperty(String name, String def) {
@@ -353,6 +368,12 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
         String checkSSLIndex = SlaveManager.getBasicIssuer().issueCheckSSL(this);
         getTransientKeyedMap().setObject(SSL, fetchCheckSSLFromIndex(checkSSLIndex));
 
+        try {
+            fetchResponse(SlaveManager.getBasicIssuer().issueBandwidthToSlave(this, BandwidthShaping.getSlaveLimits(this)));
+        } catch (RemoteIOException e) {
+            throw e.getCause();
+        }
+
         long skipAgeCutoff = 0L;
 
         String remergeMode = GlobalContext.getConfig().getMainProperties().getProperty("partial.remerge.mode");
@@ -360,6 +381,7 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
                 getProperty("enableremergechecksums", "false").equalsIgnoreCase("true");
         boolean partialRemerge = false;
         boolean instantOnline = false;
+        boolean digestRemerge = false;
         if (remergeMode == null) {
             logger.error("Slave partial remerge undefined in master.conf, defaulting to \"off\"");
         } else {
@@ -384,10 +406,20 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
                 setAvailable(true);
                 logger.info("Slave added: '{}' status: {}", getName(), _status);
                 GlobalContext.getEventService().publishAsync(new SlaveEvent("ADDSLAVE", this));
+            } else if (remergeMode.equalsIgnoreCase("digest")) {
+                digestRemerge = true;
             }
         }
         String remergeIndex;
-        if (partialRemerge) {
+        if (digestRemerge) {
+            try {
+                new DigestRemerge(this).remerge();
+                remergeIndex = null;
+            } catch (RemoteIOException e) {
+                logger.warn("Digest remerge of slave {} failed, performing full remerge", getName(), e);
+                remergeIndex = SlaveManager.getBasicIssuer().issueRemergeToSlave(this, "/", false, 0L, 0L, false);
+            }
+        } else if (partialRemerge) {
             remergeIndex = SlaveManager.getBasicIssuer().issueRemergeToSlave(this, "/", true, skipAgeCutoff, System.currentTimeMillis(), false);
         } else if (instantOnline) {
             remergeIndex = SlaveManager.getBasicIssuer().issueRemergeToSlave(this, "/", false, 0L, 0L, true);
@@ -395,10 +427,12 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
             remergeIndex = SlaveManager.getBasicIssuer().issueRemergeToSlave(this, "/", false, 0L, 0L, false);
         }
 
-        try {
-            fetchResponse(remergeIndex, 0);
-        } catch (RemoteIOException e) {
-            throw new IOException(e.getMessage());
+        if (remergeIndex != null) {
+            try {
+                fetchResponse(remergeIndex, 0);
+            } catch (RemoteIOException e) {
+                throw new IOException(e.getMessage());
+            }
         }
 
         setCRCThreadFinished();
@@ -425,6 +459,21 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
         _isAvailable = available;
     }
 
+    /**
+     * Sends the bandwidth.upload/bandwidth.download properties of this slave to the slave
+     */
+    private void updateBandwidthLimits() {
+        if (!isAvailable()) {
+            // sent when the slave connects
+            return;
+        }
+        try {
+            fetchResponse(SlaveManager.getBasicIssuer().issueBandwidthToSlave(this, BandwidthShaping.getSlaveLimits(this)));
+        } catch (SlaveUnavailableException | RemoteIOException e) {
+            logger.warn("Unable to update bandwidth limits of slave {}", getName(), e);
+        }
+    }
+
     public boolean isAvailablePing() {
         if (!isAvailable()) {
             return false;
@@ -519,6 +568,26 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
             logger.info("Slave added: '{}' status: {}", getName(), _status);
             GlobalContext.getEventService().publishAsync(new SlaveEvent("ADDSLAVE", this));
         }
+        startWatching();
+    }
+
+    /**
+     * Asks the slave to send changes made directly on its roots from now on, they arrive as remerge listings
+     */
+    private void startWatching() {
+        String index;
+        try {
+            index = SlaveManager.getBasicIssuer().issueWatchToSlave(this);
+        } catch (SlaveUnavailableException e) {
+            return;
+        }
+        fetchResponseAsync(index).whenComplete((ar, t) -> {
+            if (t == null) {
+                logger.info("Slave {} is watching its roots for changes", getName());
+            } else if (t.getCause() instanceof RemoteIOException) {
+                logger.debug("Slave {} is not watching its roots: {}", getName(), t.getCause().getCause().getMessage());
+            }
+        });
     }
 
     public final void setLastDirection(char direction, long l) {
@@ -583,32 +652,19 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
         return moreInfo();
     }
 
-    public synchronized void connect(Socket socket, ObjectInputStream in,
-                                     ObjectOutputStream out) {
+    public synchronized void connect(Socket socket, JavaMessageStream stream) {
         _socket = socket;
-        _sout = out;
-        _sin = in;
-        if (_indexPool == null) {
-            _indexPool = new LinkedBlockingDeque<>(256);
-        } else {
-            _indexPool.clear();
-        }
-
-        for (int i = 0; i < 256; i++) {
-            String key = Integer.toHexString(i);
-
-            if (key.length() < 2) {
-                key = "0" + key;
-            }
-
-            _indexPool.push(key);
-        }
-
-        if (_indexWithCommands == null) {
-            _indexWithCommands = new ConcurrentHashMap<>();
-        } else {
-            _indexWithCommands.clear();
-        }
+        _stream = stream;
+        _sout = stream.getObjectOutputStream();
+        _sin = stream.getObjectInputStream();
+        // a new window, so commands of an earlier connection can not give their index back to this one
+        Properties p = GlobalContext.getConfig().getMainProperties();
+        int window = Integer.parseInt(getProperty("command.window",
+                p.getProperty("slavemanager.command.window", "256")));
+        int backgroundShare = Integer.parseInt(p.getProperty("slavemanager.command.background", "75"));
+        _commandWindow = new CommandWindow(window, window * backgroundShare / 100);
+        _pendingCommands = new ConcurrentHashMap<>();
+        _commandStats.clear();
 
         if (_transfers == null) {
             _transfers = new ConcurrentHashMap<>();
@@ -656,10 +712,17 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
         String index;
         while (isOnline()) {
             try {
-                index = _indexPool.poll(1000, TimeUnit.MILLISECONDS);
+                CommandWindow commandWindow = _commandWindow;
+                ConcurrentHashMap<String, PendingCommand> pendingCommands = _pendingCommands;
+                index = commandWindow.acquire(1000, TimeUnit.MILLISECONDS);
                 if (index == null) {
-                    logger.error("Too many commands sent, need to wait for the slave to process commands");
+                    if (CommandWindow.getPriority() == CommandWindow.Priority.INTERACTIVE) {
+                        logger.error("Too many commands sent, need to wait for the slave to process commands");
+                    } else {
+                        logger.debug("Command window for background commands is full, waiting for the slave");
+                    }
                 } else {
+                    pendingCommands.put(index, new PendingCommand(index, commandWindow, pendingCommands));
                     return index;
                 }
                 if (getActualTimeout() < (System.currentTimeMillis() - _lastResponseReceived)) {
@@ -691,6 +754,30 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
         }
     }
 
+    /**
+     * @throws RemoteIOException if the slave does not support the lanes command
+     */
+    public List<AsyncResponseLanes.LaneStatus> fetchLanesFromIndex(String lanesIndex)
+            throws SlaveUnavailableException, RemoteIOException {
+        return ((AsyncResponseLanes) fetchResponse(lanesIndex)).getLanes();
+    }
+
+    /**
+     * @throws RemoteIOException if the slave does not support the bufferPools command
+     */
+    public List<AsyncResponseBufferPools.BufferPoolStatus> fetchBufferPoolsFromIndex(String bufferPoolsIndex)
+            throws SlaveUnavailableException, RemoteIOException {
+        return ((AsyncResponseBufferPools) fetchResponse(bufferPoolsIndex)).getPools();
+    }
+
+    /**
+     * @throws RemoteIOException if the slave does not support the sessionCache command
+     */
+    public AsyncResponseSessionCache fetchSessionCacheFromIndex(String sessionCacheIndex)
+            throws SlaveUnavailableException, RemoteIOException {
+        return (AsyncResponseSessionCache) fetchResponse(sessionCacheIndex);
+    }
+
     public AsyncResponse fetchResponse(String index)
             throws SlaveUnavailableException, RemoteIOException {
         return fetchResponse(index, getActualTimeout());
@@ -702,40 +789,106 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
      */
     public AsyncResponse fetchResponse(String index, int wait)
             throws SlaveUnavailableException, RemoteIOException {
-        long total = System.currentTimeMillis();
+        CompletableFuture<AsyncResponse> future = fetchResponseAsync(index);
+        long deadline = System.currentTimeMillis() + wait;
 
-        while (isOnline() && !_indexWithCommands.containsKey(index)) {
+        while (true) {
             try {
-                synchronized (_commandMonitor) {
-                    _commandMonitor.wait(1000);
+                if (wait == 0) {
+                    return future.get();
                 }
-
-                // will wait a maximum of 1000 milliseconds before waking up
+                return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
             } catch (InterruptedException e) {
+                // keep waiting, the slave going offline completes the response
+            } catch (TimeoutException e) {
+                future.cancel(false);
+                setOffline("Slave has taken too long while waiting for reply " + index);
+                throw new SlaveUnavailableException("Slave went offline while processing command");
+            } catch (ExecutionException e) {
+                Throwable t = e.getCause();
+                if (t instanceof RemoteIOException) {
+                    throw (RemoteIOException) t;
+                }
+                if (t instanceof SlaveUnavailableException) {
+                    throw (SlaveUnavailableException) t;
+                }
+                throw new SlaveUnavailableException("Slave went offline while processing command", t);
             }
+        }
+    }
 
-            if ((wait != 0) && ((System.currentTimeMillis() - total) >= wait)) {
-                setOffline("Slave has taken too long while waiting for reply " + index);
+    /**
+     * @return the command window of the current connection, null if the slave never connected
+     */
+    public CommandWindow getCommandWindow() {
+        return _commandWindow;
+    }
+
+    public CommandStats getCommandStats() {
+        return _commandStats;
+    }
+
+    /**
+     * @return the number of commands waiting for a response by command name, and the oldest
+     * send time of each in the second element of the array
+     */
+    public Map<String, long[]> getPendingCommands() {
+        Map<String, long[]> pending = new TreeMap<>();
+        ConcurrentHashMap<String, PendingCommand> pendingCommands = _pendingCommands;
+        if (pendingCommands == null) {
+            return pending;
+        }
+        for (PendingCommand command : pendingCommands.values()) {
+            if (command.getName() == null || command.getFuture().isDone()) {
+                continue;
             }
+            long[] entry = pending.computeIfAbsent(command.getName(), name -> new long[]{0, Long.MAX_VALUE});
+            entry[0]++;
+            entry[1] = Math.min(entry[1], command.getSent());
         }
+        return pending;
+    }
 
-        if (!isOnline()) {
-            throw new SlaveUnavailableException("Slave went offline while processing command");
+    /**
+     * Returns the response for that index once the slave sent it. The future completes exceptionally with a
+     * {@link RemoteIOException} for an IOException thrown on the slave side, or with a
+     * {@link SlaveUnavailableException} if the slave went offline.
+     * <p>
+     * The index is in use until the response is received and the returned future is completed or cancelled.
+     */
+    public CompletableFuture<AsyncResponse> fetchResponseAsync(String index) {
+        ConcurrentHashMap<String, PendingCommand> pendingCommands = _pendingCommands;
+        PendingCommand command = pendingCommands == null ? null : pendingCommands.get(index);
+        if (command == null || !command.claim()) {
+            return CompletableFuture.failedFuture(isOnline()
+                    ? new IllegalStateException("No command is waiting for a response on index " + index)
+                    : new SlaveUnavailableException("Slave went offline while processing command"));
         }
+        CompletableFuture<AsyncResponse> response = command.getFuture().thenApply(this::checkResponse);
+        response.whenComplete((ar, t) -> command.release());
+        return response;
+    }
 
-        AsyncResponse rar = _indexWithCommands.remove(index);
-        _indexPool.push(index);
+    /**
+     * Like {@link #fetchResponseAsync(String)}, completing exceptionally with a
+     * {@link TimeoutException} if there is no response within <code>timeout</code> milliseconds.
+     */
+    public CompletableFuture<AsyncResponse> fetchResponseAsync(String index, long timeout) {
+        return fetchResponseAsync(index).orTimeout(timeout, TimeUnit.MILLISECONDS);
+    }
 
+    private AsyncResponse checkResponse(AsyncResponse rar) {
         if (rar instanceof AsyncResponseException) {
             Throwable t = ((AsyncResponseException) rar).getThrowable();
 
             if (t instanceof IOException) {
-                throw new RemoteIOException((IOException) t);
+                throw new CompletionException(new RemoteIOException((IOException) t));
             }
 
             logger.error("Exception on slave that is unable to be handled by the master", t);
             setOffline("Exception on slave that is unable to be handled by the master");
-            throw new SlaveUnavailableException("Exception on slave that is unable to be handled by the master");
+            throw new CompletionException(new SlaveUnavailableException(
+                    "Exception on slave that is unable to be handled by the master"));
         }
         return rar;
     }
@@ -775,6 +928,8 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 
     public void run() {
         logger.debug("Starting RemoteSlave for {}", getName());
+        // pings keep the connection alive and must not wait behind background commands
+        CommandWindow.setPriority(CommandWindow.Priority.INTERACTIVE);
 
         try {
             String pingIndex = null;
@@ -798,7 +953,7 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
                         .currentTimeMillis() - _lastCommandSent)))) {
                     if (pingIndex != null) {
                         logger.error("Ping lost, no response from slave, sending new ping to slave");
-                        _indexPool.push(pingIndex);
+                        fetchResponseAsync(pingIndex).cancel(false);
                     }
                     pingIndex = SlaveManager.getBasicIssuer().issuePingToSlave(this);
                 } else if (getActualTimeout() < (System.currentTimeMillis() - _lastResponseReceived)) {
@@ -835,7 +990,8 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
                 }
 
                 if (!(ar instanceof AsyncResponseRemerge)
-                        && !(ar instanceof AsyncResponseTransferStatus)) {
+                        && !(ar instanceof AsyncResponseTransferStatus)
+                        && !(ar instanceof AsyncResponseTransferStatusBatch)) {
                     logger.debug("Received: {}", ar);
                 }
 
@@ -873,19 +1029,32 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
                             removeTransfer(ats.getTransferIndex());
                         }
                         break;
+                    case "TransferStatusBatch":
+                        for (TransferStatus ts : ((AsyncResponseTransferStatusBatch) ar).getTransferStatuses()) {
+                            RemoteTransfer transfer = _transfers.get(ts.getTransferIndex());
+                            // the final status of a transfer is sent on its own and may have removed it already
+                            if (transfer != null) {
+                                transfer.updateTransferStatus(ts);
+                            }
+                        }
+                        break;
+                    case "SiteBotMessage":
+                        String message = ((AsyncResponseSiteBotMessage) ar).getMessage();
+                        GlobalContext.getEventService().publishAsync(new SlaveEvent("MSGSLAVE", message, this));
+                        break;
                     default:
-                        _indexWithCommands.put(ar.getIndex(), ar);
+                        PendingCommand command = _pendingCommands.get(ar.getIndex());
+                        if (command == null) {
+                            logger.error("Throwing away a response nobody is waiting for - {}", ar);
+                            break;
+                        }
+                        _commandStats.record(command.getName(), System.currentTimeMillis() - command.getSent());
+                        command.getFuture().complete(ar);
+                        command.release();
                         if (pingIndex != null
                                 && pingIndex.equals(ar.getIndex())) {
                             fetchResponse(pingIndex);
                             pingIndex = null;
-                        } else if (ar.getIndex().equals("SiteBotMessage")) {
-                            String message = ((AsyncResponseSiteBotMessage) ar).getMessage();
-                            GlobalContext.getEventService().publishAsync(new SlaveEvent("MSGSLAVE", message, this));
-                        } else {
-                            synchronized (_commandMonitor) {
-                                _commandMonitor.notifyAll();
-                            }
                         }
                         break;
                 }
@@ -939,20 +1108,16 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
         // If the slave is still processing the remerge queue clear all
         // outstanding entries
         _remergeQueue.clear();
+        _remergeApplier.clear();
         _crcQueue.clear();
-        if (_sin != null) {
+        crcDone(Integer.MAX_VALUE);
+        if (_stream != null) {
             try {
-                _sin.close();
+                _stream.close();
             } catch (IOException e) {
             }
+            _stream = null;
             _sin = null;
-        }
-        if (_sout != null) {
-            try {
-                _sout.flush();
-                _sout.close();
-            } catch (IOException e) {
-            }
             _sout = null;
         }
         if (_socket != null) {
@@ -963,8 +1128,13 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
             }
             _socket = null;
         }
-        if (_indexWithCommands != null)
-            _indexWithCommands.clear();
+        ConcurrentHashMap<String, PendingCommand> pendingCommands = _pendingCommands;
+        if (pendingCommands != null) {
+            SlaveUnavailableException offline = new SlaveUnavailableException("Slave went offline while processing command");
+            for (PendingCommand command : pendingCommands.values()) {
+                command.getFuture().completeExceptionally(offline);
+            }
+        }
         if (_transfers != null)
             _transfers.clear();
         _status = null;
@@ -999,13 +1169,13 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
     private AsyncResponse readAsyncResponse() throws SlaveUnavailableException,
             SocketTimeoutException {
         Object obj;
-        ObjectInputStream in = _sin;
+        MessageStream in = _stream;
         if (!isOnline()) {
             throw new SlaveUnavailableException("Slave is unavailable");
         }
         while (true) {
             try {
-                obj = in.readObject();
+                obj = in.readMessage();
             } catch (ClassNotFoundException e) {
                 logger.error("ClassNotFound reading AsyncResponse", e);
                 setOffline("ClassNotFound reading AsyncResponse");
@@ -1039,27 +1209,36 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
     /**
      * Will not set a slave offline, it is the job of the calling thread to
      * decide to do this
+     *
+     * @return the raw response of the command if its index was taken from {@link #fetchIndex()},
+     * otherwise the slave does not answer and a future completed with null is returned.
+     * The index is only used again after the response was taken with {@link #fetchResponse(String)}
+     * or {@link #fetchResponseAsync(String)}.
      */
-    public synchronized void sendCommand(AsyncCommandArgument rac)
+    public synchronized CompletableFuture<AsyncResponse> sendCommand(AsyncCommandArgument rac)
             throws SlaveUnavailableException {
         if (rac == null) {
             throw new NullPointerException();
         }
 
-        ObjectOutputStream out = _sout;
+        MessageStream out = _stream;
         if (!isOnline()) {
             throw new SlaveUnavailableException();
         }
 
+        PendingCommand command = _pendingCommands.get(rac.getIndex());
+        if (command != null) {
+            command.sent(rac.getName());
+        }
+
         try {
-            out.writeObject(rac);
-            out.flush();
-            out.reset();
+            out.writeMessage(rac);
         } catch (IOException e) {
             logger.error("error in sendCommand()", e);
             throw new SlaveUnavailableException("error sending command (exception already handled)", e);
         }
         _lastCommandSent = System.currentTimeMillis();
+        return command == null ? CompletableFuture.completedFuture(null) : command.getFuture().copy();
     }
 
     public boolean checkConnect(Socket socket) throws PatternSyntaxException {
@@ -1135,6 +1314,10 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
         return _remergeQueue;
     }
 
+    public RemergeApplier getRemergeApplier() {
+        return _remergeApplier;
+    }
+
     public LinkedBlockingQueue<FileHandle> getCRCQueue() {
         return _crcQueue;
     }
@@ -1168,6 +1351,9 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
                 throw new KeyNotFoundException();
             String value = (String) _keysAndValues.remove(key);
             commit();
+            if (key.startsWith("bandwidth.")) {
+                updateBandwidthLimits();
+            }
             return value;
         }
     }
@@ -1198,6 +1384,18 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
         return _sin;
     }
 
+    public MessageStream getMessageStream() {
+        return _stream;
+    }
+
+    /**
+     * Replaces the stream used for commands and responses, done once by the handshake before
+     * the slave thread starts reading
+     */
+    public void setMessageStream(MessageStream stream) {
+        _stream = stream;
+    }
+
     public void putRemergeQueue(RemergeMessage message) {
         logger.debug("REMERGE: putting message into queue");
         try {
@@ -1213,6 +1411,9 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 
     public void putCRCQueue(FileHandle file) {
         logger.debug("CRC: putting file into queue {}", file.getPath());
+        synchronized (_crcQueue) {
+            _crcOutstanding++;
+        }
         try {
             _crcQueue.put(file);
         } catch (InterruptedException e) {
@@ -1224,6 +1425,26 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
         }
     }
 
+    private void crcDone(int files) {
+        synchronized (_crcQueue) {
+            _crcOutstanding = files >= _crcOutstanding ? 0 : _crcOutstanding - files;
+            if (_crcOutstanding == 0) {
+                _crcQueue.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until the checksums of all files put on the crc queue are stored, or the slave went offline
+     */
+    public void awaitCRCQueue() throws InterruptedException {
+        synchronized (_crcQueue) {
+            while (_crcOutstanding > 0) {
+                _crcQueue.wait();
+            }
+        }
+    }
+
     private class RemergeThread extends Thread {
 
         public RemergeThread(String slaveName) {
@@ -1242,14 +1463,17 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
                 }
 
                 if (msg.isCompleted()) {
+                    try {
+                        _remergeApplier.await();
+                    } catch (InterruptedException e) {
+                        logger.debug("REMERGE QUE: thread interrupted waiting for listings to be applied with exception {}", e.getMessage());
+                    }
                     logger.info("REMERGE: queue finished");
                     // Wait for crc queue to finish
-                    while (!_crcQueue.isEmpty()) {
-                        try {
-                            Thread.sleep(500);
-                        } catch (InterruptedException e) {
-                            logger.debug("REMERGE QUE: thread interrupted waiting for crc queue to drain with exception {}", e.getMessage());
-                        }
+                    try {
+                        awaitCRCQueue();
+                    } catch (InterruptedException e) {
+                        logger.debug("REMERGE QUE: thread interrupted waiting for crc queue to drain with exception {}", e.getMessage());
                     }
                     if (!_initRemergeCompleted) {
                         // First remerge after slave connect
@@ -1258,21 +1482,27 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
                     break;
                 }
 
-                DirectoryHandle dir = new DirectoryHandle(msg.getDirectory());
-
                 try {
-                    dir.remerge(msg.getFiles(), msg.getRslave(), msg.getLastModified());
-                } catch (IOException e) {
-                    logger.error("IOException during remerge", e);
-                    msg.getRslave().setOffline("IOException during remerge");
-                    break;
+                    _remergeApplier.submit(msg);
+                } catch (InterruptedException e) {
+                    logger.debug("REMERGE QUE: thread interrupted handing {} to the applier with exception {}", msg.getDirectory(), e.getMessage());
                 }
             }
         }
     }
 
+    /**
+     * Fetches the checksums of the files on the crc queue in batches of {@link #CRC_BATCH_SIZE} files,
+     * keeping up to {@link #CRC_BATCHES_IN_FLIGHT} batches on the slave so its disks never wait for the master.
+     */
     private class CrcThread extends Thread {
 
+        private static final int CRC_BATCH_SIZE = 256;
+
+        private static final int CRC_BATCHES_IN_FLIGHT = 4;
+
+        private final ArrayDeque<CrcBatch> _inFlight = new ArrayDeque<>();
+
         private boolean _finished = false;
 
         CrcThread(String slaveName) {
@@ -1280,37 +1510,78 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
         }
 
         public void run() {
-            while (true) {
-                FileHandle file;
-                try {
-                    logger.info("REMERGE CRC SIZE: {}", _crcQueue.size());
-                    file = _crcQueue.poll(1000, TimeUnit.MILLISECONDS);
-                } catch (InterruptedException e) {
-                    logger.debug("REMERGE CRC QUE: fault in node from queue with exception {}", e.getMessage());
-                    continue;
+            try {
+                while (true) {
+                    if (!_inFlight.isEmpty() && (_crcQueue.isEmpty() || _inFlight.size() >= CRC_BATCHES_IN_FLIGHT)) {
+                        complete(_inFlight.poll());
+                        continue;
+                    }
+                    FileHandle file;
+                    try {
+                        logger.info("REMERGE CRC SIZE: {}", _crcQueue.size());
+                        file = _crcQueue.poll(1000, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        logger.debug("REMERGE CRC QUE: fault in node from queue with exception {}", e.getMessage());
+                        continue;
+                    }
+                    if (_finished && _crcQueue.isEmpty() && file == null) {
+                        logger.info("REMERGE CRC: queue finished");
+                        break;
+                    }
+                    if (file == null) {
+                        continue;
+                    }
+                    List<FileHandle> files = new ArrayList<>(CRC_BATCH_SIZE);
+                    files.add(file);
+                    _crcQueue.drainTo(files, CRC_BATCH_SIZE - 1);
+                    String[] paths = new String[files.size()];
+                    for (int i = 0; i < paths.length; i++) {
+                        paths[i] = files.get(i).getPath();
+                    }
+                    try {
+                        String index = SlaveManager.getBasicIssuer().issueChecksumsToSlave(RemoteSlave.this, paths);
+                        _inFlight.add(new CrcBatch(files, fetchResponseAsync(index)));
+                    } catch (SlaveUnavailableException e) {
+                        crcDone(files.size());
+                        throw e;
+                    }
                 }
-                if (_finished && _crcQueue.isEmpty() && file == null) {
-                    logger.info("REMERGE CRC: queue finished");
-                    break;
+            } catch (SlaveUnavailableException e) {
+                logger.warn("Slave went offline while processing remerge crc queue.");
+                for (CrcBatch batch : _inFlight) {
+                    crcDone(batch._files.size());
                 }
-                if (file == null) {
-                    continue;
+            }
+        }
+
+        private void complete(CrcBatch batch) throws SlaveUnavailableException {
+            try {
+                AsyncResponseChecksums checksums = (AsyncResponseChecksums) batch._response.join();
+                Map<String, FileHandle> files = new HashMap<>();
+                for (FileHandle file : batch._files) {
+                    files.put(file.getPath(), file);
                 }
-                long checksum;
-                try {
-                    checksum = getCheckSumForPath(file.getPath());
-                } catch (IOException e) {
+                for (int i = 0; i < checksums.size(); i++) {
+                    FileHandle file = files.remove(checksums.getPath(i));
+                    if (file == null) {
+                        continue;
+                    }
+                    try {
+                        file.setCheckSum(checksums.getChecksum(i));
+                    } catch (FileNotFoundException e) {
+                        logger.debug("File deleted while getting crc from slave {}", file.getPath());
+                    }
+                }
+                for (FileHandle file : files.values()) {
                     logger.error("IOException on remerge getting CRC from slave [{}, {}]", getName(), file.getPath());
-                    continue;
-                } catch (SlaveUnavailableException e) {
-                    logger.warn("Slave went offline while processing remerge crc queue.");
-                    break;
                 }
-                try {
-                    file.setCheckSum(checksum);
-                } catch (FileNotFoundException e) {
-                    logger.debug("File deleted while getting crc from slave {}", file.getPath());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof SlaveUnavailableException) {
+                    throw (SlaveUnavailableException) e.getCause();
                 }
+                logger.error("Unable to get CRCs of {} files from slave {}", batch._files.size(), getName(), e.getCause());
+            } finally {
+                crcDone(batch._files.size());
             }
         }
 
@@ -1318,4 +1589,15 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
             _finished = true;
         }
     }
+
+    private static class CrcBatch {
+        private final List<FileHandle> _files;
+
+        private final CompletableFuture<AsyncResponse> _response;
+
+        private CrcBatch(List<FileHandle> files, CompletableFuture<AsyncResponse> response) {
+            _files = files;
+            _response = response;
+        }
+    }
 }
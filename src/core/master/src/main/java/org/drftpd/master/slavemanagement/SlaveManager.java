@@ -28,6 +28,7 @@ import org.elasticsearch.common.ssl.SslConfigurationLoader;
 
 import org.drftpd.common.exceptions.RemoteIOException;
 import org.drftpd.common.network.AsyncCommandArgument;
+import org.drftpd.common.network.codec.JavaMessageStream;
 import org.drftpd.common.protocol.AbstractIssuer;
 import org.drftpd.common.util.PropertyHelper;
 import org.drftpd.master.GlobalContext;
@@ -398,6 +399,7 @@ public class SlaveManager extends SslConfigurationLoader implements Runnable, Ti
             RemoteSlave rSlave;
             ObjectInputStream in;
             ObjectOutputStream out;
+            JavaMessageStream stream;
 
             try {
                 socket = (SSLSocket) _serverSocket.accept();
@@ -410,9 +412,9 @@ public class SlaveManager extends SslConfigurationLoader implements Runnable, Ti
                 socket.setUseClientMode(false);
                 socket.startHandshake();
 
-                out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
-                out.flush();
-                in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+                stream = new JavaMessageStream(socket.getInputStream(), socket.getOutputStream());
+                out = stream.getObjectOutputStream();
+                in = stream.getObjectInputStream();
 
                 String slaveName = RemoteSlave.getSlaveNameFromObjectInput(in);
 
@@ -453,7 +455,7 @@ public class SlaveManager extends SslConfigurationLoader implements Runnable, Ti
                     continue;
                 }
 
-                rSlave.connect(socket, in, out);
+                rSlave.connect(socket, stream);
             } catch (Exception e) {
                 rSlave.setOffline(e);
                 logger.error(e);
@@ -15,7 +15,6 @@
  * along with DrFTPD; if not, write to the Free Software
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
  */
-
 package org.drftpd.master.vfs;
 
 import org.apache.logging.log4j.LogManager;
@@ -23,16 +22,26 @@ import org.apache.logging.log4j.Logger;
 import org.drftpd.common.util.PropertyHelper;
 import org.drftpd.master.GlobalContext;
 
+import java.io.Flushable;
 import java.io.IOException;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This classes handle all XML commits.
  * The main purpose of having this is to avoiding serializing the same object tons of times,
  * even if it data was not changed.
+ * <p>
+ * Queued objects are kept in a map by identity, so adding, removing and looking them up does not depend
+ * on the size of the queue, and in a queue oldest first which is written once the entries are
+ * <code>disk.commit.delay</code> old. Writes happen in batches of <code>disk.commit.batch</code>, after every
+ * batch the registered syncables are forced to disk once, optionally limited to
+ * <code>disk.commit.rate</code> writes per second.
  *
  * @author zubov
  * @version $Id$
@@ -41,20 +50,32 @@ public class CommitManager {
 
     private static final Logger logger = LogManager.getLogger(CommitManager.class);
 
+    private static final long RATE_INTERVAL = 10000L;
+
     private static CommitManager _instance;
 
+    // queued objects by identity, an object is queued once no matter how often it is added
+    private final ConcurrentHashMap<CommitableKey, CommitableWrapper> _pending;
+    // the same entries oldest first, entries no longer in _pending are skipped when they come up
     private final ConcurrentLinkedQueue<CommitableWrapper> _commitQueue;
+    private final List<Flushable> _syncables;
     private boolean _isStarted;
-    private final AtomicInteger _queueSize;
     private volatile boolean _drainQueue;
     private Thread _commitThread;
 
+    private final AtomicLong _written = new AtomicLong();
+    private final AtomicLong _failures = new AtomicLong();
+    private long _rateStart = System.currentTimeMillis();
+    private long _rateWritten;
+    private volatile double _writeRate;
+
     /**
      * Private constructor in order to make this class a Singleton.
      */
-    private CommitManager() {
+    CommitManager() {
+        _pending = new ConcurrentHashMap<>();
         _commitQueue = new ConcurrentLinkedQueue<>();
-        _queueSize = new AtomicInteger();
+        _syncables = new CopyOnWriteArrayList<>();
     }
 
     /**
@@ -89,12 +110,11 @@ public class CommitManager {
      * @param object
      */
     public void add(Commitable object) {
-        if (contains(object)) {
-            return;
-            // object already queued to write
+        CommitableWrapper cw = new CommitableWrapper(object);
+        if (_pending.putIfAbsent(cw.getKey(), cw) == null) {
+            _commitQueue.offer(cw);
         }
-        _commitQueue.offer(new CommitableWrapper(object));
-        _queueSize.incrementAndGet();
+        // else object already queued to write
     }
 
 
@@ -104,15 +124,7 @@ public class CommitManager {
      */
     public boolean remove(Commitable object) {
         if (object == null) return false;
-        for (Iterator<CommitableWrapper> iter = _commitQueue.iterator(); iter.hasNext(); ) {
-            CommitableWrapper cw = iter.next();
-            if (cw != null && cw.equals(object)) {
-                iter.remove();
-                _queueSize.decrementAndGet();
-                return true;
-            }
-        }
-        return false;
+        return _pending.remove(new CommitableKey(object)) != null;
     }
 
     /**
@@ -121,19 +133,54 @@ public class CommitManager {
      */
     public boolean contains(Commitable object) {
         if (object == null) return false;
+        return _pending.containsKey(new CommitableKey(object));
+    }
+
+    /**
+     * @return the number of outstanding objects to commit.
+     */
+    public int getQueueSize() {
+        return _pending.size();
+    }
+
+    /**
+     * @return milliseconds the oldest outstanding object has been waiting, 0 if there is none
+     */
+    public long getOldestAge() {
         for (CommitableWrapper cw : _commitQueue) {
-            if (cw != null && cw.equals(object)) {
-                return true;
+            if (isQueued(cw)) {
+                return System.currentTimeMillis() - cw.getTime();
             }
         }
-        return false;
+        return 0;
     }
 
     /**
-     * @return the number of outstanding objects to commit.
+     * @return objects written per second, averaged over roughly the last {@link #RATE_INTERVAL} milliseconds
      */
-    public int getQueueSize() {
-        return _queueSize.get();
+    public double getWriteRate() {
+        return _writeRate;
+    }
+
+    /**
+     * @return the number of objects written since startup
+     */
+    public long getWritten() {
+        return _written.get();
+    }
+
+    /**
+     * @return the number of failed writes since startup, failed objects are tried again later
+     */
+    public long getFailures() {
+        return _failures.get();
+    }
+
+    /**
+     * Registers something to force to disk after every batch of writes, like the vfs log
+     */
+    public void addSyncable(Flushable syncable) {
+        _syncables.add(syncable);
     }
 
     /**
@@ -142,9 +189,12 @@ public class CommitManager {
      * @param object
      */
     public void flushImmediate(Commitable object) {
-        if (contains(object)) {
+        CommitableWrapper cw = _pending.remove(new CommitableKey(object));
+        if (cw != null) {
             ClassLoader prevCL = Thread.currentThread().getContextClassLoader();
-            writeCommitable(object);
+            if (!writeCommitable(object)) {
+                add(object);
+            }
             Thread.currentThread().setContextClassLoader(prevCL);
         }
     }
@@ -162,35 +212,125 @@ public class CommitManager {
     }
 
     private long getCommitDelay() {
+        return getLongProperty("disk.commit.delay", 10000);
+    }
+
+    private long getLongProperty(String key, long defaultValue) {
         Properties cfg = GlobalContext.getConfig().getMainProperties();
         try {
-            return Long.parseLong(PropertyHelper.getProperty(cfg, "disk.commit.delay", "10000"));
+            return Long.parseLong(PropertyHelper.getProperty(cfg, key, String.valueOf(defaultValue)).trim());
         } catch (NumberFormatException e) {
         }
-        return 10000;
+        return defaultValue;
     }
 
     private void processAllLoop() {
         while (true) {
             long delay = getCommitDelay();
-            long time = System.currentTimeMillis() - delay;
-            for (Iterator<CommitableWrapper> iter = _commitQueue.iterator(); iter.hasNext(); ) {
-                CommitableWrapper cw = iter.next();
-                if (cw.getTime() < time || _drainQueue) {
-                    if (writeCommitable(cw.getCommitable())) {
-                        iter.remove();
-                        _queueSize.decrementAndGet();
-                    }
+            flush(_drainQueue ? System.currentTimeMillis() : System.currentTimeMillis() - delay,
+                    (int) getLongProperty("disk.commit.batch", 1000), _drainQueue ? 0 : getLongProperty("disk.commit.rate", 0));
+            // changes that are not queued, like deletes and renames in the vfs log
+            sync();
+
+            // sleep until the oldest entry is due, but check the configuration at least every delay
+            long sleep = delay;
+            for (CommitableWrapper cw : _commitQueue) {
+                if (isQueued(cw)) {
+                    sleep = Math.max(1, Math.min(delay, cw.getTime() + delay - System.currentTimeMillis()));
+                    break;
                 }
             }
-
             try {
-                Thread.sleep(delay);
+                Thread.sleep(sleep);
             } catch (InterruptedException e) {
             }
         }
     }
 
+    /**
+     * Writes all entries queued before <code>cutoff</code>, oldest first
+     *
+     * @param batchSize number of writes after which the syncables are forced to disk
+     * @param rate      maximum writes per second, 0 for no limit
+     * @return the number of objects written
+     */
+    int flush(long cutoff, int batchSize, long rate) {
+        int written = 0;
+        int batch = 0;
+        long batchStart = System.currentTimeMillis();
+        List<Commitable> failed = new ArrayList<>();
+        CommitableWrapper cw;
+        while ((cw = _commitQueue.peek()) != null && cw.getTime() < cutoff) {
+            _commitQueue.poll();
+            // claim the entry, it might have been removed or written by flushImmediate since
+            if (!_pending.remove(cw.getKey(), cw)) {
+                continue;
+            }
+            if (writeCommitable(cw.getCommitable())) {
+                written++;
+                _written.incrementAndGet();
+            } else {
+                _failures.incrementAndGet();
+                failed.add(cw.getCommitable());
+            }
+            if (++batch >= batchSize) {
+                endBatch(batch, batchStart, rate);
+                batch = 0;
+                batchStart = System.currentTimeMillis();
+            }
+        }
+        if (batch > 0) {
+            endBatch(batch, batchStart, rate);
+        }
+        // try again once they are due again, not in this pass
+        for (Commitable object : failed) {
+            add(object);
+        }
+        updateWriteRate();
+        return written;
+    }
+
+    private void endBatch(int batch, long batchStart, long rate) {
+        sync();
+        long elapsed = System.currentTimeMillis() - batchStart;
+        logger.debug("Wrote a batch of {} objects in {}ms, {} queued", batch, elapsed, getQueueSize());
+        if (rate > 0 && !_drainQueue) {
+            long minimum = batch * 1000L / rate;
+            if (elapsed < minimum) {
+                try {
+                    Thread.sleep(minimum - elapsed);
+                } catch (InterruptedException e) {
+                    // woken up to drain the queue
+                }
+            }
+        }
+        updateWriteRate();
+    }
+
+    private void sync() {
+        for (Flushable syncable : _syncables) {
+            try {
+                syncable.flush();
+            } catch (IOException e) {
+                logger.error("Error forcing committed objects to disk", e);
+            }
+        }
+    }
+
+    private synchronized void updateWriteRate() {
+        long now = System.currentTimeMillis();
+        if (now - _rateStart >= RATE_INTERVAL) {
+            long written = _written.get();
+            _writeRate = (written - _rateWritten) * 1000.0 / (now - _rateStart);
+            _rateStart = now;
+            _rateWritten = written;
+        }
+    }
+
+    private boolean isQueued(CommitableWrapper cw) {
+        return _pending.get(cw.getKey()) == cw;
+    }
+
     private boolean writeCommitable(Commitable item) {
         try {
             item.writeToDisk();
@@ -203,36 +343,49 @@ public class CommitManager {
         return false;
     }
 
+    /**
+     * Compares the objects by identity, the equals() of inodes compares paths.
+     */
+    private static class CommitableKey {
+        private final Commitable _object;
+
+        private CommitableKey(Commitable object) {
+            _object = object;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof CommitableKey && ((CommitableKey) obj)._object == _object;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(_object);
+        }
+    }
+
     /**
      * Creates a wrapping object for the Commitable object and current time.
      */
     private static class CommitableWrapper {
-        private final Commitable _object;
+        private final CommitableKey _key;
         private final long _time;
 
         private CommitableWrapper(Commitable object) {
-            _object = object;
+            _key = new CommitableKey(object);
             _time = System.currentTimeMillis();
         }
 
         public Commitable getCommitable() {
-            return _object;
+            return _key._object;
         }
 
-        public long getTime() {
-            return _time;
+        public CommitableKey getKey() {
+            return _key;
         }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (obj == this) return true;
-            if (obj == null) return false;
-            return (obj instanceof Commitable) && _object.equals(obj);
-        }
-
-        @Override
-        public int hashCode() {
-            return _object.hashCode();
+        public long getTime() {
+            return _time;
         }
     }
 
@@ -796,7 +796,12 @@ public class DirectoryHandle extends InodeHandle implements DirectoryHandleInter
         try {
             dir = createDirectorySystem(name, placeHolderLastModified);
         } catch (FileNotFoundException e) {
-            getParent().createDirectoryRecursive(getName(), placeHolderLastModified);
+            try {
+                getParent().createDirectoryRecursive(getName(), placeHolderLastModified);
+            } catch (FileExistsException e1) {
+                // created by another thread since this thread did not find it, remerges of sibling
+                // directories run at the same time
+            }
         } catch (FileExistsException e) {
             throw new FileExistsException("Object already exists -- "
                     + getPath() + name);
@@ -1080,4 +1085,16 @@ public class DirectoryHandle extends InodeHandle implements DirectoryHandleInter
     public void recalcSlaveRefCounts() throws FileNotFoundException {
         getInode().recalcSlaveRefCounts();
     }
+
+    /**
+     * @return the list and tree digest the slave sent for this directory during its last digest remerge,
+     * or null if there is none or the files of the slave changed since then
+     */
+    public long[] getSlaveDigest(RemoteSlave rslave) throws FileNotFoundException {
+        return getInode().getSlaveDigest(rslave.getName());
+    }
+
+    public void setSlaveDigest(RemoteSlave rslave, long listDigest, long treeDigest) throws FileNotFoundException {
+        getInode().setSlaveDigest(rslave.getName(), listDigest, treeDigest);
+    }
 }
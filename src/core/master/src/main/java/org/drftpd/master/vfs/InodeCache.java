@@ -0,0 +1,384 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.master.vfs;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.drftpd.master.GlobalContext;
+import org.drftpd.master.sections.SectionInterface;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the inodes loaded below the root and unloads the least recently used ones once the
+ * configured number of inodes or estimated bytes is exceeded.
+ * <p>
+ * Loaded inodes are strongly referenced by their parent directory, the cache decides when that
+ * reference is dropped again. Eviction uses the clock algorithm: a lookup only sets a flag on the
+ * entry, a background thread sweeps the entries in load order and unloads those that were not used
+ * since its last pass. Directories with loaded children, inodes waiting to be written by the
+ * {@link CommitManager} and pinned inodes are never unloaded. Pinned are directories up to
+ * <code>vfs.cache.pin.depth</code> below the root, section directories and inodes modified in the
+ * last <code>vfs.cache.pin.age</code> milliseconds, like races in progress.
+ *
+ * @version $Id$
+ */
+public class InodeCache {
+
+    private static final Logger logger = LogManager.getLogger(InodeCache.class);
+
+    // rough size of an inode without its name, maps and children
+    private static final long INODE_BYTES = 256;
+
+    private static final long ENTRY_BYTES = 64;
+
+    private static final long EVICT_RETRY = 1000L;
+
+    private static final long WARNING_INTERVAL = 600000L;
+
+    private volatile long _maxEntries;
+
+    private volatile long _maxBytes;
+
+    private final int _pinDepth;
+
+    private final long _pinAge;
+
+    // circular list of the loaded inodes in load order, the sentinel marks where the hand starts
+    private final Entry _clock = new Entry(this, null, 0);
+
+    private long _clockSize;
+
+    private long _entries;
+
+    private long _bytes;
+
+    private final AtomicLong _hits = new AtomicLong();
+
+    private final AtomicLong _misses = new AtomicLong();
+
+    private final AtomicLong _evictions = new AtomicLong();
+
+    private Thread _evictor;
+
+    private long _lastWarning;
+
+    /**
+     * @param maxEntries maximum number of loaded inodes, 0 for no limit
+     * @param maxBytes   maximum estimated size of the loaded inodes in bytes, 0 for no limit
+     * @param pinDepth   directories up to this depth below the root are never unloaded
+     * @param pinAge     inodes modified less than this many milliseconds ago are never unloaded
+     */
+    public InodeCache(long maxEntries, long maxBytes, int pinDepth, long pinAge) {
+        _maxEntries = maxEntries;
+        _maxBytes = maxBytes;
+        _pinDepth = pinDepth;
+        _pinAge = pinAge;
+    }
+
+    /**
+     * Changes the limits, inodes above the new limits are unloaded the next time an inode is loaded
+     */
+    void setLimits(long maxEntries, long maxBytes) {
+        _maxEntries = maxEntries;
+        _maxBytes = maxBytes;
+    }
+
+    /**
+     * Registers an inode its parent now references
+     *
+     * @param loaded true if the inode was read from disk, false if it was just created
+     */
+    void add(VirtualFileSystemInode inode, boolean loaded) {
+        if (loaded) {
+            _misses.incrementAndGet();
+        }
+        Entry entry = new Entry(this, inode, estimateSize(inode));
+        boolean full;
+        synchronized (this) {
+            if (inode._cacheEntry != null) {
+                removeEntry(inode._cacheEntry);
+            }
+            inode._cacheEntry = entry;
+            link(entry);
+            _entries++;
+            _bytes += entry._bytes;
+            full = isFull();
+        }
+        if (full) {
+            startEvictor();
+        }
+    }
+
+    /**
+     * Marks an inode as used
+     */
+    void touch(VirtualFileSystemInode inode) {
+        _hits.incrementAndGet();
+        Entry entry = inode._cacheEntry;
+        if (entry != null) {
+            entry._referenced = true;
+        }
+    }
+
+    /**
+     * Forgets an inode its parent no longer references
+     */
+    synchronized void remove(VirtualFileSystemInode inode) {
+        if (inode._cacheEntry != null) {
+            removeEntry(inode._cacheEntry);
+            inode._cacheEntry = null;
+        }
+    }
+
+    private void removeEntry(Entry entry) {
+        if (entry._cache != this) {
+            return;
+        }
+        unlink(entry);
+        _entries--;
+        _bytes -= entry._bytes;
+    }
+
+    // appends the entry behind the last one, the caller holds the monitor
+    private void link(Entry entry) {
+        entry._prev = _clock._prev;
+        entry._next = _clock;
+        _clock._prev._next = entry;
+        _clock._prev = entry;
+        _clockSize++;
+    }
+
+    // an entry is not linked while the evictor looks at it
+    private void unlink(Entry entry) {
+        if (entry._next == null) {
+            return;
+        }
+        entry._prev._next = entry._next;
+        entry._next._prev = entry._prev;
+        entry._prev = null;
+        entry._next = null;
+        _clockSize--;
+    }
+
+    private Entry poll() {
+        Entry entry = _clock._next;
+        if (entry == _clock) {
+            return null;
+        }
+        unlink(entry);
+        return entry;
+    }
+
+    /**
+     * @return the number of entries in the clock, removed inodes are unlinked right away
+     */
+    synchronized long getClockSize() {
+        return _clockSize;
+    }
+
+    private boolean isFull() {
+        return (_maxEntries > 0 && _entries > _maxEntries) || (_maxBytes > 0 && _bytes > _maxBytes);
+    }
+
+    // sweeps down to 95% of the limits so the evictor does not wake up for every load
+    private synchronized boolean isAboveLowWater() {
+        return (_maxEntries > 0 && _entries > _maxEntries - _maxEntries / 20)
+                || (_maxBytes > 0 && _bytes > _maxBytes - _maxBytes / 20);
+    }
+
+    private void startEvictor() {
+        synchronized (this) {
+            if (_evictor == null) {
+                _evictor = new Thread(this::evictLoop, "InodeCacheEvictor");
+                _evictor.setDaemon(true);
+                _evictor.start();
+            }
+            notifyAll();
+        }
+    }
+
+    private void evictLoop() {
+        while (true) {
+            try {
+                synchronized (this) {
+                    while (!isFull()) {
+                        wait();
+                    }
+                }
+                if (evict() == 0) {
+                    // everything left is pinned or in use, do not spin
+                    Thread.sleep(EVICT_RETRY);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Error unloading inodes", e);
+            }
+        }
+    }
+
+    /**
+     * Unloads inodes until the cache is below its limits again or nothing more can be unloaded
+     *
+     * @return the number of unloaded inodes
+     */
+    int evict() {
+        Set<String> sections = getSectionPaths();
+        int evicted = 0;
+        // every entry is looked at at most twice, once to clear its flag and once to unload it
+        long remaining;
+        synchronized (this) {
+            remaining = 2L * _clockSize;
+        }
+        while (remaining-- > 0 && isAboveLowWater()) {
+            Entry entry;
+            synchronized (this) {
+                entry = poll();
+                if (entry == null) {
+                    break;
+                }
+                if (entry._inode._cacheEntry != entry) {
+                    // added to another cache since
+                    continue;
+                }
+                if (entry._referenced) {
+                    entry._referenced = false;
+                    link(entry);
+                    continue;
+                }
+            }
+            VirtualFileSystemInode inode = entry._inode;
+            VirtualFileSystemDirectory parent = inode.getParent();
+            if (parent != null && parent.unloadChild(inode,
+                    child -> !isPinned(child, sections) && !CommitManager.getCommitManager().contains(child))) {
+                synchronized (this) {
+                    if (inode._cacheEntry == entry) {
+                        removeEntry(entry);
+                        inode._cacheEntry = null;
+                    }
+                }
+                evicted++;
+                _evictions.incrementAndGet();
+            } else {
+                synchronized (this) {
+                    if (inode._cacheEntry == entry) {
+                        link(entry);
+                    }
+                }
+            }
+        }
+        if (evicted == 0 && isFull() && System.currentTimeMillis() - _lastWarning > WARNING_INTERVAL) {
+            _lastWarning = System.currentTimeMillis();
+            logger.warn("Unable to unload any inodes, {} inodes ({} bytes) are loaded, raise vfs.cache.entries or vfs.cache.memory",
+                    getEntries(), getBytes());
+        }
+        logger.debug("Unloaded {} inodes, {} inodes ({} bytes) are loaded", evicted, getEntries(), getBytes());
+        return evicted;
+    }
+
+    private boolean isPinned(VirtualFileSystemInode inode, Set<String> sections) {
+        if (System.currentTimeMillis() - inode.getLastModified() < _pinAge) {
+            return true;
+        }
+        if (!inode.isDirectory()) {
+            return false;
+        }
+        int depth = 0;
+        for (VirtualFileSystemDirectory dir = inode.getParent(); dir != null && !(dir instanceof VirtualFileSystemRoot); dir = dir.getParent()) {
+            depth++;
+        }
+        return depth < _pinDepth || sections.contains(inode.getPath());
+    }
+
+    private static Set<String> getSectionPaths() {
+        Set<String> paths = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        try {
+            for (SectionInterface section : GlobalContext.getGlobalContext().getSectionManager().getSections()) {
+                paths.add(section.getBaseDirectory().getPath());
+            }
+        } catch (RuntimeException e) {
+            // no section manager loaded yet
+        }
+        return paths;
+    }
+
+    private static long estimateSize(VirtualFileSystemInode inode) {
+        long bytes = INODE_BYTES + 2L * inode.getName().length()
+                + ENTRY_BYTES * (inode.getKeyedMap().size() + inode.getPluginMap().size() + inode.getUntypedPluginMap().size());
+        if (inode.isFile()) {
+            bytes += ENTRY_BYTES * ((VirtualFileSystemFile) inode).getSlaves().size();
+        } else if (inode.isDirectory()) {
+            VirtualFileSystemDirectory dir = (VirtualFileSystemDirectory) inode;
+            // the names of the children are kept even when they are not loaded
+            bytes += (ENTRY_BYTES + 32) * dir.getChildCount() + ENTRY_BYTES * dir.getSlaveRefCounts().size();
+        } else if (inode.isLink()) {
+            bytes += 2L * ((VirtualFileSystemLink) inode).getLinkPath().length();
+        }
+        return bytes;
+    }
+
+    public synchronized long getEntries() {
+        return _entries;
+    }
+
+    public synchronized long getBytes() {
+        return _bytes;
+    }
+
+    public long getMaxEntries() {
+        return _maxEntries;
+    }
+
+    public long getMaxBytes() {
+        return _maxBytes;
+    }
+
+    public long getHits() {
+        return _hits.get();
+    }
+
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    public long getEvictions() {
+        return _evictions.get();
+    }
+
+    static class Entry {
+        private final InodeCache _cache;
+        private final VirtualFileSystemInode _inode;
+        private final long _bytes;
+        private volatile boolean _referenced;
+        private Entry _prev;
+        private Entry _next;
+
+        private Entry(InodeCache cache, VirtualFileSystemInode inode, long bytes) {
+            _cache = cache;
+            _inode = inode;
+            _bytes = bytes;
+            if (inode == null) {
+                _prev = this;
+                _next = this;
+            }
+        }
+    }
+}
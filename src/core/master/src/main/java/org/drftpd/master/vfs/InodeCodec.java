@@ -0,0 +1,274 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.master.vfs;
+
+import com.cedarsoftware.util.io.JsonReader;
+import com.cedarsoftware.util.io.JsonWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.drftpd.common.dynamicdata.Key;
+import org.drftpd.common.dynamicdata.KeyedMap;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.drftpd.common.network.codec.WireFormat.*;
+
+/**
+ * Binary form of the inodes kept in the {@link VirtualFileSystemLog}.
+ * <p>
+ * The fields of the inodes are written one after the other, values in the dynamic data maps are written
+ * directly when they are numbers, strings or booleans and as json for everything else.
+ *
+ * @version $Id$
+ */
+class InodeCodec {
+    private static final Logger logger = LogManager.getLogger(InodeCodec.class);
+
+    private static final byte ROOT = 'R';
+    private static final byte DIRECTORY = 'D';
+    private static final byte FILE = 'F';
+    private static final byte LINK = 'L';
+
+    private static final byte NULL = 0;
+    private static final byte LONG = 'J';
+    private static final byte INTEGER = 'I';
+    private static final byte STRING = 'S';
+    private static final byte BOOLEAN = 'Z';
+    private static final byte DOUBLE = 'D';
+    private static final byte FLOAT = 'F';
+    private static final byte JSON = 'O';
+
+    private InodeCodec() {
+    }
+
+    static byte[] encode(VirtualFileSystemInode inode) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        write(out, inode);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static void write(DataOutput out, VirtualFileSystemInode inode) throws IOException {
+        if (inode instanceof VirtualFileSystemRoot) {
+            out.writeByte(ROOT);
+        } else if (inode.isDirectory()) {
+            out.writeByte(DIRECTORY);
+        } else if (inode.isFile()) {
+            out.writeByte(FILE);
+        } else {
+            out.writeByte(LINK);
+        }
+        writeString(out, inode.getUsername());
+        writeString(out, inode.getGroup());
+        out.writeLong(inode.getLastModified());
+        out.writeLong(inode.getCreationTime());
+        if (inode.isDirectory()) {
+            VirtualFileSystemDirectory dir = (VirtualFileSystemDirectory) inode;
+            out.writeLong(dir.getSize());
+            out.writeBoolean(dir.getPlaceHolderLastModified());
+            Map<String, AtomicInteger> refCounts = dir.getSlaveRefCounts();
+            writeVarInt(out, refCounts.size());
+            for (Map.Entry<String, AtomicInteger> entry : refCounts.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeInt(entry.getValue().get());
+            }
+            Map<String, long[]> digests = dir.getSlaveDigests();
+            writeVarInt(out, digests.size());
+            for (Map.Entry<String, long[]> entry : digests.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeLong(entry.getValue()[0]);
+                out.writeLong(entry.getValue()[1]);
+            }
+        } else if (inode.isFile()) {
+            VirtualFileSystemFile file = (VirtualFileSystemFile) inode;
+            out.writeLong(file.getSize());
+            Set<String> slaves = file.getSlaves();
+            writeVarInt(out, slaves.size());
+            for (String slave : slaves) {
+                writeString(out, slave);
+            }
+        } else {
+            writeString(out, ((VirtualFileSystemLink) inode).getLinkPath());
+        }
+        writeKeyedMap(out, inode.getKeyedMap());
+        writeKeyedMap(out, inode.getPluginMap());
+        Map<String, Object> untyped;
+        synchronized (inode) {
+            untyped = new TreeMap<>(inode.getUntypedPluginMap());
+        }
+        writeVarInt(out, untyped.size());
+        for (Map.Entry<String, Object> entry : untyped.entrySet()) {
+            writeString(out, entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    /**
+     * Reads an inode without name or parent, the caller sets them and marks the inode as loaded
+     */
+    static VirtualFileSystemInode read(DataInput in) throws IOException {
+        try {
+            byte type = in.readByte();
+            String username = readString(in);
+            String group = readString(in);
+            long lastModified = in.readLong();
+            long creationTime = in.readLong();
+            VirtualFileSystemInode inode;
+            switch (type) {
+                case ROOT:
+                case DIRECTORY: {
+                    VirtualFileSystemDirectory dir = type == ROOT ? new VirtualFileSystemRoot(username, group)
+                            : new VirtualFileSystemDirectory(username, group);
+                    dir.setSize(in.readLong());
+                    dir.setPlaceHolderLastModified(in.readBoolean());
+                    Map<String, AtomicInteger> refCounts = new TreeMap<>();
+                    for (int count = readVarInt(in); count > 0; count--) {
+                        refCounts.put(readString(in), new AtomicInteger(in.readInt()));
+                    }
+                    dir.setSlaveRefCounts(refCounts);
+                    Map<String, long[]> digests = new TreeMap<>();
+                    for (int count = readVarInt(in); count > 0; count--) {
+                        digests.put(readString(in), new long[]{in.readLong(), in.readLong()});
+                    }
+                    dir.setSlaveDigests(digests);
+                    inode = dir;
+                    break;
+                }
+                case FILE: {
+                    long size = in.readLong();
+                    Set<String> slaves = new HashSet<>();
+                    for (int count = readVarInt(in); count > 0; count--) {
+                        slaves.add(readString(in));
+                    }
+                    inode = new VirtualFileSystemFile(username, group, size, slaves);
+                    break;
+                }
+                case LINK:
+                    inode = new VirtualFileSystemLink(username, group, readString(in));
+                    break;
+                default:
+                    throw new StreamCorruptedException("Unknown inode type " + type);
+            }
+            inode._lastModified = lastModified;
+            inode._creationTime = creationTime;
+            inode.setKeyedMap(readKeyedMap(in));
+            inode.setPluginMap(readKeyedMap(in));
+            Map<String, Object> untyped = new TreeMap<>();
+            for (int count = readVarInt(in); count > 0; count--) {
+                untyped.put(readString(in), readValue(in));
+            }
+            inode.setUntypedPluginMap(untyped);
+            return inode;
+        } catch (RuntimeException e) {
+            // a damaged record can make the constructors fail, like a negative size
+            throw (IOException) new StreamCorruptedException("Invalid inode: " + e.getMessage()).initCause(e);
+        }
+    }
+
+    private static void writeKeyedMap(DataOutput out, KeyedMap<Key<?>, Object> map) throws IOException {
+        Map<Key<?>, Object> entries;
+        synchronized (map) {
+            entries = new HashMap<>(map);
+        }
+        writeVarInt(out, entries.size());
+        for (Map.Entry<Key<?>, Object> entry : entries.entrySet()) {
+            writeString(out, entry.getKey().getOwner().getName());
+            writeString(out, entry.getKey().getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    private static KeyedMap<Key<?>, Object> readKeyedMap(DataInput in) throws IOException {
+        KeyedMap<Key<?>, Object> map = new KeyedMap<>();
+        for (int count = readVarInt(in); count > 0; count--) {
+            String owner = readString(in);
+            String key = readString(in);
+            Object value = readValue(in);
+            if (value == null) {
+                continue;
+            }
+            try {
+                map.put(new Key<>(Class.forName(owner), key), value);
+            } catch (ClassNotFoundException e) {
+                logger.warn("Dropping {}@{} as its class is no longer available", owner, key);
+            }
+        }
+        return map;
+    }
+
+    private static void writeValue(DataOutput out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else {
+            out.writeByte(JSON);
+            writeString(out, JsonWriter.objectToJson(value));
+        }
+    }
+
+    private static Object readValue(DataInput in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case NULL:
+                return null;
+            case LONG:
+                return in.readLong();
+            case INTEGER:
+                return in.readInt();
+            case STRING:
+                return readString(in);
+            case BOOLEAN:
+                return in.readBoolean();
+            case DOUBLE:
+                return in.readDouble();
+            case FLOAT:
+                return in.readFloat();
+            case JSON: {
+                String json = readString(in);
+                try {
+                    return JsonReader.jsonToJava(json);
+                } catch (RuntimeException e) {
+                    logger.warn("Dropping metadata that can no longer be read: {}", json, e);
+                    return null;
+                }
+            }
+            default:
+                throw new StreamCorruptedException("Unknown value type " + type);
+        }
+    }
+}
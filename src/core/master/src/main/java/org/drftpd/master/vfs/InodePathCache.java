@@ -0,0 +1,109 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.master.vfs;
+
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which inode a path resolved to, so {@link VirtualFileSystem#getInodeByPath(String)} does not
+ * walk the tree from the root for every handle operation.
+ * <p>
+ * Entries are removed together with everything below them when their inode is removed from, replaced in
+ * or unloaded from its directory, which covers deletes, renames and inodes unloaded by the
+ * {@link InodeCache}. Only paths that are the path of the inode they resolve to are kept, lookups through
+ * links or relative components are always walked.
+ *
+ * @version $Id$
+ */
+public class InodePathCache {
+
+    // paths compare case insensitive like the directories do, sorted so everything below a path can be removed
+    private final ConcurrentSkipListMap<String, VirtualFileSystemInode> _inodes =
+            new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    // incremented before every invalidation, a lookup racing with one does not keep its result
+    private final AtomicLong _sequence = new AtomicLong();
+
+    private final AtomicLong _hits = new AtomicLong();
+
+    private final AtomicLong _misses = new AtomicLong();
+
+    /**
+     * @return the inode <code>path</code> resolved to, null if it is not cached
+     */
+    VirtualFileSystemInode get(String path) {
+        VirtualFileSystemInode inode = _inodes.get(path);
+        if (inode != null) {
+            _hits.incrementAndGet();
+        } else {
+            _misses.incrementAndGet();
+        }
+        return inode;
+    }
+
+    /**
+     * @return the value to pass to {@link #put(String, VirtualFileSystemInode, long)} once the path is resolved
+     */
+    long getSequence() {
+        return _sequence.get();
+    }
+
+    /**
+     * Remembers what <code>path</code> resolved to, unless the tree changed since <code>sequence</code>
+     */
+    void put(String path, VirtualFileSystemInode inode, long sequence) {
+        if (_sequence.get() != sequence || !inode.getPath().equalsIgnoreCase(path)) {
+            return;
+        }
+        _inodes.put(path, inode);
+        if (_sequence.get() != sequence) {
+            // an invalidation might have missed the entry
+            _inodes.remove(path, inode);
+        }
+    }
+
+    /**
+     * Forgets <code>path</code> and all paths below it
+     */
+    void invalidate(String path) {
+        _sequence.incrementAndGet();
+        _inodes.remove(path);
+        _inodes.subMap(path + VirtualFileSystem.separator, path + (char) (VirtualFileSystem.separator.charAt(0) + 1)).clear();
+    }
+
+    /**
+     * Forgets all paths
+     */
+    void clear() {
+        _sequence.incrementAndGet();
+        _inodes.clear();
+    }
+
+    public int getSize() {
+        return _inodes.size();
+    }
+
+    public long getHits() {
+        return _hits.get();
+    }
+
+    public long getMisses() {
+        return _misses.get();
+    }
+}
@@ -23,15 +23,15 @@ import com.cedarsoftware.util.io.JsonWriter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.drftpd.common.io.PermissionDeniedException;
+import org.drftpd.common.util.Bytes;
 import org.drftpd.master.GlobalContext;
+import org.drftpd.master.config.ConfigInterface;
+import org.drftpd.master.exceptions.FatalException;
 import org.drftpd.master.io.SafeFileOutputStream;
 import org.drftpd.master.vfs.event.*;
 
 import java.io.*;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 
 public class VirtualFileSystem {
 
@@ -44,6 +44,10 @@ public class VirtualFileSystem {
     private static final DirInodeFilenameFilter dirFilter = new DirInodeFilenameFilter();
     private static VirtualFileSystem _vfs = null;
     private VirtualFileSystemRoot _root = null;
+    // set when the inodes are kept in a VirtualFileSystemLog instead of the json tree, vfs.store=log
+    private VirtualFileSystemLog _log = null;
+    private final InodeCache _inodeCache;
+    private final InodePathCache _pathCache = new InodePathCache();
 
     /**
      * Create a VirtualFileSystem object, creating or not a new directory tree.
@@ -54,7 +58,29 @@ public class VirtualFileSystem {
      * This constructor is private due to the Singleton architecture.
      */
     private VirtualFileSystem() {
-        new File(fileSystemPath).mkdirs();
+        ConfigInterface config = GlobalContext.getConfig();
+        Properties p = config == null ? new Properties() : config.getMainProperties();
+        _inodeCache = new InodeCache(Long.parseLong(p.getProperty("vfs.cache.entries", "1000000").trim()),
+                Bytes.parseBytes(p.getProperty("vfs.cache.memory", "0").trim()),
+                Integer.parseInt(p.getProperty("vfs.cache.pin.depth", "1").trim()),
+                Long.parseLong(p.getProperty("vfs.cache.pin.age", "600000").trim()));
+        if (p.getProperty("vfs.store", "json").trim().equalsIgnoreCase("log")) {
+            File logDir = new File(VirtualFileSystemLog.logPath);
+            if (!new File(logDir, VirtualFileSystemLog.SNAPSHOT).exists() && !new File(logDir, VirtualFileSystemLog.LOG).exists()
+                    && new File(fileSystemPath, dirName).exists()) {
+                throw new FatalException("vfs.store is set to log but only " + fileSystemPath + " exists, convert it with "
+                        + VirtualFileSystemLogMigration.class.getName() + " first");
+            }
+            try {
+                _log = new VirtualFileSystemLog(logDir, Bytes.parseBytes(p.getProperty("vfs.log.compact.size", "64MiB").trim()));
+            } catch (IOException e) {
+                throw new FatalException("Unable to open the vfs log in " + logDir, e);
+            }
+            // one fsync for every batch of inodes written by the CommitManager
+            CommitManager.getCommitManager().addSyncable(_log::sync);
+        } else {
+            new File(fileSystemPath).mkdirs();
+        }
         try {
             _root = (VirtualFileSystemRoot) loadInode(separator);
         } catch (FileNotFoundException e) {
@@ -123,10 +149,15 @@ public class VirtualFileSystem {
         logger.info("Creating new root filesystem");
         logger.info("If you have already created your filesystem, then stop removing or corrupting your "
                 + dirName + " file!");
-        new File(fileSystemPath).mkdirs();
         _root = new VirtualFileSystemRoot("drftpd", "drftpd");
-        File rootFile = new File(fileSystemPath);
-        _root.setFiles(rootFile.list(dirFilter));
+        _pathCache.clear();
+        if (_log != null) {
+            _root.setFiles(_log.list(separator));
+        } else {
+            new File(fileSystemPath).mkdirs();
+            File rootFile = new File(fileSystemPath);
+            _root.setFiles(rootFile.list(dirFilter));
+        }
         _root.commit();
         _root.inodeLoadCompleted();
         return _root;
@@ -139,6 +170,14 @@ public class VirtualFileSystem {
      * @param path
      */
     protected void deleteInode(String path) {
+        if (_log != null) {
+            try {
+                _log.delete(path);
+            } catch (IOException e) {
+                logger.error("Unable to delete {} from the vfs log", path, e);
+            }
+            return;
+        }
         recursiveDelete(new File(getRealPath(path)));
     }
 
@@ -159,9 +198,15 @@ public class VirtualFileSystem {
         if (path.equals(separator)) {
             return _root;
         }
+        VirtualFileSystemInode inode = _pathCache.get(path);
+        if (inode != null) {
+            _inodeCache.touch(inode);
+            return inode;
+        }
+        long sequence = _pathCache.getSequence();
+        String fullPath = path;
         path = path.substring(1);
         VirtualFileSystemDirectory walker = _root;
-        VirtualFileSystemInode inode = null;
         String[] values = path.split(separator);
         for (int x = 0; x < values.length; x++) {
             inode = walker.getInodeByName(values[x]);
@@ -177,6 +222,7 @@ public class VirtualFileSystem {
             }
         }
         // logger.debug("getInodeByPath(/" + path + ")--returning--" + inode);
+        _pathCache.put(fullPath, inode, sequence);
         return inode;
     }
 
@@ -189,6 +235,20 @@ public class VirtualFileSystem {
         return fileSystemPath + path;
     }
 
+    /**
+     * @return the cache deciding which inodes stay loaded
+     */
+    public InodeCache getInodeCache() {
+        return _inodeCache;
+    }
+
+    /**
+     * @return the cache of resolved paths
+     */
+    public InodePathCache getPathCache() {
+        return _pathCache;
+    }
+
     /**
      * @return the root directory.
      */
@@ -202,6 +262,9 @@ public class VirtualFileSystem {
      */
     protected VirtualFileSystemInode loadInode(String path)
             throws FileNotFoundException {
+        if (_log != null) {
+            return loadLoggedInode(path);
+        }
         String fullPath = fileSystemPath + path;
         logger.debug("Loading inode - {}", fullPath);
         File jsonFile = new File(fullPath);
@@ -260,6 +323,51 @@ public class VirtualFileSystem {
         }
     }
 
+    /**
+     * Same as {@link #loadInode(String)} for inodes kept in the vfs log
+     */
+    private VirtualFileSystemInode loadLoggedInode(String path) throws FileNotFoundException {
+        logger.debug("Loading inode from the vfs log - {}", path);
+        VirtualFileSystemInode inode;
+        try {
+            inode = _log.read(path);
+        } catch (FileNotFoundException e) {
+            if (getLast(path).equals(separator)) {
+                return createRootDirectory();
+            }
+            throw e;
+        } catch (IOException e) {
+            logger.error("Error loading {} from the vfs log", path, e);
+            inode = null;
+        }
+        if (inode != null) {
+            inode.setName(getLast(path));
+            if (inode.isDirectory()) {
+                ((VirtualFileSystemDirectory) inode).setFiles(_log.list(path));
+            }
+            inode.inodeLoadCompleted();
+            return inode;
+        }
+        if (getLast(path).equals(separator)) {
+            return createRootDirectory();
+        }
+        VirtualFileSystemInode parent = getInodeByPath(stripLast(path));
+        if (!parent.isDirectory()) {
+            throw new FileNotFoundException("You're filesystem is really messed up");
+        }
+        VirtualFileSystemDirectory parentInode = (VirtualFileSystemDirectory) parent;
+        String[] children = _log.list(path);
+        if (children.length > 0) {
+            // only known as the parent of other inodes, create it again so they stay reachable
+            VirtualFileSystemDirectory dir = parentInode.createDirectoryRaw(getLast(path), "drftpd", "drftpd");
+            dir.setFiles(children);
+            return dir;
+        }
+        deleteInode(path);
+        parentInode.removeMissingChild(getLast(path));
+        throw new FileNotFoundException();
+    }
+
     /**
      * If 'file' is a directory, it recurses through it and deletes, everything
      * inside it.<br>
@@ -289,6 +397,17 @@ public class VirtualFileSystem {
      */
     protected void renameInode(String source, String destination)
             throws FileNotFoundException, PermissionDeniedException {
+        if (_log != null) {
+            try {
+                _log.rename(source, destination);
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                logger.error("Unable to rename {} to {} in the vfs log", source, destination, e);
+                throw new PermissionDeniedException("Cannot rename " + source + " to " + destination);
+            }
+            return;
+        }
         File file = new File(getRealPath(source));
         if (!file.exists()) {
             throw new FileNotFoundException(source + " cannot be found");
@@ -304,8 +423,14 @@ public class VirtualFileSystem {
      * Write the Inode data to the disk.
      *
      * @param inode
+     * @throws IOException if it could not be written, the {@link CommitManager} queues it again
      */
-    protected void writeInode(VirtualFileSystemInode inode) {
+    protected void writeInode(VirtualFileSystemInode inode) throws IOException {
+        if (_log != null) {
+            _log.write(inode);
+            logger.debug("Wrote {} to the vfs log", inode.getPath());
+            return;
+        }
         String fullPath = getRealPath(inode.getPath());
         if (inode instanceof VirtualFileSystemRoot) {
             new File(fileSystemPath).mkdirs();
@@ -322,8 +447,17 @@ public class VirtualFileSystem {
              JsonWriter writer = new JsonWriter(out, params)) {
             writer.write(inode);
             logger.debug("Wrote fullPath {}", fullPath);
-        } catch (IOException | JsonIoException e) {
-            logger.error("Unable to write {} to disk", fullPath, e);
+        } catch (JsonIoException e) {
+            throw new IOException("Unable to write " + fullPath, e);
+        }
+    }
+
+    /**
+     * Closes the vfs log, called on shutdown once the commit queue is drained
+     */
+    public void close() {
+        if (_log != null) {
+            _log.close();
         }
     }
 
@@ -17,16 +17,18 @@
  */
 package org.drftpd.master.vfs;
 
-import org.drftpd.common.vfs.CaseInsensitiveTreeMap;
 import org.drftpd.slave.exceptions.FileExistsException;
 
 import java.io.FileNotFoundException;
-import java.lang.ref.SoftReference;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.Predicate;
 
 
 /**
@@ -38,11 +40,19 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 
-    protected long _size = 0;
-    private final transient TreeMap<String, SoftReference<VirtualFileSystemInode>> _files =
-            new CaseInsensitiveTreeMap<String, SoftReference<VirtualFileSystemInode>>();
+    private static final AtomicLongFieldUpdater<VirtualFileSystemDirectory> SIZE =
+            AtomicLongFieldUpdater.newUpdater(VirtualFileSystemDirectory.class, "_size");
+
+    protected volatile long _size = 0;
+    // children by name, the reference is empty for children that are not loaded.
+    // Lookups and listings read it without locking, changes are made holding the monitor of the directory
+    private final transient ConcurrentSkipListMap<String, ChildReference> _files =
+            new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+    // number of loaded children, -1 once the InodeCache unloaded this directory
+    private final transient AtomicInteger _loadedFiles = new AtomicInteger();
     private boolean _placeHolderLastModified;
     private Map<String, AtomicInteger> _slaveRefCounts = new TreeMap<>();
+    private Map<String, long[]> _slaveDigests = new TreeMap<>();
 
     public VirtualFileSystemDirectory(String user, String group) {
         super(user, group);
@@ -59,8 +69,13 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
      * @param inode
      */
     protected synchronized void addChild(VirtualFileSystemInode inode, boolean updateLastModified) {
-        _files.put(inode.getName(), new SoftReference<>(
-                inode));
+        ChildReference previous = _files.put(inode.getName(), new ChildReference(inode));
+        if (previous != null && previous._inode != null) {
+            childUnloaded(previous._inode);
+        }
+        if (loadChildSlot()) {
+            getVFS().getInodeCache().add(inode, false);
+        }
         if (updateLastModified &&
                 (getLastModified() < inode.getLastModified() || _placeHolderLastModified)) {
             setLastModified(inode.getLastModified());
@@ -73,15 +88,20 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
         addChildSlaveRefCounts(inode, inode.getSlaveRefCounts());
     }
 
-    protected synchronized void addSize(long l) {
+    protected void addSize(long l) {
         if (l != 0L) {
-            _size = getSize() + l;
+            // no lock is held while the parents are updated
+            long size = addAndGetSize(l);
             getParent().addSize(l);
             commit();
-            getVFS().notifySizeChanged(this, _size);
+            getVFS().notifySizeChanged(this, size);
         }
     }
 
+    protected long addAndGetSize(long l) {
+        return SIZE.addAndGet(this, l);
+    }
+
     /**
      * Create a directory inside the current Directory.
      *
@@ -249,7 +269,7 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
     /**
      * @return a Set containing all inode names inside this directory.
      */
-    public synchronized Set<String> getInodeNames() {
+    public Set<String> getInodeNames() {
         return new HashSet<>(_files.keySet());
     }
 
@@ -260,10 +280,7 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
         HashSet<InodeHandle> set = new HashSet<>();
         String path = getPath() + (getPath().equals("/") ? "" : VirtualFileSystem.separator);
         // not dynamically called for efficiency
-        HashSet<String> inodeKeys = null;
-        synchronized (this) {
-            inodeKeys = new HashSet<>(_files.keySet());
-        }
+        HashSet<String> inodeKeys = new HashSet<>(_files.keySet());
         for (String inodeName : inodeKeys) {
             VirtualFileSystemInode inode = null;
             try {
@@ -305,28 +322,144 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
         if (name.equals(".")) {
             return this;
         }
-        VirtualFileSystemInode inode = null;
+        ChildReference reference = _files.get(name);
+        if (reference == null) {
+            throw new FileNotFoundException("FileNotFound: " + name + " does not exist");
+        }
+        VirtualFileSystemInode inode = reference._inode;
+        if (inode != null) {
+            getVFS().getInodeCache().touch(inode);
+            return inode;
+        }
         synchronized (this) {
-            if (!_files.containsKey(name)) {
+            reference = _files.get(name);
+            if (reference == null) {
                 throw new FileNotFoundException("FileNotFound: " + name + " does not exist");
             }
-            SoftReference<VirtualFileSystemInode> sf = _files.get(name);
-            if (sf != null) {
-                inode = sf.get();
+            inode = reference._inode;
+            if (inode != null) {
+                getVFS().getInodeCache().touch(inode);
+                return inode;
             }
-            if (inode == null) {
+            if (loadChildSlot()) {
                 // The next line is so that we load the file from disk using the casing of the name
                 // stored against the parent directory not the casing passed by the caller
                 name = _files.ceilingKey(name);
-                inode = getVFS().loadInode(
-                        getPath() + VirtualFileSystem.separator + name);
+                try {
+                    inode = getVFS().loadInode(
+                            getPath() + VirtualFileSystem.separator + name);
+                } catch (FileNotFoundException | RuntimeException e) {
+                    releaseChildSlot();
+                    throw e;
+                }
                 inode.setParent(this);
-                // _files.remove(name);
                 // Map instance replaces what is previously there with put()
-                _files.put(name, new SoftReference<>(inode));
+                ChildReference previous = _files.put(name, new ChildReference(inode));
+                if (previous != null && previous._inode != null) {
+                    // loadInode() recreated it through createDirectoryRaw()
+                    releaseChildSlot();
+                }
+                getVFS().getInodeCache().add(inode, true);
+                return inode;
             }
         }
-        return inode;
+        // this directory was unloaded while it was still used, continue with the directory loaded in its place
+        return getVFS().getInodeByPath(getPath() + VirtualFileSystem.separator + name);
+    }
+
+    /**
+     * Counts a child that is about to be loaded
+     *
+     * @return false if this directory was unloaded and should not load children anymore
+     */
+    private boolean loadChildSlot() {
+        while (true) {
+            int loaded = _loadedFiles.get();
+            if (loaded < 0) {
+                return false;
+            }
+            if (_loadedFiles.compareAndSet(loaded, loaded + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void releaseChildSlot() {
+        while (true) {
+            int loaded = _loadedFiles.get();
+            if (loaded <= 0 || _loadedFiles.compareAndSet(loaded, loaded - 1)) {
+                return;
+            }
+        }
+    }
+
+    private void childUnloaded(VirtualFileSystemInode child) {
+        releaseChildSlot();
+        getVFS().getPathCache().invalidate(child.getPath());
+        getVFS().getInodeCache().remove(child);
+    }
+
+    /**
+     * Drops the reference to a loaded child so it is loaded from disk again when it is needed,
+     * called by the {@link InodeCache}
+     *
+     * @param unloadable checked while holding the monitor of this directory, after the child is marked as unloaded
+     * @return false if the child is a directory with loaded children or <code>unloadable</code> refused it,
+     * true if it is not referenced anymore
+     */
+    synchronized boolean unloadChild(VirtualFileSystemInode child, Predicate<VirtualFileSystemInode> unloadable) {
+        ChildReference reference = _files.get(child.getName());
+        if (reference != null && reference._inode == child) {
+            // marked before checking, a commit() checks the mark after queueing the child
+            child._unloaded = true;
+            if (!unloadable.test(child)
+                    || (child.isDirectory() && !((VirtualFileSystemDirectory) child)._loadedFiles.compareAndSet(0, -1))) {
+                child._unloaded = false;
+                return false;
+            }
+            reference._inode = null;
+            releaseChildSlot();
+            getVFS().getPathCache().invalidate(child.getPath());
+        }
+        return true;
+    }
+
+    /**
+     * Puts a child the {@link InodeCache} unloaded back into this directory, loading this directory
+     * again first if it was unloaded too
+     *
+     * @return false if another instance of the child was loaded in the meantime or it was deleted
+     */
+    synchronized boolean reattachChild(VirtualFileSystemInode child) {
+        ChildReference reference = _files.get(child.getName());
+        if (reference == null) {
+            return false;
+        }
+        if (reference._inode == null) {
+            while (!loadChildSlot()) {
+                // this directory was unloaded as well
+                if (getParent() == null || !getParent().reattachChild(this)) {
+                    return false;
+                }
+            }
+            if (child.isDirectory()) {
+                ((VirtualFileSystemDirectory) child)._loadedFiles.compareAndSet(-1, 0);
+            }
+            reference._inode = child;
+            getVFS().getInodeCache().add(child, false);
+        }
+        if (reference._inode != child) {
+            return false;
+        }
+        child._unloaded = false;
+        return true;
+    }
+
+    /**
+     * @return the number of inodes inside this directory, loaded or not
+     */
+    int getChildCount() {
+        return _files.size();
     }
 
     /**
@@ -347,7 +480,10 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
      */
     public synchronized void setFiles(String[] files) {
         for (String file : files) {
-            _files.put(file, null);
+            ChildReference previous = _files.put(file, new ChildReference(null));
+            if (previous != null && previous._inode != null) {
+                childUnloaded(previous._inode);
+            }
         }
     }
 
@@ -381,7 +517,11 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
     }
 
     public synchronized void removeMissingChild(String name) {
-        if (_files.remove(name) != null) {
+        ChildReference reference = _files.remove(name);
+        if (reference != null) {
+            if (reference._inode != null) {
+                childUnloaded(reference._inode);
+            }
             setLastModified(System.currentTimeMillis());
             commit();
         }
@@ -414,6 +554,7 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
     protected void addChildSlaveRefCounts(VirtualFileSystemInode childInode, Map<String, AtomicInteger> childRefCounts) {
         if (!childRefCounts.isEmpty()) {
             for (Map.Entry<String, AtomicInteger> refEntry : childRefCounts.entrySet()) {
+                removeSlaveDigest(refEntry.getKey());
                 AtomicInteger currentCount;
                 synchronized (_slaveRefCounts) {
                     currentCount = _slaveRefCounts.get(refEntry.getKey());
@@ -434,6 +575,7 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
     protected void removeChildSlaveRefCounts(VirtualFileSystemInode childInode, Map<String, AtomicInteger> childRefCounts) {
         if (!childRefCounts.isEmpty()) {
             for (Map.Entry<String, AtomicInteger> refEntry : childRefCounts.entrySet()) {
+                removeSlaveDigest(refEntry.getKey());
                 AtomicInteger currentCount;
                 currentCount = _slaveRefCounts.get(refEntry.getKey());
                 if (currentCount == null) {
@@ -452,6 +594,7 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
     }
 
     protected void incrementSlaveRefCount(String slave) {
+        removeSlaveDigest(slave);
         AtomicInteger currentCount;
         synchronized (_slaveRefCounts) {
             currentCount = _slaveRefCounts.get(slave);
@@ -468,6 +611,7 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
     }
 
     protected void decrementSlaveRefCount(String slave) {
+        removeSlaveDigest(slave);
         AtomicInteger currentCount;
         synchronized (_slaveRefCounts) {
             currentCount = _slaveRefCounts.get(slave);
@@ -525,6 +669,75 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
             _slaveRefCounts.clear();
             _slaveRefCounts.putAll(updCounts);
         }
+        synchronized (this) {
+            if (_slaveDigests != null) {
+                _slaveDigests.clear();
+            }
+        }
+        commit();
+    }
+
+    /**
+     * @return the list and tree digest <code>slave</code> sent for this directory during its last digest remerge,
+     * or null if the files of the slave in this directory or below changed since then
+     */
+    public synchronized long[] getSlaveDigest(String slave) {
+        if (_slaveDigests == null) {
+            return null;
+        }
+        long[] digest = _slaveDigests.get(slave);
+        return digest == null ? null : digest.clone();
+    }
+
+    public void setSlaveDigest(String slave, long listDigest, long treeDigest) {
+        synchronized (this) {
+            if (_slaveDigests == null) {
+                _slaveDigests = new TreeMap<>();
+            }
+            _slaveDigests.put(slave, new long[]{listDigest, treeDigest});
+        }
         commit();
     }
+
+    /**
+     * @return a copy of the digests of all slaves
+     */
+    synchronized Map<String, long[]> getSlaveDigests() {
+        return _slaveDigests == null ? new TreeMap<>() : new TreeMap<>(_slaveDigests);
+    }
+
+    synchronized void setSlaveDigests(Map<String, long[]> slaveDigests) {
+        _slaveDigests = slaveDigests;
+    }
+
+    /**
+     * Forgets the digests of <code>slaves</code> for this directory and its parents
+     */
+    protected void removeSlaveDigests(Collection<String> slaves) {
+        boolean removed = false;
+        for (String slave : slaves) {
+            removed |= removeSlaveDigest(slave);
+        }
+        if (!isRoot()) {
+            getParent().removeSlaveDigests(slaves);
+        }
+        if (removed) {
+            commit();
+        }
+    }
+
+    /**
+     * Forgets the digest of <code>slave</code> for this directory only, the callers walk up the tree themselves
+     */
+    private synchronized boolean removeSlaveDigest(String slave) {
+        return _slaveDigests != null && _slaveDigests.remove(slave) != null;
+    }
+
+    private static class ChildReference {
+        private volatile VirtualFileSystemInode _inode;
+
+        private ChildReference(VirtualFileSystemInode inode) {
+            _inode = inode;
+        }
+    }
 }
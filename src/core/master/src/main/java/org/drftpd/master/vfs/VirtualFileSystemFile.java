@@ -327,6 +327,7 @@ public class VirtualFileSystemFile extends VirtualFileSystemInode implements Sta
             } else {
                 getParent().addSize(size - _size); // adjust parent by difference.
                 _size = size;
+                getParent().removeSlaveDigests(getSlaves());
             }
             if (isInodeLoaded()) {
                 commit();
@@ -49,6 +49,11 @@ public abstract class VirtualFileSystemInode implements Commitable {
     protected long _lastModified;
     protected long _creationTime;
     private transient boolean _inodeLoaded;
+    // set while the parent references this inode, see InodeCache
+    transient volatile InodeCache.Entry _cacheEntry;
+
+    // set by the InodeCache while it drops its parent's reference to it
+    transient volatile boolean _unloaded;
 
     public VirtualFileSystemInode(String user, String group) {
         _username = user;
@@ -80,6 +85,12 @@ public abstract class VirtualFileSystemInode implements Commitable {
     public void commit() {
         //logger.debug("Committing " + getPath());
         CommitManager.getCommitManager().add(this);
+        // checked after queueing, the InodeCache checks the queue after marking it, one of both sees the other
+        if (_unloaded && (_parent == null || !_parent.reattachChild(this))) {
+            CommitManager.getCommitManager().remove(this);
+            throw new IllegalStateException(getPath() + " was unloaded and has been loaded again or deleted since,"
+                    + " changes to it can not be written");
+        }
     }
 
     /**
@@ -0,0 +1,787 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.master.vfs;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.drftpd.common.vfs.CaseInsensitiveTreeMap;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import static org.drftpd.common.network.codec.WireFormat.readString;
+import static org.drftpd.common.network.codec.WireFormat.writeString;
+
+/**
+ * Keeps the inodes of the {@link VirtualFileSystem} in two files instead of one json file per inode.
+ * <p>
+ * Every change is appended to <code>log</code>, <code>snapshot</code> holds all inodes as of the last
+ * compaction. An index of all paths and the position of their latest record is kept in memory, roughly
+ * 100 bytes plus the name per inode, so deleting or renaming a directory is a single record no matter
+ * how much is below it. Once the log is larger than <code>compactSize</code> and half the snapshot the
+ * inodes are copied into a new snapshot and the log starts over, appending waits meanwhile but loading
+ * inodes does not.
+ * <p>
+ * Every record carries its length and CRC32. After a crash the log is read up to the first incomplete or
+ * damaged record and cut there, a log that was already compacted into the snapshot is recognised by its
+ * generation and dropped.
+ *
+ * @version $Id$
+ */
+public class VirtualFileSystemLog {
+    public static final String logPath = "userdata/vfslog";
+
+    static final String SNAPSHOT = "snapshot";
+
+    static final String LOG = "log";
+
+    private static final Logger logger = LogManager.getLogger(VirtualFileSystemLog.class);
+
+    private static final int MAGIC = 0x44524654;
+
+    private static final int VERSION = 1;
+
+    private static final byte SNAPSHOT_SEGMENT = 'S';
+
+    private static final byte LOG_SEGMENT = 'L';
+
+    // magic, segment, version, generation
+    private static final int HEADER_LENGTH = 17;
+
+    // length and CRC32 of the body
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+    private static final byte WRITE = 'W';
+
+    private static final byte DELETE = 'D';
+
+    private static final byte RENAME = 'R';
+
+    private static final byte END = 'E';
+
+    private static final long NO_RECORD = -1L;
+
+    // set on the locations of records in the log, locations without it are in the snapshot
+    private static final long IN_LOG = 1L << 62;
+
+    private final File _dir;
+
+    private final long _compactSize;
+
+    private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+
+    // held while appending and while compacting, so the index does not change while it is copied
+    private final Object _appendLock = new Object();
+
+    private final Node _root = new Node();
+
+    private FileChannel _snapshot;
+
+    private FileChannel _log;
+
+    private long _generation;
+
+    private long _snapshotSize;
+
+    private long _logSize;
+
+    // appended to since the log was last forced to disk
+    private boolean _unsynced;
+
+    private long _nextCompaction;
+
+    private boolean _compacting;
+
+    /**
+     * Opens the store in <code>dir</code>, creating it if needed, and recovers the index
+     *
+     * @param compactSize size in bytes of the log before it is compacted
+     */
+    public VirtualFileSystemLog(File dir, long compactSize) throws IOException {
+        _dir = dir;
+        _compactSize = compactSize;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        Files.deleteIfExists(getFile(SNAPSHOT + ".tmp"));
+        Files.deleteIfExists(getFile(LOG + ".tmp"));
+        long start = System.currentTimeMillis();
+        long inodes = 0;
+        Path snapshot = getFile(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            inodes = readSnapshot(snapshot);
+            _snapshot = FileChannel.open(snapshot, StandardOpenOption.READ);
+            _snapshotSize = _snapshot.size();
+        }
+        Path log = getFile(LOG);
+        long records = Files.exists(log) ? replayLog(log) : -1;
+        if (records < 0) {
+            _log = createLog(_generation);
+        } else {
+            _log = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (_log.size() > _logSize) {
+                _log.truncate(_logSize);
+                _log.force(true);
+            }
+        }
+        logger.info("Loaded {} inodes from the vfs snapshot and {} changes from the vfs log in {}ms",
+                inodes, Math.max(0, records), System.currentTimeMillis() - start);
+        _nextCompaction = Math.max(_compactSize, _snapshotSize / 2);
+        if (_logSize >= _nextCompaction) {
+            try {
+                compact();
+            } catch (IOException e) {
+                logger.error("Error compacting the vfs log", e);
+                _nextCompaction = _logSize + _compactSize;
+            }
+        }
+    }
+
+    /**
+     * @return the inode stored for <code>path</code> without name and parent, null if the path only exists
+     * because inodes below it were stored
+     * @throws FileNotFoundException if nothing is stored for <code>path</code> or below it
+     * @throws IOException           if the record can not be read or is damaged
+     */
+    public VirtualFileSystemInode read(String path) throws IOException {
+        byte[] body;
+        _lock.readLock().lock();
+        try {
+            Node node = find(path);
+            if (node == null) {
+                throw new FileNotFoundException(path + " is not in the vfs log");
+            }
+            if (node._location == NO_RECORD) {
+                return null;
+            }
+            body = readRecord(node._location);
+        } finally {
+            _lock.readLock().unlock();
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        in.readByte();
+        readString(in);
+        return InodeCodec.read(in);
+    }
+
+    /**
+     * @return the names stored below <code>path</code>
+     */
+    public String[] list(String path) {
+        _lock.readLock().lock();
+        try {
+            Node node = find(path);
+            if (node == null || node._children == null) {
+                return new String[0];
+            }
+            return node._children.keySet().toArray(new String[0]);
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    public void write(VirtualFileSystemInode inode) throws IOException {
+        String path = inode.getPath();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(WRITE);
+        writeString(out, path);
+        InodeCodec.write(out, inode);
+        out.flush();
+        append(bytes.toByteArray(), null);
+    }
+
+    /**
+     * Removes <code>path</code> and everything below it
+     */
+    public void delete(String path) throws IOException {
+        if (VirtualFileSystem.separator.equals(path)) {
+            throw new IllegalArgumentException("The root can not be deleted");
+        }
+        append(body(DELETE, path, null), null);
+    }
+
+    /**
+     * Moves <code>source</code> and everything below it to <code>destination</code>, replacing what was there
+     *
+     * @throws FileNotFoundException if nothing is stored for <code>source</code>
+     */
+    public void rename(String source, String destination) throws IOException {
+        if (VirtualFileSystem.separator.equals(source) || VirtualFileSystem.separator.equals(destination)) {
+            throw new IllegalArgumentException("The root can not be renamed");
+        }
+        append(body(RENAME, source, destination), source);
+    }
+
+    /**
+     * Copies all inodes into a new snapshot and starts a new log
+     */
+    public void compact() throws IOException {
+        synchronized (_appendLock) {
+            long start = System.currentTimeMillis();
+            long generation = _generation + 1;
+            Path temp = getFile(SNAPSHOT + ".tmp");
+            SnapshotWriter writer = new SnapshotWriter(temp.toFile(), generation);
+            _lock.readLock().lock();
+            try (writer) {
+                copy(writer, _root, VirtualFileSystem.separator);
+                writer.finish();
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            } finally {
+                _lock.readLock().unlock();
+            }
+            _lock.writeLock().lock();
+            try {
+                Path snapshot = getFile(SNAPSHOT);
+                Files.move(temp, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                // from here on the old log is part of the snapshot and would be dropped on startup
+                FileChannel log = createLog(generation);
+                _log.close();
+                _log = log;
+                if (_snapshot != null) {
+                    _snapshot.close();
+                }
+                _snapshot = FileChannel.open(snapshot, StandardOpenOption.READ);
+                _snapshotSize = _snapshot.size();
+                _generation = generation;
+                _nextCompaction = Math.max(_compactSize, _snapshotSize / 2);
+                relocate(_root, writer.getLocations(), 0);
+            } finally {
+                _lock.writeLock().unlock();
+            }
+            logger.info("Compacted the vfs log into a snapshot of {} inodes and {} bytes in {}ms",
+                    writer.getCount(), _snapshotSize, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Forces the records appended since the last call to disk, the {@link CommitManager} calls this once
+     * for every batch of inodes it writes
+     */
+    public void sync() throws IOException {
+        synchronized (_appendLock) {
+            if (_unsynced) {
+                _log.force(false);
+                _unsynced = false;
+            }
+        }
+    }
+
+    /**
+     * Forces the log to disk and closes the store
+     */
+    public void close() {
+        synchronized (_appendLock) {
+            _lock.writeLock().lock();
+            try {
+                _log.force(true);
+                _unsynced = false;
+                _log.close();
+                if (_snapshot != null) {
+                    _snapshot.close();
+                }
+            } catch (IOException e) {
+                logger.error("Error closing the vfs log", e);
+            } finally {
+                _lock.writeLock().unlock();
+            }
+        }
+    }
+
+    public long getLogSize() {
+        synchronized (_appendLock) {
+            return _logSize;
+        }
+    }
+
+    public long getSnapshotSize() {
+        synchronized (_appendLock) {
+            return _snapshotSize;
+        }
+    }
+
+    private Path getFile(String name) {
+        return new File(_dir, name).toPath();
+    }
+
+    /**
+     * @param existing path that has to be stored for the record to be appended, or null
+     */
+    private void append(byte[] body, String existing) throws IOException {
+        boolean compact;
+        synchronized (_appendLock) {
+            _lock.writeLock().lock();
+            try {
+                if (existing != null && find(existing) == null) {
+                    throw new FileNotFoundException(existing + " cannot be found");
+                }
+                apply(body, appendRecord(body));
+            } finally {
+                _lock.writeLock().unlock();
+            }
+            compact = !_compacting && _logSize >= _nextCompaction;
+            _compacting |= compact;
+        }
+        if (compact) {
+            Thread thread = new Thread(() -> {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    logger.error("Error compacting the vfs log", e);
+                    synchronized (_appendLock) {
+                        _nextCompaction = _logSize + _compactSize;
+                    }
+                } finally {
+                    synchronized (_appendLock) {
+                        _compacting = false;
+                    }
+                }
+            }, "VirtualFileSystemLogCompaction");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private long appendRecord(byte[] body) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_LENGTH + body.length);
+        buffer.putInt(body.length).putInt(crc(body, 0, body.length)).put(body).flip();
+        long position = _logSize;
+        try {
+            while (buffer.hasRemaining()) {
+                _log.write(buffer, position + buffer.position());
+            }
+        } catch (IOException e) {
+            // a partial record would hide every record after it when the log is read
+            try {
+                _log.truncate(position);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        _logSize = position + buffer.limit();
+        _unsynced = true;
+        return position | IN_LOG;
+    }
+
+    /**
+     * Updates the index for a record of the log
+     */
+    private void apply(byte[] body, long location) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte op = in.readByte();
+        String path = readString(in);
+        switch (op) {
+            case WRITE:
+                create(path)._location = location;
+                break;
+            case DELETE:
+                detach(path);
+                break;
+            case RENAME: {
+                String destination = readString(in);
+                Node node = detach(path);
+                if (node != null) {
+                    attach(destination, node);
+                }
+                break;
+            }
+            default:
+                throw new StreamCorruptedException("Unknown record type " + op);
+        }
+    }
+
+    private Node find(String path) {
+        Node node = _root;
+        for (String name : split(path)) {
+            node = node._children == null ? null : node._children.get(name);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    private Node create(String path) {
+        Node node = _root;
+        for (String name : split(path)) {
+            node = node.getOrCreateChild(name);
+        }
+        return node;
+    }
+
+    private Node detach(String path) {
+        String[] names = split(path);
+        Node parent = _root;
+        for (int i = 0; i < names.length - 1 && parent != null; i++) {
+            parent = parent._children == null ? null : parent._children.get(names[i]);
+        }
+        if (parent == null || parent._children == null) {
+            return null;
+        }
+        Node node = parent._children.remove(names[names.length - 1]);
+        if (parent._children.isEmpty()) {
+            parent._children = null;
+        }
+        return node;
+    }
+
+    private void attach(String path, Node node) {
+        String[] names = split(path);
+        Node parent = _root;
+        for (int i = 0; i < names.length - 1; i++) {
+            parent = parent.getOrCreateChild(names[i]);
+        }
+        if (parent._children == null) {
+            parent._children = new CaseInsensitiveTreeMap<String, Node>();
+        }
+        // a different casing of the same name has to go, put() would keep the old key
+        parent._children.remove(names[names.length - 1]);
+        parent._children.put(names[names.length - 1], node);
+    }
+
+    private static String[] split(String path) {
+        return Arrays.stream(path.split(VirtualFileSystem.separator)).filter(name -> !name.isEmpty())
+                .toArray(String[]::new);
+    }
+
+    private static String childPath(String path, String name) {
+        return path.equals(VirtualFileSystem.separator) ? path + name : path + VirtualFileSystem.separator + name;
+    }
+
+    private void copy(SnapshotWriter writer, Node node, String path) throws IOException {
+        byte[] body = null;
+        if (node._location != NO_RECORD) {
+            try {
+                body = readRecord(node._location);
+            } catch (StreamCorruptedException e) {
+                // it could not be loaded either, the directories below it are kept
+                logger.warn("Dropping the damaged record of {} from the vfs log", path, e);
+                writer.skip();
+            }
+        }
+        if (body != null) {
+            ByteArrayInputStream bytes = new ByteArrayInputStream(body);
+            DataInputStream in = new DataInputStream(bytes);
+            in.readByte();
+            readString(in);
+            int offset = body.length - bytes.available();
+            writer.write(path, body, offset, body.length - offset);
+        }
+        if (node._children != null) {
+            for (Map.Entry<String, Node> entry : node._children.entrySet()) {
+                copy(writer, entry.getValue(), childPath(path, entry.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Points the index at the records of a new snapshot, in the order {@link #copy} wrote them
+     */
+    private int relocate(Node node, long[] locations, int index) {
+        if (node._location != NO_RECORD) {
+            node._location = locations[index++];
+        }
+        if (node._children != null) {
+            for (Node child : node._children.values()) {
+                index = relocate(child, locations, index);
+            }
+        }
+        return index;
+    }
+
+    private byte[] readRecord(long location) throws IOException {
+        FileChannel channel = (location & IN_LOG) != 0 ? _log : _snapshot;
+        long position = location & ~IN_LOG;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        readFully(channel, header, position);
+        header.flip();
+        int length = header.getInt();
+        int crc = header.getInt();
+        if (length < 1 || length > MAX_RECORD_LENGTH) {
+            throw new StreamCorruptedException("Invalid record length " + length + " at " + position);
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        readFully(channel, body, position + RECORD_HEADER_LENGTH);
+        if (crc(body.array(), 0, length) != crc) {
+            throw new StreamCorruptedException("Checksum mismatch for the record at " + position);
+        }
+        return body.array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Record at " + position + " is past the end of the file");
+            }
+        }
+    }
+
+    /**
+     * @return the body of the next record, null at the end of the file
+     */
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        int crc = in.readInt();
+        if (length < 1 || length > MAX_RECORD_LENGTH) {
+            throw new StreamCorruptedException("Invalid record length " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        if (crc(body, 0, length) != crc) {
+            throw new StreamCorruptedException("Checksum mismatch");
+        }
+        return body;
+    }
+
+    /**
+     * @return the number of inodes in the snapshot
+     */
+    private long readSnapshot(Path snapshot) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot), 1 << 20))) {
+            _generation = readHeader(in, SNAPSHOT_SEGMENT);
+            long position = HEADER_LENGTH;
+            long count = 0;
+            while (true) {
+                byte[] body = readRecord(in);
+                if (body == null) {
+                    throw new EOFException("The vfs snapshot ends after " + count + " inodes");
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                byte op = record.readByte();
+                if (op == END) {
+                    long expected = record.readLong();
+                    if (expected != count) {
+                        throw new StreamCorruptedException("The vfs snapshot has " + count + " inodes, expected " + expected);
+                    }
+                    return count;
+                }
+                if (op != WRITE) {
+                    throw new StreamCorruptedException("Unexpected record type " + op + " in the vfs snapshot");
+                }
+                create(readString(record))._location = position;
+                position += RECORD_HEADER_LENGTH + body.length;
+                count++;
+            }
+        } catch (IOException e) {
+            throw new IOException("The vfs snapshot " + snapshot + " is damaged, restore it from a backup", e);
+        }
+    }
+
+    /**
+     * @return the number of changes read from the log, -1 if the log was already compacted into the snapshot
+     */
+    private long replayLog(Path log) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(log), 1 << 20))) {
+            long generation = readHeader(in, LOG_SEGMENT);
+            if (generation < _generation) {
+                logger.info("Dropping the vfs log of generation {}, it is part of the snapshot of generation {}",
+                        generation, _generation);
+                return -1;
+            }
+            if (generation > _generation) {
+                throw new IOException("The vfs log " + log + " belongs to a newer snapshot than "
+                        + getFile(SNAPSHOT) + ", restore the snapshot from a backup");
+            }
+            long position = HEADER_LENGTH;
+            long count = 0;
+            try {
+                byte[] body;
+                while ((body = readRecord(in)) != null) {
+                    apply(body, position | IN_LOG);
+                    position += RECORD_HEADER_LENGTH + body.length;
+                    count++;
+                }
+            } catch (IOException e) {
+                // usually the last record was only partly written when the master stopped
+                logger.warn("The vfs log is damaged after {} changes, dropping everything after position {}: {}",
+                        count, position, e.toString());
+            }
+            _logSize = position;
+            return count;
+        }
+    }
+
+    private FileChannel createLog(long generation) throws IOException {
+        Path temp = getFile(LOG + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(file)) {
+            writeHeader(out, LOG_SEGMENT, generation);
+            out.flush();
+            file.getFD().sync();
+        }
+        Path log = getFile(LOG);
+        Files.move(temp, log, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        _logSize = HEADER_LENGTH;
+        return FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static void writeHeader(DataOutput out, byte segment, long generation) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(segment);
+        out.writeInt(VERSION);
+        out.writeLong(generation);
+    }
+
+    /**
+     * @return the generation
+     */
+    private static long readHeader(DataInput in, byte segment) throws IOException {
+        if (in.readInt() != MAGIC || in.readByte() != segment) {
+            throw new StreamCorruptedException("Not a vfs " + (segment == LOG_SEGMENT ? "log" : "snapshot"));
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported vfs log version " + version);
+        }
+        return in.readLong();
+    }
+
+    private static byte[] body(byte op, String path, String destination) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(op);
+        writeString(out, path);
+        if (destination != null) {
+            writeString(out, destination);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static class Node {
+        private long _location = NO_RECORD;
+
+        private TreeMap<String, Node> _children;
+
+        private Node getOrCreateChild(String name) {
+            if (_children == null) {
+                _children = new CaseInsensitiveTreeMap<String, Node>();
+            }
+            return _children.computeIfAbsent(name, k -> new Node());
+        }
+    }
+
+    /**
+     * Writes a snapshot, the inodes have to come parents first
+     */
+    static class SnapshotWriter implements Closeable {
+        private final FileOutputStream _file;
+
+        private final DataOutputStream _out;
+
+        private long _position = HEADER_LENGTH;
+
+        private long[] _locations = new long[1024];
+
+        private int _locationCount;
+
+        private int _count;
+
+        SnapshotWriter(File file, long generation) throws IOException {
+            _file = new FileOutputStream(file);
+            _out = new DataOutputStream(new BufferedOutputStream(_file, 1 << 20));
+            writeHeader(_out, SNAPSHOT_SEGMENT, generation);
+        }
+
+        void write(String path, byte[] inode) throws IOException {
+            write(path, inode, 0, inode.length);
+        }
+
+        private void write(String path, byte[] inode, int offset, int length) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(length + path.length() + 8);
+            DataOutputStream body = new DataOutputStream(bytes);
+            body.writeByte(WRITE);
+            writeString(body, path);
+            body.write(inode, offset, length);
+            body.flush();
+            addLocation(_position);
+            writeRecord(bytes.toByteArray());
+            _count++;
+        }
+
+        /**
+         * Leaves out an inode of the index that could not be read
+         */
+        private void skip() {
+            addLocation(NO_RECORD);
+        }
+
+        private void addLocation(long location) {
+            if (_locationCount == _locations.length) {
+                _locations = Arrays.copyOf(_locations, _locationCount * 2);
+            }
+            _locations[_locationCount++] = location;
+        }
+
+        void finish() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream body = new DataOutputStream(bytes);
+            body.writeByte(END);
+            body.writeLong(_count);
+            body.flush();
+            writeRecord(bytes.toByteArray());
+            _out.flush();
+            _file.getFD().sync();
+        }
+
+        private void writeRecord(byte[] body) throws IOException {
+            _out.writeInt(body.length);
+            _out.writeInt(crc(body, 0, body.length));
+            _out.write(body);
+            _position += RECORD_HEADER_LENGTH + body.length;
+        }
+
+        int getCount() {
+            return _count;
+        }
+
+        long[] getLocations() {
+            return _locations;
+        }
+
+        public void close() throws IOException {
+            _out.close();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.master.vfs;
+
+import com.cedarsoftware.util.io.JsonReader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Converts the json tree in <code>userdata/vfs</code> into a snapshot for the {@link VirtualFileSystemLog}.
+ * <p>
+ * Run it once while the master is stopped, then set <code>vfs.store=log</code> in master.conf:
+ * <pre>java -classpath "lib/*:build/*" org.drftpd.master.vfs.VirtualFileSystemLogMigration [source] [target]</pre>
+ * The json tree is left as it is.
+ *
+ * @version $Id$
+ */
+public class VirtualFileSystemLogMigration {
+
+    private final VirtualFileSystemLog.SnapshotWriter _writer;
+
+    private long _skipped;
+
+    private VirtualFileSystemLogMigration(VirtualFileSystemLog.SnapshotWriter writer) {
+        _writer = writer;
+    }
+
+    public static void main(String[] args) throws IOException {
+        File source = new File(args.length > 0 ? args[0] : VirtualFileSystem.fileSystemPath);
+        File target = new File(args.length > 1 ? args[1] : VirtualFileSystemLog.logPath);
+        if (!new File(source, VirtualFileSystem.dirName).exists()) {
+            System.out.println("ERROR: " + source + " does not contain a vfs");
+            System.exit(1);
+        }
+        if (new File(target, VirtualFileSystemLog.SNAPSHOT).exists() || new File(target, VirtualFileSystemLog.LOG).exists()) {
+            System.out.println("ERROR: " + target + " already contains a vfs log, remove it to convert again");
+            System.exit(1);
+        }
+        if (!target.isDirectory() && !target.mkdirs()) {
+            System.out.println("ERROR: unable to create " + target);
+            System.exit(1);
+        }
+        long start = System.currentTimeMillis();
+        File temp = new File(target, VirtualFileSystemLog.SNAPSHOT + ".tmp");
+        VirtualFileSystemLogMigration migration;
+        try (VirtualFileSystemLog.SnapshotWriter writer = new VirtualFileSystemLog.SnapshotWriter(temp, 1)) {
+            migration = new VirtualFileSystemLogMigration(writer);
+            migration.migrate(source, VirtualFileSystem.separator);
+            writer.finish();
+        }
+        Files.move(temp.toPath(), new File(target, VirtualFileSystemLog.SNAPSHOT).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Converted " + migration._writer.getCount() + " inodes from " + source + " to " + target
+                + " in " + (System.currentTimeMillis() - start) + "ms, skipped " + migration._skipped + " unreadable files");
+    }
+
+    /**
+     * Converts a directory and everything below it, parents before their children
+     */
+    private void migrate(File dir, String path) throws IOException {
+        File properties = new File(dir, VirtualFileSystem.dirName);
+        if (properties.exists()) {
+            convert(properties, path);
+        }
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            if (name.equals(VirtualFileSystem.dirName)) {
+                continue;
+            }
+            File file = new File(dir, name);
+            String childPath = path.equals(VirtualFileSystem.separator) ? path + name : path + VirtualFileSystem.separator + name;
+            if (file.isDirectory()) {
+                migrate(file, childPath);
+            } else {
+                convert(file, childPath);
+            }
+        }
+    }
+
+    private void convert(File file, String path) throws IOException {
+        byte[] inode;
+        try (InputStream in = new FileInputStream(file);
+             JsonReader reader = new JsonReader(in)) {
+            inode = InodeCodec.encode((VirtualFileSystemInode) reader.readObject());
+        } catch (Exception e) {
+            // the master would have deleted it when loading it
+            System.out.println("WARNING: skipping " + file + ": " + e.getMessage());
+            _skipped++;
+            return;
+        }
+        _writer.write(path, inode);
+    }
+}
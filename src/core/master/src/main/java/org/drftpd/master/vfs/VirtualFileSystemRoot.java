@@ -54,9 +54,9 @@ public class VirtualFileSystemRoot extends VirtualFileSystemDirectory {
     @Override
     protected void addSize(long l) {
         if (l != 0L) {
-            _size = getSize() + l;
+            long size = addAndGetSize(l);
             commit();
-            getVFS().notifySizeChanged(this, _size);
+            getVFS().notifySizeChanged(this, size);
         }
     }
 
@@ -0,0 +1,50 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.master.slavemanagement;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+/**
+ * @version $Id$
+ */
+public class CommandStatsTest {
+
+    @Test
+    public void testPercentiles() {
+        CommandStats stats = new CommandStats();
+        for (int i = 0; i < 90; i++) {
+            stats.record("checksum", 3);
+        }
+        for (int i = 0; i < 10; i++) {
+            stats.record("checksum", 1000);
+        }
+        stats.record("ping", 0);
+
+        CommandStats.Histogram rtt = stats.getHistograms().get("checksum");
+        assertEquals(100, rtt.getCount());
+        assertEquals(102, rtt.getAverage());
+        assertEquals(3, rtt.getPercentile(50));
+        assertEquals(3, rtt.getPercentile(90));
+        assertEquals(1000, rtt.getPercentile(99));
+        assertEquals(1000, rtt.getMax());
+        assertEquals(0, stats.getHistograms().get("ping").getPercentile(99));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.master.slavemanagement;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * @version $Id$
+ */
+public class CommandWindowTest {
+
+    @AfterEach
+    public void resetPriority() {
+        CommandWindow.setPriority(CommandWindow.Priority.BACKGROUND);
+    }
+
+    @Test
+    public void testBackgroundLimit() throws InterruptedException {
+        CommandWindow window = new CommandWindow(4, 2);
+        assertNotNull(window.acquire(0, TimeUnit.MILLISECONDS));
+        assertNotNull(window.acquire(0, TimeUnit.MILLISECONDS));
+        assertNull(window.acquire(10, TimeUnit.MILLISECONDS));
+
+        CommandWindow.setPriority(CommandWindow.Priority.INTERACTIVE);
+        String index = window.acquire(0, TimeUnit.MILLISECONDS);
+        assertNotNull(window.acquire(0, TimeUnit.MILLISECONDS));
+        assertNull(window.acquire(10, TimeUnit.MILLISECONDS));
+        assertEquals(4, window.getInFlight());
+        assertEquals(2, window.getBackgroundInFlight());
+
+        window.release(index);
+        // releasing twice or an unknown index changes nothing
+        window.release(index);
+        window.release("zz");
+        assertEquals(3, window.getInFlight());
+    }
+
+    @Test
+    public void testBackgroundNotStarved() throws Exception {
+        CommandWindow window = new CommandWindow(1, 1);
+        CommandWindow.setPriority(CommandWindow.Priority.INTERACTIVE);
+        String index = window.acquire(0, TimeUnit.MILLISECONDS);
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Future<String> background = executor.submit(() -> window.acquire(5, TimeUnit.SECONDS));
+            waitFor(window, CommandWindow.Priority.BACKGROUND);
+            // interactive commands keep the window busy, after a burst of them the background command goes
+            for (int i = 0; i < CommandWindow.INTERACTIVE_BURST - 1; i++) {
+                Future<String> interactive = acquireInteractive(executor, window);
+                window.release(index);
+                index = interactive.get(5, TimeUnit.SECONDS);
+                assertNotNull(index);
+                assertFalse(background.isDone());
+            }
+            Future<String> interactive = acquireInteractive(executor, window);
+            window.release(index);
+            assertNotNull(background.get(5, TimeUnit.SECONDS));
+            assertEquals(1, window.getBackgroundInFlight());
+            assertFalse(interactive.isDone());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Future<String> acquireInteractive(ExecutorService executor, CommandWindow window)
+            throws InterruptedException {
+        Future<String> future = executor.submit(() -> {
+            CommandWindow.setPriority(CommandWindow.Priority.INTERACTIVE);
+            return window.acquire(5, TimeUnit.SECONDS);
+        });
+        waitFor(window, CommandWindow.Priority.INTERACTIVE);
+        return future;
+    }
+
+    private static void waitFor(CommandWindow window, CommandWindow.Priority priority) throws InterruptedException {
+        while (window.getWaiting(priority) == 0) {
+            Thread.sleep(1);
+        }
+    }
+}
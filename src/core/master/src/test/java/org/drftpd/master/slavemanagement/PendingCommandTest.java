@@ -0,0 +1,68 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.master.slavemanagement;
+
+import org.drftpd.common.network.AsyncResponse;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * @version $Id$
+ */
+public class PendingCommandTest {
+
+    @Test
+    public void testIndexReleasedByBoth() throws InterruptedException {
+        CommandWindow window = new CommandWindow(1, 1);
+        ConcurrentHashMap<String, PendingCommand> pending = new ConcurrentHashMap<>();
+        String index = window.acquire(0, TimeUnit.MILLISECONDS);
+        PendingCommand command = new PendingCommand(index, window, pending);
+        pending.put(index, command);
+
+        assertTrue(command.claim());
+        assertFalse(command.claim());
+
+        // caller gave up, the index stays in use until the late response arrives
+        command.release();
+        assertEquals(1, window.getInFlight());
+        assertSame(command, pending.get(index));
+
+        command.getFuture().complete(new AsyncResponse(index));
+        command.release();
+        assertEquals(0, window.getInFlight());
+        assertNull(pending.get(index));
+    }
+
+    @Test
+    public void testReusedIndexNotRemoved() {
+        CommandWindow window = new CommandWindow(1, 1);
+        ConcurrentHashMap<String, PendingCommand> pending = new ConcurrentHashMap<>();
+        PendingCommand first = new PendingCommand("0b", window, pending);
+        PendingCommand second = new PendingCommand("0b", window, pending);
+        pending.put("0b", second);
+
+        first.release();
+        first.release();
+        assertSame(second, pending.get("0b"));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.master.slavemanagement;
+
+import org.drftpd.slave.network.AsyncResponseRemerge;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * @version $Id$
+ */
+public class RemergeApplierTest {
+
+    private ExecutorService _executor;
+
+    @BeforeEach
+    public void setUp() {
+        _executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        _executor.shutdownNow();
+    }
+
+    private static RemergeMessage message(String path) {
+        return new RemergeMessage(new AsyncResponseRemerge(path, new ArrayList<>(), 0L), null);
+    }
+
+    @Test
+    public void testParentAfterChildren() throws Exception {
+        List<String> applied = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch siblings = new CountDownLatch(2);
+        RemergeApplier applier = new RemergeApplier("test", _executor, 16, message -> {
+            if (message.getDirectory().startsWith("/a/")) {
+                // both siblings have to run at the same time to get past this
+                siblings.countDown();
+                try {
+                    assertTrue(siblings.await(5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            applied.add(message.getDirectory());
+        });
+        applier.submit(message("/a/b"));
+        applier.submit(message("/a/c"));
+        applier.submit(message("/a"));
+        applier.submit(message("/"));
+        applier.await();
+
+        assertEquals(0, siblings.getCount());
+        assertEquals(4, applied.size());
+        assertEquals("/a", applied.get(2));
+        assertEquals("/", applied.get(3));
+        assertEquals(0, applier.getOutstanding());
+    }
+
+    @Test
+    public void testSameDirectoryInOrder() throws Exception {
+        List<String> applied = Collections.synchronizedList(new ArrayList<>());
+        RemergeApplier applier = new RemergeApplier("test", _executor, 16, message -> {
+            applied.add(message.getDirectory() + ":" + message.getLastModified());
+        });
+        for (int i = 0; i < 10; i++) {
+            applier.submit(new RemergeMessage(new AsyncResponseRemerge("/dir", new ArrayList<>(), i), null));
+        }
+        applier.await();
+        for (int i = 0; i < 10; i++) {
+            assertEquals("/dir:" + i, applied.get(i));
+        }
+    }
+
+    @Test
+    public void testClearReleasesAwait() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RemergeApplier applier = new RemergeApplier("test", _executor, 16, message -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        applier.submit(message("/a"));
+        applier.submit(message("/"));
+        assertEquals(2, applier.getOutstanding());
+
+        Thread clear = new Thread(applier::clear);
+        clear.start();
+        applier.await();
+        clear.join();
+        assertEquals(0, applier.getOutstanding());
+        release.countDown();
+    }
+}
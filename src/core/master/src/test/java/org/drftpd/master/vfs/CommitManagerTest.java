@@ -0,0 +1,186 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.master.vfs;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CommitManagerTest {
+
+    private final CommitManager manager = new CommitManager();
+
+    private final List<String> written = new ArrayList<>();
+
+    private class TestCommitable implements Commitable {
+        private final String _name;
+        private boolean _fail;
+
+        private TestCommitable(String name) {
+            _name = name;
+        }
+
+        public void commit() {
+            manager.add(this);
+        }
+
+        public void writeToDisk() throws IOException {
+            if (_fail) {
+                throw new IOException("disk full");
+            }
+            written.add(_name);
+        }
+
+        public String descriptiveName() {
+            return _name;
+        }
+    }
+
+    private static long later() {
+        return System.currentTimeMillis() + 1000;
+    }
+
+    @Test
+    public void testAddIsDeduplicated() {
+        TestCommitable a = new TestCommitable("a");
+        TestCommitable b = new TestCommitable("b");
+        a.commit();
+        b.commit();
+        a.commit();
+        assertEquals(2, manager.getQueueSize());
+        assertTrue(manager.contains(a));
+
+        assertEquals(2, manager.flush(later(), 100, 0));
+        assertEquals(List.of("a", "b"), written);
+        assertEquals(0, manager.getQueueSize());
+        assertFalse(manager.contains(a));
+        assertEquals(2, manager.getWritten());
+    }
+
+    @Test
+    public void testRemoveAndFlushImmediate() {
+        TestCommitable a = new TestCommitable("a");
+        TestCommitable b = new TestCommitable("b");
+        TestCommitable c = new TestCommitable("c");
+        a.commit();
+        b.commit();
+        c.commit();
+        assertTrue(manager.remove(b));
+        assertFalse(manager.remove(b));
+        manager.flushImmediate(c);
+        assertEquals(List.of("c"), written);
+
+        // b was removed and c already written, neither may be written again
+        manager.flush(later(), 100, 0);
+        assertEquals(List.of("c", "a"), written);
+
+        // readding after removal queues it again
+        b.commit();
+        manager.flush(later(), 100, 0);
+        assertEquals(List.of("c", "a", "b"), written);
+    }
+
+    @Test
+    public void testOnlyDueEntriesAreWritten() throws InterruptedException {
+        TestCommitable a = new TestCommitable("a");
+        a.commit();
+        Thread.sleep(5);
+        long cutoff = System.currentTimeMillis();
+        Thread.sleep(5);
+        new TestCommitable("b").commit();
+
+        assertEquals(1, manager.flush(cutoff, 100, 0));
+        assertEquals(List.of("a"), written);
+        assertEquals(1, manager.getQueueSize());
+        assertTrue(manager.getOldestAge() >= 0);
+    }
+
+    @Test
+    public void testOneSyncPerBatch() {
+        List<Integer> syncs = new ArrayList<>();
+        manager.addSyncable(() -> syncs.add(written.size()));
+        for (int i = 0; i < 10; i++) {
+            new TestCommitable("f" + i).commit();
+        }
+        assertEquals(10, manager.flush(later(), 4, 0));
+        assertEquals(List.of(4, 8, 10), syncs);
+    }
+
+    @Test
+    public void testFailedWritesAreRetried() {
+        TestCommitable a = new TestCommitable("a");
+        a._fail = true;
+        a.commit();
+        assertEquals(0, manager.flush(later(), 100, 0));
+        assertEquals(1, manager.getFailures());
+        assertTrue(manager.contains(a));
+
+        a._fail = false;
+        assertEquals(1, manager.flush(later(), 100, 0));
+        assertEquals(List.of("a"), written);
+        assertEquals(1, manager.getFailures());
+        assertEquals(0, manager.getQueueSize());
+    }
+
+    @Test
+    public void testFailedInodeWritesAreRetried() throws Exception {
+        VirtualFileSystem vfs = VirtualFileSystem.getVirtualFileSystem();
+        vfs.getRoot().createDirectory("CommitFailTest", "drftpd", "drftpd");
+        VirtualFileSystemInode dir = vfs.getRoot().getInodeByName("CommitFailTest");
+        CommitManager.getCommitManager().flush(Long.MAX_VALUE, 1000, 0);
+        // a file where the directory should be stored makes the write fail
+        File store = new File(VirtualFileSystem.fileSystemPath, "CommitFailTest");
+        FileUtils.deleteDirectory(store);
+        assertTrue(store.createNewFile());
+        try {
+            manager.add(dir);
+            assertEquals(0, manager.flush(later(), 100, 0));
+            assertEquals(1, manager.getFailures());
+            assertEquals(0, manager.getWritten());
+            assertTrue(manager.contains(dir));
+
+            assertTrue(store.delete());
+            assertEquals(1, manager.flush(later(), 100, 0));
+            assertFalse(manager.contains(dir));
+            assertTrue(new File(store, VirtualFileSystem.dirName).isFile());
+        } finally {
+            store.delete();
+            dir.delete();
+            CommitManager.getCommitManager().flush(Long.MAX_VALUE, 1000, 0);
+            FileUtils.deleteDirectory(new File("userdata"));
+        }
+    }
+
+    @Test
+    public void testRateLimit() {
+        for (int i = 0; i < 20; i++) {
+            new TestCommitable("f" + i).commit();
+        }
+        long start = System.currentTimeMillis();
+        // 20 writes at 100 per second take at least 150ms after the first batch of 5
+        manager.flush(later(), 5, 100);
+        assertTrue(System.currentTimeMillis() - start >= 150);
+        assertEquals(20, written.size());
+    }
+}
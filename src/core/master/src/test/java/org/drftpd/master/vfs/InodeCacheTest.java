@@ -0,0 +1,182 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.master.vfs;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InodeCacheTest {
+
+    private static VirtualFileSystemDirectory dir;
+
+    @BeforeAll
+    static void setUp() throws Exception {
+        VirtualFileSystem vfs = VirtualFileSystem.getVirtualFileSystem();
+        vfs.getRoot().createDirectory("CacheTest", "drftpd", "drftpd");
+        dir = (VirtualFileSystemDirectory) vfs.getRoot().getInodeByName("CacheTest");
+        for (String name : new String[]{"a", "b", "c"}) {
+            dir.createFile(name, "drftpd", "drftpd", "slave1");
+        }
+        dir.createDirectory("sub", "drftpd", "drftpd");
+        ((VirtualFileSystemDirectory) dir.getInodeByName("sub")).createFile("file", "drftpd", "drftpd", "slave1");
+        // only inodes that are written to disk can be unloaded
+        CommitManager.getCommitManager().flush(Long.MAX_VALUE, 1000, 0);
+    }
+
+    @AfterAll
+    static void tearDown() throws Exception {
+        dir.delete();
+        CommitManager.getCommitManager().flush(Long.MAX_VALUE, 1000, 0);
+        FileUtils.deleteDirectory(new File("userdata"));
+    }
+
+    private static VirtualFileSystemInode inode(String path) throws Exception {
+        return VirtualFileSystem.getVirtualFileSystem().getInodeByPath(path);
+    }
+
+    private static InodeCache cache(long maxEntries, long pinAge, String... paths) throws Exception {
+        InodeCache cache = new InodeCache(0, 0, 0, pinAge);
+        for (String path : paths) {
+            VirtualFileSystemInode inode = inode(path);
+            inode.setLastModified(0);
+            cache.add(inode, true);
+        }
+        CommitManager.getCommitManager().flush(Long.MAX_VALUE, 1000, 0);
+        // not before, it would start unloading in the background
+        cache.setLimits(maxEntries, 0);
+        return cache;
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsUnloaded() throws Exception {
+        VirtualFileSystemInode a = inode("/CacheTest/a");
+        VirtualFileSystemInode b = inode("/CacheTest/b");
+        VirtualFileSystemInode c = inode("/CacheTest/c");
+        InodeCache cache = cache(2, 0, "/CacheTest/a", "/CacheTest/b", "/CacheTest/c");
+        assertEquals(3, cache.getEntries());
+        assertEquals(3, cache.getMisses());
+        assertTrue(cache.getBytes() > 0);
+
+        cache.touch(a);
+        assertEquals(1, cache.evict());
+        assertEquals(2, cache.getEntries());
+        assertEquals(1, cache.getEvictions());
+        assertSame(a, inode("/CacheTest/a"));
+        assertSame(c, inode("/CacheTest/c"));
+
+        // b is loaded from disk again
+        VirtualFileSystemInode reloaded = inode("/CacheTest/b");
+        assertNotSame(b, reloaded);
+        assertEquals(b.getPath(), reloaded.getPath());
+        assertEquals("slave1", ((VirtualFileSystemFile) reloaded).getSlaves().iterator().next());
+    }
+
+    @Test
+    public void testDirectoryWithLoadedChildrenStaysLoaded() throws Exception {
+        VirtualFileSystemDirectory sub = (VirtualFileSystemDirectory) inode("/CacheTest/sub");
+        VirtualFileSystemInode file = inode("/CacheTest/sub/file");
+        InodeCache cache = cache(1, 0, "/CacheTest/sub", "/CacheTest/sub/file");
+
+        // the directory comes first but can only be unloaded once its file is
+        assertEquals(1, cache.evict());
+        assertSame(sub, inode("/CacheTest/sub"));
+        assertNotSame(file, inode("/CacheTest/sub/file"));
+    }
+
+    @Test
+    public void testUnloadedDirectoryForwardsLookups() throws Exception {
+        VirtualFileSystemDirectory sub = (VirtualFileSystemDirectory) inode("/CacheTest/sub");
+        InodeCache cache = cache(1, 0, "/CacheTest/sub/file", "/CacheTest/sub", "/CacheTest/a");
+        assertEquals(2, cache.evict());
+        VirtualFileSystemDirectory reloaded = (VirtualFileSystemDirectory) inode("/CacheTest/sub");
+        assertNotSame(sub, reloaded);
+
+        // a lookup on the stale directory must not load children into it
+        VirtualFileSystemInode file = sub.getInodeByName("file");
+        assertSame(reloaded, file.getParent());
+        assertSame(file, reloaded.getInodeByName("file"));
+    }
+
+    @Test
+    public void testCommitAfterUnloadReattaches() throws Exception {
+        VirtualFileSystemDirectory sub = (VirtualFileSystemDirectory) inode("/CacheTest/sub");
+        VirtualFileSystemInode file = inode("/CacheTest/sub/file");
+        InodeCache cache = cache(0, 0, "/CacheTest/sub/file", "/CacheTest/sub", "/CacheTest/a");
+        cache.setLimits(1, 0);
+        assertEquals(2, cache.evict());
+
+        // still held by someone and changed, it is put back instead of being loaded from disk
+        file.setLastModified(1000);
+        assertSame(file, inode("/CacheTest/sub/file"));
+        assertSame(sub, inode("/CacheTest/sub"));
+        CommitManager.getCommitManager().flush(Long.MAX_VALUE, 1000, 0);
+
+        // once another instance is loaded the unloaded one can not be changed anymore
+        VirtualFileSystemInode b = inode("/CacheTest/b");
+        cache = cache(1, 0, "/CacheTest/b", "/CacheTest/c");
+        assertEquals(1, cache.evict());
+        assertNotSame(b, inode("/CacheTest/b"));
+        assertThrows(IllegalStateException.class, () -> b.setLastModified(2000));
+        assertFalse(CommitManager.getCommitManager().contains(b));
+    }
+
+    @Test
+    public void testPinnedInodesStayLoaded() throws Exception {
+        VirtualFileSystemInode c = inode("/CacheTest/c");
+        InodeCache cache = cache(1, 60000, "/CacheTest/c", "/CacheTest/b");
+        c.setLastModified(System.currentTimeMillis());
+        CommitManager.getCommitManager().flush(Long.MAX_VALUE, 1000, 0);
+
+        // c was just modified, b is unloaded instead
+        assertEquals(1, cache.evict());
+        assertSame(c, inode("/CacheTest/c"));
+        assertEquals(1, cache.getEntries());
+    }
+
+    @Test
+    public void testRemovedInodesLeaveTheClock() throws Exception {
+        InodeCache cache = VirtualFileSystem.getVirtualFileSystem().getInodeCache();
+        dir.createDirectory("churn", "drftpd", "drftpd");
+        VirtualFileSystemDirectory churn = (VirtualFileSystemDirectory) dir.getInodeByName("churn");
+        long clockSize = cache.getClockSize();
+        for (int i = 0; i < 100; i++) {
+            churn.createFile("file" + i, "drftpd", "drftpd", "slave1");
+            churn.getInodeByName("file" + i).delete();
+        }
+        // far below the limit, so nothing was evicted, deleted inodes must not pile up anyway
+        assertEquals(clockSize, cache.getClockSize());
+
+        VirtualFileSystemInode a = inode("/CacheTest/a");
+        InodeCache own = new InodeCache(0, 0, 0, 0);
+        for (int i = 0; i < 100; i++) {
+            own.add(a, true);
+        }
+        assertEquals(1, own.getClockSize());
+        own.remove(a);
+        assertEquals(0, own.getClockSize());
+        assertEquals(0, own.getEntries());
+        churn.delete();
+        CommitManager.getCommitManager().flush(Long.MAX_VALUE, 1000, 0);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.master.vfs;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InodePathCacheTest {
+
+    private static VirtualFileSystem vfs;
+
+    private static VirtualFileSystemDirectory dir;
+
+    @BeforeAll
+    static void setUp() throws Exception {
+        vfs = VirtualFileSystem.getVirtualFileSystem();
+        vfs.getRoot().createDirectory("PathTest", "drftpd", "drftpd");
+        dir = (VirtualFileSystemDirectory) vfs.getRoot().getInodeByName("PathTest");
+        dir.createDirectory("Release", "drftpd", "drftpd");
+        ((VirtualFileSystemDirectory) dir.getInodeByName("Release")).createFile("file", "drftpd", "drftpd", "slave1");
+        dir.createLink("link", "/PathTest/Release", "drftpd", "drftpd");
+        CommitManager.getCommitManager().flush(Long.MAX_VALUE, 1000, 0);
+    }
+
+    @AfterAll
+    static void tearDown() throws Exception {
+        dir.delete();
+        CommitManager.getCommitManager().flush(Long.MAX_VALUE, 1000, 0);
+        FileUtils.deleteDirectory(new File("userdata"));
+    }
+
+    @Test
+    public void testLookupsAreCached() throws Exception {
+        InodePathCache cache = vfs.getPathCache();
+        VirtualFileSystemInode file = vfs.getInodeByPath("/PathTest/Release/file");
+        long hits = cache.getHits();
+        assertSame(file, vfs.getInodeByPath("/PathTest/Release/file"));
+        assertSame(file, vfs.getInodeByPath("/pathtest/release/FILE"));
+        assertEquals(hits + 2, cache.getHits());
+    }
+
+    @Test
+    public void testLinksAreNotCached() throws Exception {
+        VirtualFileSystemInode file = vfs.getInodeByPath("/PathTest/Release/file");
+        assertSame(file, vfs.getInodeByPath("/PathTest/link/file"));
+        assertNull(vfs.getPathCache().get("/PathTest/link/file"));
+        assertTrue(vfs.getInodeByPath("/PathTest/link").isLink());
+    }
+
+    @Test
+    public void testRenameAndDeleteInvalidate() throws Exception {
+        dir.createDirectory("Moved", "drftpd", "drftpd");
+        VirtualFileSystemDirectory moved = (VirtualFileSystemDirectory) vfs.getInodeByPath("/PathTest/Moved");
+        moved.createFile("file", "drftpd", "drftpd", "slave1");
+        VirtualFileSystemInode file = vfs.getInodeByPath("/PathTest/Moved/file");
+
+        moved.rename("/PathTest/Renamed");
+        assertThrows(FileNotFoundException.class, () -> vfs.getInodeByPath("/PathTest/Moved/file"));
+        assertThrows(FileNotFoundException.class, () -> vfs.getInodeByPath("/PathTest/Moved"));
+        assertSame(file, vfs.getInodeByPath("/PathTest/Renamed/file"));
+
+        vfs.getInodeByPath("/PathTest/Renamed").delete();
+        assertThrows(FileNotFoundException.class, () -> vfs.getInodeByPath("/PathTest/Renamed/file"));
+        assertThrows(FileNotFoundException.class, () -> vfs.getInodeByPath("/PathTest/Renamed"));
+    }
+
+    @Test
+    public void testInvalidationDuringLookupIsNotCached() throws Exception {
+        InodePathCache cache = new InodePathCache();
+        VirtualFileSystemInode file = vfs.getInodeByPath("/PathTest/Release/file");
+        long sequence = cache.getSequence();
+        cache.invalidate("/PathTest/Release");
+        cache.put("/PathTest/Release/file", file, sequence);
+        assertNull(cache.get("/PathTest/Release/file"));
+
+        cache.put("/PathTest/Release/file", file, cache.getSequence());
+        assertSame(file, cache.get("/PathTest/Release/file"));
+        cache.put("/PathTest", dir, cache.getSequence());
+        assertEquals(2, cache.getSize());
+        // only the path itself and what is below it is removed, not paths sharing its name as prefix
+        cache.invalidate("/PathTes");
+        assertEquals(2, cache.getSize());
+        cache.invalidate("/PathTest");
+        assertEquals(0, cache.getSize());
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.master.vfs;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Uploaders creating files in a race directory while others list it and check for dupes.
+ * <p>
+ * The benchmark only runs with <code>-Dvfs.benchmark=true</code> and logs the lookups and listings per second
+ * with and without uploaders.
+ *
+ * @version $Id$
+ */
+public class VirtualFileSystemDirectoryContentionTest {
+
+    private static final Logger logger = LogManager.getLogger(VirtualFileSystemDirectoryContentionTest.class);
+
+    private static VirtualFileSystemDirectory section;
+
+    @BeforeAll
+    static void setUp() throws Exception {
+        VirtualFileSystem vfs = VirtualFileSystem.getVirtualFileSystem();
+        vfs.getRoot().createDirectory("ContentionTest", "drftpd", "drftpd");
+        section = (VirtualFileSystemDirectory) vfs.getRoot().getInodeByName("ContentionTest");
+    }
+
+    @AfterAll
+    static void tearDown() throws Exception {
+        section.delete();
+        CommitManager.getCommitManager().flush(Long.MAX_VALUE, 1000, 0);
+        FileUtils.deleteDirectory(new File("userdata"));
+    }
+
+    private static VirtualFileSystemDirectory race(String name) throws Exception {
+        section.createDirectory(name, "drftpd", "drftpd");
+        return (VirtualFileSystemDirectory) section.getInodeByName(name);
+    }
+
+    /**
+     * Starts <code>uploaders</code> threads creating <code>files</code> files each and <code>readers</code>
+     * threads listing the directory and looking up files until the uploaders are done
+     *
+     * @return the number of listings and lookups done by the readers
+     */
+    private static long race(VirtualFileSystemDirectory race, int uploaders, int files, int readers, long size,
+                             AtomicReference<Throwable> failure) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean done = new AtomicBoolean(uploaders == 0);
+        AtomicLong reads = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < uploaders; i++) {
+            int uploader = i;
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < files; j++) {
+                        race.createFile("file-" + uploader + "-" + j, "drftpd", "drftpd", "slave1", size);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }));
+        }
+        List<Thread> readerThreads = new ArrayList<>();
+        for (int i = 0; i < readers; i++) {
+            readerThreads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    long count = 0;
+                    while (!done.get() || count == 0) {
+                        for (String name : race.getInodeNames()) {
+                            race.getInodeByName(name);
+                            count++;
+                        }
+                        try {
+                            race.getInodeByName("file-dupe");
+                            fail("file-dupe does not exist");
+                        } catch (FileNotFoundException e) {
+                            count++;
+                        }
+                    }
+                    reads.addAndGet(count);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        readerThreads.forEach(Thread::start);
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        done.set(true);
+        for (Thread thread : readerThreads) {
+            thread.join();
+        }
+        return reads.get();
+    }
+
+    @Test
+    public void testConcurrentUploadsAndListings() throws Exception {
+        VirtualFileSystemDirectory race = race("Race");
+        long sectionSize = section.getSize();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        race(race, 4, 100, 4, 10, failure);
+        assertNull(failure.get());
+
+        assertEquals(400, race.getInodeNames().size());
+        assertEquals(400 * 10, race.getSize());
+        // the sizes of the parents are updated without holding locks
+        assertEquals(sectionSize + 400 * 10, section.getSize());
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "vfs.benchmark", matches = "true")
+    public void benchmarkListingsDuringUploads() throws Exception {
+        int readers = Runtime.getRuntime().availableProcessors();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        VirtualFileSystemDirectory idle = race("Idle");
+        race(idle, 4, 500, 0, 1, failure);
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            long reads = 0;
+            while (System.nanoTime() - start < 1000000000L) {
+                reads += race(idle, 0, 0, readers, 1, failure);
+            }
+            logger.info("{} readers without uploaders: {} reads/s", readers, reads * 1000000000L / (System.nanoTime() - start));
+
+            VirtualFileSystemDirectory busy = race("Busy" + round);
+            start = System.nanoTime();
+            reads = race(busy, 4, 2000, readers, 1, failure);
+            long elapsed = System.nanoTime() - start;
+            logger.info("{} readers with 4 uploaders: {} reads/s, {} files/s created", readers,
+                    reads * 1000000000L / elapsed, 8000 * 1000000000L / elapsed);
+        }
+        assertNull(failure.get());
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.master.vfs;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VirtualFileSystemLogTest {
+
+    @TempDir
+    File dir;
+
+    private final VirtualFileSystemRoot root = new VirtualFileSystemRoot("drftpd", "drftpd");
+
+    private VirtualFileSystemDirectory directory(VirtualFileSystemDirectory parent, String name) {
+        VirtualFileSystemDirectory dir = new VirtualFileSystemDirectory("user", "group");
+        dir.setName(name);
+        dir.setParent(parent);
+        return dir;
+    }
+
+    private VirtualFileSystemFile file(VirtualFileSystemDirectory parent, String name, long size) {
+        VirtualFileSystemFile file = new VirtualFileSystemFile("user", "group", size, "slave1");
+        file.setName(name);
+        file.setParent(parent);
+        return file;
+    }
+
+    private VirtualFileSystemLog open(long compactSize) throws IOException {
+        return new VirtualFileSystemLog(dir, compactSize);
+    }
+
+    @Test
+    public void testInodesSurviveRestart() throws IOException {
+        VirtualFileSystemLog log = open(Long.MAX_VALUE);
+        VirtualFileSystemDirectory release = directory(root, "Release");
+        release.setSize(1234);
+        release.setSlaveDigest("slave1", 1, 2);
+        VirtualFileSystemFile file = file(release, "file.rar", 1234);
+        file.getKeyedMap().setObject(VirtualFileSystemFile.CRC, 0xCAFEL);
+        file.getUntypedPluginMap().put("nuked", true);
+        VirtualFileSystemLink link = new VirtualFileSystemLink("user", "group", "/Release");
+        link.setName("link");
+        link.setParent(root);
+        log.write(root);
+        log.write(release);
+        log.write(file);
+        log.write(link);
+        log.close();
+
+        log = open(Long.MAX_VALUE);
+        assertTrue(log.read("/") instanceof VirtualFileSystemRoot);
+        assertEquals(Set.of("link", "Release"), Set.of(log.list("/")));
+        VirtualFileSystemDirectory readRelease = (VirtualFileSystemDirectory) log.read("/release");
+        assertEquals(1234, readRelease.getSize());
+        assertEquals(release.getLastModified(), readRelease.getLastModified());
+        assertArrayEquals(new long[]{1, 2}, readRelease.getSlaveDigest("slave1"));
+        VirtualFileSystemFile readFile = (VirtualFileSystemFile) log.read("/Release/file.rar");
+        assertEquals("user", readFile.getUsername());
+        assertEquals(1234, readFile.getSize());
+        assertEquals(Set.of("slave1"), readFile.getSlaves());
+        assertEquals(0xCAFEL, readFile.getChecksum());
+        assertEquals(Boolean.TRUE, readFile.getUntypedPluginMetaData("nuked"));
+        assertEquals("/Release", ((VirtualFileSystemLink) log.read("/link")).getLinkPath());
+        log.close();
+    }
+
+    @Test
+    public void testDeleteAndRename() throws IOException {
+        VirtualFileSystemLog log = open(Long.MAX_VALUE);
+        VirtualFileSystemDirectory a = directory(root, "a");
+        VirtualFileSystemDirectory b = directory(a, "b");
+        log.write(a);
+        log.write(b);
+        log.write(file(b, "file", 1));
+        log.write(file(a, "other", 2));
+
+        log.rename("/a/b", "/c");
+        assertThrows(FileNotFoundException.class, () -> log.read("/a/b/file"));
+        assertEquals(1, log.read("/c/file").getSize());
+        assertThrows(FileNotFoundException.class, () -> log.rename("/missing", "/d"));
+        log.delete("/a");
+        log.close();
+
+        VirtualFileSystemLog reopened = open(Long.MAX_VALUE);
+        assertArrayEquals(new String[]{"c"}, reopened.list("/"));
+        assertThrows(FileNotFoundException.class, () -> reopened.read("/a/other"));
+        assertEquals(1, reopened.read("/c/file").getSize());
+        reopened.close();
+    }
+
+    @Test
+    public void testDamagedTailIsDropped() throws IOException {
+        VirtualFileSystemLog log = open(Long.MAX_VALUE);
+        log.write(file(root, "kept", 1));
+        log.write(file(root, "torn", 2));
+        long size = log.getLogSize();
+        log.close();
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, VirtualFileSystemLog.LOG), "rw")) {
+            file.setLength(size - 3);
+        }
+
+        log = open(Long.MAX_VALUE);
+        assertArrayEquals(new String[]{"kept"}, log.list("/"));
+        log.write(file(root, "after", 3));
+        log.close();
+
+        log = open(Long.MAX_VALUE);
+        assertEquals(Set.of("kept", "after"), Set.of(log.list("/")));
+        assertEquals(3, log.read("/after").getSize());
+        log.close();
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        VirtualFileSystemLog log = open(Long.MAX_VALUE);
+        VirtualFileSystemDirectory dir = directory(root, "dir");
+        log.write(dir);
+        for (int i = 0; i < 100; i++) {
+            VirtualFileSystemFile file = file(dir, "file" + i, i);
+            log.write(file);
+            log.write(file);
+        }
+        log.delete("/dir/file0");
+        long size = log.getLogSize();
+        log.compact();
+        assertTrue(log.getLogSize() < size);
+        assertTrue(log.getSnapshotSize() < size);
+        assertEquals(99, log.read("/dir/file99").getSize());
+        log.write(file(dir, "file100", 100));
+        log.close();
+
+        // a small compact size compacts on startup
+        log = open(1);
+        assertEquals(100, log.list("/dir").length);
+        assertFalse(Arrays.asList(log.list("/dir")).contains("file0"));
+        assertEquals(100, log.read("/dir/file100").getSize());
+        assertNull(log.read("/"));
+        log.close();
+    }
+}
@@ -26,8 +26,7 @@ import org.junit.jupiter.api.Test;
 import java.io.File;
 import java.io.FileNotFoundException;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.*;
 
 public class VirtualFileSystemTest {
 
@@ -54,6 +53,34 @@ public class VirtualFileSystemTest {
         FileUtils.deleteDirectory(new File("userdata"));
     }
 
+    @Test
+    public void testSlaveDigestInvalidation() throws Exception {
+        try {
+            vfs.getRoot().createDirectory("DigestTest", "drftpd", "drftpd");
+        } catch (FileExistsException ignored) {
+        }
+        VirtualFileSystemDirectory parent = (VirtualFileSystemDirectory) vfs.getRoot().getInodeByName("DigestTest");
+        parent.createDirectory("sub", "drftpd", "drftpd");
+        VirtualFileSystemDirectory sub = (VirtualFileSystemDirectory) parent.getInodeByName("sub");
+        for (VirtualFileSystemDirectory dir : new VirtualFileSystemDirectory[]{vfs.getRoot(), parent, sub}) {
+            dir.setSlaveDigest("slaveA", 1, 2);
+            dir.setSlaveDigest("slaveB", 3, 4);
+        }
+
+        sub.createFile("file", "drftpd", "drftpd", "slaveA");
+        for (VirtualFileSystemDirectory dir : new VirtualFileSystemDirectory[]{vfs.getRoot(), parent, sub}) {
+            assertNull(dir.getSlaveDigest("slaveA"));
+            assertArrayEquals(new long[]{3, 4}, dir.getSlaveDigest("slaveB"));
+        }
+
+        sub.setSlaveDigest("slaveB", 3, 4);
+        ((VirtualFileSystemFile) sub.getInodeByName("file")).setSize(100);
+        assertArrayEquals(new long[]{3, 4}, sub.getSlaveDigest("slaveB"));
+        sub.setSlaveDigest("slaveA", 1, 2);
+        ((VirtualFileSystemFile) sub.getInodeByName("file")).setSize(200);
+        assertNull(sub.getSlaveDigest("slaveA"));
+    }
+
     @Test
     public void testGetLast() {
         assertEquals(VirtualFileSystem.getLast("/full/path/to/file"), "file");
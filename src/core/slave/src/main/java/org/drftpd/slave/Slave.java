@@ -31,8 +31,13 @@ import org.drftpd.common.io.PermissionDeniedException;
 import org.drftpd.common.io.PhysicalFile;
 import org.drftpd.common.network.AsyncCommandArgument;
 import org.drftpd.common.network.AsyncResponse;
+import org.drftpd.common.network.codec.DeflateCompression;
+import org.drftpd.common.network.codec.JavaMessageStream;
+import org.drftpd.common.network.codec.MessageStream;
 import org.drftpd.common.slave.DiskStatus;
 import org.drftpd.common.slave.TransferIndex;
+import org.drftpd.common.slave.TransferStatus;
+import org.drftpd.common.util.Bytes;
 import org.drftpd.common.util.ConfigLoader;
 import org.drftpd.common.util.PortRange;
 import org.drftpd.common.util.PropertyHelper;
@@ -40,10 +45,20 @@ import org.drftpd.slave.diskselection.DiskSelectionInterface;
 import org.drftpd.slave.exceptions.FileExistsException;
 import org.drftpd.slave.network.AsyncResponseDiskStatus;
 import org.drftpd.slave.network.AsyncResponseTransferStatus;
+import org.drftpd.slave.network.AsyncResponseTransferStatusBatch;
+import org.drftpd.slave.network.BandwidthScheduler;
+import org.drftpd.slave.network.ByteBufferPool;
+import org.drftpd.slave.network.TransferReactor;
 import org.drftpd.slave.network.Transfer;
 import org.drftpd.slave.protocol.QueuedOperation;
+import org.drftpd.slave.protocol.SlaveCommandExecutor;
 import org.drftpd.slave.protocol.SlaveProtocolCentral;
+import org.drftpd.slave.vfs.ChecksumCheckpoints;
+import org.drftpd.slave.vfs.ChecksumFiller;
+import org.drftpd.slave.vfs.DirectoryDigests;
 import org.drftpd.slave.vfs.Root;
+import org.drftpd.slave.vfs.RootChecksummer;
+import org.drftpd.slave.vfs.RootWatcher;
 import org.drftpd.slave.vfs.RootCollection;
 
 import javax.net.ssl.SSLContext;
@@ -54,9 +69,12 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -90,6 +108,30 @@ public class Slave extends SslConfigurationLoader {
 
     private boolean _downloadChecksums;
 
+    private boolean _zeroCopyDownloads;
+
+    private ByteBufferPool _directBufferPool;
+
+    private ByteBufferPool _heapBufferPool;
+
+    private final BandwidthScheduler _bandwidthScheduler = new BandwidthScheduler();
+
+    private TransferReactor _transferReactor;
+
+    private SlaveCommandExecutor _commandExecutor;
+
+    private long _transferStatusInterval;
+
+    private ChecksumCheckpoints _checksumCheckpoints;
+
+    private ChecksumFiller _checksumFiller;
+
+    private RootChecksummer _rootChecksummer;
+
+    private DirectoryDigests _directoryDigests;
+
+    private RootWatcher _rootWatcher;
+
     private RootCollection _roots;
 
     private SSLSocket _socket;
@@ -98,10 +140,27 @@ public class Slave extends SslConfigurationLoader {
 
     private ObjectOutputStream _sout;
 
+    private MessageStream _stream;
+
+    private boolean _binaryProtocol;
+
+    private boolean _compression;
+
     private Map<TransferIndex, Transfer> _transfers;
 
+    /**
+     * Running uploads keyed by their lower cased path, used by downloads to follow a file that is still being uploaded
+     */
+    private final Map<String, Transfer> _uploadsByPath = new ConcurrentHashMap<>();
+
     private boolean _uploadChecksums;
 
+    private int _uploadPipelineDepth;
+
+    private boolean _preallocateUploads;
+
+    private long _maxPreallocateSize;
+
     private PortRange _portRange;
 
     private Set<QueuedOperation> _renameQueue = null;
@@ -118,6 +177,8 @@ public class Slave extends SslConfigurationLoader {
 
     private boolean _concurrentRootIteration;
 
+    private int _remergeWalkThreads;
+
     private InetAddress _bindIP = null;
 
     private boolean _online;
@@ -198,9 +259,12 @@ public class Slave extends SslConfigurationLoader {
             throw new SSLUnavailableException("Handshake failure, maybe master isn't SSL ready or SSL is disabled.", e);
         }
 
-        _sout = new ObjectOutputStream(new BufferedOutputStream(_socket.getOutputStream()));
-        _sout.flush();
-        _sin = new ObjectInputStream(new BufferedInputStream(_socket.getInputStream()));
+        JavaMessageStream stream = new JavaMessageStream(_socket.getInputStream(), _socket.getOutputStream());
+        _stream = stream;
+        _sout = stream.getObjectOutputStream();
+        _sin = stream.getObjectInputStream();
+        _binaryProtocol = p.getProperty("master.codec", "binary").equalsIgnoreCase("binary");
+        _compression = p.getProperty("master.compression", "none").equalsIgnoreCase(DeflateCompression.NAME);
 
         _central = new SlaveProtocolCentral(this);
 
@@ -209,11 +273,64 @@ public class Slave extends SslConfigurationLoader {
         _sout.reset();
 
         _uploadChecksums = p.getProperty("enableuploadchecksums", "true").equals("true");
+        if (p.getProperty("upload.pipeline", "false").equalsIgnoreCase("true")) {
+            _uploadPipelineDepth = Integer.parseInt(p.getProperty("upload.pipeline.depth", "4"));
+        }
+        _preallocateUploads = p.getProperty("upload.preallocate", "true").equalsIgnoreCase("true");
+        _maxPreallocateSize = Bytes.parseBytes(p.getProperty("upload.preallocate.max", "100GiB").trim());
         _downloadChecksums = p.getProperty("enabledownloadchecksums", "true").equals("true");
         _bufferSize = Integer.parseInt(p.getProperty("bufferSize", "0"));
+        _zeroCopyDownloads = p.getProperty("zerocopy.downloads", "true").equalsIgnoreCase("true");
+        String defaultPoolBufferSize = String.valueOf(Math.max(_bufferSize, 65536));
+        _directBufferPool = new ByteBufferPool("direct",
+                Integer.parseInt(p.getProperty("bufferpool.direct.size", defaultPoolBufferSize)),
+                Integer.parseInt(p.getProperty("bufferpool.direct.count", "256")), true);
+        _heapBufferPool = new ByteBufferPool("heap",
+                Integer.parseInt(p.getProperty("bufferpool.heap.size", defaultPoolBufferSize)),
+                Integer.parseInt(p.getProperty("bufferpool.heap.count", "256")), false);
+        _bandwidthScheduler.setDefaultLimit(BandwidthScheduler.SLAVE_UPLOAD, Bytes.parseBytes(p.getProperty("bandwidth.upload", "0")));
+        _bandwidthScheduler.setDefaultLimit(BandwidthScheduler.SLAVE_DOWNLOAD, Bytes.parseBytes(p.getProperty("bandwidth.download", "0")));
+        _transferStatusInterval = Long.parseLong(p.getProperty("transfer.status.interval", "1000"));
+        SSLContext dataContext = getSSLContext();
+        if (dataContext != null) {
+            SSLService.getSSLService().configureSessionCache(dataContext,
+                    Integer.parseInt(p.getProperty("ssl.session.cache.size", "20480")),
+                    Integer.parseInt(p.getProperty("ssl.session.timeout", "86400")));
+        }
+        String transferEngine = p.getProperty("transfer.engine", "thread");
+        if (transferEngine.equalsIgnoreCase("reactor")) {
+            int reactorThreads = Integer.parseInt(p.getProperty("transfer.reactor.threads",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())));
+            _transferReactor = new TransferReactor("TransferReactor", reactorThreads);
+            logger.info("Running unencrypted transfers on {} reactor threads", reactorThreads);
+        } else if (!transferEngine.equalsIgnoreCase("thread")) {
+            logger.warn("Unknown transfer.engine '{}', using thread", transferEngine);
+        }
+
+        if (p.getProperty("checksum.checkpoints", "true").equalsIgnoreCase("true")) {
+            _checksumCheckpoints = new ChecksumCheckpoints(Paths.get(p.getProperty("checksum.checkpoint.dir", "checkpoints")),
+                    Bytes.parseBytes(p.getProperty("checksum.checkpoint.interval", "64MiB")));
+            if (p.getProperty("checksum.idle.fill", "false").equalsIgnoreCase("true")) {
+                _checksumFiller = new ChecksumFiller(this, Long.parseLong(p.getProperty("checksum.idle.rescan", "86400000")));
+            }
+        }
+
+        if (p.getProperty("remerge.digests", "true").equalsIgnoreCase("true")) {
+            _directoryDigests = new DirectoryDigests(Paths.get(p.getProperty("remerge.digests.file", "remerge-digests")));
+        }
+
+        if (p.getProperty("watch.enabled", "false").equalsIgnoreCase("true")) {
+            _rootWatcher = new RootWatcher(this, Long.parseLong(p.getProperty("watch.delay", "2000")),
+                    Long.parseLong(p.getProperty("watch.maxdelay", "30000")));
+        }
+
+        _rootChecksummer = new RootChecksummer(this, Integer.parseInt(p.getProperty("checksum.threads.per.root", "1")));
 
         _concurrentRootIteration = p.getProperty("concurrent.root.iteration", "false").equalsIgnoreCase("true");
         _roots = getDefaultRootBasket(p);
+        _remergeWalkThreads = Integer.parseInt(p.getProperty("remerge.walk.threads",
+                String.valueOf(_roots.getRootList().size())));
+        _commandExecutor = new SlaveCommandExecutor(p, _roots.getRootList().size());
         loadDiskSelection(p);
 
         _transfers = new ConcurrentHashMap<>();
@@ -256,6 +373,8 @@ public class Slave extends SslConfigurationLoader {
             logger.fatal("Error, check config on master for this slave");
         }
         s.setOnline(true);
+        s.startTransferStatusThread();
+        s.startChecksumFillThread();
         try {
             s.listenForCommands();
         } finally {
@@ -295,19 +414,13 @@ public class Slave extends SslConfigurationLoader {
     }
 
     public void shutdown() {
-        if (_sin != null) {
+        if (_stream != null) {
             try {
-                _sin.close();
+                _stream.close();
             } catch (IOException ignored) {
             }
+            _stream = null;
             _sin = null;
-        }
-        if (_sout != null) {
-            try {
-                _sout.flush();
-                _sout.close();
-            } catch (IOException ignored) {
-            }
             _sout = null;
         }
         if (_socket != null) {
@@ -334,12 +447,67 @@ public class Slave extends SslConfigurationLoader {
         t.start();
     }
 
+    private void startTransferStatusThread() {
+        Thread t = new Thread(new TransferStatusRunnable());
+        t.setName("TransferStatusThread");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void startChecksumFillThread() {
+        if (_checksumFiller == null) {
+            return;
+        }
+        Thread t = new Thread(_checksumFiller);
+        t.setName("ChecksumFillThread");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    /**
+     * Sends the progress of all running transfers to the master in one response.
+     * Synchronized with {@link #sendResponse(AsyncResponse)} so the progress of a transfer
+     * can never arrive at the master after its final status.
+     */
+    public synchronized void sendTransferStatusBatch() {
+        List<TransferStatus> statuses = new ArrayList<>();
+        for (Transfer transfer : _transfers.values()) {
+            if (transfer.isTransfering()) {
+                statuses.add(transfer.getTransferStatus());
+            }
+        }
+        if (!statuses.isEmpty()) {
+            sendResponse(new AsyncResponseTransferStatusBatch(statuses));
+        }
+    }
+
     public void addTransfer(Transfer transfer) {
         _transfers.put(transfer.getTransferIndex(), transfer);
     }
 
+    /**
+     * Calculates the checksum of <code>path</code>, waiting while the root it is on is already read by
+     * <code>checksum.threads.per.root</code> checksums
+     */
     public long checkSum(String path) throws IOException {
-        return checkSum(_roots.getFile(path));
+        Root root = _roots.getRootForFile(path);
+        _rootChecksummer.acquire(root);
+        try {
+            PhysicalFile file = root.getFile(path);
+            if (_checksumCheckpoints == null) {
+                return checkSum(file);
+            }
+            // starts at the checkpoint closest to the end, which is the end itself for files checksummed before
+            ByteBuffer buffer = _directBufferPool.acquire();
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                return _checksumCheckpoints.getPrefixChecksum(path, file, in, file.length(), buffer);
+            } finally {
+                _directBufferPool.release(buffer);
+            }
+        } finally {
+            _rootChecksummer.release(root);
+        }
     }
 
     public long checkSum(PhysicalFile file) throws IOException {
@@ -359,6 +527,12 @@ public class Slave extends SslConfigurationLoader {
 
     public void delete(String path) throws IOException {
         // now deletes files as well as directories, recursive!
+        if (_rootWatcher != null) {
+            _rootWatcher.ignore(path);
+        }
+        if (_directoryDigests != null) {
+            _directoryDigests.invalidate(path);
+        }
         Collection<Root> files;
         try {
             files = _roots.getMultipleRootsForFile(path);
@@ -378,11 +552,17 @@ public class Slave extends SslConfigurationLoader {
             }
 
             if (file.isDirectory()) {
+                if (_checksumCheckpoints != null) {
+                    _checksumCheckpoints.remove(path);
+                }
                 if (!file.deleteRecursive()) {
                     throw new PermissionDeniedException("delete failed on " + path);
                 }
                 logger.info("DELETEDIR: {}", path);
             } else if (file.isFile()) {
+                if (_checksumCheckpoints != null) {
+                    _checksumCheckpoints.remove(path);
+                }
                 File dir = new PhysicalFile(file.getParentFile());
                 logger.info("DELETE: {}", path);
                 logger.info("rmfile: {}", file.getPath());
@@ -435,6 +615,73 @@ public class Slave extends SslConfigurationLoader {
         return _downloadChecksums;
     }
 
+    public boolean getZeroCopyDownloads() {
+        return _zeroCopyDownloads;
+    }
+
+    /**
+     * @return pool of direct buffers, used by transfers on unencrypted (channel backed) connections
+     */
+    public ByteBufferPool getDirectBufferPool() {
+        return _directBufferPool;
+    }
+
+    /**
+     * @return pool of heap buffers, used by stream based transfers (SSL/TLS)
+     */
+    public ByteBufferPool getHeapBufferPool() {
+        return _heapBufferPool;
+    }
+
+    /**
+     * @return the executor running the commands received from the master
+     */
+    public SlaveCommandExecutor getCommandExecutor() {
+        return _commandExecutor;
+    }
+
+    /**
+     * @return the store of checksum checkpoints used to resume downloads, null if disabled
+     */
+    public ChecksumCheckpoints getChecksumCheckpoints() {
+        return _checksumCheckpoints;
+    }
+
+    /**
+     * @return calculates the checksums of batches of files, in parallel over the roots
+     */
+    public RootChecksummer getRootChecksummer() {
+        return _rootChecksummer;
+    }
+
+    /**
+     * @return the digests of the directory tree used by digest remerges, null if disabled
+     */
+    public DirectoryDigests getDirectoryDigests() {
+        return _directoryDigests;
+    }
+
+    /**
+     * @return the watcher sending changes made directly on the roots to the master, null if disabled
+     */
+    public RootWatcher getRootWatcher() {
+        return _rootWatcher;
+    }
+
+    /**
+     * @return the reactor unencrypted transfers run on, null if every transfer runs on its own thread
+     */
+    public TransferReactor getTransferReactor() {
+        return _transferReactor;
+    }
+
+    /**
+     * @return the token buckets all transfers on this slave are throttled by
+     */
+    public BandwidthScheduler getBandwidthScheduler() {
+        return _bandwidthScheduler;
+    }
+
     public RootCollection getRoots() {
         return _roots;
     }
@@ -451,6 +698,27 @@ public class Slave extends SslConfigurationLoader {
         return _uploadChecksums;
     }
 
+    /**
+     * @return the number of buffers between reading and writing a pipelined upload, 0 if uploads are not pipelined
+     */
+    public int getUploadPipelineDepth() {
+        return _uploadPipelineDepth;
+    }
+
+    /**
+     * @return true if pipelined uploads reserve the size announced by the client before receiving
+     */
+    public boolean getPreallocateUploads() {
+        return _preallocateUploads;
+    }
+
+    /**
+     * @return the largest size an upload may reserve up front, 0 for no limit besides the free space
+     */
+    public long getMaxPreallocateSize() {
+        return _maxPreallocateSize;
+    }
+
     private AsyncResponse handleCommand(AsyncCommandArgument ac) {
         return _central.handleCommand(ac);
     }
@@ -461,7 +729,7 @@ public class Slave extends SslConfigurationLoader {
             AsyncCommandArgument ac;
 
             try {
-                ac = (AsyncCommandArgument) _sin.readObject();
+                ac = (AsyncCommandArgument) _stream.readMessage();
 
                 if (ac == null) {
                     continue;
@@ -499,9 +767,7 @@ public class Slave extends SslConfigurationLoader {
                     }
                 }
             }
-            Thread t = new Thread(new AsyncCommandHandler(ac));
-            t.setName("AsyncCommandHandler - " + ac.getClass());
-            t.start();
+            _commandExecutor.execute(ac.getName(), new AsyncCommandHandler(ac));
         }
     }
 
@@ -520,6 +786,30 @@ public class Slave extends SslConfigurationLoader {
         return path;
     }
 
+    public void addUpload(String path, Transfer transfer) {
+        _uploadsByPath.put(path.toLowerCase(), transfer);
+        if (_rootWatcher != null) {
+            _rootWatcher.ignore(path);
+        }
+    }
+
+    public void removeUpload(String path, Transfer transfer) {
+        _uploadsByPath.remove(path.toLowerCase(), transfer);
+        if (_rootWatcher != null) {
+            _rootWatcher.ignore(path);
+        }
+        if (_directoryDigests != null) {
+            _directoryDigests.invalidate(path);
+        }
+    }
+
+    /**
+     * @return the running upload of <code>path</code>, or null if there is none
+     */
+    public Transfer getUploadForPath(String path) {
+        return _uploadsByPath.get(path.toLowerCase());
+    }
+
     public void removeTransfer(Transfer transfer) {
         // Synchronization only needed for Win32 to notify FileLockThread
         if (isWin32) {
@@ -537,6 +827,14 @@ public class Slave extends SslConfigurationLoader {
     }
 
     public void rename(String from, String toDirPath, String toName) throws IOException {
+        if (_rootWatcher != null) {
+            _rootWatcher.ignore(from);
+            _rootWatcher.ignore(toDirPath.endsWith("/") ? toDirPath + toName : toDirPath + "/" + toName);
+        }
+        if (_directoryDigests != null) {
+            _directoryDigests.invalidate(from);
+            _directoryDigests.invalidate(toDirPath.endsWith("/") ? toDirPath + toName : toDirPath + "/" + toName);
+        }
         for (Iterator<Root> iter = _roots.iterator(); iter.hasNext(); ) {
             Root root = iter.next();
 
@@ -565,6 +863,9 @@ public class Slave extends SslConfigurationLoader {
                 throw new PermissionDeniedException("renameTo(" + fromfile + ", " + tofile + ") failed");
             }
         }
+        if (_checksumCheckpoints != null) {
+            _checksumCheckpoints.rename(from, toDirPath.endsWith("/") ? toDirPath + toName : toDirPath + "/" + toName);
+        }
     }
 
     public synchronized void sendResponse(AsyncResponse response) {
@@ -575,10 +876,9 @@ public class Slave extends SslConfigurationLoader {
         }
 
         try {
-            _sout.writeObject(response);
-            _sout.flush();
-            _sout.reset();
-            if (!(response instanceof AsyncResponseTransferStatus)) {
+            _stream.writeMessage(response);
+            if (!(response instanceof AsyncResponseTransferStatus)
+                    && !(response instanceof AsyncResponseTransferStatusBatch)) {
                 logger.debug("Slave wrote response - {}", response);
             }
 
@@ -645,6 +945,31 @@ public class Slave extends SslConfigurationLoader {
         return _sout;
     }
 
+    public MessageStream getMessageStream() {
+        return _stream;
+    }
+
+    /**
+     * Replaces the stream used for commands and responses, done once by the handshake before any command is read
+     */
+    public synchronized void setMessageStream(MessageStream stream) {
+        _stream = stream;
+    }
+
+    /**
+     * @return true if the binary wire format should be offered to the master
+     */
+    public boolean useBinaryProtocol() {
+        return _binaryProtocol;
+    }
+
+    /**
+     * @return true if the binary wire format should be compressed, see <code>master.compression</code>
+     */
+    public boolean useCompression() {
+        return _compression;
+    }
+
     public SlaveProtocolCentral getProtocolCentral() {
         return _central;
     }
@@ -653,6 +978,13 @@ public class Slave extends SslConfigurationLoader {
         return _ignorePartialRemerge;
     }
 
+    /**
+     * @return number of threads walking the roots during a remerge
+     */
+    public int getRemergeWalkThreads() {
+        return _remergeWalkThreads;
+    }
+
     public boolean threadedRemerge() {
         return _threadedRemerge;
     }
@@ -681,6 +1013,26 @@ public class Slave extends SslConfigurationLoader {
         return data;
     }
 
+    public class TransferStatusRunnable implements Runnable {
+
+        public void run() {
+            while (isOnline()) {
+                try {
+                    Thread.sleep(_transferStatusInterval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    sendTransferStatusBatch();
+                } catch (RuntimeException e) {
+                    // connection to the master is gone
+                    logger.debug("Stopped sending transfer status", e);
+                    return;
+                }
+            }
+        }
+    }
+
     public class FileLockRunnable implements Runnable {
 
         public void run() {
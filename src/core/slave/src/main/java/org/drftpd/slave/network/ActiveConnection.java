@@ -19,15 +19,16 @@ package org.drftpd.slave.network;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.drftpd.common.network.SSLService;
 import org.drftpd.common.slave.Connection;
 
-import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 
 /**
@@ -80,10 +81,11 @@ public class ActiveConnection extends Connection {
             logger.debug("[{}] Enabled protocols for this new connection are as follows: '{}'",
                     sslSock.getRemoteSocketAddress(), Arrays.toString(sslSock.getEnabledProtocols()));
             sslSock.setUseClientMode(_useSSLClientHandshake);
-            sslSock.startHandshake();
+            SSLService.getSSLService().startHandshake(sslSock);
             _sock = sslSock;
         } else {
-            _sock = SocketFactory.getDefault().createSocket();
+            // Backed by a channel so plain transfers can use FileChannel.transferTo()
+            _sock = SocketChannel.open().socket();
             if (bufferSize > 0) {
                 _sock.setReceiveBufferSize(bufferSize);
             }
@@ -0,0 +1,136 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.slave.network;
+
+import org.drftpd.common.network.AsyncResponse;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Occupancy of the transfer buffer pools of a slave.
+ *
+ * @version $Id$
+ */
+@SuppressWarnings("serial")
+public class AsyncResponseBufferPools extends AsyncResponse {
+    private final List<BufferPoolStatus> _pools;
+
+    public AsyncResponseBufferPools(String index, List<BufferPoolStatus> pools) {
+        super(index);
+        _pools = pools;
+    }
+
+    public List<BufferPoolStatus> getPools() {
+        return _pools;
+    }
+
+    public String toString() {
+        return super.toString() + "[pools=" + _pools + "]";
+    }
+
+    @SuppressWarnings("serial")
+    public static class BufferPoolStatus implements Serializable {
+        private final String _name;
+
+        private final boolean _direct;
+
+        private final int _bufferSize;
+
+        private final int _maxBuffers;
+
+        private final int _allocated;
+
+        private final int _free;
+
+        private final int _inUse;
+
+        private final int _peakInUse;
+
+        private final long _acquireCount;
+
+        private final long _overflowCount;
+
+        public BufferPoolStatus(String name, boolean direct, int bufferSize, int maxBuffers, int allocated, int free,
+                                int inUse, int peakInUse, long acquireCount, long overflowCount) {
+            _name = name;
+            _direct = direct;
+            _bufferSize = bufferSize;
+            _maxBuffers = maxBuffers;
+            _allocated = allocated;
+            _free = free;
+            _inUse = inUse;
+            _peakInUse = peakInUse;
+            _acquireCount = acquireCount;
+            _overflowCount = overflowCount;
+        }
+
+        public BufferPoolStatus(ByteBufferPool pool) {
+            this(pool.getName(), pool.isDirect(), pool.getBufferSize(), pool.getMaxBuffers(), pool.getAllocated(),
+                    pool.getFree(), pool.getInUse(), pool.getPeakInUse(), pool.getAcquireCount(),
+                    pool.getOverflowCount());
+        }
+
+        public String getName() {
+            return _name;
+        }
+
+        public boolean isDirect() {
+            return _direct;
+        }
+
+        public int getBufferSize() {
+            return _bufferSize;
+        }
+
+        public int getMaxBuffers() {
+            return _maxBuffers;
+        }
+
+        public int getAllocated() {
+            return _allocated;
+        }
+
+        public int getFree() {
+            return _free;
+        }
+
+        public int getInUse() {
+            return _inUse;
+        }
+
+        public int getPeakInUse() {
+            return _peakInUse;
+        }
+
+        public long getAcquireCount() {
+            return _acquireCount;
+        }
+
+        /**
+         * @return how many times a temporary buffer had to be allocated because the pool was exhausted
+         */
+        public long getOverflowCount() {
+            return _overflowCount;
+        }
+
+        public String toString() {
+            return "BufferPoolStatus[name=" + _name + "][inUse=" + _inUse + "][overflows=" + _overflowCount + "]";
+        }
+    }
+}
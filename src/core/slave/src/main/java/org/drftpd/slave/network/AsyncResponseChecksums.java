@@ -0,0 +1,68 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.slave.network;
+
+import org.drftpd.common.network.AsyncResponse;
+
+import java.util.Map;
+
+/**
+ * Checksums of a batch of files, files that could not be read are left out.
+ *
+ * @version $Id$
+ */
+@SuppressWarnings("serial")
+public class AsyncResponseChecksums extends AsyncResponse {
+    private final String[] _paths;
+
+    private final long[] _checksums;
+
+    public AsyncResponseChecksums(String index, String[] paths, long[] checksums) {
+        super(index);
+        _paths = paths;
+        _checksums = checksums;
+    }
+
+    public AsyncResponseChecksums(String index, Map<String, Long> checksums) {
+        super(index);
+        _paths = new String[checksums.size()];
+        _checksums = new long[checksums.size()];
+        int i = 0;
+        for (Map.Entry<String, Long> entry : checksums.entrySet()) {
+            _paths[i] = entry.getKey();
+            _checksums[i] = entry.getValue();
+            i++;
+        }
+    }
+
+    public int size() {
+        return _paths.length;
+    }
+
+    public String getPath(int i) {
+        return _paths[i];
+    }
+
+    public long getChecksum(int i) {
+        return _checksums[i];
+    }
+
+    public String toString() {
+        return super.toString() + "[checksums=" + size() + "]";
+    }
+}
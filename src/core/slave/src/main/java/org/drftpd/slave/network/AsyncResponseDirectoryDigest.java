@@ -0,0 +1,92 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.slave.network;
+
+import org.drftpd.common.network.AsyncResponse;
+import org.drftpd.common.slave.LightRemoteInode;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Digests of a directory for a digest remerge, with the listing of the directory when its list
+ * digest is not the one the master already knows.
+ *
+ * @version $Id$
+ */
+@SuppressWarnings("serial")
+public class AsyncResponseDirectoryDigest extends AsyncResponse {
+    private final String _path;
+
+    private final long _listDigest;
+
+    private final long _treeDigest;
+
+    private final Map<String, Long> _directories;
+
+    private final List<LightRemoteInode> _files;
+
+    private final long _lastModified;
+
+    public AsyncResponseDirectoryDigest(String index, String path, long listDigest, long treeDigest,
+                                        Map<String, Long> directories, List<LightRemoteInode> files, long lastModified) {
+        super(index);
+        _path = path;
+        _listDigest = listDigest;
+        _treeDigest = treeDigest;
+        _directories = directories;
+        _files = files;
+        _lastModified = lastModified;
+    }
+
+    public String getPath() {
+        return _path;
+    }
+
+    public long getListDigest() {
+        return _listDigest;
+    }
+
+    public long getTreeDigest() {
+        return _treeDigest;
+    }
+
+    /**
+     * @return the tree digests of the subdirectories by name
+     */
+    public Map<String, Long> getDirectories() {
+        return Collections.unmodifiableMap(_directories);
+    }
+
+    /**
+     * @return the listing of the directory, or null if the master already has it
+     */
+    public List<LightRemoteInode> getFiles() {
+        return _files == null ? null : Collections.unmodifiableList(_files);
+    }
+
+    public long getLastModified() {
+        return _lastModified;
+    }
+
+    public String toString() {
+        return getClass().getName() + "[path=" + getPath() + ",directories=" + _directories.size()
+                + ",listed=" + (_files != null) + "]";
+    }
+}
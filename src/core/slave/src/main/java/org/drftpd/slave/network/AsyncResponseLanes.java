@@ -0,0 +1,113 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.slave.network;
+
+import org.drftpd.common.network.AsyncResponse;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Queue depth and latency of the command lanes of a slave.
+ *
+ * @version $Id$
+ */
+@SuppressWarnings("serial")
+public class AsyncResponseLanes extends AsyncResponse {
+    private final List<LaneStatus> _lanes;
+
+    public AsyncResponseLanes(String index, List<LaneStatus> lanes) {
+        super(index);
+        _lanes = lanes;
+    }
+
+    public List<LaneStatus> getLanes() {
+        return _lanes;
+    }
+
+    public String toString() {
+        return super.toString() + "[lanes=" + _lanes + "]";
+    }
+
+    @SuppressWarnings("serial")
+    public static class LaneStatus implements Serializable {
+        private final String _name;
+
+        private final int _queueDepth;
+
+        private final int _activeCount;
+
+        private final int _maxThreads;
+
+        private final long _completedCount;
+
+        private final double _averageQueueMillis;
+
+        private final double _maxQueueMillis;
+
+        private final double _averageRunMillis;
+
+        public LaneStatus(String name, int queueDepth, int activeCount, int maxThreads, long completedCount,
+                          double averageQueueMillis, double maxQueueMillis, double averageRunMillis) {
+            _name = name;
+            _queueDepth = queueDepth;
+            _activeCount = activeCount;
+            _maxThreads = maxThreads;
+            _completedCount = completedCount;
+            _averageQueueMillis = averageQueueMillis;
+            _maxQueueMillis = maxQueueMillis;
+            _averageRunMillis = averageRunMillis;
+        }
+
+        public String getName() {
+            return _name;
+        }
+
+        public int getQueueDepth() {
+            return _queueDepth;
+        }
+
+        public int getActiveCount() {
+            return _activeCount;
+        }
+
+        public int getMaxThreads() {
+            return _maxThreads;
+        }
+
+        public long getCompletedCount() {
+            return _completedCount;
+        }
+
+        public double getAverageQueueMillis() {
+            return _averageQueueMillis;
+        }
+
+        public double getMaxQueueMillis() {
+            return _maxQueueMillis;
+        }
+
+        public double getAverageRunMillis() {
+            return _averageRunMillis;
+        }
+
+        public String toString() {
+            return "LaneStatus[name=" + _name + "][queued=" + _queueDepth + "][active=" + _activeCount + "]";
+        }
+    }
+}
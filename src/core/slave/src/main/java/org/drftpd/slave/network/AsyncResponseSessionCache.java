@@ -0,0 +1,50 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.slave.network;
+
+import org.drftpd.common.network.AsyncResponse;
+
+/**
+ * How many TLS handshakes of the transfers of a slave resumed a cached session.
+ *
+ * @version $Id$
+ */
+@SuppressWarnings("serial")
+public class AsyncResponseSessionCache extends AsyncResponse {
+    private final long _resumedSessions;
+
+    private final long _newSessions;
+
+    public AsyncResponseSessionCache(String index, long resumedSessions, long newSessions) {
+        super(index);
+        _resumedSessions = resumedSessions;
+        _newSessions = newSessions;
+    }
+
+    public long getResumedSessions() {
+        return _resumedSessions;
+    }
+
+    public long getNewSessions() {
+        return _newSessions;
+    }
+
+    public String toString() {
+        return super.toString() + "[resumed=" + _resumedSessions + "][full=" + _newSessions + "]";
+    }
+}
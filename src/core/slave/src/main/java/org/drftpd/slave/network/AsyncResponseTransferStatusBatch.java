@@ -0,0 +1,76 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.slave.network;
+
+import org.drftpd.common.network.AsyncResponse;
+import org.drftpd.common.slave.TransferIndex;
+import org.drftpd.common.slave.TransferStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Progress of all running transfers on a slave, sent once per tick instead of a
+ * {@link AsyncResponseTransferStatus} per transfer.
+ * Only unfinished transfers are included, final statuses are still sent one by one.
+ *
+ * @version $Id$
+ */
+@SuppressWarnings("serial")
+public class AsyncResponseTransferStatusBatch extends AsyncResponse {
+    private final int[] _indexes;
+
+    private final long[] _elapsed;
+
+    private final long[] _transfered;
+
+    private final long[] _checksums;
+
+    public AsyncResponseTransferStatusBatch(List<TransferStatus> statuses) {
+        super("TransferStatusBatch");
+        int size = statuses.size();
+        _indexes = new int[size];
+        _elapsed = new long[size];
+        _transfered = new long[size];
+        _checksums = new long[size];
+        for (int i = 0; i < size; i++) {
+            TransferStatus ts = statuses.get(i);
+            _indexes[i] = ts.getTransferIndex().getIndex();
+            _elapsed[i] = ts.getElapsed();
+            _transfered[i] = ts.getTransfered();
+            _checksums[i] = ts.getChecksum();
+        }
+    }
+
+    public int size() {
+        return _indexes.length;
+    }
+
+    public List<TransferStatus> getTransferStatuses() {
+        List<TransferStatus> statuses = new ArrayList<>(_indexes.length);
+        for (int i = 0; i < _indexes.length; i++) {
+            statuses.add(new TransferStatus(_elapsed[i], _transfered[i], _checksums[i], false,
+                    new TransferIndex(_indexes[i])));
+        }
+        return statuses;
+    }
+
+    public String toString() {
+        return super.toString() + "[transfers=" + size() + "]";
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.slave.network;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the named {@link TokenBucket}s of a slave and charges transfers against them.
+ * <p>
+ * A transfer is charged against a list of buckets, usually its own bucket, the buckets
+ * for its user/group/section as sent by the master and the slave wide bucket for its direction.
+ * All buckets in the list are charged at once and the transfer waits for the slowest of them,
+ * so every level of the hierarchy is enforced without transfers having to lock buckets one by one.
+ * <p>
+ * Limits are given as specs in the form <code>name=bytesPerSecond;name=bytesPerSecond</code>,
+ * a rate of 0 is unlimited and a negative rate restores the slave.conf setting.
+ * <p>
+ * Buckets of users, groups and sections are dropped again once no transfer uses them
+ * and they are unlimited or full, so they do not pile up over the lifetime of the slave.
+ *
+ * @version $Id$
+ */
+public class BandwidthScheduler {
+    private static final Logger logger = LogManager.getLogger(BandwidthScheduler.class);
+
+    public static final String SLAVE_UPLOAD = "slave.upload";
+
+    public static final String SLAVE_DOWNLOAD = "slave.download";
+
+    private final Map<String, TokenBucket> _buckets = new HashMap<>();
+
+    private final Map<String, Long> _defaults = new HashMap<>();
+
+    // number of running transfers charged against each bucket
+    private final Map<String, Integer> _references = new HashMap<>();
+
+    public BandwidthScheduler() {
+    }
+
+    /**
+     * Sets a limit which is restored whenever a negative rate is given for the bucket
+     */
+    public synchronized void setDefaultLimit(String name, long bytesPerSecond) {
+        _defaults.put(name, bytesPerSecond);
+        setLimit(name, bytesPerSecond);
+    }
+
+    /**
+     * @return the bucket with the given name, an unlimited one is created if it did not exist yet
+     */
+    public synchronized TokenBucket getBucket(String name) {
+        return _buckets.computeIfAbsent(name, n -> new TokenBucket(n, _defaults.getOrDefault(n, 0L)));
+    }
+
+    public synchronized TokenBucket setLimit(String name, long bytesPerSecond) {
+        TokenBucket bucket = getBucket(name);
+        if (bytesPerSecond < 0) {
+            bytesPerSecond = _defaults.getOrDefault(name, 0L);
+        }
+        if (bucket.getBytesPerSecond() != bytesPerSecond) {
+            logger.debug("Setting bandwidth for {} to {} bytes/s", name, bytesPerSecond);
+            bucket.setBytesPerSecond(bytesPerSecond);
+        }
+        return bucket;
+    }
+
+    /**
+     * Applies all limits in the spec, like the shares the master sends while transfers are running.
+     *
+     * @return the buckets named in the spec, in order
+     */
+    public synchronized List<TokenBucket> setLimits(String spec) {
+        List<TokenBucket> buckets = applyLimits(spec);
+        prune();
+        return buckets;
+    }
+
+    /**
+     * Applies all limits in the spec for a transfer, the buckets are kept until they are released again.
+     *
+     * @return the buckets named in the spec, in order
+     */
+    public synchronized List<TokenBucket> acquire(String spec) {
+        List<TokenBucket> buckets = applyLimits(spec);
+        for (TokenBucket bucket : buckets) {
+            _references.merge(bucket.getName(), 1, Integer::sum);
+        }
+        return buckets;
+    }
+
+    /**
+     * Releases buckets returned by {@link #acquire(String)} once the transfer is done
+     */
+    public synchronized void release(List<TokenBucket> buckets) {
+        for (TokenBucket bucket : buckets) {
+            _references.computeIfPresent(bucket.getName(), (name, count) -> count > 1 ? count - 1 : null);
+        }
+        prune();
+    }
+
+    private void prune() {
+        long now = System.nanoTime();
+        _buckets.values().removeIf(bucket -> !_defaults.containsKey(bucket.getName())
+                && !_references.containsKey(bucket.getName()) && bucket.isIdle(now));
+    }
+
+    private List<TokenBucket> applyLimits(String spec) {
+        if (spec == null || spec.isBlank()) {
+            return Collections.emptyList();
+        }
+        List<TokenBucket> buckets = new ArrayList<>();
+        for (String limit : spec.split(";")) {
+            if (limit.isBlank()) {
+                continue;
+            }
+            int pos = limit.lastIndexOf('=');
+            if (pos < 1) {
+                logger.warn("Ignoring malformed bandwidth limit '{}'", limit);
+                continue;
+            }
+            try {
+                buckets.add(setLimit(limit.substring(0, pos).trim(), Long.parseLong(limit.substring(pos + 1).trim())));
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring malformed bandwidth limit '{}'", limit);
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * Charges <code>bytes</code> against all given buckets.
+     *
+     * @return nanoseconds the caller has to wait before sending more data
+     */
+    public long reserve(List<TokenBucket> buckets, long bytes) {
+        long now = System.nanoTime();
+        long wait = 0;
+        synchronized (this) {
+            for (TokenBucket bucket : buckets) {
+                wait = Math.max(wait, bucket.take(bytes, now));
+            }
+        }
+        return wait;
+    }
+
+    public synchronized Collection<TokenBucket> getBuckets() {
+        return new ArrayList<>(_buckets.values());
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.slave.network;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Slave wide pool of reusable transfer buffers.
+ * <p>
+ * At most <code>maxBuffers</code> buffers are kept by the pool, when all of them are in use
+ * a temporary buffer is handed out which is dropped again when it is released.
+ * The counters can be used to see if bursts of transfers exceed the pool.
+ *
+ * @version $Id$
+ */
+public class ByteBufferPool {
+    private static final Logger logger = LogManager.getLogger(ByteBufferPool.class);
+
+    private final String _name;
+
+    private final int _bufferSize;
+
+    private final int _maxBuffers;
+
+    private final boolean _direct;
+
+    private final ConcurrentLinkedDeque<ByteBuffer> _free = new ConcurrentLinkedDeque<>();
+
+    private final AtomicInteger _freeCount = new AtomicInteger();
+
+    private final AtomicInteger _created = new AtomicInteger();
+
+    private final AtomicInteger _inUse = new AtomicInteger();
+
+    private final AtomicInteger _peakInUse = new AtomicInteger();
+
+    private final AtomicLong _acquired = new AtomicLong();
+
+    private final AtomicLong _overflows = new AtomicLong();
+
+    private final AtomicBoolean _exhausted = new AtomicBoolean();
+
+    public ByteBufferPool(String name, int bufferSize, int maxBuffers, boolean direct) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size for pool " + name + " must be positive");
+        }
+        if (maxBuffers < 0) {
+            throw new IllegalArgumentException("Buffer count for pool " + name + " cannot be negative");
+        }
+        _name = name;
+        _bufferSize = bufferSize;
+        _maxBuffers = maxBuffers;
+        _direct = direct;
+    }
+
+    /**
+     * @return a cleared buffer of {@link #getBufferSize()} bytes, must be given back using {@link #release(ByteBuffer)}
+     */
+    public ByteBuffer acquire() {
+        _acquired.incrementAndGet();
+        int inUse = _inUse.incrementAndGet();
+        _peakInUse.accumulateAndGet(inUse, Math::max);
+
+        ByteBuffer buffer = _free.pollFirst();
+        if (buffer != null) {
+            _freeCount.decrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+
+        int created;
+        do {
+            created = _created.get();
+            if (created >= _maxBuffers) {
+                _overflows.incrementAndGet();
+                if (_exhausted.compareAndSet(false, true)) {
+                    logger.warn("Buffer pool {} exhausted with {} buffers in use, allocating temporary buffers", _name, inUse);
+                }
+                return allocate();
+            }
+        } while (!_created.compareAndSet(created, created + 1));
+
+        return allocate();
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (_inUse.decrementAndGet() < _maxBuffers && _exhausted.compareAndSet(true, false)) {
+            logger.info("Buffer pool {} is no longer exhausted", _name);
+        }
+        if (buffer.capacity() != _bufferSize || buffer.isDirect() != _direct) {
+            // not one of ours
+            return;
+        }
+
+        // never keep more buffers than we created, temporary buffers fill the gaps left by pooled ones that are dropped
+        int free;
+        do {
+            free = _freeCount.get();
+            if (free >= _created.get()) {
+                return;
+            }
+        } while (!_freeCount.compareAndSet(free, free + 1));
+        _free.offerFirst(buffer);
+    }
+
+    private ByteBuffer allocate() {
+        return _direct ? ByteBuffer.allocateDirect(_bufferSize) : ByteBuffer.allocate(_bufferSize);
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public int getBufferSize() {
+        return _bufferSize;
+    }
+
+    public int getMaxBuffers() {
+        return _maxBuffers;
+    }
+
+    public boolean isDirect() {
+        return _direct;
+    }
+
+    /**
+     * @return the number of buffers currently owned by the pool
+     */
+    public int getAllocated() {
+        return _created.get();
+    }
+
+    public int getFree() {
+        return _freeCount.get();
+    }
+
+    public int getInUse() {
+        return _inUse.get();
+    }
+
+    public int getPeakInUse() {
+        return _peakInUse.get();
+    }
+
+    public long getAcquireCount() {
+        return _acquired.get();
+    }
+
+    /**
+     * @return how many times a temporary buffer had to be allocated because the pool was exhausted
+     */
+    public long getOverflowCount() {
+        return _overflows.get();
+    }
+
+    public String toString() {
+        return "ByteBufferPool[name=" + _name + "][bufferSize=" + _bufferSize + "][maxBuffers=" + _maxBuffers
+                + "][allocated=" + getAllocated() + "][free=" + getFree() + "][inUse=" + getInUse()
+                + "][peakInUse=" + getPeakInUse() + "][acquired=" + getAcquireCount()
+                + "][overflows=" + getOverflowCount() + "]";
+    }
+}
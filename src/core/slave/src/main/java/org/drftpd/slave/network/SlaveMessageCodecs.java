@@ -0,0 +1,321 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.slave.network;
+
+import org.drftpd.common.network.codec.MessageCodec;
+import org.drftpd.common.network.codec.MessageCodecProvider;
+import org.drftpd.common.slave.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.drftpd.common.network.codec.WireFormat.*;
+
+/**
+ * Codecs for the responses of the slave.
+ * <p>
+ * Remerge responses make up most of the traffic when a slave connects, their user and group
+ * names are written once per response and referenced by number afterwards.
+ *
+ * @version $Id$
+ */
+public class SlaveMessageCodecs implements MessageCodecProvider {
+
+    public List<MessageCodec<?>> getCodecs() {
+        return List.of(
+                MessageCodec.of(AsyncResponseBufferPools.class,
+                        SlaveMessageCodecs::writeBufferPools,
+                        SlaveMessageCodecs::readBufferPools),
+                MessageCodec.of(AsyncResponseChecksum.class,
+                        (ar, out) -> {
+                            writeString(out, ar.getIndex());
+                            out.writeLong(ar.getChecksum());
+                        },
+                        in -> new AsyncResponseChecksum(readString(in), in.readLong())),
+                MessageCodec.of(AsyncResponseChecksums.class,
+                        (ar, out) -> {
+                            writeString(out, ar.getIndex());
+                            writeVarInt(out, ar.size());
+                            for (int i = 0; i < ar.size(); i++) {
+                                writeString(out, ar.getPath(i));
+                                out.writeLong(ar.getChecksum(i));
+                            }
+                        },
+                        in -> {
+                            String index = readString(in);
+                            int size = readVarInt(in);
+                            String[] paths = new String[size];
+                            long[] checksums = new long[size];
+                            for (int i = 0; i < size; i++) {
+                                paths[i] = readString(in);
+                                checksums[i] = in.readLong();
+                            }
+                            return new AsyncResponseChecksums(index, paths, checksums);
+                        }),
+                MessageCodec.of(AsyncResponseDiskStatus.class,
+                        (ar, out) -> {
+                            out.writeLong(ar.getDiskStatus().getBytesAvailable());
+                            out.writeLong(ar.getDiskStatus().getBytesCapacity());
+                        },
+                        in -> new AsyncResponseDiskStatus(new DiskStatus(in.readLong(), in.readLong()))),
+                MessageCodec.of(AsyncResponseMaxPath.class,
+                        (ar, out) -> {
+                            writeString(out, ar.getIndex());
+                            out.writeInt(ar.getMaxPath());
+                        },
+                        in -> new AsyncResponseMaxPath(readString(in), in.readInt())),
+                MessageCodec.of(AsyncResponseSSLCheck.class,
+                        (ar, out) -> {
+                            writeString(out, ar.getIndex());
+                            out.writeBoolean(ar.isSSLReady());
+                        },
+                        in -> new AsyncResponseSSLCheck(readString(in), in.readBoolean())),
+                MessageCodec.of(AsyncResponseLanes.class,
+                        SlaveMessageCodecs::writeLanes,
+                        SlaveMessageCodecs::readLanes),
+                MessageCodec.of(AsyncResponseSessionCache.class,
+                        (ar, out) -> {
+                            writeString(out, ar.getIndex());
+                            out.writeLong(ar.getResumedSessions());
+                            out.writeLong(ar.getNewSessions());
+                        },
+                        in -> new AsyncResponseSessionCache(readString(in), in.readLong(), in.readLong())),
+                MessageCodec.of(AsyncResponseSiteBotMessage.class,
+                        (ar, out) -> writeString(out, ar.getMessage()),
+                        in -> new AsyncResponseSiteBotMessage(readString(in))),
+                MessageCodec.of(AsyncResponseTransfer.class,
+                        (ar, out) -> {
+                            ConnectInfo ci = ar.getConnectInfo();
+                            writeString(out, ar.getIndex());
+                            out.writeInt(ci.getPort());
+                            out.writeInt(ci.getTransferIndex().getIndex());
+                            writeTransferStatus(out, ci.getTransferStatus());
+                        },
+                        in -> new AsyncResponseTransfer(readString(in), new ConnectInfo(in.readInt(),
+                                new TransferIndex(in.readInt()), readTransferStatus(in)))),
+                MessageCodec.of(AsyncResponseTransferStatus.class,
+                        (ar, out) -> writeTransferStatus(out, ar.getTransferStatus()),
+                        in -> new AsyncResponseTransferStatus(readTransferStatus(in))),
+                MessageCodec.of(AsyncResponseTransferStatusBatch.class,
+                        (ar, out) -> {
+                            List<TransferStatus> statuses = ar.getTransferStatuses();
+                            writeVarInt(out, statuses.size());
+                            for (TransferStatus ts : statuses) {
+                                out.writeInt(ts.getTransferIndex().getIndex());
+                                out.writeLong(ts.getElapsed());
+                                out.writeLong(ts.getTransfered());
+                                out.writeLong(ts.getChecksum());
+                            }
+                        },
+                        in -> {
+                            int size = readVarInt(in);
+                            List<TransferStatus> statuses = new ArrayList<>(size);
+                            for (int i = 0; i < size; i++) {
+                                TransferIndex transferIndex = new TransferIndex(in.readInt());
+                                statuses.add(new TransferStatus(in.readLong(), in.readLong(), in.readLong(),
+                                        false, transferIndex));
+                            }
+                            return new AsyncResponseTransferStatusBatch(statuses);
+                        }),
+                MessageCodec.of(AsyncResponseRemerge.class,
+                        SlaveMessageCodecs::writeRemerge,
+                        SlaveMessageCodecs::readRemerge),
+                MessageCodec.of(AsyncResponseDirectoryDigest.class,
+                        SlaveMessageCodecs::writeDirectoryDigest,
+                        SlaveMessageCodecs::readDirectoryDigest));
+    }
+
+    private static void writeTransferStatus(DataOutputStream out, TransferStatus ts) throws IOException {
+        out.writeInt(ts.getTransferIndex().getIndex());
+        out.writeBoolean(ts.threwException());
+        if (ts.threwException()) {
+            writeSerializable(out, ts.getThrowable());
+            return;
+        }
+        out.writeLong(ts.getElapsed());
+        out.writeLong(ts.getTransfered());
+        out.writeLong(ts.getChecksum());
+        out.writeBoolean(ts.isFinished());
+    }
+
+    private static TransferStatus readTransferStatus(DataInputStream in) throws IOException {
+        TransferIndex transferIndex = new TransferIndex(in.readInt());
+        if (in.readBoolean()) {
+            return new TransferStatus(transferIndex, (Throwable) readSerializable(in));
+        }
+        return new TransferStatus(in.readLong(), in.readLong(), in.readLong(), in.readBoolean(), transferIndex);
+    }
+
+    private static void writeBufferPools(AsyncResponseBufferPools ar, DataOutputStream out) throws IOException {
+        writeString(out, ar.getIndex());
+        writeVarInt(out, ar.getPools().size());
+        for (AsyncResponseBufferPools.BufferPoolStatus pool : ar.getPools()) {
+            writeString(out, pool.getName());
+            out.writeBoolean(pool.isDirect());
+            writeVarInt(out, pool.getBufferSize());
+            writeVarInt(out, pool.getMaxBuffers());
+            writeVarInt(out, pool.getAllocated());
+            writeVarInt(out, pool.getFree());
+            writeVarInt(out, pool.getInUse());
+            writeVarInt(out, pool.getPeakInUse());
+            out.writeLong(pool.getAcquireCount());
+            out.writeLong(pool.getOverflowCount());
+        }
+    }
+
+    private static AsyncResponseBufferPools readBufferPools(DataInputStream in) throws IOException {
+        String index = readString(in);
+        int size = readVarInt(in);
+        List<AsyncResponseBufferPools.BufferPoolStatus> pools = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            pools.add(new AsyncResponseBufferPools.BufferPoolStatus(readString(in), in.readBoolean(), readVarInt(in),
+                    readVarInt(in), readVarInt(in), readVarInt(in), readVarInt(in), readVarInt(in), in.readLong(),
+                    in.readLong()));
+        }
+        return new AsyncResponseBufferPools(index, pools);
+    }
+
+    private static void writeLanes(AsyncResponseLanes ar, DataOutputStream out) throws IOException {
+        writeString(out, ar.getIndex());
+        writeVarInt(out, ar.getLanes().size());
+        for (AsyncResponseLanes.LaneStatus lane : ar.getLanes()) {
+            writeString(out, lane.getName());
+            writeVarInt(out, lane.getQueueDepth());
+            writeVarInt(out, lane.getActiveCount());
+            writeVarInt(out, lane.getMaxThreads());
+            out.writeLong(lane.getCompletedCount());
+            out.writeDouble(lane.getAverageQueueMillis());
+            out.writeDouble(lane.getMaxQueueMillis());
+            out.writeDouble(lane.getAverageRunMillis());
+        }
+    }
+
+    private static AsyncResponseLanes readLanes(DataInputStream in) throws IOException {
+        String index = readString(in);
+        int size = readVarInt(in);
+        List<AsyncResponseLanes.LaneStatus> lanes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            lanes.add(new AsyncResponseLanes.LaneStatus(readString(in), readVarInt(in), readVarInt(in),
+                    readVarInt(in), in.readLong(), in.readDouble(), in.readDouble(), in.readDouble()));
+        }
+        return new AsyncResponseLanes(index, lanes);
+    }
+
+    private static void writeRemerge(AsyncResponseRemerge ar, DataOutputStream out) throws IOException {
+        writeString(out, ar.getPath());
+        out.writeLong(ar.getLastModified());
+        writeInodes(out, ar.getFiles());
+    }
+
+    private static AsyncResponseRemerge readRemerge(DataInputStream in) throws IOException {
+        String path = readString(in);
+        long lastModified = in.readLong();
+        return new AsyncResponseRemerge(path, readInodes(in), lastModified);
+    }
+
+    private static void writeDirectoryDigest(AsyncResponseDirectoryDigest ar, DataOutputStream out) throws IOException {
+        writeString(out, ar.getIndex());
+        writeString(out, ar.getPath());
+        out.writeLong(ar.getListDigest());
+        out.writeLong(ar.getTreeDigest());
+        out.writeLong(ar.getLastModified());
+        writeVarInt(out, ar.getDirectories().size());
+        for (Map.Entry<String, Long> entry : ar.getDirectories().entrySet()) {
+            writeString(out, entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+        out.writeBoolean(ar.getFiles() != null);
+        if (ar.getFiles() != null) {
+            writeInodes(out, ar.getFiles());
+        }
+    }
+
+    private static AsyncResponseDirectoryDigest readDirectoryDigest(DataInputStream in) throws IOException {
+        String index = readString(in);
+        String path = readString(in);
+        long listDigest = in.readLong();
+        long treeDigest = in.readLong();
+        long lastModified = in.readLong();
+        int size = readVarInt(in);
+        Map<String, Long> directories = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            directories.put(readString(in), in.readLong());
+        }
+        List<LightRemoteInode> files = in.readBoolean() ? readInodes(in) : null;
+        return new AsyncResponseDirectoryDigest(index, path, listDigest, treeDigest, directories, files, lastModified);
+    }
+
+    private static void writeInodes(DataOutputStream out, List<LightRemoteInode> files) throws IOException {
+        writeVarInt(out, files.size());
+        Map<String, Integer> names = new HashMap<>();
+        for (LightRemoteInode inode : files) {
+            writeString(out, inode.getName());
+            out.writeBoolean(inode.isDirectory());
+            out.writeLong(inode.lastModified());
+            out.writeLong(inode.length());
+            writeName(out, names, inode.getUsername());
+            writeName(out, names, inode.getGroup());
+        }
+    }
+
+    private static List<LightRemoteInode> readInodes(DataInputStream in) throws IOException {
+        int size = readVarInt(in);
+        List<LightRemoteInode> files = new ArrayList<>(size);
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            String name = readString(in);
+            boolean isDirectory = in.readBoolean();
+            long inodeLastModified = in.readLong();
+            long length = in.readLong();
+            String username = readName(in, names);
+            String group = readName(in, names);
+            files.add(new LightRemoteInode(name, username, group, isDirectory, inodeLastModified, length));
+        }
+        return files;
+    }
+
+    private static void writeName(DataOutputStream out, Map<String, Integer> names, String name) throws IOException {
+        Integer reference = names.get(name);
+        if (reference != null) {
+            writeVarInt(out, reference);
+            return;
+        }
+        writeVarInt(out, 0);
+        writeString(out, name);
+        names.put(name, names.size() + 1);
+    }
+
+    private static String readName(DataInputStream in, List<String> names) throws IOException {
+        int reference = readVarInt(in);
+        if (reference == 0) {
+            String name = readString(in);
+            names.add(name);
+            return name;
+        }
+        if (reference > names.size()) {
+            throw new IOException("Invalid name reference " + reference);
+        }
+        return names.get(reference - 1);
+    }
+}
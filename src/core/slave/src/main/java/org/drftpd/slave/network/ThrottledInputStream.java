@@ -19,24 +19,33 @@ package org.drftpd.slave.network;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
 
+/**
+ * Counts the bytes read and makes the reader wait until the {@link TokenBucket}s
+ * the stream is charged against allow for more data.
+ */
 public class ThrottledInputStream extends InputStream {
     private long _counter;
     private final InputStream _in;
-    private long _lastCounter;
-    private long _lastMillis;
-    private long _maxBytesPerSecond;
+    private final BandwidthScheduler _scheduler;
+    private final List<TokenBucket> _buckets;
     private final Object _monitor;
 
-    public ThrottledInputStream(InputStream input, long maximumBytesPerSecond) {
+    public ThrottledInputStream(InputStream input, BandwidthScheduler scheduler, List<TokenBucket> buckets) {
         _in = input;
-        setMaxBytesPerSecond(maximumBytesPerSecond);
-        _lastMillis = System.currentTimeMillis();
+        _scheduler = scheduler;
+        _buckets = buckets;
         _monitor = new Object();
     }
 
+    public ThrottledInputStream(InputStream input, long maximumBytesPerSecond) {
+        this(input, new BandwidthScheduler(), Collections.singletonList(new TokenBucket("stream", maximumBytesPerSecond)));
+    }
+
     public ThrottledInputStream(InputStream input) {
-        this(input, Long.MAX_VALUE);
+        this(input, 0L);
     }
 
     @Override
@@ -57,7 +66,7 @@ public class ThrottledInputStream extends InputStream {
         int result = _in.read();
         if (result != -1) {
             _counter++;
-            waitIfNecessary();
+            waitIfNecessary(1);
         }
         return result;
     }
@@ -67,7 +76,7 @@ public class ThrottledInputStream extends InputStream {
         int result = _in.read(b);
         if (result > 0) {
             _counter += result;
-            waitIfNecessary();
+            waitIfNecessary(result);
         }
         return result;
     }
@@ -77,20 +86,25 @@ public class ThrottledInputStream extends InputStream {
         int result = _in.read(b, off, len);
         if (result > 0) {
             _counter += result;
-            waitIfNecessary();
+            waitIfNecessary(result);
         }
         return result;
     }
 
-    public void resetCounter() {
-        setCounter(0);
+    /**
+     * Accounts for bytes that were moved without passing through this stream,
+     * for example by {@link java.nio.channels.FileChannel#transferTo}, and
+     * throttles accordingly.
+     */
+    public void addCounter(long count) {
+        if (count > 0) {
+            _counter += count;
+            waitIfNecessary(count);
+        }
     }
 
-    public void setMaxBytesPerSecond(long maxBytes) {
-        if (maxBytes < 0) {
-            throw new IllegalArgumentException("Maximum bytes per second must be at least one.");
-        }
-        _maxBytesPerSecond = maxBytes;
+    public void resetCounter() {
+        setCounter(0);
     }
 
     @Override
@@ -104,26 +118,16 @@ public class ThrottledInputStream extends InputStream {
         }
     }
 
-    private void waitIfNecessary() {
-        if (_maxBytesPerSecond == 0) {
-            return;
-        }
-
-        long diffBytes = _counter - _lastCounter;
-        long millis = System.currentTimeMillis();
-        long diffMillis = millis - _lastMillis;
-        long waitMillis = (1000 * diffBytes - diffMillis * _maxBytesPerSecond) / _maxBytesPerSecond;
+    private void waitIfNecessary(long bytes) {
+        long waitNanos = _scheduler.reserve(_buckets, bytes);
 
-        if (waitMillis > 0) {
+        if (waitNanos > 0) {
             synchronized (_monitor) {
                 try {
-                    _monitor.wait(waitMillis);
+                    _monitor.wait(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
                 } catch (InterruptedException ie) {
                 }
             }
         }
-
-        _lastCounter = _counter;
-        _lastMillis = System.currentTimeMillis();
     }
 }
@@ -0,0 +1,138 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.slave.network;
+
+/**
+ * A token bucket refilled at a fixed number of bytes per second.
+ * <p>
+ * Tokens are taken before the caller knows whether enough are available, a bucket
+ * can therefore go into debt and the caller has to wait until the debt is repaid.
+ * Transfers sharing a bucket queue up behind each other's debt which shares the rate
+ * evenly between them, while a single transfer can use the whole rate on its own.
+ * <p>
+ * Buckets are not thread safe by themselves, all access goes through {@link BandwidthScheduler}.
+ *
+ * @version $Id$
+ */
+public class TokenBucket {
+
+    /**
+     * How long a bucket may sit idle and still have its tokens spent in one burst
+     */
+    private static final long BURST_NANOS = 250_000_000L;
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final String _name;
+
+    private long _bytesPerSecond;
+
+    private double _tokens;
+
+    private long _lastRefill;
+
+    private long _consumed;
+
+    public TokenBucket(String name, long bytesPerSecond) {
+        _name = name;
+        _lastRefill = System.nanoTime();
+        setBytesPerSecond(bytesPerSecond);
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * @return the rate of this bucket, 0 meaning unlimited
+     */
+    public long getBytesPerSecond() {
+        return _bytesPerSecond;
+    }
+
+    public long getConsumed() {
+        return _consumed;
+    }
+
+    public boolean isUnlimited() {
+        return _bytesPerSecond == 0;
+    }
+
+    void setBytesPerSecond(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Bandwidth for " + _name + " cannot be negative");
+        }
+        long now = System.nanoTime();
+        boolean wasUnlimited = isUnlimited();
+        refill(now);
+        _bytesPerSecond = bytesPerSecond;
+        if (wasUnlimited) {
+            // an unlimited bucket never went into debt, start out full
+            _tokens = getCapacity();
+        } else {
+            // keep the debt, rate changes must not hand out a fresh burst
+            _tokens = Math.min(_tokens, getCapacity());
+        }
+        _lastRefill = now;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - _lastRefill;
+        if (elapsed > 0 && !isUnlimited()) {
+            _tokens = Math.min(getCapacity(), _tokens + (double) elapsed * _bytesPerSecond / NANOS_PER_SECOND);
+            _lastRefill = now;
+        }
+    }
+
+    /**
+     * @return true if the bucket is unlimited or full again, a new bucket with the same rate would behave the same
+     */
+    boolean isIdle(long now) {
+        if (isUnlimited()) {
+            return true;
+        }
+        long elapsed = Math.max(0, now - _lastRefill);
+        return _tokens + (double) elapsed * _bytesPerSecond / NANOS_PER_SECOND >= getCapacity();
+    }
+
+    private double getCapacity() {
+        return (double) _bytesPerSecond * BURST_NANOS / NANOS_PER_SECOND;
+    }
+
+    /**
+     * Takes <code>bytes</code> tokens from the bucket.
+     *
+     * @return nanoseconds until the bucket is out of debt again
+     */
+    long take(long bytes, long now) {
+        _consumed += bytes;
+        if (isUnlimited()) {
+            return 0;
+        }
+        refill(now);
+        _tokens -= bytes;
+        if (_tokens >= 0) {
+            return 0;
+        }
+        return (long) (-_tokens * NANOS_PER_SECOND / _bytesPerSecond);
+    }
+
+    public String toString() {
+        return "TokenBucket[name=" + _name + "][bytesPerSecond=" + _bytesPerSecond + "][consumed=" + _consumed + "]";
+    }
+}
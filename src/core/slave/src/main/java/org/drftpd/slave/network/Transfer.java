@@ -28,15 +28,26 @@ import org.drftpd.common.network.PassiveConnection;
 import org.drftpd.common.slave.Connection;
 import org.drftpd.common.slave.TransferIndex;
 import org.drftpd.common.slave.TransferStatus;
+import org.drftpd.common.util.Crc32Combine;
 import org.drftpd.common.util.HostMask;
 import org.drftpd.slave.Slave;
 import org.drftpd.slave.exceptions.FileExistsException;
 import org.drftpd.slave.exceptions.ObjectNotFoundException;
+import org.drftpd.slave.vfs.ChecksumCheckpoints;
 
 import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.regex.PatternSyntaxException;
 import java.util.zip.CRC32;
 import java.util.zip.CheckedInputStream;
@@ -52,25 +63,57 @@ public class Transfer {
     public static final char TRANSFER_UNKNOWN = 'U';
     private static final Logger logger = LogManager.getLogger(Transfer.class);
     private static final String separator = "/";
+    private static final long ZEROCOPY_CHUNK_SIZE = 1024 * 1024;
     private String _abortReason = null;
     private CRC32 _checksum = null;
+    /**
+     * CRC32 of the part of the file before the resume position, <code>_checksum</code> only covers what is transferred
+     */
+    private long _checksumPrefix = 0;
+    private long _checksumOffset = 0;
+    private ChecksumCheckpoints.Checkpoints _checkpoints;
+    private long _nextCheckpoint;
+    private String _checkpointPath;
+    private File _checkpointFile;
+    private long _checkpointModified;
     private Connection _conn;
     private char _direction;
-    private long _finished = 0;
+    private volatile long _finished = 0;
     private ThrottledInputStream _int;
     private InputStream _in;
     private final char _mode = 'I';
     private OutputStream _out;
     private final Slave _slave;
     private Socket _sock;
+    private volatile Selector _selector;
     private long _started = 0;
-    private long _transfered = 0;
+    private volatile long _transfered = 0;
     private final TransferIndex _transferIndex;
     private String _pathForUpload = null;
+    /**
+     * Notified whenever an upload has written more data or is finished, downloads
+     * of the file being uploaded wait on it instead of polling
+     */
+    private final Object _uploadProgress = new Object();
+    private final List<Runnable> _uploadListeners = new ArrayList<>();
+    private Transfer _associatedUpload = null;
+
+    // state of transfers running on the TransferReactor
+    private volatile TransferReactor.Registration _registration;
+    private FileChannel _file;
+    private long _position;
+    private List<TokenBucket> _buckets;
+    private long _timeoutNanos;
+    private long _lastIO;
+    private long _lastCheck;
     private long _minSpeed = 0L;
 
     private long _maxSpeed = 0L;
 
+    private long _allocateSize = 0L;
+
+    private List<TokenBucket> _bandwidthBuckets = Collections.emptyList();
+
     /**
      * Start undefined transfer.
      */
@@ -105,6 +148,16 @@ public class Transfer {
             if (_int != null) {
                 _int.wake();
             }
+            if (_selector != null) {
+                _selector.wakeup();
+            }
+            if (_associatedUpload != null) {
+                _associatedUpload.notifyUploadProgress();
+            }
+            notifyUploadProgress();
+            if (_registration != null) {
+                _registration.wakeup();
+            }
 
         } finally {
             if (_conn != null) {
@@ -135,8 +188,11 @@ public class Transfer {
         if (_checksum == null) {
             return 0;
         }
+        if (_checksumOffset == 0) {
+            return _checksum.getValue();
+        }
 
-        return _checksum.getValue();
+        return Crc32Combine.combine(_checksumPrefix, _checksum.getValue(), _transfered);
     }
 
     public long getElapsed() {
@@ -165,6 +221,13 @@ public class Transfer {
                 isFinished(), getTransferIndex());
     }
 
+    /**
+     * @return true if data is being moved, so between the start and the end of the transfer loop
+     */
+    public boolean isTransfering() {
+        return _started != 0 && !isFinished();
+    }
+
     public boolean isFinished() {
         return (_finished != 0 || _abortReason != null);
     }
@@ -178,15 +241,64 @@ public class Transfer {
     }
 
     private Transfer getUploadForPath(String path) throws ObjectNotFoundException {
-        for (Transfer transfer : _slave.getTransfersList()) {
-            if (!transfer.isReceivingUploading()) {
-                continue;
+        Transfer transfer = _slave.getUploadForPath(path);
+        if (transfer == null) {
+            throw new ObjectNotFoundException("Transfer not found");
+        }
+        return transfer;
+    }
+
+    private void notifyUploadProgress() {
+        synchronized (_uploadProgress) {
+            _uploadProgress.notifyAll();
+            if (!_uploadListeners.isEmpty()) {
+                for (Runnable listener : _uploadListeners) {
+                    listener.run();
+                }
+                _uploadListeners.clear();
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes at the start of the file that downloads following this upload can read,
+     * {@link Long#MAX_VALUE} once the upload is done and the file has its final size
+     */
+    private long getFollowLimit() {
+        return _finished != 0 ? Long.MAX_VALUE : _transfered;
+    }
+
+    /**
+     * Non blocking variant of {@link #awaitUploadProgress(long)}, <code>listener</code> is run once
+     * when this upload has written more than <code>transfered</code> bytes or is finished.
+     *
+     * @return false if that already happened and the listener was not added
+     */
+    private boolean addUploadListener(long transfered, Runnable listener) {
+        synchronized (_uploadProgress) {
+            if (_transfered != transfered || isFinished()) {
+                return false;
             }
-            if (transfer._pathForUpload.equalsIgnoreCase(path)) {
-                return transfer;
+            _uploadListeners.add(listener);
+            return true;
+        }
+    }
+
+    /**
+     * Waits until this upload has written more than <code>transfered</code> bytes or is finished.
+     *
+     * @param transfered the value of {@link #getTransfered()} seen before the download ran out of data
+     */
+    private void awaitUploadProgress(long transfered) {
+        synchronized (_uploadProgress) {
+            if (_transfered == transfered && !isFinished()) {
+                try {
+                    // the timeout only guards against missed wakeups
+                    _uploadProgress.wait(1000);
+                } catch (InterruptedException e) {
+                }
             }
         }
-        throw new ObjectNotFoundException("Transfer not found");
     }
 
     public int getXferSpeed() {
@@ -219,6 +331,44 @@ public class Transfer {
         _maxSpeed = maxSpeed;
     }
 
+    /**
+     * @param allocateSize size the client announced for the upload (ALLO), 0 if unknown
+     */
+    public void setAllocateSize(long allocateSize) {
+        _allocateSize = allocateSize;
+    }
+
+    /**
+     * Charges this transfer against the buckets in the spec sent by the master,
+     * see {@link BandwidthScheduler#setLimits(String)}
+     */
+    public void setBandwidthLimits(String spec) {
+        releaseBandwidthLimits();
+        _bandwidthBuckets = _slave.getBandwidthScheduler().acquire(spec);
+    }
+
+    private synchronized void releaseBandwidthLimits() {
+        if (!_bandwidthBuckets.isEmpty()) {
+            _slave.getBandwidthScheduler().release(_bandwidthBuckets);
+            _bandwidthBuckets = Collections.emptyList();
+        }
+    }
+
+    private List<TokenBucket> getBandwidthBuckets() {
+        List<TokenBucket> buckets = new ArrayList<>(_bandwidthBuckets.size() + 2);
+        if (_maxSpeed > 0) {
+            buckets.add(new TokenBucket("transfer." + _transferIndex, _maxSpeed));
+        }
+        buckets.addAll(_bandwidthBuckets);
+        buckets.add(_slave.getBandwidthScheduler().getBucket(
+                isReceivingUploading() ? BandwidthScheduler.SLAVE_UPLOAD : BandwidthScheduler.SLAVE_DOWNLOAD));
+        return buckets;
+    }
+
+    private ThrottledInputStream createThrottle() {
+        return new ThrottledInputStream(_in, _slave.getBandwidthScheduler(), getBandwidthBuckets());
+    }
+
     public boolean isReceivingUploading() {
         return _direction == Transfer.TRANSFER_RECEIVING_UPLOAD;
     }
@@ -239,13 +389,14 @@ public class Transfer {
         String root = _slave.getRoots().getARootFileDir(dirname).getPath();
 
         try {
-            _out = new FileOutputStream(new File(root + separator
-                    + filename));
+            File file = new File(root + separator + filename);
+            FileOutputStream out = new FileOutputStream(file);
+            _out = out;
 
             if (_slave.getUploadChecksums()) {
                 _checksum = new CRC32();
-                _out = new CheckedOutputStream(_out, _checksum);
             }
+            startChecksum(_pathForUpload, file, out.getChannel(), 0);
             accept(_slave.getCipherSuites(), _slave.getSSLProtocols(), _slave.getBufferSize());
 
             if (!checkMasks(inetAddress, _sock.getInetAddress())) {
@@ -256,29 +407,55 @@ public class Transfer {
             synchronized (this) {
                 _direction = Transfer.TRANSFER_RECEIVING_UPLOAD;
             }
+            _slave.addUpload(_pathForUpload, this);
 
             logger.info("UL: {}/{}{}", dirname, filename, getNegotiatedSSLString());
-            transfer(null);
+            if (useReactor()) {
+                startReactor(out.getChannel(), 0);
+                return null;
+            } else if (_slave.getUploadPipelineDepth() > 0) {
+                receivePipelined(file, out.getChannel());
+            } else if (_mode == 'I' && _sock.getChannel() != null) {
+                receiveFromChannel(out.getChannel());
+            } else {
+                if (_checksum != null) {
+                    _out = new CheckedOutputStream(_out, _checksum);
+                }
+                transfer(null, 0);
+            }
+            saveCheckpoints();
             _slave.sendResponse(new AsyncResponseDiskStatus(_slave.getDiskStatus()));
             return getTransferStatus();
         } finally {
-            if (_sock != null) {
-                try {
-                    _sock.close();
-                } catch (IOException e) {
-                }
+            if (_registration == null) {
+                closeUpload();
             }
-            if (_out != null) {
-                try {
-                    _out.close();
-                } catch (IOException e) {
-                }
+        }
+    }
+
+    private void closeUpload() {
+        _slave.removeUpload(_pathForUpload, this);
+        closeStreams();
+    }
+
+    private void closeStreams() {
+        releaseBandwidthLimits();
+        if (_sock != null) {
+            try {
+                _sock.close();
+            } catch (IOException e) {
             }
-            if (_in != null) {
-                try {
-                    _in.close();
-                } catch (IOException e) {
-                }
+        }
+        if (_out != null) {
+            try {
+                _out.close();
+            } catch (IOException e) {
+            }
+        }
+        if (_in != null) {
+            try {
+                _in.close();
+            } catch (IOException e) {
             }
         }
     }
@@ -287,14 +464,14 @@ public class Transfer {
             throws IOException, TransferDeniedException {
         try {
 
-            _in = new FileInputStream(new PhysicalFile(_slave.getRoots().getFile(path)));
+            File file = new PhysicalFile(_slave.getRoots().getFile(path));
+            FileInputStream in = new FileInputStream(file);
+            _in = in;
 
             if (_slave.getDownloadChecksums()) {
                 _checksum = new CRC32();
-                _in = new CheckedInputStream(_in, _checksum);
             }
 
-            _in.skip(resumePosition);
             accept(_slave.getCipherSuites(), _slave.getSSLProtocols(), _slave.getBufferSize());
 
             if (!checkMasks(inetAddress, _sock.getInetAddress())) {
@@ -307,30 +484,31 @@ public class Transfer {
             }
 
             logger.info("DL: {}{}", path, getNegotiatedSSLString());
+            Transfer associatedUpload;
             try {
-                transfer(getUploadForPath(path));
+                associatedUpload = getUploadForPath(path);
             } catch (ObjectNotFoundException e) {
-                transfer(null);
+                associatedUpload = null;
             }
-            return getTransferStatus();
-        } finally {
-            if (_sock != null) {
-                try {
-                    _sock.close();
-                } catch (IOException e) {
+            _associatedUpload = associatedUpload;
+            startChecksum(path, file, in.getChannel(), resumePosition);
+            if (useReactor() && _slave.getZeroCopyDownloads()) {
+                startReactor(in.getChannel(), resumePosition);
+                return null;
+            } else if (_mode == 'I' && _slave.getZeroCopyDownloads() && _sock.getChannel() != null) {
+                transferZeroCopy(in.getChannel(), resumePosition, associatedUpload);
+            } else {
+                in.getChannel().position(resumePosition);
+                if (_checksum != null) {
+                    _in = new CheckedInputStream(_in, _checksum);
                 }
+                transfer(associatedUpload, resumePosition);
             }
-            if (_out != null) {
-                try {
-                    _out.close();
-                } catch (IOException e) {
-                }
-            }
-            if (_in != null) {
-                try {
-                    _in.close();
-                } catch (IOException e) {
-                }
+            saveCheckpoints();
+            return getTransferStatus();
+        } finally {
+            if (_registration == null) {
+                closeStreams();
             }
         }
     }
@@ -376,20 +554,20 @@ public class Transfer {
      * data so it can put new TX data in there and on the line). (The idea is to
      * get the ack before you have to stop transmitting.)
      */
-    private void transfer(Transfer associatedUpload) throws IOException {
+    private void transfer(Transfer associatedUpload, long position) throws IOException {
+        ByteBuffer buffer = null;
         try {
             _started = System.currentTimeMillis();
             if (_mode == 'A') {
                 _out = new AddAsciiOutputStream(_out);
             }
 
-            byte[] buff = new byte[Math.max(_slave.getBufferSize(), 65535)];
+            buffer = _slave.getHeapBufferPool().acquire();
+            byte[] buff = buffer.array();
             int count;
-            long currentTime = System.currentTimeMillis();
             //max speed buffer
-            _int = new ThrottledInputStream(_in, _maxSpeed);
+            _int = createThrottle();
 
-            boolean first = true;
             long lastCheck = 0;
 
             try {
@@ -397,49 +575,191 @@ public class Transfer {
                     if (_abortReason != null) {
                         throw new TransferFailedException("Transfer was aborted - " + _abortReason, getTransferStatus());
                     }
-                    count = _int.read(buff);
+                    long uploaded = associatedUpload == null ? 0 : associatedUpload.getTransfered();
+                    int length = buff.length;
+                    if (associatedUpload != null) {
+                        // never read past what the upload wrote, the rest of the file may be preallocated
+                        long readable = associatedUpload.getFollowLimit() - position;
+                        if (readable <= 0) {
+                            associatedUpload.awaitUploadProgress(uploaded);
+                            continue; // waiting for upload to catch up
+                        }
+                        length = (int) Math.min(length, readable);
+                    }
+                    count = _int.read(buff, 0, length);
                     if (count == -1) {
                         if (associatedUpload == null) {
                             break; // done transferring
                         }
-                        if (associatedUpload.getTransferStatus().isFinished()) {
+                        if (associatedUpload.isFinished() && associatedUpload.getTransfered() == uploaded) {
                             break; // done transferring
                         }
-                        try {
-                            Thread.sleep(500);
-                        } catch (InterruptedException e) {
-                        }
+                        associatedUpload.awaitUploadProgress(uploaded);
                         continue; // waiting for upload to catch up
                     }
                     // count != -1
-                    if ((System.currentTimeMillis() - currentTime) >= 1000) {
-                        TransferStatus ts = getTransferStatus();
-                        if (ts.isFinished()) {
-                            throw new TransferFailedException("Transfer was aborted - " + _abortReason, ts);
-                        }
-                        _slave.sendResponse(new AsyncResponseTransferStatus(ts));
-                        currentTime = System.currentTimeMillis();
+                    lastCheck = checkMinSpeed(lastCheck);
+
+                    _out.write(buff, 0, count);
+                    _transfered += count;
+                    position += count;
+                    recordCheckpoint();
+                    if (isReceivingUploading()) {
+                        notifyUploadProgress();
                     }
+                }
 
-                    // Min Speed Check
-                    if (_minSpeed > 0) {
-                        lastCheck = (lastCheck == 0 ? System.currentTimeMillis() : lastCheck);
-                        long delay = System.currentTimeMillis() - lastCheck;
+                _out.flush();
+            } catch (IOException e) {
+                if (e instanceof TransferFailedException) {
+                    throw e;
+                }
+                throw new TransferFailedException(e, getTransferStatus());
+            }
+        } finally {
+            _slave.getHeapBufferPool().release(buffer);
+            _finished = System.currentTimeMillis();
+            notifyUploadProgress();
+            _slave.removeTransfer(this); // transfers are added in setting up
+            // the transfer,
+            // issueListenToSlave()/issueConnectToSlave()
+        }
+    }
 
-                        // This is used to check speedkick delays and its running 2 passes of a combined time of both values
-                        if (first ? delay >= 5000 : delay >= 5000) {
-                            first = false;
-                            if (getXferSpeed() < _minSpeed) {
-                                throw new TransferSlowException("Transfer was aborted - '" + getXferSpeed() + "' is < '" + _minSpeed + "'", getTransferStatus());
+    /**
+     * Sends the file using {@link FileChannel#transferTo} so the data goes from the page cache
+     * straight to the socket without being copied through the JVM.
+     * Only usable for unencrypted connections whose socket is backed by a channel.
+     * <p>
+     * The transfer is done in chunks of {@link #ZEROCOPY_CHUNK_SIZE} bytes, between chunks the
+     * throttling and minimum speed checks are done like in {@link #transfer(Transfer, long)}.
+     * When checksums are enabled each chunk is read back from the page cache to update the CRC.
+     */
+    private void transferZeroCopy(FileChannel in, long position, Transfer associatedUpload) throws IOException {
+        try {
+            _started = System.currentTimeMillis();
+            SocketChannel out = _sock.getChannel();
+            //max speed buffer, data does not flow through it but it is used to throttle
+            _int = createThrottle();
+            ByteBuffer checksumBuffer = null;
+
+            long lastCheck = 0;
+
+            try {
+                if (_checksum != null) {
+                    checksumBuffer = _slave.getDirectBufferPool().acquire();
+                }
+                while (true) {
+                    if (_abortReason != null) {
+                        throw new TransferFailedException("Transfer was aborted - " + _abortReason, getTransferStatus());
+                    }
+                    long uploaded = associatedUpload == null ? 0 : associatedUpload.getTransfered();
+                    long length = ZEROCOPY_CHUNK_SIZE;
+                    if (associatedUpload != null) {
+                        // never send past what the upload wrote, the rest of the file may be preallocated
+                        long readable = associatedUpload.getFollowLimit() - position;
+                        if (readable <= 0) {
+                            associatedUpload.awaitUploadProgress(uploaded);
+                            continue; // waiting for upload to catch up
+                        }
+                        length = Math.min(length, readable);
+                    }
+                    long count = in.transferTo(position, length, out);
+                    if (count == 0) {
+                        if (associatedUpload == null) {
+                            break; // done transferring
+                        }
+                        if (associatedUpload.isFinished()) {
+                            if (position >= in.size()) {
+                                break; // done transferring
                             }
+                            continue; // upload finished, send what it wrote last
                         }
+                        associatedUpload.awaitUploadProgress(uploaded);
+                        continue; // waiting for upload to catch up
+                    }
+                    if (checksumBuffer != null) {
+                        updateChecksum(in, position, count, checksumBuffer);
                     }
+                    position += count;
+                    _int.addCounter(count);
+
+                    lastCheck = checkMinSpeed(lastCheck);
 
                     _transfered += count;
-                    _out.write(buff, 0, count);
+                    recordCheckpoint();
+                }
+            } catch (IOException e) {
+                if (e instanceof TransferFailedException) {
+                    throw e;
                 }
+                throw new TransferFailedException(e, getTransferStatus());
+            } finally {
+                _slave.getDirectBufferPool().release(checksumBuffer);
+            }
+        } finally {
+            _finished = System.currentTimeMillis();
+            _slave.removeTransfer(this); // transfers are added in setting up
+            // the transfer,
+            // issueListenToSlave()/issueConnectToSlave()
+        }
+    }
 
-                _out.flush();
+    /**
+     * Receives the file from the socket channel into a pooled direct buffer and writes it
+     * to disk through {@link FileChannel}, the checksum is updated straight from the buffer.
+     * <p>
+     * The socket is put in non-blocking mode and waited on with a {@link Selector} as blocking
+     * channel reads do not honour the socket timeout.
+     */
+    private void receiveFromChannel(FileChannel out) throws IOException {
+        ByteBuffer buffer = null;
+        try {
+            _started = System.currentTimeMillis();
+            SocketChannel in = _sock.getChannel();
+            int timeout = _sock.getSoTimeout();
+            in.configureBlocking(false);
+            _selector = Selector.open();
+            in.register(_selector, SelectionKey.OP_READ);
+            //max speed buffer, data does not flow through it but it is used to throttle
+            _int = createThrottle();
+            buffer = _slave.getDirectBufferPool().acquire();
+
+            long lastCheck = 0;
+
+            try {
+                while (true) {
+                    if (_abortReason != null) {
+                        throw new TransferFailedException("Transfer was aborted - " + _abortReason, getTransferStatus());
+                    }
+                    buffer.clear();
+                    int count = in.read(buffer);
+                    if (count == -1) {
+                        break; // done transferring
+                    }
+                    if (count == 0) {
+                        if (_selector.select(timeout) == 0 && _abortReason == null) {
+                            throw new SocketTimeoutException("Read timed out");
+                        }
+                        _selector.selectedKeys().clear();
+                        continue;
+                    }
+                    buffer.flip();
+                    if (_checksum != null) {
+                        _checksum.update(buffer);
+                        buffer.rewind();
+                    }
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    _int.addCounter(count);
+
+                    lastCheck = checkMinSpeed(lastCheck);
+
+                    _transfered += count;
+                    recordCheckpoint();
+                    notifyUploadProgress();
+                }
             } catch (IOException e) {
                 if (e instanceof TransferFailedException) {
                     throw e;
@@ -447,13 +767,409 @@ public class Transfer {
                 throw new TransferFailedException(e, getTransferStatus());
             }
         } finally {
+            _slave.getDirectBufferPool().release(buffer);
+            if (_selector != null) {
+                try {
+                    _selector.close();
+                } catch (IOException e) {
+                }
+            }
             _finished = System.currentTimeMillis();
+            notifyUploadProgress();
             _slave.removeTransfer(this); // transfers are added in setting up
             // the transfer,
             // issueListenToSlave()/issueConnectToSlave()
         }
     }
 
+    /**
+     * Receives the file on this thread while an {@link UploadPipeline} updates the checksum and writes
+     * to disk on another, so a slow disk does not stall reading the socket.
+     * <p>
+     * When the client announced the size of the file the file is extended to that size up front,
+     * it is truncated to what was actually received before the upload is marked as finished.
+     */
+    private void receivePipelined(File file, FileChannel out) throws IOException {
+        UploadPipeline pipeline = null;
+        boolean preallocated = false;
+        try {
+            _started = System.currentTimeMillis();
+            if (_allocateSize > 0 && _slave.getPreallocateUploads()) {
+                // the size comes from the client, never reserve more than allowed or than the root has left
+                long maxAllocateSize = _slave.getMaxPreallocateSize();
+                if ((maxAllocateSize > 0 && _allocateSize > maxAllocateSize) || _allocateSize > file.getUsableSpace()) {
+                    throw new TransferFailedException("Announced size " + _allocateSize
+                            + " exceeds the space that can be reserved on " + file.getParent(), getTransferStatus());
+                }
+                preallocated = true;
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(_allocateSize);
+                }
+            }
+            _int = createThrottle();
+            pipeline = new UploadPipeline(_pathForUpload, out, _checksum, _slave.getHeapBufferPool(),
+                    _slave.getUploadPipelineDepth(), this::pipelineWritten);
+
+            long lastCheck = 0;
+
+            try {
+                while (true) {
+                    if (_abortReason != null) {
+                        throw new TransferFailedException("Transfer was aborted - " + _abortReason, getTransferStatus());
+                    }
+                    ByteBuffer buffer = pipeline.take();
+                    int count = _int.read(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+                    if (count == -1) {
+                        pipeline.release(buffer);
+                        break; // done transferring
+                    }
+                    buffer.limit(count);
+                    pipeline.write(buffer);
+
+                    lastCheck = checkMinSpeed(lastCheck);
+                }
+                pipeline.finish();
+            } catch (IOException e) {
+                if (e instanceof TransferFailedException) {
+                    throw e;
+                }
+                throw new TransferFailedException(e, getTransferStatus());
+            }
+        } finally {
+            if (pipeline != null) {
+                pipeline.close();
+            }
+            if (preallocated) {
+                try {
+                    out.truncate(_transfered);
+                } catch (IOException e) {
+                    logger.warn("Unable to truncate preallocated upload {}", _pathForUpload, e);
+                }
+            }
+            _finished = System.currentTimeMillis();
+            notifyUploadProgress();
+            _slave.removeTransfer(this); // transfers are added in setting up
+            // the transfer,
+            // issueListenToSlave()/issueConnectToSlave()
+        }
+    }
+
+    /**
+     * Called by the {@link UploadPipeline} writer thread after <code>count</code> bytes were written to disk
+     */
+    private void pipelineWritten(long count) {
+        _transfered += count;
+        recordCheckpoint();
+        notifyUploadProgress();
+    }
+
+    /**
+     * @return true if this transfer can be handed over to the {@link TransferReactor} instead of running on the calling thread
+     */
+    private boolean useReactor() {
+        return _slave.getTransferReactor() != null && _mode == 'I' && _sock.getChannel() != null;
+    }
+
+    /**
+     * Hands the transfer over to the {@link TransferReactor}, the reactor sends the final
+     * {@link TransferStatus} to the master once the transfer is done.
+     */
+    private void startReactor(FileChannel file, long position) throws IOException {
+        _started = System.currentTimeMillis();
+        _file = file;
+        _position = position;
+        _buckets = getBandwidthBuckets();
+        _timeoutNanos = _sock.getSoTimeout() * 1000000L;
+        _lastIO = System.nanoTime();
+        _registration = _slave.getTransferReactor().register(_sock.getChannel(), this::processReactor);
+    }
+
+    private void processReactor(TransferReactor.Registration registration) {
+        ByteBuffer buffer = null;
+        try {
+            if (_abortReason != null) {
+                throw new TransferFailedException("Transfer was aborted - " + _abortReason, getTransferStatus());
+            }
+            boolean done;
+            if (isReceivingUploading()) {
+                buffer = _slave.getDirectBufferPool().acquire();
+                done = receiveReactor(registration, buffer);
+            } else {
+                if (_checksum != null) {
+                    buffer = _slave.getDirectBufferPool().acquire();
+                }
+                done = sendReactor(registration, buffer);
+            }
+            if (done) {
+                finishReactor(registration, null);
+            }
+        } catch (IOException e) {
+            finishReactor(registration, e instanceof TransferFailedException ? e : new TransferFailedException(e, getTransferStatus()));
+        } finally {
+            _slave.getDirectBufferPool().release(buffer);
+        }
+    }
+
+    /**
+     * Sends at most {@link #ZEROCOPY_CHUNK_SIZE} bytes before giving the other transfers on the reactor thread a turn.
+     *
+     * @return true when the download is done
+     */
+    private boolean sendReactor(TransferReactor.Registration registration, ByteBuffer checksumBuffer) throws IOException {
+        SocketChannel out = _sock.getChannel();
+        long sent = 0;
+        while (sent < ZEROCOPY_CHUNK_SIZE) {
+            Transfer associatedUpload = _associatedUpload;
+            long uploaded = associatedUpload == null ? 0 : associatedUpload.getTransfered();
+            long length = ZEROCOPY_CHUNK_SIZE - sent;
+            if (associatedUpload != null) {
+                // never send past what the upload wrote, the rest of the file may be preallocated
+                long readable = associatedUpload.getFollowLimit() - _position;
+                if (readable <= 0) {
+                    if (associatedUpload.addUploadListener(uploaded, registration::wakeup)) {
+                        return false; // waiting for upload to catch up
+                    }
+                    continue;
+                }
+                length = Math.min(length, readable);
+            }
+            long count = _file.transferTo(_position, length, out);
+            if (count == 0) {
+                if (_position < _file.size()) {
+                    // socket buffer is full
+                    checkReactorTimeout();
+                    registration.await(SelectionKey.OP_WRITE, _timeoutNanos);
+                    return false;
+                }
+                if (associatedUpload == null) {
+                    return true; // done transferring
+                }
+                if (associatedUpload.isFinished()) {
+                    if (_position >= _file.size()) {
+                        return true; // done transferring
+                    }
+                    continue; // upload finished, send what it wrote last
+                }
+                if (associatedUpload.addUploadListener(uploaded, registration::wakeup)) {
+                    return false; // waiting for upload to catch up
+                }
+                continue;
+            }
+            if (checksumBuffer != null) {
+                updateChecksum(_file, _position, count, checksumBuffer);
+            }
+            _position += count;
+            sent += count;
+            if (accountReactor(registration, count)) {
+                return false;
+            }
+        }
+        registration.wakeup();
+        return false;
+    }
+
+    /**
+     * Receives at most {@link #ZEROCOPY_CHUNK_SIZE} bytes before giving the other transfers on the reactor thread a turn.
+     *
+     * @return true when the upload is done
+     */
+    private boolean receiveReactor(TransferReactor.Registration registration, ByteBuffer buffer) throws IOException {
+        SocketChannel in = _sock.getChannel();
+        long received = 0;
+        while (received < ZEROCOPY_CHUNK_SIZE) {
+            buffer.clear();
+            int count = in.read(buffer);
+            if (count == -1) {
+                return true; // done transferring
+            }
+            if (count == 0) {
+                checkReactorTimeout();
+                registration.await(SelectionKey.OP_READ, _timeoutNanos);
+                return false;
+            }
+            buffer.flip();
+            if (_checksum != null) {
+                _checksum.update(buffer);
+                buffer.rewind();
+            }
+            while (buffer.hasRemaining()) {
+                _file.write(buffer);
+            }
+            received += count;
+            if (accountReactor(registration, count)) {
+                return false;
+            }
+        }
+        registration.wakeup();
+        return false;
+    }
+
+    /**
+     * Accounts for <code>count</code> bytes moved by the reactor.
+     *
+     * @return true if the transfer has to wait for the bandwidth limits, the registration is already put to sleep
+     */
+    private boolean accountReactor(TransferReactor.Registration registration, long count) throws IOException {
+        _transfered += count;
+        recordCheckpoint();
+        if (isReceivingUploading()) {
+            notifyUploadProgress();
+        }
+        _lastIO = System.nanoTime();
+        _lastCheck = checkMinSpeed(_lastCheck);
+        long wait = _slave.getBandwidthScheduler().reserve(_buckets, count);
+        if (wait > 0) {
+            registration.sleep(wait);
+            return true;
+        }
+        return false;
+    }
+
+    private void checkReactorTimeout() throws SocketTimeoutException {
+        if (_timeoutNanos > 0 && System.nanoTime() - _lastIO >= _timeoutNanos) {
+            throw new SocketTimeoutException(isReceivingUploading() ? "Read timed out" : "Write timed out");
+        }
+    }
+
+    private void finishReactor(TransferReactor.Registration registration, IOException failure) {
+        registration.close();
+        _finished = System.currentTimeMillis();
+        notifyUploadProgress();
+        _slave.removeTransfer(this);
+        if (failure == null) {
+            saveCheckpoints();
+        }
+        boolean upload = isReceivingUploading();
+        if (upload) {
+            closeUpload();
+        } else {
+            closeStreams();
+        }
+        TransferStatus status;
+        if (failure == null) {
+            status = getTransferStatus();
+        } else {
+            logger.debug("Transfer {} failed", _transferIndex, failure);
+            status = new TransferStatus(_transferIndex, failure);
+        }
+        if (upload) {
+            _slave.sendResponse(new AsyncResponseDiskStatus(_slave.getDiskStatus()));
+        }
+        _slave.sendResponse(new AsyncResponseTransferStatus(status));
+    }
+
+    /**
+     * Prepares the checksum of a transfer starting at <code>position</code> in the file.
+     * The CRC32 of the part before <code>position</code> is calculated from the nearest checksum checkpoint
+     * when checkpoints are enabled, otherwise that part is read completely.
+     */
+    private void startChecksum(String path, File file, FileChannel in, long position) throws IOException {
+        if (_checksum == null) {
+            return;
+        }
+        ChecksumCheckpoints checkpoints = _slave.getChecksumCheckpoints();
+        if (checkpoints != null) {
+            _checkpoints = new ChecksumCheckpoints.Checkpoints();
+            _checkpointPath = path;
+            _checkpointFile = file;
+            _checkpointModified = file.lastModified();
+            _nextCheckpoint = checkpoints.getNextCheckpoint(position);
+        }
+        if (position == 0) {
+            return;
+        }
+        ByteBuffer buffer = _slave.getDirectBufferPool().acquire();
+        try {
+            if (checkpoints != null) {
+                _checksumPrefix = checkpoints.getPrefixChecksum(path, file, in, position, buffer);
+            } else {
+                updateChecksum(in, 0, position, buffer);
+                _checksumPrefix = _checksum.getValue();
+                _checksum.reset();
+            }
+        } finally {
+            _slave.getDirectBufferPool().release(buffer);
+        }
+        _checksumOffset = position;
+    }
+
+    /**
+     * Remembers the checksum of the file up to the current position once every checkpoint interval
+     */
+    private void recordCheckpoint() {
+        if (_checkpoints == null) {
+            return;
+        }
+        long position = _checksumOffset + _transfered;
+        if (position >= _nextCheckpoint) {
+            _checkpoints.add(position, getChecksum());
+            _nextCheckpoint = _slave.getChecksumCheckpoints().getNextCheckpoint(position);
+        }
+    }
+
+    /**
+     * Stores the checkpoints recorded during a transfer that went up to the end of the file.
+     * Downloads of files that changed during the transfer are skipped.
+     */
+    private void saveCheckpoints() {
+        if (_checkpoints == null || _abortReason != null) {
+            return;
+        }
+        long end = _checksumOffset + _transfered;
+        if (end != _checkpointFile.length()) {
+            return;
+        }
+        ChecksumCheckpoints checkpoints = _slave.getChecksumCheckpoints();
+        if (isSendingUploading()) {
+            if (_associatedUpload != null || _checkpointFile.lastModified() != _checkpointModified) {
+                return;
+            }
+            ChecksumCheckpoints.Checkpoints stored = checkpoints.load(_checkpointPath, _checkpointFile);
+            if (stored != null) {
+                _checkpoints.addAll(stored);
+            }
+        }
+        _checkpoints.add(end, getChecksum());
+        checkpoints.save(_checkpointPath, _checkpointFile, _checkpoints);
+    }
+
+    private void updateChecksum(FileChannel in, long position, long count, ByteBuffer buffer) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            buffer.clear();
+            if (end - position < buffer.capacity()) {
+                buffer.limit((int) (end - position));
+            }
+            int read = in.read(buffer, position);
+            if (read == -1) {
+                throw new EOFException("File truncated while calculating checksum");
+            }
+            buffer.flip();
+            _checksum.update(buffer);
+            position += read;
+        }
+    }
+
+    /**
+     * Min Speed Check, aborts the transfer if it is slower than the minimum speed
+     *
+     * @return the time the minimum speed check window started
+     */
+    private long checkMinSpeed(long lastCheck) throws TransferSlowException {
+        if (_minSpeed > 0) {
+            lastCheck = (lastCheck == 0 ? System.currentTimeMillis() : lastCheck);
+            long delay = System.currentTimeMillis() - lastCheck;
+
+            // This is used to check speedkick delays
+            if (delay >= 5000) {
+                if (getXferSpeed() < _minSpeed) {
+                    throw new TransferSlowException("Transfer was aborted - '" + getXferSpeed() + "' is < '" + _minSpeed + "'", getTransferStatus());
+                }
+            }
+        }
+        return lastCheck;
+    }
+
     private boolean checkMasks(String maskString, InetAddress connectedAddress) {
         HostMask mask = new HostMask(maskString);
 
@@ -0,0 +1,252 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.slave.network;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs data transfers on a small, fixed number of selector threads instead of a thread per transfer.
+ * <p>
+ * A transfer is a {@link Session} that is called whenever its channel is ready, its timer expired or it
+ * was woken up. It moves as much data as it can without blocking and then tells its {@link Registration}
+ * what to wait for next.
+ *
+ * @version $Id$
+ */
+public class TransferReactor {
+    private static final Logger logger = LogManager.getLogger(TransferReactor.class);
+
+    private final Worker[] _workers;
+
+    private final AtomicInteger _next = new AtomicInteger();
+
+    private final AtomicInteger _sessions = new AtomicInteger();
+
+    public TransferReactor(String name, int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("A transfer reactor needs at least one thread");
+        }
+        _workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            _workers[i] = new Worker(Selector.open());
+            Thread t = new Thread(_workers[i], name + " - " + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    public interface Session {
+        /**
+         * Called on a reactor thread when the channel is ready, the timer expired or the session was woken up.
+         * Implementations must not block and must leave the registration waiting for something or closed.
+         */
+        void process(Registration registration);
+    }
+
+    /**
+     * Hands the channel over to one of the reactor threads, the session is processed right away.
+     */
+    public Registration register(SelectableChannel channel, Session session) throws IOException {
+        channel.configureBlocking(false);
+        Worker worker = _workers[Math.floorMod(_next.getAndIncrement(), _workers.length)];
+        Registration registration = new Registration(worker, channel, session);
+        _sessions.incrementAndGet();
+        worker.execute(() -> {
+            try {
+                registration._key = channel.register(worker._selector, 0, registration);
+            } catch (ClosedChannelException e) {
+                // the session will notice when it tries to use the channel
+            }
+            registration.run();
+        });
+        return registration;
+    }
+
+    /**
+     * @return the number of sessions currently registered
+     */
+    public int getSessionCount() {
+        return _sessions.get();
+    }
+
+    public int getThreadCount() {
+        return _workers.length;
+    }
+
+    public class Registration {
+        private final Worker _worker;
+
+        private final SelectableChannel _channel;
+
+        private final Session _session;
+
+        private SelectionKey _key;
+
+        private Timer _timer;
+
+        private volatile boolean _closed;
+
+        private Registration(Worker worker, SelectableChannel channel, Session session) {
+            _worker = worker;
+            _channel = channel;
+            _session = session;
+        }
+
+        private void run() {
+            if (_closed) {
+                return;
+            }
+            _timer = null;
+            if (_key != null && _key.isValid()) {
+                _key.interestOps(0);
+            }
+            try {
+                _session.process(this);
+            } catch (Throwable t) {
+                logger.error("Unhandled error processing transfer on {}", _channel, t);
+                close();
+            }
+        }
+
+        /**
+         * Waits until the channel is ready for <code>ops</code>, or at most <code>timeoutNanos</code> if it is positive.
+         * Reactor thread only.
+         */
+        public void await(int ops, long timeoutNanos) {
+            if (_key != null && _key.isValid()) {
+                _key.interestOps(ops);
+            }
+            if (timeoutNanos > 0) {
+                sleep(timeoutNanos);
+            }
+        }
+
+        /**
+         * Processes the session again after <code>nanos</code>. Reactor thread only.
+         */
+        public void sleep(long nanos) {
+            _timer = new Timer(System.nanoTime() + nanos, this);
+            _worker._timers.add(_timer);
+        }
+
+        /**
+         * Processes the session again as soon as possible, may be called from any thread.
+         */
+        public void wakeup() {
+            if (!_closed) {
+                _worker.execute(this::run);
+            }
+        }
+
+        /**
+         * Stops processing the session, the channel itself is left for the session to close.
+         */
+        public void close() {
+            if (_closed) {
+                return;
+            }
+            _closed = true;
+            _sessions.decrementAndGet();
+            _timer = null;
+            if (_key != null) {
+                _key.cancel();
+            }
+        }
+    }
+
+    private static class Timer {
+        private final long _deadline;
+
+        private final Registration _registration;
+
+        private Timer(long deadline, Registration registration) {
+            _deadline = deadline;
+            _registration = registration;
+        }
+    }
+
+    private static class Worker implements Runnable {
+        private final Selector _selector;
+
+        private final Queue<Runnable> _tasks = new ConcurrentLinkedQueue<>();
+
+        // only used by the worker thread
+        private final PriorityQueue<Timer> _timers = new PriorityQueue<>(Comparator.comparingLong(t -> t._deadline));
+
+        private Worker(Selector selector) {
+            _selector = selector;
+        }
+
+        private void execute(Runnable task) {
+            _tasks.add(task);
+            _selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    Runnable task;
+                    while ((task = _tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    long now = System.nanoTime();
+                    while (!_timers.isEmpty() && _timers.peek()._deadline <= now) {
+                        Timer timer = _timers.poll();
+                        // timers replaced by a later await/sleep or wakeup are stale
+                        if (timer._registration._timer == timer) {
+                            timer._registration.run();
+                        }
+                    }
+
+                    if (!_tasks.isEmpty()) {
+                        _selector.selectNow();
+                    } else if (_timers.isEmpty()) {
+                        _selector.select();
+                    } else {
+                        _selector.select(Math.max(1L, (_timers.peek()._deadline - System.nanoTime()) / 1000000L));
+                    }
+
+                    Iterator<SelectionKey> iter = _selector.selectedKeys().iterator();
+                    while (iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+                        if (key.isValid()) {
+                            ((Registration) key.attachment()).run();
+                        }
+                    }
+                } catch (Throwable t) {
+                    logger.error("Unexpected error in transfer reactor", t);
+                }
+            }
+        }
+    }
+}
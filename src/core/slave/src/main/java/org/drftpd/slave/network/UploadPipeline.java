@@ -0,0 +1,212 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.slave.network;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Hands the data of an upload from the thread reading the socket to a writer thread through a ring of buffers,
+ * so a slow disk write does not stop the socket from being read. The writer updates the checksum and writes
+ * the buffers to disk in the order they were queued.
+ * <p>
+ * The reader takes an empty buffer with {@link #take()}, fills it and queues it with {@link #write(ByteBuffer)}.
+ * When all buffers are queued the reader waits for the writer, which bounds the memory used by one upload.
+ *
+ * @version $Id$
+ */
+public class UploadPipeline implements Runnable {
+    private static final Logger logger = LogManager.getLogger(UploadPipeline.class);
+
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final FileChannel _out;
+
+    private final CRC32 _checksum;
+
+    private final LongConsumer _written;
+
+    private final ByteBufferPool _pool;
+
+    private final List<ByteBuffer> _buffers = new ArrayList<>();
+
+    private final BlockingQueue<ByteBuffer> _free;
+
+    private final BlockingQueue<ByteBuffer> _filled;
+
+    private final Thread _writer;
+
+    private volatile IOException _failure;
+
+    private volatile boolean _closed;
+
+    private boolean _ended;
+
+    /**
+     * @param checksum updated with the data before it is written, may be null
+     * @param depth    number of buffers in the ring
+     * @param written  called by the writer thread with the number of bytes after every write
+     */
+    public UploadPipeline(String name, FileChannel out, CRC32 checksum, ByteBufferPool pool, int depth, LongConsumer written) {
+        _out = out;
+        _checksum = checksum;
+        _written = written;
+        _pool = pool;
+        depth = Math.max(2, depth);
+        _free = new ArrayBlockingQueue<>(depth);
+        _filled = new ArrayBlockingQueue<>(depth + 1);
+        for (int i = 0; i < depth; i++) {
+            ByteBuffer buffer = pool.acquire();
+            _buffers.add(buffer);
+            _free.add(buffer);
+        }
+        _writer = new Thread(this, "UploadWriter - " + name);
+        _writer.setDaemon(true);
+        _writer.start();
+    }
+
+    /**
+     * @return a cleared heap buffer to read into, waits while all buffers are queued for writing
+     */
+    public ByteBuffer take() throws IOException {
+        try {
+            while (true) {
+                checkFailure();
+                ByteBuffer buffer = _free.poll(100, TimeUnit.MILLISECONDS);
+                if (buffer != null) {
+                    buffer.clear();
+                    return buffer;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the upload writer");
+        }
+    }
+
+    /**
+     * Queues the data between position and limit of a buffer obtained from {@link #take()} for writing
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        checkFailure();
+        _filled.add(buffer);
+    }
+
+    /**
+     * Gives back a buffer obtained from {@link #take()} without writing it
+     */
+    public void release(ByteBuffer buffer) {
+        _free.add(buffer);
+    }
+
+    /**
+     * Waits until all queued data is written
+     */
+    public void finish() throws IOException {
+        end();
+        try {
+            _writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the upload writer");
+        }
+        checkFailure();
+    }
+
+    /**
+     * Stops the writer, data that is still queued is dropped, and gives the buffers back to the pool.
+     * Has to be called once the upload is done, also after {@link #finish()}.
+     */
+    public void close() {
+        _closed = true;
+        end();
+        boolean interrupted = false;
+        while (_writer.isAlive()) {
+            try {
+                _writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        for (ByteBuffer buffer : _buffers) {
+            _pool.release(buffer);
+        }
+        _buffers.clear();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void end() {
+        if (!_ended) {
+            _ended = true;
+            _filled.add(END);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException failure = _failure;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                ByteBuffer buffer = _filled.take();
+                if (buffer == END) {
+                    return;
+                }
+                // after a failure the remaining buffers are only drained so the reader never blocks
+                if (_failure == null && !_closed) {
+                    int count = buffer.remaining();
+                    try {
+                        if (_checksum != null) {
+                            int position = buffer.position();
+                            _checksum.update(buffer);
+                            buffer.position(position);
+                        }
+                        while (buffer.hasRemaining()) {
+                            _out.write(buffer);
+                        }
+                        _written.accept(count);
+                    } catch (IOException e) {
+                        logger.debug("Upload write failed", e);
+                        _failure = e;
+                    }
+                }
+                _free.add(buffer);
+            }
+        } catch (InterruptedException e) {
+            _failure = new InterruptedIOException("Upload writer was interrupted");
+        }
+    }
+}
@@ -22,31 +22,27 @@ import org.apache.logging.log4j.Logger;
 import org.drftpd.common.exceptions.AsyncResponseException;
 import org.drftpd.common.exceptions.TransferDeniedException;
 import org.drftpd.common.io.PermissionDeniedException;
-import org.drftpd.common.io.PhysicalFile;
 import org.drftpd.common.network.AsyncCommandArgument;
 import org.drftpd.common.network.AsyncResponse;
 import org.drftpd.common.network.PassiveConnection;
+import org.drftpd.common.network.SSLService;
 import org.drftpd.common.slave.ConnectInfo;
 import org.drftpd.common.slave.LightRemoteInode;
 import org.drftpd.common.slave.TransferIndex;
 import org.drftpd.common.slave.TransferStatus;
 import org.drftpd.slave.Slave;
 import org.drftpd.slave.network.*;
+import org.drftpd.slave.vfs.DirectoryDigests;
 import org.drftpd.slave.vfs.RootCollection;
-import org.drftpd.slave.vfs.RootPathContents;
+import org.drftpd.slave.vfs.RootWatcher;
+import org.drftpd.slave.vfs.TreeWalker;
 
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.Map;
-import java.util.TreeSet;
+import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Basic operations handling.
@@ -58,20 +54,12 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class BasicHandler extends AbstractHandler {
     private static final Logger logger = LogManager.getLogger(BasicHandler.class);
-    // Vars for threaded remerge
-    private static final int maxMergeThreads = 10;
     // The following variables are static as they are used to signal between
     // remerging and the pause/resume functions, due to the way the handler
     // map works these are run against separate object instances.
     private static final AtomicBoolean remergePaused = new AtomicBoolean();
     private static final Object remergeWaitObj = new Object();
-    private static final Object threadMergeWaitObj = new Object();
-    private static final Object threadMergeDepthWaitObj = new Object();
-    private HandleRemergeRecursiveThread[] mergeThreads;
-    private final AtomicInteger threadMergeCount = new AtomicInteger(0);
-    private final ArrayList<String> threadMergeDepth = new ArrayList<>();
-    private int remergeDepth = 0;
-    private int remergeConcurrentDepth = 0;
+    private static final AtomicBoolean remergeRunning = new AtomicBoolean();
 
     public BasicHandler(SlaveProtocolCentral central) {
         super(central);
@@ -187,9 +175,17 @@ public class BasicHandler extends AbstractHandler {
         Transfer t = getSlaveObject().getTransfer(transferIndex);
         t.setMinSpeed(minSpeed);
         t.setMaxSpeed(maxSpeed);
+        if (ac.getArgsArray().length > 7) {
+            t.setBandwidthLimits(ac.getArgsArray()[7]);
+        }
+        if (ac.getArgsArray().length > 8) {
+            t.setAllocateSize(Long.parseLong(ac.getArgsArray()[8]));
+        }
         getSlaveObject().sendResponse(new AsyncResponse(ac.getIndex())); // return calling thread on master
         try {
-            return new AsyncResponseTransferStatus(t.receiveFile(dirName, type, fileName, position, inetAddress));
+            TransferStatus status = t.receiveFile(dirName, type, fileName, position, inetAddress);
+            // null when the transfer reactor took over, it sends the status itself
+            return status == null ? null : new AsyncResponseTransferStatus(status);
         } catch (IOException | TransferDeniedException e) {
             return new AsyncResponseTransferStatus(new TransferStatus(transferIndex, e));
         }
@@ -232,55 +228,19 @@ public class BasicHandler extends AbstractHandler {
                 sendResponse(new AsyncResponseSiteBotMessage("Partial remerge disabled, performing full remerge"));
             }
 
-            if (getSlaveObject().threadedRemerge()) {
-                if (threadMergeCount.get() == 0) {
-                    // Create worker threads
-                    logger.info("Starting to merge with threads");
-                    mergeThreads = new HandleRemergeRecursiveThread[maxMergeThreads];
-                    for (int i = 0; i < maxMergeThreads; i++) {
-                        mergeThreads[i] = new HandleRemergeRecursiveThread(getSlaveObject().getRoots(), partialRemerge, skipAgeCutoff, i + 1);
-                        mergeThreads[i].start();
-                    }
-                    sendResponse(new AsyncResponseSiteBotMessage("Starting to merge with threads"));
-                    HandleRemergeRecursiveThread thread = getRemergeThread();
-                    thread.setPathAndRun(argsArray[0]);
-                } else {
-                    sendResponse(new AsyncResponseSiteBotMessage("Merge already running, wait for it to finish"));
-                }
-            } else if (getSlaveObject().concurrentRootIteration()) {
-                logger.info("Starting to merge with roots concurrently with handleRemergeRecursiveConcurrent");
-                sendResponse(new AsyncResponseSiteBotMessage("Starting to merge with roots concurrently"));
-                handleRemergeRecursiveConcurrent(getSlaveObject().getRoots(), argsArray[0], partialRemerge, skipAgeCutoff);
-            } else {
-                logger.info("Starting to merge with handleRemergeRecursive2");
-                sendResponse(new AsyncResponseSiteBotMessage("Starting to merge"));
-                handleRemergeRecursive2(getSlaveObject().getRoots(), argsArray[0], partialRemerge, skipAgeCutoff);
+            // threadedremerge walks subdirectories in parallel, concurrent.root.iteration lists the roots in parallel
+            int threads = getSlaveObject().threadedRemerge() ? getSlaveObject().getRemergeWalkThreads() : 1;
+            logger.info("Starting to merge with {} threads{}", threads,
+                    getSlaveObject().concurrentRootIteration() ? ", listing roots concurrently" : "");
+            if (!remergeRunning.compareAndSet(false, true)) {
+                sendResponse(new AsyncResponseSiteBotMessage("Merge already running, wait for it to finish"));
+                return new AsyncResponse(ac.getIndex());
             }
-
-            // Make sure we dont make the slave available online until the whole filesystem is sent
-            if (getSlaveObject().threadedRemerge()) {
-                while (threadMergeCount.get() != 0) {
-                    if (!getSlaveObject().isOnline()) {
-                        // Slave has shut down, no need to continue with remerge
-                        return null;
-                    }
-                    synchronized (threadMergeWaitObj) {
-                        try {
-                            threadMergeWaitObj.wait(5000);
-                        } catch (InterruptedException e) {
-                            // Either we have been woken properly in which case we will exit the
-                            // loop or we have not in which case we will wait again.
-                        }
-                    }
-
-                    if (threadMergeCount.get() == 0) {
-                        // Tell all worker threads to exit, where done with the merge.
-                        for (int i = 0; i < maxMergeThreads; i++) {
-                            mergeThreads[i].exit();
-                        }
-                        break;
-                    }
-                }
+            try {
+                sendResponse(new AsyncResponseSiteBotMessage(threads > 1 ? "Starting to merge with threads" : "Starting to merge"));
+                handleRemergeWalk(getSlaveObject().getRoots(), argsArray[0], partialRemerge, skipAgeCutoff, threads);
+            } finally {
+                remergeRunning.set(false);
             }
 
             return new AsyncResponse(ac.getIndex());
@@ -292,146 +252,87 @@ public class BasicHandler extends AbstractHandler {
         }
     }
 
-    private HandleRemergeRecursiveThread getRemergeThread() {
-        synchronized (mergeThreads) {
-            for (int i = 0; i < maxMergeThreads; i++) {
-                if (mergeThreads[i].isAvailable()) {
-                    mergeThreads[i].unavailable();
-                    return mergeThreads[i];
-                }
-            }
-        }
-        return null;
+    /**
+     * Answers one step of a digest remerge, the digests of a directory and of its subdirectories. The listing
+     * of the directory is included when its list digest differs from the one the master sent.
+     */
+    public AsyncResponse handleRemergeDigest(AsyncCommandArgument ac) {
+        DirectoryDigests digests = getSlaveObject().getDirectoryDigests();
+        if (digests == null) {
+            return new AsyncResponseException(ac.getIndex(),
+                    new IOException("Remerge digests are disabled on this slave"));
+        }
+        String path = ac.getArgsArray()[0];
+        long knownListDigest = Long.parseLong(ac.getArgsArray()[1]);
+        RootCollection roots = getSlaveObject().getRoots();
+        DirectoryDigests.Digest digest = digests.getDigest(roots, path);
+        if (digest == null) {
+            // gone since the master saw it in the listing of its parent
+            return new AsyncResponseDirectoryDigest(ac.getIndex(), path, 0L, 0L, Collections.emptyMap(),
+                    Collections.emptyList(), 0L);
+        }
+        List<LightRemoteInode> files = null;
+        if (digest.getListDigest() != knownListDigest) {
+            files = DirectoryDigests.list(roots, path);
+        }
+        return new AsyncResponseDirectoryDigest(ac.getIndex(), path, digest.getListDigest(), digest.getTreeDigest(),
+                digest.getDirectories(), files, roots.getLastModifiedForPath(path));
     }
 
-    private void updateDepth(String path) {
-        boolean add = true;
-        synchronized (threadMergeDepth) {
-            for (String dir : threadMergeDepth) {
-                if (path.startsWith(dir)) {
-                    dir = path;
-                    add = false;
-                    break;
-                }
-
-                if (dir.startsWith(path)) {
-                    add = false;
-                    break;
-                }
-            }
-
-            if (add) {
-                threadMergeDepth.add(path);
-            }
+    public AsyncResponse handleWatch(AsyncCommandArgument ac) {
+        RootWatcher watcher = getSlaveObject().getRootWatcher();
+        if (watcher == null) {
+            return new AsyncResponseException(ac.getIndex(),
+                    new IOException("Watching the roots is disabled on this slave"));
         }
-
-        synchronized (threadMergeDepthWaitObj) {
-            threadMergeDepthWaitObj.notifyAll();
+        try {
+            watcher.start();
+        } catch (IOException e) {
+            logger.warn("Unable to watch the roots for changes", e);
+            return new AsyncResponseException(ac.getIndex(), e);
         }
+        return new AsyncResponse(ac.getIndex());
     }
 
-    private void waitForDepth(String path) {
-        while (true) {
-            if (!getSlaveObject().isOnline()) {
-                // Slave has shut down, no need to continue with remerge
-                return;
-            }
-            synchronized (threadMergeDepth) {
-                for (String dir : threadMergeDepth) {
-                    if (dir.startsWith(path)) {
-                        return;
+    private void handleRemergeWalk(RootCollection rootCollection,
+                                   String path, boolean partialRemerge, long skipAgeCutoff, int threads) {
+        long start = System.currentTimeMillis();
+        int directories = new TreeWalker(rootCollection, threads).walk(path,
+                new TreeWalker.Visitor() {
+                    public boolean preVisit(String dir) {
+                        waitWhileRemergePaused();
+                        // Slave has shut down, no need to continue with remerge
+                        return getSlaveObject().isOnline();
                     }
-                }
-            }
 
-            synchronized (threadMergeDepthWaitObj) {
-                try {
-                    threadMergeDepthWaitObj.wait(2000);
-                } catch (InterruptedException e) {
-                    // We have been woken up, check if the path is there now.
-                }
-            }
-        }
-    }
-
-    private void handleRemergeRecursive2(RootCollection rootCollection,
-                                         String path, boolean partialRemerge, long skipAgeCutoff) {
-        remergeDepth++;
-        if (!getSlaveObject().isOnline()) {
-            // Slave has shut down, no need to continue with remerge
-            return;
-        }
-        while (remergePaused.get() && getSlaveObject().isOnline()) {
-            synchronized (remergeWaitObj) {
-                try {
-                    remergeWaitObj.wait(5000);
-                } catch (InterruptedException e) {
-                    // Either we have been woken properly in which case we will exit the
-                    // loop or we have not in which case we will wait again.
-                }
-            }
-        }
-        TreeSet<String> inodes = rootCollection.getLocalInodes(path);
-        ArrayList<LightRemoteInode> fileList = new ArrayList<>();
-
-        boolean inodesModified = false;
-        long pathLastModified = rootCollection.getLastModifiedForPath(path);
-        // Need to check the last modified of the parent itself to detect where
-        // files have been deleted but none changed or added
-        if (partialRemerge && pathLastModified > skipAgeCutoff) {
-            inodesModified = true;
-        }
-        for (String inode : inodes) {
-            String fullPath = path + "/" + inode;
-            PhysicalFile file;
-            try {
-                file = rootCollection.getFile(fullPath);
-            } catch (FileNotFoundException e) {
-                // something is screwy, we just found the file, it has to exist
-                // race condition i guess, stop deleting files outside drftpd!
-                logger.error("Error getting file {} even though we just listed it, check permissions", fullPath, e);
-                sendResponse(new AsyncResponseSiteBotMessage("Error getting file " + fullPath + " check permissions"));
-                continue;
-            }
-            try {
-                if (file.isSymbolicLink()) {
-                    // ignore it, but log an error
-                    logger.warn("You have a symbolic link {} -- these are ignored by drftpd", fullPath);
-                    sendResponse(new AsyncResponseSiteBotMessage("You have a symbolic link " + fullPath + " -- these are ignored by drftpd"));
-                    continue;
-                }
-            } catch (IOException e) {
-                logger.warn("You have a symbolic link that couldn't be read at {} -- these are ignored by drftpd", fullPath);
-                sendResponse(new AsyncResponseSiteBotMessage("You have a symbolic link thacouldn't be read at " + fullPath + " -- these are ignored by drftpd"));
-                continue;
-            }
-            if (partialRemerge && file.lastModified() > skipAgeCutoff) {
-                inodesModified = true;
-            }
-            if (file.isDirectory()) {
-                handleRemergeRecursive2(rootCollection, fullPath, partialRemerge, skipAgeCutoff);
-            }
-            fileList.add(new LightRemoteInode(file));
-        }
-        if (!partialRemerge || inodesModified) {
-            sendResponse(new AsyncResponseRemerge(path, fileList, pathLastModified));
-            logger.debug("Sending {} to the master", path);
-        } else {
-            logger.debug("Skipping send of {} as no files changed since last merge", path);
-        }
+                    public void visit(String dir, List<LightRemoteInode> inodes, long lastModified) {
+                        // Need to check the last modified of the directory itself to detect where
+                        // files have been deleted but none changed or added
+                        boolean inodesModified = lastModified > skipAgeCutoff;
+                        for (LightRemoteInode inode : inodes) {
+                            if (inode.lastModified() > skipAgeCutoff) {
+                                inodesModified = true;
+                                break;
+                            }
+                        }
+                        if (!partialRemerge || inodesModified) {
+                            sendResponse(new AsyncResponseRemerge(dir, inodes, lastModified));
+                            logger.debug("Sending {} to the master", dir);
+                        } else {
+                            logger.debug("Skipping send of {} as no files changed since last merge", dir);
+                        }
+                    }
 
-        if (--remergeDepth == 0) {
-            sendResponse(new AsyncResponseSiteBotMessage("Merge done"));
-        }
+                    public void symbolicLink(String link) {
+                        logger.warn("You have a symbolic link {} -- these are ignored by drftpd", link);
+                        sendResponse(new AsyncResponseSiteBotMessage("You have a symbolic link " + link + " -- these are ignored by drftpd"));
+                    }
+                });
+        logger.info("Walked {} directories in {}ms", directories, System.currentTimeMillis() - start);
+        sendResponse(new AsyncResponseSiteBotMessage("Merge done"));
     }
 
-    private void handleRemergeRecursiveConcurrent(RootCollection rootCollection,
-                                                  String path, boolean partialRemerge, long skipAgeCutoff) {
-        remergeConcurrentDepth++;
-        if (!getSlaveObject().isOnline()) {
-            // Slave has shut down, no need to continue with remerge
-            return;
-        }
+    private void waitWhileRemergePaused() {
         while (remergePaused.get() && getSlaveObject().isOnline()) {
             synchronized (remergeWaitObj) {
                 try {
@@ -442,50 +343,6 @@ public class BasicHandler extends AbstractHandler {
                 }
             }
         }
-
-        RootPathContents rootContents = rootCollection.getLocalInodesConcurrent(path);
-        ArrayList<LightRemoteInode> fileList = new ArrayList<>();
-
-        boolean inodesModified = false;
-        long pathLastModified = rootContents.getLastModified();
-        // Need to check the last modified of the parent itself to detect where
-        // files have been deleted but none changed or added
-        if (partialRemerge && pathLastModified > skipAgeCutoff) {
-            inodesModified = true;
-        }
-        for (Map.Entry<String, File> entry : rootContents.getInodes().entrySet()) {
-            PhysicalFile file = new PhysicalFile(entry.getValue());
-            String fullPath = path + "/" + entry.getKey();
-            try {
-                if (file.isSymbolicLink()) {
-                    // ignore it, but log an error
-                    logger.warn("You have a symbolic link {} -- these are ignored by drftpd", fullPath);
-                    sendResponse(new AsyncResponseSiteBotMessage("You have a symbolic link " + fullPath + " -- these are ignored by drftpd"));
-                    continue;
-                }
-            } catch (IOException e) {
-                logger.warn("You have a symbolic link that couldn't be read at {} -- these are ignored by drftpd", fullPath);
-                sendResponse(new AsyncResponseSiteBotMessage("You have a symbolic link that couldn't be read at " + fullPath + " -- these are ignored by drfptd"));
-                continue;
-            }
-            if (partialRemerge && file.lastModified() > skipAgeCutoff) {
-                inodesModified = true;
-            }
-            if (file.isDirectory()) {
-                handleRemergeRecursiveConcurrent(rootCollection, fullPath, partialRemerge, skipAgeCutoff);
-            }
-            fileList.add(new LightRemoteInode(file));
-        }
-        if (!partialRemerge || inodesModified) {
-            sendResponse(new AsyncResponseRemerge(path, fileList, pathLastModified));
-            logger.debug("Sending {} to the master", path);
-        } else {
-            logger.debug("Skipping send of {} as no files changed since last merge", path);
-        }
-
-        if (--remergeConcurrentDepth == 0) {
-            sendResponse(new AsyncResponseSiteBotMessage("Merge done"));
-        }
     }
 
     public AsyncResponse handleRename(AsyncCommandArgument ac) {
@@ -527,18 +384,27 @@ public class BasicHandler extends AbstractHandler {
         Transfer t = getSlaveObject().getTransfer(transferIndex);
         t.setMinSpeed(minSpeed);
         t.setMaxSpeed(maxSpeed);
+        if (ac.getArgsArray().length > 7) {
+            t.setBandwidthLimits(ac.getArgsArray()[7]);
+        }
         sendResponse(new AsyncResponse(ac.getIndex()));
 
         // calling thread on master
         try {
-            return new AsyncResponseTransferStatus(t.sendFile(path, type,
-                    position, inetAddress));
+            TransferStatus status = t.sendFile(path, type, position, inetAddress);
+            // null when the transfer reactor took over, it sends the status itself
+            return status == null ? null : new AsyncResponseTransferStatus(status);
         } catch (IOException | TransferDeniedException e) {
             return new AsyncResponseTransferStatus(new TransferStatus(t
                     .getTransferIndex(), e));
         }
     }
 
+    public AsyncResponse handleBandwidth(AsyncCommandArgument ac) {
+        getSlaveObject().getBandwidthScheduler().setLimits(ac.getArgs());
+        return new AsyncResponse(ac.getIndex());
+    }
+
     public AsyncResponse handleChecksum(AsyncCommandArgument ac) {
         try {
             return new AsyncResponseChecksum(ac.getIndex(), getSlaveObject().checkSum(ac.getArgs()));
@@ -547,6 +413,14 @@ public class BasicHandler extends AbstractHandler {
         }
     }
 
+    public AsyncResponse handleChecksums(AsyncCommandArgument ac) {
+        // answered once all files are done, the handler thread is not kept waiting for the disks
+        getSlaveObject().getRootChecksummer().checksum(ac.getArgsArray()).whenComplete((checksums, t) ->
+                getSlaveObject().sendResponse(t == null ? new AsyncResponseChecksums(ac.getIndex(), checksums)
+                        : new AsyncResponseException(ac.getIndex(), t)));
+        return null;
+    }
+
     public AsyncResponse handleShutdown(AsyncCommandArgument ac) {
         logger.info("The master has requested that I shutdown");
         getSlaveObject().shutdown();
@@ -558,214 +432,25 @@ public class BasicHandler extends AbstractHandler {
         return new AsyncResponseSSLCheck(ac.getIndex(), getSlaveObject().getSSLContext() != null);
     }
 
-    private class HandleRemergeRecursiveThread extends Thread {
-        private RootCollection rootCollection = null;
-        private String path = null;
-        private boolean partialRemerge = false;
-        private boolean localRun = false;
-        private long skipAgeCutoff = 0L;
-        private volatile boolean available = true;
-        private volatile boolean exit = false;
-        private final Object localWaitObj = new Object();
-
-        public HandleRemergeRecursiveThread(RootCollection rootCollection, boolean partialRemerge, long skipAgeCutoff, int threadNumber) {
-            super("RemergeThread-" + threadNumber);
-            this.rootCollection = rootCollection;
-            this.partialRemerge = partialRemerge;
-            this.skipAgeCutoff = skipAgeCutoff;
-            this.setPriority(Thread.MIN_PRIORITY);
-        }
-
-        public void run() {
-            while (true) {
-                if (!getSlaveObject().isOnline()) {
-                    // Slave has shut down, no need to continue with remerge
-                    return;
-                }
-                while (remergePaused.get() && getSlaveObject().isOnline()) {
-                    synchronized (remergeWaitObj) {
-                        try {
-                            remergeWaitObj.wait(5000);
-                        } catch (InterruptedException e) {
-                            // Either we have been woken properly in which case we will exit the
-                            // loop or we have not in which case we will wait again.
-                        }
-                    }
-                }
-
-                while (path == null) {
-                    if (exit || !getSlaveObject().isOnline()) {
-                        return;
-                    }
-                    synchronized (localWaitObj) {
-                        try {
-                            localWaitObj.wait(2000);
-                        } catch (InterruptedException e) {
-                            // Either we have been woken properly in which case we will exit the
-                            // loop or we have not in which case we will wait again.
-                        }
-                    }
-                }
-
-                TreeSet<String> inodes = rootCollection.getLocalInodes(path);
-                ArrayList<LightRemoteInode> fileList = new ArrayList<>();
-                ArrayList<String> dirList = new ArrayList<>();
-
-                boolean inodesModified = false;
-                long pathLastModified = rootCollection.getLastModifiedForPath(path);
-                // Need to check the last modified of the parent itself to detect where
-                // files have been deleted but none changed or added
-                if (partialRemerge && pathLastModified > skipAgeCutoff) {
-                    inodesModified = true;
-                }
-
-
-                for (String inode : inodes) {
-                    String fullPath = path + "/" + inode;
-                    PhysicalFile file;
-                    try {
-                        file = rootCollection.getFile(fullPath);
-                    } catch (FileNotFoundException e) {
-                        // something is screwy, we just found the file, it has to exist
-                        // race condition i guess, stop deleting files outside drftpd!
-                        logger.error("Error getting file {} even though we just listed it, check permissions", fullPath, e);
-                        sendResponse(new AsyncResponseSiteBotMessage("Error getting file " + fullPath + " check permissions"));
-                        continue;
-                    }
-                    try {
-                        if (file.isSymbolicLink()) {
-                            // ignore it, but log an error
-                            logger.warn("You have a symbolic link {} -- these are ignored by drftpd", fullPath);
-                            sendResponse(new AsyncResponseSiteBotMessage("You have a symbolic link " + fullPath + " -- these are ignored by drftpd"));
-                            continue;
-                        }
-                    } catch (IOException e) {
-                        logger
-                                .warn("You have a symbolic link that couldn't be read at {} -- these are ignored by drftpd", fullPath);
-                        sendResponse(new AsyncResponseSiteBotMessage("You have a symbolic link that couldn't be read at " + fullPath + " -- these are ignored by drftpd"));
-                        continue;
-                    }
-                    if (partialRemerge && file.lastModified() > skipAgeCutoff) {
-                        inodesModified = true;
-                    }
-                    if (file.isDirectory()) {
-                        dirList.add(fullPath + "/");
-
-                        HandleRemergeRecursiveThread thread = null;
-                        if (!inode.equalsIgnoreCase("sample") && !inode.equalsIgnoreCase("subs")) {
-                            thread = getRemergeThread();
-                            if (thread != null) {
-                                thread.setPathAndRun(fullPath);
-                            }
-                        }
-
-                        if (thread == null) {
-                            // Local run, either there where no threads available or it matched sample or subs
-                            // This emulates the recursive behavior of the "normal" remerge process
-                            // See handleRemergeRecursive2
-                            boolean restoreRun = localRun;
-                            String oldPath = path;
-                            path = fullPath;
-                            if (!localRun) {
-                                localRun = true;
-                            }
-                            run();
-                            path = oldPath;
-                            localRun = restoreRun;
-                        }
-                    }
-                    // this collects files and sends it to master
-                    //TODO check if file is in getMultipleRoots.
-                    // if true, diff checksum
-                    // if differ, throw MSGSLAVE with info and continue remerge
-                    /**
-                     try {
-                     logger.error("MULTIROOTS going to try to get roots for file " + file.toString());
-                     rootCollection.getMultipleRootsForFile(file.toString());
-                     logger.error("MULTIROOTS done");
-                     List<Root> roots = rootCollection.getRootList();
-                     logger.error("MULTIROOTS root size for file " + file.toString() + " " + roots.size());
-                     Iterator<Root> it = roots.iterator();
-                     long lastCrc=0;
-                     while(it.hasNext()) {
-                     Root root=it.next();
-                     logger.error("MULTIROOTS checking root " + root.getPath());
-                     long crc=0;
-                     try {
-                     crc = getSlaveObject().checkSum(root.getFile().getPath());
-                     logger.error("MULTIROOTS checking file with crc " + crc);
-                     } catch (IOException e) {
-                     logger.error("MULTIROOTS: IOException when checking crc for file in multiple roots");
-                     }
-                     if(crc!=lastCrc) {
-                     logger.error("MULTIROOTS mismatch crc " + crc + ":" + lastCrc);
-                     }
-                     lastCrc=crc;
-                     }
-                     } catch (FileNotFoundException e) {
-                     // This is good, means that file only exists in one root
-                     logger.error("MULTIROOTS FIOLE NOT FOUND " + e);
-                     fileList.add(new LightRemoteInode(file));
-                     continue;
-                     }
-                     */
-                    fileList.add(new LightRemoteInode(file));
-                }
-
-                if (!partialRemerge || inodesModified) {
-                    for (String dir : dirList) {
-                        waitForDepth(dir);
-                    }
-                    sendResponse(new AsyncResponseRemerge(path, fileList, pathLastModified));
-                    logger.debug("Sending {} to the master", path);
-                } else {
-                    logger.debug("Skipping send of {} as no files changed since last merge", path);
-                }
-                updateDepth(path + "/");
-
-                if (!localRun) {
-                    available();
-                } else {
-                    return;
-                }
-
-                if (threadMergeCount.get() == 0) {
-                    sendResponse(new AsyncResponseSiteBotMessage("Merge done"));
-                    synchronized (threadMergeWaitObj) {
-                        threadMergeWaitObj.notifyAll();
-                    }
-                    threadMergeDepth.clear();
-                }
-            }
-        }
-
-        public boolean isAvailable() {
-            return available;
-        }
-
-        private void available() {
-            path = null;
-            threadMergeCount.decrementAndGet();
-            available = true;
-        }
-
-        public void unavailable() {
-            available = false;
-            threadMergeCount.incrementAndGet();
+    public AsyncResponse handleLanes(AsyncCommandArgument ac) {
+        List<AsyncResponseLanes.LaneStatus> lanes = new ArrayList<>();
+        for (SlaveCommandExecutor.Lane lane : getSlaveObject().getCommandExecutor().getLanes()) {
+            lanes.add(new AsyncResponseLanes.LaneStatus(lane.getName(), lane.getQueueDepth(), lane.getActiveCount(),
+                    lane.getMaxThreads(), lane.getCompletedCount(), lane.getAverageQueueMillis(),
+                    lane.getMaxQueueMillis(), lane.getAverageRunMillis()));
         }
+        return new AsyncResponseLanes(ac.getIndex(), lanes);
+    }
 
-        public void setPathAndRun(String path) {
-            this.path = path;
-            synchronized (localWaitObj) {
-                localWaitObj.notify();
-            }
-        }
+    public AsyncResponse handleBufferPools(AsyncCommandArgument ac) {
+        List<AsyncResponseBufferPools.BufferPoolStatus> pools = new ArrayList<>();
+        pools.add(new AsyncResponseBufferPools.BufferPoolStatus(getSlaveObject().getDirectBufferPool()));
+        pools.add(new AsyncResponseBufferPools.BufferPoolStatus(getSlaveObject().getHeapBufferPool()));
+        return new AsyncResponseBufferPools(ac.getIndex(), pools);
+    }
 
-        public void exit() {
-            exit = true;
-            synchronized (localWaitObj) {
-                localWaitObj.notify();
-            }
-        }
+    public AsyncResponse handleSessionCache(AsyncCommandArgument ac) {
+        SSLService ssl = SSLService.getSSLService();
+        return new AsyncResponseSessionCache(ac.getIndex(), ssl.getResumedSessions(), ssl.getNewSessions());
     }
 }
@@ -0,0 +1,256 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.slave.protocol;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the commands received from the master on separate lanes so that cheap commands
+ * never have to wait behind long running ones.
+ * <ul>
+ * <li>control - pings, aborts, transfer setup and other quick commands, run at a higher priority</li>
+ * <li>transfer - send/receive, which occupy their thread for the whole transfer</li>
+ * <li>io - checksums and the zipscript/mediainfo/imdb parsers, bounded by the number of roots (disks)</li>
+ * <li>background - remerge and other long running jobs</li>
+ * </ul>
+ * The lane of a command can be changed with <code>executor.lane.&lt;command&gt;=&lt;lane&gt;</code> in slave.conf.
+ *
+ * @version $Id$
+ */
+public class SlaveCommandExecutor {
+    private static final Logger logger = LogManager.getLogger(SlaveCommandExecutor.class);
+
+    public static final String CONTROL = "control";
+
+    public static final String TRANSFER = "transfer";
+
+    public static final String IO = "io";
+
+    public static final String BACKGROUND = "background";
+
+    private static final String[] CONTROL_COMMANDS = {"abort", "bandwidth", "bufferPools", "checkSSL", "connect",
+            "delete", "lanes", "listen", "maxpath", "ping", "remergePause", "remergeResume", "rename",
+            "sessionCache", "shutdown"};
+
+    private static final String[] TRANSFER_COMMANDS = {"send", "receive"};
+
+    private static final String[] BACKGROUND_COMMANDS = {"remerge", "remergeDigest", "speedTest", "watch"};
+
+    private final Map<String, Lane> _lanes = new LinkedHashMap<>();
+
+    private final Map<String, Lane> _commandLanes = new HashMap<>();
+
+    public SlaveCommandExecutor(Properties p, int roots) {
+        _lanes.put(CONTROL, new Lane(CONTROL, Integer.parseInt(p.getProperty("executor.control.threads", "8")),
+                Thread.NORM_PRIORITY + 2));
+        _lanes.put(TRANSFER, new Lane(TRANSFER, 0, Thread.NORM_PRIORITY));
+        _lanes.put(IO, new Lane(IO, Integer.parseInt(p.getProperty("executor.io.threads",
+                String.valueOf(Math.max(1, roots)))), Thread.NORM_PRIORITY));
+        _lanes.put(BACKGROUND, new Lane(BACKGROUND, Integer.parseInt(p.getProperty("executor.background.threads", "2")),
+                Thread.NORM_PRIORITY - 1));
+
+        mapCommands(CONTROL_COMMANDS, _lanes.get(CONTROL));
+        mapCommands(TRANSFER_COMMANDS, _lanes.get(TRANSFER));
+        mapCommands(BACKGROUND_COMMANDS, _lanes.get(BACKGROUND));
+
+        for (String key : p.stringPropertyNames()) {
+            if (!key.startsWith("executor.lane.")) {
+                continue;
+            }
+            String command = key.substring("executor.lane.".length());
+            Lane lane = _lanes.get(p.getProperty(key).trim().toLowerCase());
+            if (lane == null) {
+                logger.warn("Unknown lane '{}' for command {}, lanes are {}", p.getProperty(key), command, _lanes.keySet());
+                continue;
+            }
+            _commandLanes.put(command, lane);
+        }
+    }
+
+    private void mapCommands(String[] commands, Lane lane) {
+        for (String command : commands) {
+            _commandLanes.put(command, lane);
+        }
+    }
+
+    /**
+     * @return the lane <code>command</code> runs on, commands not known to be quick or long running go to the io lane
+     */
+    public Lane getLane(String command) {
+        return _commandLanes.getOrDefault(command, _lanes.get(IO));
+    }
+
+    public void execute(String command, Runnable task) {
+        getLane(command).execute(task);
+    }
+
+    public Collection<Lane> getLanes() {
+        return new ArrayList<>(_lanes.values());
+    }
+
+    public static class Lane {
+        private final String _name;
+
+        private final ThreadPoolExecutor _executor;
+
+        private final AtomicLong _submitted = new AtomicLong();
+
+        private final AtomicLong _completed = new AtomicLong();
+
+        private final LongAdder _queueNanos = new LongAdder();
+
+        private final AtomicLong _maxQueueNanos = new AtomicLong();
+
+        private final LongAdder _runNanos = new LongAdder();
+
+        private final AtomicBoolean _backlogged = new AtomicBoolean();
+
+        /**
+         * @param threads the maximum number of threads, 0 for a lane that starts a thread for every waiting command
+         */
+        private Lane(String name, int threads, int priority) {
+            _name = name;
+            ThreadFactory factory = new LaneThreadFactory(name, priority);
+            if (threads <= 0) {
+                _executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                        new SynchronousQueue<>(), factory);
+            } else {
+                _executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(), factory);
+                _executor.allowCoreThreadTimeOut(true);
+            }
+        }
+
+        private void execute(Runnable task) {
+            long queued = System.nanoTime();
+            _submitted.incrementAndGet();
+            _executor.execute(() -> {
+                long started = System.nanoTime();
+                long waited = started - queued;
+                _queueNanos.add(waited);
+                _maxQueueNanos.accumulateAndGet(waited, Math::max);
+                try {
+                    task.run();
+                } finally {
+                    _runNanos.add(System.nanoTime() - started);
+                    _completed.incrementAndGet();
+                    if (_executor.getQueue().isEmpty() && _backlogged.compareAndSet(true, false)) {
+                        logger.info("Command lane {} caught up", _name);
+                    }
+                }
+            });
+            int depth = _executor.getQueue().size();
+            if (depth > _executor.getMaximumPoolSize() && _backlogged.compareAndSet(false, true)) {
+                logger.warn("Command lane {} is backlogged, {} commands are waiting for {} threads", _name, depth,
+                        _executor.getMaximumPoolSize());
+            }
+        }
+
+        public String getName() {
+            return _name;
+        }
+
+        public int getQueueDepth() {
+            return _executor.getQueue().size();
+        }
+
+        public int getActiveCount() {
+            return _executor.getActiveCount();
+        }
+
+        public int getMaxThreads() {
+            return _executor.getMaximumPoolSize();
+        }
+
+        public long getCompletedCount() {
+            return _completed.get();
+        }
+
+        /**
+         * @return the average time commands waited for a thread, in milliseconds
+         */
+        public double getAverageQueueMillis() {
+            long completed = Math.max(1, _submitted.get() - getQueueDepth());
+            return _queueNanos.sum() / 1000000.0 / completed;
+        }
+
+        public double getMaxQueueMillis() {
+            return _maxQueueNanos.get() / 1000000.0;
+        }
+
+        /**
+         * @return the average time it took to run a command, in milliseconds
+         */
+        public double getAverageRunMillis() {
+            return _runNanos.sum() / 1000000.0 / Math.max(1, _completed.get());
+        }
+
+        public String toString() {
+            return "Lane[name=" + _name + "][queued=" + getQueueDepth() + "][active=" + getActiveCount()
+                    + "][maxThreads=" + getMaxThreads() + "][completed=" + getCompletedCount()
+                    + "][avgQueueMs=" + String.format("%.2f", getAverageQueueMillis())
+                    + "][maxQueueMs=" + String.format("%.2f", getMaxQueueMillis())
+                    + "][avgRunMs=" + String.format("%.2f", getAverageRunMillis()) + "]";
+        }
+    }
+
+    private static class LaneThreadFactory implements ThreadFactory {
+        private final String _name;
+
+        private final int _priority;
+
+        private final AtomicInteger _count = new AtomicInteger();
+
+        private LaneThreadFactory(String name, int priority) {
+            _name = name;
+            _priority = priority;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "AsyncCommandHandler - " + _name + " - " + _count.incrementAndGet());
+            t.setPriority(_priority);
+            return t;
+        }
+    }
+
+    public String toString() {
+        List<String> lanes = new ArrayList<>();
+        for (Lane lane : _lanes.values()) {
+            lanes.add(lane.toString());
+        }
+        return "SlaveCommandExecutor" + lanes;
+    }
+}
@@ -22,6 +22,12 @@ import org.apache.logging.log4j.Logger;
 import org.drftpd.common.exceptions.AsyncResponseException;
 import org.drftpd.common.network.AsyncCommandArgument;
 import org.drftpd.common.network.AsyncResponse;
+import org.drftpd.common.network.codec.BinaryMessageStream;
+import org.drftpd.common.network.codec.DeflateCompression;
+import org.drftpd.common.network.codec.JavaMessageStream;
+import org.drftpd.common.network.codec.MessageCodecProvider;
+import org.drftpd.common.network.codec.MessageCodecs;
+import org.drftpd.common.protocol.CodecNegotiation;
 import org.drftpd.common.protocol.HandshakeWrapper;
 import org.drftpd.common.protocol.ProtocolException;
 import org.drftpd.slave.Slave;
@@ -48,6 +54,7 @@ public class SlaveProtocolCentral {
     private static final Class<?>[] METHODPARMS = {AsyncCommandArgument.class};
     public Map<String, HandlerWrapper> _handlersMap;
     public List<String> _protocols;
+    private MessageCodecs _codecs;
     private final Slave _slave;
 
     /**
@@ -58,6 +65,7 @@ public class SlaveProtocolCentral {
     public SlaveProtocolCentral(Slave slave) {
         _slave = slave;
         loadHandlers();
+        loadCodecs();
     }
 
     private static String decapitalize(String string) {
@@ -74,7 +82,9 @@ public class SlaveProtocolCentral {
     /**
      * Whenever the Slave connects to the master, it receives a List containing all ProtocolExtensions loaded by master.<br>
      * Slave will iterate through this List, checking if the requested extension is also loaded by the slave.<br>
-     * After the checking is done, Slave writes a {@link HandlerWrapper} to the socket and let master handles the rest.
+     * After the checking is done, Slave writes a {@link HandlerWrapper} to the socket and let master handles the rest.<br>
+     * If the binary wire format is enabled and the master advertised codec support it is offered with the
+     * handshake, and the connection is switched over when the master accepts it.
      *
      * @see HandshakeWrapper
      */
@@ -82,6 +92,7 @@ public class SlaveProtocolCentral {
     public void handshakeWithMaster() {
         HandshakeWrapper hw = new HandshakeWrapper();
         hw.setPluginStatus(true);
+        boolean masterCodecs = false;
 
         try {
             // reading the plugin list from the socket
@@ -93,6 +104,7 @@ public class SlaveProtocolCentral {
             }
 
             List<String> protocols = (List<String>) o;
+            masterCodecs = CodecNegotiation.isAdvertised(o);
             for (String protocol : protocols) {
                 logger.debug("Checking availability for: {}", protocol);
 
@@ -111,13 +123,62 @@ public class SlaveProtocolCentral {
             hw.setPluginStatus(false);
         }
 
+        if (hw.pluginStatus() && getSlaveObject().useBinaryProtocol() && !masterCodecs) {
+            logger.info("Master does not support the binary wire format, keeping Java serialization");
+        } else if (hw.pluginStatus() && getSlaveObject().useBinaryProtocol()) {
+            hw.setCodecs(new CodecNegotiation(BinaryMessageStream.FORMAT, _codecs.getIdentifiers(),
+                    getSlaveObject().useCompression() ? DeflateCompression.NAME : null));
+        }
+
         try {
             getSlaveObject().getOutputStream().writeObject(hw);
-        } catch (IOException e) {
+            getSlaveObject().getOutputStream().flush();
+
+            if (hw.getCodecs() != null) {
+                CodecNegotiation selected = (CodecNegotiation) getSlaveObject().getInputStream().readObject();
+                if (BinaryMessageStream.FORMAT.equals(selected.getFormat())) {
+                    JavaMessageStream stream = (JavaMessageStream) getSlaveObject().getMessageStream();
+                    MessageCodecs codecs = _codecs.select(selected.getCodecs());
+                    if (DeflateCompression.NAME.equals(selected.getCompression())) {
+                        getSlaveObject().setMessageStream(stream.toBinary(codecs, new DeflateCompression()));
+                    } else {
+                        getSlaveObject().setMessageStream(stream.toBinary(codecs));
+                    }
+                }
+                if (getSlaveObject().useCompression() && selected.getCompression() == null) {
+                    logger.warn("Master did not accept compression of the connection");
+                }
+                logger.info("Using wire format {} with {} message codecs and compression {}", selected.getFormat(),
+                        selected.getCodecs().size(), selected.getCompression() == null ? "none" : selected.getCompression());
+            }
+        } catch (IOException | ClassNotFoundException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Loads the codecs of all connected {@link MessageCodecProvider}s for the binary wire format.
+     */
+    private void loadCodecs() {
+        MessageCodecs codecs = new MessageCodecs();
+
+        Set<Class<? extends MessageCodecProvider>> providers = new Reflections("org.drftpd")
+                .getSubTypesOf(MessageCodecProvider.class);
+        for (Class<? extends MessageCodecProvider> providerClass : providers) {
+            if (Modifier.isAbstract(providerClass.getModifiers())) {
+                continue;
+            }
+            try {
+                codecs.register(providerClass.getConstructor().newInstance());
+            } catch (Exception e) {
+                logger.error("Failed to load message codecs from {}", providerClass.getName(), e);
+            }
+        }
+
+        _codecs = codecs;
+        logger.debug("Loaded {} message codecs", codecs.size());
+    }
+
     /**
      * Loads all connected Handlers and make them available for later usage.
      */
@@ -0,0 +1,359 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.slave.vfs;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.drftpd.common.util.Crc32Combine;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * Stores the CRC32 of file prefixes (checkpoints) so the checksum of a resumed download can be
+ * calculated from the nearest checkpoint instead of re-reading everything before the resume position.
+ * <p>
+ * Checkpoints are recorded every {@link #getInterval()} bytes while files are transferred and are kept
+ * in one small file per path, in directories that mirror the directories of the roots so renames and
+ * deletes of whole directories only move or delete one directory of entries. An entry is only used
+ * while the size and last modified time of the file are the same as when it was written.
+ * <p>
+ * A checkpoint at the end of the file is the checksum of the whole file, so checksums asked for by the
+ * master are answered from the entry once the file was transferred or checksummed completely.
+ *
+ * @version $Id$
+ */
+public class ChecksumCheckpoints {
+    private static final Logger logger = LogManager.getLogger(ChecksumCheckpoints.class);
+
+    private static final int VERSION = 2;
+
+    private static final String ENTRY_SUFFIX = ".ckp";
+
+    private static final String DIR_SUFFIX = ".d";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final Path _dir;
+
+    private final long _interval;
+
+    public ChecksumCheckpoints(Path dir, long interval) throws IOException {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive");
+        }
+        _dir = dir;
+        _interval = interval;
+        Files.createDirectories(dir);
+    }
+
+    public long getInterval() {
+        return _interval;
+    }
+
+    /**
+     * @return the offset of the first checkpoint after <code>position</code>
+     */
+    public long getNextCheckpoint(long position) {
+        return (position / _interval + 1) * _interval;
+    }
+
+    /**
+     * @return the directory holding the entries of the files below <code>path</code>
+     */
+    private Path getDirectory(String path) {
+        Path dir = _dir;
+        for (String name : path.split("/")) {
+            if (name.isEmpty() || name.equals(".")) {
+                continue;
+            }
+            if (name.equals("..")) {
+                throw new IllegalArgumentException("Invalid path " + path);
+            }
+            // suffixes keep the entry of a file and the directory of the same name apart
+            dir = dir.resolve(name + DIR_SUFFIX);
+        }
+        return dir;
+    }
+
+    private Path getEntry(String path) {
+        int index = path.lastIndexOf('/');
+        return getDirectory(path.substring(0, index + 1)).resolve(path.substring(index + 1) + ENTRY_SUFFIX);
+    }
+
+    /**
+     * @return the checkpoints of <code>path</code>, or null if there are none or they do not match the file anymore
+     */
+    public Checkpoints load(String path, File file) {
+        Path entry = getEntry(path);
+        if (!Files.exists(entry)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+            if (in.readInt() != VERSION || in.readLong() != file.length() || in.readLong() != file.lastModified()) {
+                return null;
+            }
+            Checkpoints checkpoints = new Checkpoints();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                checkpoints.add(in.readLong(), in.readLong());
+            }
+            return checkpoints;
+        } catch (IOException e) {
+            logger.debug("Unable to read checksum checkpoints for {}", path, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the checksum of the whole file if it is known, null otherwise
+     */
+    public Long getChecksum(String path, File file) {
+        Checkpoints checkpoints = load(path, file);
+        if (checkpoints == null) {
+            return null;
+        }
+        Map.Entry<Long, Long> end = checkpoints.floor(file.length());
+        return end != null && end.getKey() == file.length() ? end.getValue() : null;
+    }
+
+    /**
+     * Stores the checkpoints for the current size and last modified time of <code>file</code>
+     */
+    public void save(String path, File file, Checkpoints checkpoints) {
+        Path entry = getEntry(path);
+        Path tmp = entry.resolveSibling(entry.getFileName() + TMP_SUFFIX);
+        try {
+            Files.createDirectories(entry.getParent());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(VERSION);
+                out.writeLong(file.length());
+                out.writeLong(file.lastModified());
+                out.writeInt(checkpoints._checksums.size());
+                for (Map.Entry<Long, Long> checkpoint : checkpoints._checksums.entrySet()) {
+                    out.writeLong(checkpoint.getKey());
+                    out.writeLong(checkpoint.getValue());
+                }
+            }
+            Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Unable to save checksum checkpoints for {}", path, e);
+        }
+    }
+
+    /**
+     * Removes the checkpoints of the file <code>path</code>, or of all files below the directory <code>path</code>
+     */
+    public void remove(String path) {
+        try {
+            Files.deleteIfExists(getEntry(path));
+            deleteTree(getDirectory(path));
+        } catch (IOException e) {
+            logger.debug("Unable to remove checksum checkpoints for {}", path, e);
+        }
+    }
+
+    /**
+     * Moves the checkpoints of the file <code>from</code>, or of all files below the directory <code>from</code>,
+     * to <code>to</code>. Renaming keeps the size and last modified time the checkpoints are checked against.
+     */
+    public void rename(String from, String to) {
+        try {
+            Path entry = getEntry(from);
+            if (Files.exists(entry)) {
+                Path target = getEntry(to);
+                Files.createDirectories(target.getParent());
+                Files.move(entry, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Path dir = getDirectory(from);
+            if (Files.isDirectory(dir)) {
+                Path target = getDirectory(to);
+                deleteTree(target);
+                Files.createDirectories(target.getParent());
+                Files.move(dir, target);
+            }
+        } catch (IOException e) {
+            logger.debug("Unable to move checksum checkpoints from {} to {}", from, to, e);
+            remove(from);
+        }
+    }
+
+    /**
+     * Removes the checkpoints of all files <code>exists</code> returns false for, empty directories and
+     * entries of older versions of the store.
+     *
+     * @return the number of entries removed
+     */
+    public int removeMissing(Predicate<String> exists) throws IOException {
+        int[] removed = new int[1];
+        Files.walkFileTree(_dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(_dir) && !dir.getFileName().toString().endsWith(DIR_SUFFIX)) {
+                    deleteTree(dir);
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path entry, BasicFileAttributes attrs) throws IOException {
+                String name = entry.getFileName().toString();
+                if (name.endsWith(TMP_SUFFIX)) {
+                    // being written
+                    return FileVisitResult.CONTINUE;
+                }
+                if (!name.endsWith(ENTRY_SUFFIX) || !exists.test(getPath(entry))) {
+                    Files.deleteIfExists(entry);
+                    removed[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                if (!dir.equals(_dir)) {
+                    try {
+                        Files.delete(dir);
+                    } catch (IOException notEmpty) {
+                        // still has entries
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return removed[0];
+    }
+
+    /**
+     * @return the path of the file the entry belongs to
+     */
+    private String getPath(Path entry) {
+        StringBuilder path = new StringBuilder();
+        for (Path name : _dir.relativize(entry)) {
+            String part = name.toString();
+            path.append('/').append(part, 0, part.length()
+                    - (part.endsWith(DIR_SUFFIX) ? DIR_SUFFIX.length() : ENTRY_SUFFIX.length()));
+        }
+        return path.toString();
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.deleteIfExists(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                Files.deleteIfExists(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Calculates the CRC32 of the first <code>position</code> bytes of the file, starting at the nearest
+     * checkpoint. Checkpoints passed while reading are stored for the next time.
+     *
+     * @param buffer used for reading, its contents are overwritten
+     */
+    public long getPrefixChecksum(String path, File file, FileChannel channel, long position, ByteBuffer buffer)
+            throws IOException {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        Checkpoints checkpoints = load(path, file);
+        if (checkpoints == null) {
+            checkpoints = new Checkpoints();
+        }
+        Map.Entry<Long, Long> start = checkpoints.floor(position);
+        long offset = start == null ? 0 : start.getKey();
+        long checksum = start == null ? 0 : start.getValue();
+        if (offset == position) {
+            return checksum;
+        }
+        logger.debug("Calculating checksum of {} from {} to {}", path, offset, position);
+
+        CRC32 part = new CRC32();
+        long partStart = offset;
+        long next = Math.min(getNextCheckpoint(offset), position);
+        while (offset < position) {
+            buffer.clear();
+            if (next - offset < buffer.capacity()) {
+                buffer.limit((int) (next - offset));
+            }
+            int read = channel.read(buffer, offset);
+            if (read == -1) {
+                throw new EOFException("File truncated while calculating checksum");
+            }
+            buffer.flip();
+            part.update(buffer);
+            offset += read;
+            if (offset == next) {
+                checksum = Crc32Combine.combine(checksum, part.getValue(), offset - partStart);
+                checkpoints.add(offset, checksum);
+                part.reset();
+                partStart = offset;
+                next = Math.min(getNextCheckpoint(offset), position);
+            }
+        }
+        // a file written to while reading would get checkpoints that do not match its contents
+        if (file.length() == length && file.lastModified() == lastModified) {
+            save(path, file, checkpoints);
+        }
+        return checksum;
+    }
+
+    /**
+     * CRC32 values of file prefixes, keyed by the length of the prefix
+     */
+    public static class Checkpoints {
+        private final TreeMap<Long, Long> _checksums = new TreeMap<>();
+
+        public void add(long offset, long checksum) {
+            _checksums.put(offset, checksum);
+        }
+
+        public void addAll(Checkpoints checkpoints) {
+            _checksums.putAll(checkpoints._checksums);
+        }
+
+        /**
+         * @return the checkpoint closest to, but not after <code>position</code>, or null if there is none
+         */
+        public Map.Entry<Long, Long> floor(long position) {
+            return _checksums.floorEntry(position);
+        }
+
+        public int size() {
+            return _checksums.size();
+        }
+    }
+}
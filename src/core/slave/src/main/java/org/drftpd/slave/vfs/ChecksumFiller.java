@@ -0,0 +1,137 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.slave.vfs;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.drftpd.common.io.PhysicalFile;
+import org.drftpd.slave.Slave;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Calculates the checksums of files that have none stored in the {@link ChecksumCheckpoints} while no
+ * transfers are running, so later checksum requests from the master do not have to read the files.
+ * <p>
+ * The roots are walked again every rescan interval, files that already have a checksum only cost a lookup.
+ * After every walk the checkpoints of files that no longer exist are removed.
+ *
+ * @version $Id$
+ */
+public class ChecksumFiller implements Runnable {
+    private static final Logger logger = LogManager.getLogger(ChecksumFiller.class);
+
+    // files modified more recently are probably still being written to
+    private static final long MIN_AGE = 60000L;
+
+    private static final long IDLE_WAIT = 10000L;
+
+    private final Slave _slave;
+
+    private final long _rescan;
+
+    private int _known;
+
+    private int _calculated;
+
+    /**
+     * @param rescan time between two walks over the roots, in milliseconds
+     */
+    public ChecksumFiller(Slave slave, long rescan) {
+        _slave = slave;
+        _rescan = rescan;
+    }
+
+    public void run() {
+        while (true) {
+            long start = System.currentTimeMillis();
+            _known = 0;
+            _calculated = 0;
+            try {
+                fill("/");
+                logger.info("Calculated {} checksums in {}ms, {} files already had one", _calculated,
+                        System.currentTimeMillis() - start, _known);
+                removeMissing();
+                Thread.sleep(_rescan);
+            } catch (InterruptedException e) {
+                logger.info("Stopped calculating checksums");
+                return;
+            }
+        }
+    }
+
+    private void fill(String dir) throws InterruptedException {
+        RootCollection roots = _slave.getRoots();
+        ChecksumCheckpoints checkpoints = _slave.getChecksumCheckpoints();
+        for (String name : roots.getLocalInodes(dir)) {
+            String path = dir.endsWith("/") ? dir + name : dir + "/" + name;
+            PhysicalFile file;
+            try {
+                file = roots.getFile(path);
+                if (file.isSymbolicLink()) {
+                    continue;
+                }
+            } catch (IOException e) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                fill(path);
+                continue;
+            }
+            if (checkpoints.getChecksum(path, file) != null) {
+                _known++;
+                continue;
+            }
+            waitForIdle();
+            if (System.currentTimeMillis() - file.lastModified() < MIN_AGE || _slave.getUploadForPath(path) != null) {
+                continue;
+            }
+            try {
+                _slave.checkSum(path);
+                _calculated++;
+            } catch (IOException e) {
+                logger.debug("Unable to calculate the checksum of {}", path, e);
+            }
+        }
+    }
+
+    private void removeMissing() throws InterruptedException {
+        RootCollection roots = _slave.getRoots();
+        waitForIdle();
+        try {
+            int removed = _slave.getChecksumCheckpoints().removeMissing(path -> {
+                try {
+                    roots.getFile(path);
+                    return true;
+                } catch (FileNotFoundException e) {
+                    return false;
+                }
+            });
+            logger.debug("Removed the checkpoints of {} files that no longer exist", removed);
+        } catch (IOException e) {
+            logger.warn("Unable to remove the checkpoints of files that no longer exist", e);
+        }
+    }
+
+    private void waitForIdle() throws InterruptedException {
+        while (!_slave.getTransferMap().isEmpty()) {
+            Thread.sleep(IDLE_WAIT);
+        }
+    }
+}
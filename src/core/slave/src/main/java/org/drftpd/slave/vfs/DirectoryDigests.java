@@ -0,0 +1,346 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.slave.vfs;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.drftpd.common.slave.LightRemoteInode;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Digests of the directory tree used to remerge only the directories that changed since the master
+ * last saw them.
+ * <p>
+ * Every directory has a list digest over the names, sizes and last modified times of its entries and a
+ * tree digest over its list digest and the tree digests of its subdirectories, so two equal tree digests
+ * mean the whole subtree is equal. The list digest of a directory is kept, also across restarts, as long
+ * as the last modified time of the directory in every root stays the same and the slave itself did not
+ * change a file in it, so checking an unchanged tree only reads the attributes of its directories.
+ * <p>
+ * Files modified in place by something other than the slave do not change the last modified time of
+ * their directory and are not noticed, a full remerge picks them up.
+ *
+ * @version $Id$
+ */
+public class DirectoryDigests {
+    private static final Logger logger = LogManager.getLogger(DirectoryDigests.class);
+
+    private static final int VERSION = 1;
+
+    // a directory modified this close to its listing might change again within the same timestamp
+    private static final long TIMESTAMP_MARGIN = 2000L;
+
+    private final Path _file;
+
+    private final TreeMap<String, Node> _nodes = new TreeMap<>();
+
+    // nodes of older generations have to be checked against the filesystem again, 0 is never current
+    private int _generation = 1;
+
+    private boolean _modified;
+
+    public DirectoryDigests(Path file) {
+        _file = file;
+        load();
+    }
+
+    /**
+     * Checks the directory against the filesystem and returns its digests. A request for the root starts a
+     * new pass over the tree, other directories are only checked again when they were not checked since.
+     *
+     * @return the digests, or null if the directory does not exist
+     */
+    public synchronized Digest getDigest(RootCollection roots, String path) {
+        if (path.equals("/")) {
+            _generation++;
+        }
+        Node node = validate(roots, path);
+        if (path.equals("/") && _modified) {
+            save();
+        }
+        if (node == null) {
+            return null;
+        }
+        Map<String, Long> directories = new LinkedHashMap<>();
+        for (String name : node._directories) {
+            Node child = _nodes.get(join(path, name));
+            directories.put(name, child == null ? 0L : child._treeDigest);
+        }
+        return new Digest(node._listDigest, node._treeDigest, directories);
+    }
+
+    /**
+     * Forgets the listing of the directory containing <code>path</code> and the digests of <code>path</code>
+     * itself if it is a directory, called when the slave changes a file
+     */
+    public synchronized void invalidate(String path) {
+        String parent = getParent(path);
+        Node node = _nodes.get(parent);
+        if (node != null) {
+            node._stamp = 0;
+            node._generation = 0;
+        }
+        for (String dir = parent; dir != null; dir = getParent(dir)) {
+            Node ancestor = _nodes.get(dir);
+            if (ancestor != null) {
+                ancestor._generation = 0;
+            }
+        }
+        removeTree(path);
+    }
+
+    /**
+     * Forgets all listings, called when changes to the roots may have been missed
+     */
+    public synchronized void invalidateAll() {
+        for (Node node : _nodes.values()) {
+            node._stamp = 0;
+            node._generation = 0;
+        }
+    }
+
+    /**
+     * @return the entries of a directory in the form used for remerging, sorted and without symbolic links
+     */
+    public static List<LightRemoteInode> list(RootCollection roots, String path) {
+        return TreeWalker.list(roots, path).getInodes();
+    }
+
+    private Node validate(RootCollection roots, String path) {
+        Node node = _nodes.get(path);
+        if (node != null && node._generation == _generation) {
+            return node;
+        }
+        long newest = 0;
+        Hasher stamp = new Hasher();
+        for (Root root : roots.getRootList()) {
+            long lastModified = root.getFile(path).lastModified();
+            newest = Math.max(newest, lastModified);
+            stamp.update(lastModified);
+        }
+        if (newest == 0) {
+            removeTree(path);
+            return null;
+        }
+        if (node == null || node._stamp != stamp.getValue()) {
+            long listed = System.currentTimeMillis();
+            Hasher list = new Hasher();
+            List<String> directories = new ArrayList<>();
+            for (LightRemoteInode inode : list(roots, path)) {
+                list.update(inode.getName());
+                if (inode.isDirectory()) {
+                    list.update(-1L);
+                    directories.add(inode.getName());
+                } else {
+                    list.update(inode.length());
+                    list.update(inode.lastModified());
+                }
+            }
+            if (node != null) {
+                for (String name : node._directories) {
+                    if (!directories.contains(name)) {
+                        removeTree(join(path, name));
+                    }
+                }
+            }
+            node = new Node(newest > listed - TIMESTAMP_MARGIN ? 0 : stamp.getValue(), list.getValue(),
+                    directories.toArray(new String[0]));
+            _nodes.put(path, node);
+            _modified = true;
+        }
+        Hasher tree = new Hasher();
+        tree.update(node._listDigest);
+        for (String name : node._directories) {
+            Node child = validate(roots, join(path, name));
+            tree.update(name);
+            tree.update(child == null ? 0L : child._treeDigest);
+        }
+        node._treeDigest = tree.getValue();
+        node._generation = _generation;
+        return node;
+    }
+
+    private void removeTree(String path) {
+        if (_nodes.remove(path) != null) {
+            _modified = true;
+        }
+        String prefix = path.endsWith("/") ? path : path + "/";
+        SortedMap<String, Node> subtree = _nodes.subMap(prefix, prefix.substring(0, prefix.length() - 1) + '0');
+        if (!subtree.isEmpty()) {
+            subtree.clear();
+            _modified = true;
+        }
+    }
+
+    private static String join(String path, String name) {
+        return path.endsWith("/") ? path + name : path + "/" + name;
+    }
+
+    private static String getParent(String path) {
+        int index = path.lastIndexOf('/');
+        if (index < 0 || path.equals("/")) {
+            return null;
+        }
+        return index == 0 ? "/" : path.substring(0, index);
+    }
+
+    private void load() {
+        if (!Files.exists(_file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(_file)))) {
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long stamp = in.readLong();
+                long listDigest = in.readLong();
+                String[] directories = new String[in.readInt()];
+                for (int j = 0; j < directories.length; j++) {
+                    directories[j] = in.readUTF();
+                }
+                _nodes.put(path, new Node(stamp, listDigest, directories));
+            }
+            logger.info("Loaded remerge digests of {} directories", count);
+        } catch (IOException e) {
+            logger.warn("Unable to read remerge digests from {}, starting over", _file, e);
+            _nodes.clear();
+        }
+    }
+
+    private void save() {
+        Path tmp = _file.resolveSibling(_file.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(VERSION);
+                out.writeInt(_nodes.size());
+                for (Map.Entry<String, Node> entry : _nodes.entrySet()) {
+                    Node node = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(node._stamp);
+                    out.writeLong(node._listDigest);
+                    out.writeInt(node._directories.length);
+                    for (String name : node._directories) {
+                        out.writeUTF(name);
+                    }
+                }
+            }
+            Files.move(tmp, _file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            _modified = false;
+        } catch (IOException e) {
+            logger.warn("Unable to save remerge digests to {}", _file, e);
+        }
+    }
+
+    /**
+     * Digests of one directory
+     */
+    public static class Digest {
+        private final long _listDigest;
+
+        private final long _treeDigest;
+
+        private final Map<String, Long> _directories;
+
+        private Digest(long listDigest, long treeDigest, Map<String, Long> directories) {
+            _listDigest = listDigest;
+            _treeDigest = treeDigest;
+            _directories = directories;
+        }
+
+        public long getListDigest() {
+            return _listDigest;
+        }
+
+        public long getTreeDigest() {
+            return _treeDigest;
+        }
+
+        /**
+         * @return the tree digests of the subdirectories by name
+         */
+        public Map<String, Long> getDirectories() {
+            return _directories;
+        }
+    }
+
+    private static class Node {
+        // hash of the last modified times of the directory in all roots, 0 if the listing has to be read again
+        private long _stamp;
+
+        private final long _listDigest;
+
+        private final String[] _directories;
+
+        private long _treeDigest;
+
+        private int _generation;
+
+        private Node(long stamp, long listDigest, String[] directories) {
+            _stamp = stamp;
+            _listDigest = listDigest;
+            _directories = directories;
+        }
+    }
+
+    private static class Hasher {
+        private final MessageDigest _digest;
+
+        private final byte[] _long = new byte[8];
+
+        private Hasher() {
+            try {
+                _digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void update(long value) {
+            for (int i = 0; i < 8; i++) {
+                _long[i] = (byte) (value >>> (56 - i * 8));
+            }
+            _digest.update(_long);
+        }
+
+        private void update(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            update(bytes.length);
+            _digest.update(bytes);
+        }
+
+        private long getValue() {
+            byte[] hash = _digest.digest();
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (hash[i] & 0xff);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.slave.vfs;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.drftpd.slave.Slave;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Calculates checksums of many files at once. Every root gets its own threads, so the disks are read
+ * in parallel while one disk is never read by more than <code>threadsPerRoot</code> threads at a time.
+ * <p>
+ * The limit per root is shared with the single checksums of the io lane and the idle fill, all of them
+ * hold a permit of the root from {@link #acquire(Root)} while reading, see {@link Slave#checkSum(String)}.
+ *
+ * @version $Id$
+ */
+public class RootChecksummer {
+    private static final Logger logger = LogManager.getLogger(RootChecksummer.class);
+
+    private final Slave _slave;
+
+    private final int _threadsPerRoot;
+
+    private final Map<String, ExecutorService> _executors = new ConcurrentHashMap<>();
+
+    private final Map<String, Semaphore> _permits = new ConcurrentHashMap<>();
+
+    public RootChecksummer(Slave slave, int threadsPerRoot) {
+        _slave = slave;
+        _threadsPerRoot = Math.max(1, threadsPerRoot);
+    }
+
+    /**
+     * @return completes with the checksums of the files in the order of <code>paths</code>,
+     * files that are missing or could not be read are left out
+     */
+    public CompletableFuture<Map<String, Long>> checksum(String[] paths) {
+        RootCollection roots = _slave.getRoots();
+        Map<String, CompletableFuture<Long>> futures = new LinkedHashMap<>();
+        for (String path : paths) {
+            Root root;
+            try {
+                root = roots.getRootForFile(path);
+            } catch (FileNotFoundException e) {
+                logger.debug("Not calculating the checksum of missing file {}", path);
+                continue;
+            }
+            futures.put(path, CompletableFuture.supplyAsync(() -> {
+                try {
+                    return _slave.checkSum(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, getExecutor(root)).exceptionally(t -> {
+                logger.debug("Unable to calculate the checksum of {}", path, t);
+                return null;
+            }));
+        }
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0])).thenApply(v -> {
+            Map<String, Long> checksums = new LinkedHashMap<>();
+            for (Map.Entry<String, CompletableFuture<Long>> entry : futures.entrySet()) {
+                Long checksum = entry.getValue().join();
+                if (checksum != null) {
+                    checksums.put(entry.getKey(), checksum);
+                }
+            }
+            return checksums;
+        });
+    }
+
+    /**
+     * Waits until fewer than <code>threadsPerRoot</code> checksums are calculated on <code>root</code>,
+     * every call must be followed by {@link #release(Root)}
+     */
+    public void acquire(Root root) throws InterruptedIOException {
+        try {
+            getPermits(root).acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to read " + root.getPath());
+        }
+    }
+
+    public void release(Root root) {
+        getPermits(root).release();
+    }
+
+    private Semaphore getPermits(Root root) {
+        return _permits.computeIfAbsent(root.getPath(), rootPath -> new Semaphore(_threadsPerRoot, true));
+    }
+
+    private ExecutorService getExecutor(Root root) {
+        return _executors.computeIfAbsent(root.getPath(), rootPath -> {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(_threadsPerRoot, _threadsPerRoot, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "Checksum - " + rootPath);
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        });
+    }
+}
@@ -147,45 +147,11 @@ public class RootCollection {
     }
 
     /**
-     * Returns a sorted (alphabetical) list of inodes in the path given along with
-     * a file object pointing to the file and the most recent last modified for the
-     * path across the root collection
-     *
-     * @param path
-     * @return
+     * @return the threads {@link TreeWalker#list(RootCollection, String)} lists the roots with at the same time,
+     * null unless concurrent.root.iteration is enabled
      */
-    public RootPathContents getLocalInodesConcurrent(String path) {
-        CountDownLatch latch = new CountDownLatch(_roots.size());
-        File[][] rootFiles = new File[_roots.size()][];
-        Long[] rootLastModified = new Long[_roots.size()];
-        TreeMap<String, File> files = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
-        for (int i = 0; i < _roots.size(); i++) {
-            _pool.execute(new RootListHandler(rootFiles, i, latch, path, rootLastModified));
-        }
-        while (true) {
-            try {
-                latch.await();
-                break;
-            } catch (InterruptedException e) {
-                // Loop around and wait again
-            }
-        }
-        long lastModified = Long.MIN_VALUE;
-        for (int i = 0; i < _roots.size(); i++) {
-            if (rootFiles[i] != null) {
-                for (int j = 0; j < rootFiles[i].length; j++) {
-                    if (!files.containsKey(rootFiles[i][j].getName())) {
-                        files.put(rootFiles[i][j].getName(), rootFiles[i][j]);
-                    }
-                }
-            }
-            if (rootLastModified[i] != null) {
-                if (rootLastModified[i] > lastModified) {
-                    lastModified = rootLastModified[i];
-                }
-            }
-        }
-        return new RootPathContents(lastModified, files);
+    Executor getListExecutor() {
+        return _pool;
     }
 
     public long getLastModifiedForPath(String path) {
@@ -334,46 +300,12 @@ public class RootCollection {
     public ArrayList<Root> getRootList() {
         return _roots;
     }
-
-    private class RootListHandler implements Runnable {
-
-        private final File[][] _files;
-        private final int _root;
-        private final CountDownLatch _latch;
-        private final String _path;
-        private final Long[] _rootLastModified;
-
-        public RootListHandler(File[][] files, int root, CountDownLatch latch, String path, Long[] rootLastModified) {
-            _files = files;
-            _root = root;
-            _latch = latch;
-            _path = path;
-            _rootLastModified = rootLastModified;
-        }
-
-        public void run() {
-            Thread currThread = Thread.currentThread();
-            currThread.setName("Root List Handler - " + currThread.getId()
-                    + " - processing root " + _root + " - " + _path);
-            File rootPath = _roots.get(_root).getFile(_path);
-            if (rootPath.exists()) {
-                _files[_root] = rootPath.listFiles();
-                _rootLastModified[_root] = rootPath.lastModified();
-            }
-            _latch.countDown();
-            currThread.setName(RootListHandlerThreadFactory.getIdleThreadName(currThread.getId()));
-        }
-    }
 }
 
 class RootListHandlerThreadFactory implements ThreadFactory {
-    public static String getIdleThreadName(long threadId) {
-        return "Root List Handler - " + threadId + " - Waiting for root to process";
-    }
-
     public Thread newThread(Runnable r) {
         Thread t = Executors.defaultThreadFactory().newThread(r);
-        t.setName(getIdleThreadName(t.getId()));
+        t.setName("Root List Handler - " + t.getId());
         return t;
     }
 }
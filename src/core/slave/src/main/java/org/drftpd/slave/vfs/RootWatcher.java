@@ -0,0 +1,304 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.slave.vfs;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.drftpd.common.slave.LightRemoteInode;
+import org.drftpd.slave.Slave;
+import org.drftpd.slave.network.AsyncResponseRemerge;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches the directories of all roots and sends the listing of every directory that changed to the master,
+ * the same way a remerge does, so changes made directly on the disks show up without a full remerge.
+ * <p>
+ * Events are collected per directory and sent once no event arrived for a while, or at the latest after
+ * the maximum delay, the deepest directories first so new directories are known before their parents.
+ * Changes made by the slave itself, running uploads, deletes and renames, are already known to the master
+ * and are ignored. When the events overflow all directories are registered and sent again.
+ *
+ * @version $Id$
+ */
+public class RootWatcher implements Runnable {
+    private static final Logger logger = LogManager.getLogger(RootWatcher.class);
+
+    private final Slave _slave;
+
+    private final long _delay;
+
+    private final long _maxDelay;
+
+    private final Map<WatchKey, String> _keys = new HashMap<>();
+
+    // directory -> time of the first event since it was last sent
+    private final Map<String, Long> _pending = new HashMap<>();
+
+    // path -> time the slave itself last changed it
+    private final Map<String, Long> _ownChanges = new HashMap<>();
+
+    private WatchService _watcher;
+
+    private long _lastEvent;
+
+    private long _sent;
+
+    private boolean _overflow;
+
+    /**
+     * @param delay    time without events before the changed directories are sent, in milliseconds
+     * @param maxDelay time after which changed directories are sent even if events keep coming, in milliseconds
+     */
+    public RootWatcher(Slave slave, long delay, long maxDelay) {
+        _slave = slave;
+        _delay = delay;
+        _maxDelay = maxDelay;
+    }
+
+    /**
+     * Registers all directories of all roots and starts watching, does nothing if already started
+     */
+    public synchronized void start() throws IOException {
+        if (_watcher != null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        _watcher = FileSystems.getDefault().newWatchService();
+        try {
+            for (Root root : _slave.getRoots().getRootList()) {
+                register(root.getFile().toPath(), "/", false);
+            }
+        } catch (IOException e) {
+            _watcher.close();
+            _watcher = null;
+            _keys.clear();
+            throw e;
+        }
+        logger.info("Watching {} directories for changes, registered in {}ms", _keys.size(),
+                System.currentTimeMillis() - start);
+        Thread thread = new Thread(this, "RootWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Called before the slave itself changes <code>path</code>, events for it and everything below it are ignored
+     * for the next {@link #_delay} milliseconds. Events for other files in the same directory are still sent.
+     */
+    public synchronized void ignore(String path) {
+        _ownChanges.put(path, System.currentTimeMillis());
+    }
+
+    public void run() {
+        while (_slave.isOnline()) {
+            WatchKey key;
+            try {
+                key = _watcher.poll(250, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            } catch (ClosedWatchServiceException e) {
+                break;
+            }
+            synchronized (this) {
+                if (key != null) {
+                    processEvents(key);
+                }
+                if (_overflow) {
+                    rescan();
+                }
+                flush();
+            }
+        }
+        logger.info("Stopped watching the roots");
+    }
+
+    private void processEvents(WatchKey key) {
+        String dir = _keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                _overflow = true;
+                continue;
+            }
+            if (dir == null) {
+                continue;
+            }
+            String name = event.context().toString();
+            String path = join(dir, name);
+            if (_slave.getUploadForPath(path) != null) {
+                continue;
+            }
+            boolean own = isOwnChange(path);
+            if (event.kind() == ENTRY_CREATE) {
+                Path child = ((Path) key.watchable()).resolve(name);
+                if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                    try {
+                        // directories the slave renamed into place are watched too, the master knows their contents
+                        register(child, path, !own);
+                    } catch (IOException e) {
+                        logger.warn("Unable to watch new directory {}", path, e);
+                    }
+                }
+            }
+            if (own) {
+                continue;
+            }
+            if (event.kind() == ENTRY_MODIFY && _slave.getDirectoryDigests() != null) {
+                // files changed in place keep the modification time of their directory
+                _slave.getDirectoryDigests().invalidate(path);
+            }
+            changed(dir);
+        }
+        if (!key.reset()) {
+            _keys.remove(key);
+        }
+    }
+
+    /**
+     * Events were lost, registers directories created in the meantime and sends every directory to the master
+     */
+    private void rescan() {
+        _overflow = false;
+        long start = System.currentTimeMillis();
+        if (_slave.getDirectoryDigests() != null) {
+            // files changed in place may be among the lost events
+            _slave.getDirectoryDigests().invalidateAll();
+        }
+        for (Root root : _slave.getRoots().getRootList()) {
+            try {
+                register(root.getFile().toPath(), "/", true);
+            } catch (IOException e) {
+                logger.warn("Unable to watch {} again", root.getPath(), e);
+            }
+        }
+        logger.warn("Too many changes to keep track of, sending all {} directories to the master, scanned in {}ms",
+                _pending.size(), System.currentTimeMillis() - start);
+    }
+
+    private void register(Path start, String path, boolean changed) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                String dirPath = path;
+                for (Path part : start.relativize(dir)) {
+                    if (!part.toString().isEmpty()) {
+                        dirPath = join(dirPath, part.toString());
+                    }
+                }
+                _keys.put(dir.register(_watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dirPath);
+                if (changed) {
+                    changed(dirPath);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                logger.debug("Unable to watch {}", file, e);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void changed(String dir) {
+        long now = System.currentTimeMillis();
+        _pending.putIfAbsent(dir, now);
+        _lastEvent = now;
+    }
+
+    /**
+     * @return true if the slave itself recently changed <code>path</code> or a directory above it
+     */
+    private boolean isOwnChange(String path) {
+        if (_ownChanges.isEmpty()) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        for (String p = path; !p.equals("/"); p = getParent(p)) {
+            Long changed = _ownChanges.get(p);
+            if (changed != null && now - changed < _delay) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void flush() {
+        long now = System.currentTimeMillis();
+        _ownChanges.values().removeIf(changed -> now - changed >= _delay);
+        if (_pending.isEmpty()) {
+            return;
+        }
+        long oldest = Collections.min(_pending.values());
+        if (now - _lastEvent < _delay && now - oldest < _maxDelay) {
+            return;
+        }
+        List<String> dirs = new ArrayList<>(_pending.keySet());
+        _pending.clear();
+        dirs.sort(Comparator.comparingInt(RootWatcher::getDepth).reversed().thenComparing(Comparator.naturalOrder()));
+        RootCollection roots = _slave.getRoots();
+        for (String dir : dirs) {
+            if (!exists(roots, dir)) {
+                // the listing of its parent tells the master it is gone
+                continue;
+            }
+            List<LightRemoteInode> inodes = DirectoryDigests.list(roots, dir);
+            // files still being uploaded are sent by the transfer once it is done
+            inodes.removeIf(inode -> _slave.getUploadForPath(join(dir, inode.getName())) != null);
+            _slave.sendResponse(new AsyncResponseRemerge(dir, inodes, roots.getLastModifiedForPath(dir)));
+            _sent++;
+        }
+        logger.debug("Sent {} changed directories to the master, {} since watching started", dirs.size(), _sent);
+    }
+
+    private static boolean exists(RootCollection roots, String path) {
+        for (Root root : roots.getRootList()) {
+            File file = root.getFile(path);
+            if (file.isDirectory()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int getDepth(String path) {
+        int depth = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return path.equals("/") ? 0 : depth;
+    }
+
+    private static String join(String path, String name) {
+        return path.endsWith("/") ? path + name : path + "/" + name;
+    }
+
+    private static String getParent(String path) {
+        int index = path.lastIndexOf('/');
+        return index <= 0 ? "/" : path.substring(0, index);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.slave.vfs;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.drftpd.common.slave.LightRemoteInode;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Walks the directory tree of all roots, reading the entries of a directory with one directory stream and
+ * one attribute read per entry instead of a separate system call for every attribute.
+ * <p>
+ * Subdirectories are walked in parallel, so directories on different roots are read at the same time.
+ * The listing of a directory is handed to the {@link Visitor} as soon as the directory and all directories
+ * below it are done, every directory comes after its subdirectories but directories of different subtrees
+ * may come in any order.
+ *
+ * @version $Id$
+ */
+public class TreeWalker {
+    private static final Logger logger = LogManager.getLogger(TreeWalker.class);
+
+    private final RootCollection _roots;
+
+    private final int _threads;
+
+    public interface Visitor {
+        /**
+         * Called before a directory is read, may block to pause the walk
+         *
+         * @return false to skip the directory and everything below it
+         */
+        boolean preVisit(String path);
+
+        void visit(String path, List<LightRemoteInode> inodes, long lastModified);
+
+        /**
+         * Called for symbolic links, which are left out of the listings
+         */
+        void symbolicLink(String path);
+    }
+
+    public TreeWalker(RootCollection roots, int threads) {
+        _roots = roots;
+        _threads = Math.max(1, threads);
+    }
+
+    /**
+     * Walks the tree below <code>path</code> and returns once all directories were visited
+     *
+     * @return the number of directories visited
+     */
+    public int walk(String path, Visitor visitor) {
+        AtomicInteger count = new AtomicInteger();
+        ForkJoinPool pool = new ForkJoinPool(_threads, p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("TreeWalker-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+        try {
+            pool.invoke(new DirectoryTask(path, visitor, count));
+        } finally {
+            pool.shutdown();
+        }
+        return count.get();
+    }
+
+    /**
+     * Reads one directory from all roots, entries found in several roots are taken from the first one.
+     * The roots are read at the same time if concurrent.root.iteration is enabled.
+     */
+    public static Listing list(RootCollection roots, String path) {
+        List<Root> rootList = roots.getRootList();
+        Executor executor = roots.getListExecutor();
+        Listing[] rootListings = new Listing[rootList.size()];
+        if (executor == null || rootList.size() == 1) {
+            for (int i = 0; i < rootListings.length; i++) {
+                rootListings[i] = list(rootList.get(i), path);
+            }
+        } else {
+            CompletableFuture<?>[] futures = new CompletableFuture[rootListings.length];
+            for (int i = 0; i < rootListings.length; i++) {
+                int index = i;
+                futures[i] = CompletableFuture.runAsync(() -> rootListings[index] = list(rootList.get(index), path),
+                        executor);
+            }
+            CompletableFuture.allOf(futures).join();
+        }
+        if (rootListings.length == 1) {
+            return rootListings[0];
+        }
+        Listing listing = new Listing();
+        for (Listing rootListing : rootListings) {
+            listing._lastModified = Math.max(listing._lastModified, rootListing._lastModified);
+            for (String name : rootListing._symbolicLinks) {
+                if (!listing._inodes.containsKey(name) && !listing._symbolicLinks.contains(name)) {
+                    listing._symbolicLinks.add(name);
+                }
+            }
+            for (Map.Entry<String, LightRemoteInode> entry : rootListing._inodes.entrySet()) {
+                if (!listing._inodes.containsKey(entry.getKey()) && !listing._symbolicLinks.contains(entry.getKey())) {
+                    listing._inodes.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return listing;
+    }
+
+    private static Listing list(Root root, String path) {
+        Listing listing = new Listing();
+        Path dir = root.getFile(path).toPath();
+        BasicFileAttributes dirAttributes;
+        try {
+            dirAttributes = Files.readAttributes(dir, BasicFileAttributes.class);
+        } catch (IOException e) {
+            // not on this root
+            return listing;
+        }
+        if (!dirAttributes.isDirectory()) {
+            return listing;
+        }
+        listing._lastModified = dirAttributes.lastModifiedTime().toMillis();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path entry : stream) {
+                String name = entry.getFileName().toString();
+                if (listing._inodes.containsKey(name) || listing._symbolicLinks.contains(name)) {
+                    continue;
+                }
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    logger.debug("Skipping {} which disappeared or can not be read", entry, e);
+                    continue;
+                }
+                if (attributes.isSymbolicLink()) {
+                    listing._symbolicLinks.add(name);
+                    continue;
+                }
+                listing._inodes.put(name, new LightRemoteInode(name, "drftpd", "drftpd",
+                        attributes.isDirectory(), attributes.lastModifiedTime().toMillis(), attributes.size()));
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            logger.warn("Unable to read directory {}", dir, e);
+        }
+        return listing;
+    }
+
+    private static String childPath(String path, String name) {
+        return path.endsWith("/") ? path + name : path + "/" + name;
+    }
+
+    public static class Listing {
+        private final TreeMap<String, LightRemoteInode> _inodes = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        private final List<String> _symbolicLinks = new ArrayList<>();
+
+        private long _lastModified = Long.MIN_VALUE;
+
+        /**
+         * @return the entries sorted by name, ignoring case
+         */
+        public List<LightRemoteInode> getInodes() {
+            return new ArrayList<>(_inodes.values());
+        }
+
+        public List<String> getSymbolicLinks() {
+            return _symbolicLinks;
+        }
+
+        /**
+         * @return the newest modification time of the directory over all roots, Long.MIN_VALUE if it exists in none
+         */
+        public long getLastModified() {
+            return _lastModified;
+        }
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        private final String _path;
+
+        private final Visitor _visitor;
+
+        private final AtomicInteger _count;
+
+        private DirectoryTask(String path, Visitor visitor, AtomicInteger count) {
+            _path = path;
+            _visitor = visitor;
+            _count = count;
+        }
+
+        @Override
+        protected void compute() {
+            if (!_visitor.preVisit(_path)) {
+                return;
+            }
+            Listing listing = list(_roots, _path);
+            for (String name : listing.getSymbolicLinks()) {
+                _visitor.symbolicLink(childPath(_path, name));
+            }
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+            for (Map.Entry<String, LightRemoteInode> entry : listing._inodes.entrySet()) {
+                if (entry.getValue().isDirectory()) {
+                    subdirectories.add(new DirectoryTask(childPath(_path, entry.getKey()), _visitor, _count));
+                }
+            }
+            invokeAll(subdirectories);
+            _visitor.visit(_path, listing.getInodes(), listing.getLastModified());
+            _count.incrementAndGet();
+        }
+    }
+}
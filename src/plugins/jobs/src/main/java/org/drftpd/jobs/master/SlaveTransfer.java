@@ -136,7 +136,7 @@ public class SlaveTransfer {
 
         // Start received on the destination
         try {
-            _destTransfer.receiveFile(_file.getPath(), 'I', 0, "*@*", 0L, 0L);
+            _destTransfer.receiveFile(_file.getPath(), 'I', 0, "*@*", 0L, 0L, "", _file.getSize());
         } catch (IOException e1) {
             logger.debug("IOException received, throwing DestinationSlaveException");
             throw new DestinationSlaveException(e1);
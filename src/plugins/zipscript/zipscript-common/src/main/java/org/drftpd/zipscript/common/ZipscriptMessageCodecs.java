@@ -0,0 +1,112 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.drftpd.zipscript.common;
+
+import org.drftpd.common.network.codec.MessageCodec;
+import org.drftpd.common.network.codec.MessageCodecProvider;
+import org.drftpd.common.vfs.CaseInsensitiveTreeMap;
+import org.drftpd.zipscript.common.sfv.AsyncResponseSFVInfo;
+import org.drftpd.zipscript.common.sfv.SFVInfo;
+import org.drftpd.zipscript.common.zip.AsyncResponseDizInfo;
+import org.drftpd.zipscript.common.zip.AsyncResponseZipCRCInfo;
+import org.drftpd.zipscript.common.zip.DizInfo;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.drftpd.common.network.codec.WireFormat.*;
+
+/**
+ * Codecs for the zipscript responses that are sent for every release, mp3 and flac
+ * information is rare enough to stay with Java serialization.
+ *
+ * @version $Id$
+ */
+public class ZipscriptMessageCodecs implements MessageCodecProvider {
+
+    public List<MessageCodec<?>> getCodecs() {
+        return List.of(
+                MessageCodec.of(AsyncResponseSFVInfo.class,
+                        (ar, out) -> {
+                            writeString(out, ar.getIndex());
+                            writeSFVInfo(out, ar.getSFV());
+                        },
+                        in -> new AsyncResponseSFVInfo(readString(in), readSFVInfo(in))),
+                MessageCodec.of(AsyncResponseZipCRCInfo.class,
+                        (ar, out) -> {
+                            writeString(out, ar.getIndex());
+                            out.writeBoolean(ar.isOk());
+                        },
+                        in -> new AsyncResponseZipCRCInfo(readString(in), in.readBoolean())),
+                MessageCodec.of(AsyncResponseDizInfo.class,
+                        (ar, out) -> {
+                            writeString(out, ar.getIndex());
+                            DizInfo diz = ar.getDizInfo();
+                            out.writeBoolean(diz != null);
+                            if (diz != null) {
+                                out.writeBoolean(diz.isValid());
+                                out.writeInt(diz.getTotal());
+                                writeString(out, diz.getString());
+                            }
+                        },
+                        in -> {
+                            String index = readString(in);
+                            DizInfo diz = null;
+                            if (in.readBoolean()) {
+                                diz = new DizInfo();
+                                diz.setValid(in.readBoolean());
+                                diz.setTotal(in.readInt());
+                                diz.setString(readString(in));
+                            }
+                            return new AsyncResponseDizInfo(index, diz);
+                        }));
+    }
+
+    private static void writeSFVInfo(DataOutputStream out, SFVInfo sfv) throws IOException {
+        writeString(out, sfv.getSFVFileName());
+        out.writeLong(sfv.getChecksum());
+        Map<String, Long> entries = sfv.getEntries();
+        if (entries == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        writeVarInt(out, entries.size() + 1);
+        for (Map.Entry<String, Long> entry : entries.entrySet()) {
+            writeString(out, entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+    }
+
+    private static SFVInfo readSFVInfo(DataInputStream in) throws IOException {
+        SFVInfo sfv = new SFVInfo();
+        sfv.setSFVFileName(readString(in));
+        sfv.setChecksum(in.readLong());
+        int size = readVarInt(in);
+        if (size != 0) {
+            CaseInsensitiveTreeMap<String, Long> entries = new CaseInsensitiveTreeMap<>();
+            for (int i = 1; i < size; i++) {
+                entries.put(readString(in), in.readLong());
+            }
+            sfv.setEntries(entries);
+        }
+        return sfv;
+    }
+}